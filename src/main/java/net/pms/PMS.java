@@ -184,7 +184,12 @@ public class PMS {
 		return proxyServer;
 	}
 
-	public ArrayList<Process> currentProcesses = new ArrayList<Process>();
+	/**
+	 * The external processes that are running. This used to be an
+	 * <code>ArrayList&lt;Process&gt;</code>; see {@link ProcessRegistry} for
+	 * what that means for plugins.
+	 */
+	public final ProcessRegistry currentProcesses = new ProcessRegistry();
 
 	private PMS() { }
 
@@ -595,15 +600,12 @@ public class PMS {
 					UPNPHelper.shutDownListener();
 					UPNPHelper.sendByeBye();
 					logger.debug("Forcing shutdown of all active processes");
-					for (Process p : currentProcesses) {
-						try {
-							p.exitValue();
-						} catch (IllegalThreadStateException ise) {
-							logger.trace("Forcing shutdown of process: " + p);
-							ProcessUtil.destroy(p);
-						}
-					}
+					currentProcesses.destroyAll();
 					get().getServer().stop();
+					if (get().database != null) {
+						logger.debug("Writing queued media information to the database");
+						get().database.flush();
+					}
 					Thread.sleep(500);
 				} catch (InterruptedException e) {
 					logger.debug("Caught exception", e);
@@ -103,15 +103,20 @@ public class PmsConfiguration {
 	private static final String KEY_HIDE_MEDIA_LIBRARY_FOLDER = "hide_media_library_folder";
 	private static final String KEY_HIDE_TRANSCODE_FOLDER = "hide_transcode_folder";
 	private static final String KEY_HIDE_VIDEO_SETTINGS = "hide_video_settings";
+	private static final String KEY_HTTP_CONTROL_THREADS = "http_control_threads";
 	private static final String KEY_HTTP_ENGINE_V2 = "http_engine_v2";
+	private static final String KEY_HTTP_STREAM_THREADS = "http_stream_threads";
 	private static final String KEY_IMAGE_THUMBNAILS_ENABLED = "image_thumbnails";
 	private static final String KEY_IP_FILTER = "ip_filter";
 	private static final String KEY_SHOW_IPHOTO_LIBRARY = "show_iphoto_library";
 	private static final String KEY_SHOW_ITUNES_LIBRARY = "show_itunes_library";
 	private static final String KEY_LANGUAGE = "language";
+	private static final String KEY_LIBRARY_CLEANUP_INCREMENTAL = "library_cleanup_incremental";
+	private static final String KEY_LIBRARY_SCAN_THREADS = "library_scan_threads";
 	private static final String KEY_MAX_AUDIO_BUFFER = "maximum_audio_buffer_size";
 	private static final String KEY_MAX_BITRATE = "maximum_bitrate";
 	private static final String KEY_MAX_MEMORY_BUFFER_SIZE = "maximum_video_buffer_size";
+	private static final String KEY_MEDIA_CACHE_SIZE = "media_cache_size";
 	private static final String KEY_MENCODER_ASS = "mencoder_ass";
 	private static final String KEY_MENCODER_AC3_FIXED = "mencoder_ac3_fixed";
 	private static final String KEY_MENCODER_ASS_DEFAULTSTYLE = "mencoder_ass_defaultstyle";
@@ -163,9 +168,12 @@ public class PmsConfiguration {
 	private static final String KEY_SUBTITLE_CODEPAGE = "subtitle_codepage";
 	private static final String KEY_SUBTITLE_LANGUAGES = "subtitle_languages";
 	private static final String KEY_TEMP_FOLDER_PATH = "temp_directory";
+	private static final String KEY_THUMBNAIL_CACHE_SIZE = "thumbnail_cache_size";
 	private static final String KEY_THUMBNAIL_GENERATION_ENABLED = "generate_thumbnails";
 	private static final String KEY_THUMBNAIL_SEEK_POS = "thumbnail_seek_position";
 	private static final String KEY_TRANSCODE_BLOCKS_MULTIPLE_CONNECTIONS = "transcode_block_multiple_connections";
+	private static final String KEY_TRANSCODE_BUFFER_POOL_SIZE = "transcode_buffer_pool_size";
+	private static final String KEY_TRANSCODE_CACHE_SIZE = "transcode_cache_size";
 	private static final String KEY_TRANSCODE_FOLDER_NAME = "transcode_folder_name";
 	private static final String KEY_TRANSCODE_KEEP_FIRST_CONNECTION = "transcode_keep_first_connection";
 	private static final String KEY_TSMUXER_FORCEFPS = "tsmuxer_forcefps";
@@ -183,6 +191,7 @@ public class PmsConfiguration {
 	private static final String KEY_VLC_SAMPLE_RATE_OVERRIDE = "vlc_sample_rate_override";
 	private static final String KEY_VLC_SAMPLE_RATE = "vlc_sample_rate";
 	private static final String KEY_VIDEO_HW_ACCELERATION = "video_hardware_acceleration";
+	private static final String KEY_WATCH_FOLDERS = "watch_folders";
 	private static final String KEY_WEB_CONF_PATH = "web_conf";
 
 	// The name of the subdirectory under which PMS config files are stored for this build (default: UMS).
@@ -676,6 +685,35 @@ public class PmsConfiguration {
 		configuration.setProperty(KEY_MAX_MEMORY_BUFFER_SIZE, Math.max(0, Math.min(MAX_MAX_MEMORY_BUFFER_SIZE, value)));
 	}
 
+	/**
+	 * Returns the total amount of memory in megabytes that all transcoding
+	 * buffers together may use. The memory is allocated outside of the Java
+	 * heap. Default value is four times {@link #getMaxMemoryBufferSize()},
+	 * but at most three quarters of the maximum heap size: unless
+	 * -XX:MaxDirectMemorySize is given, that is also the limit of the memory
+	 * outside of the heap, which other parts of the server use too.
+	 *
+	 * @return The transcode buffer pool size.
+	 */
+	public int getTranscodeBufferPoolSize() {
+		long limit = Runtime.getRuntime().maxMemory() / 1048576 * 3 / 4;
+		int defaultSize = (int) Math.min(4L * getMaxMemoryBufferSize(), limit);
+		return Math.max(1, getInt(KEY_TRANSCODE_BUFFER_POOL_SIZE, defaultSize));
+	}
+
+	/**
+	 * Returns the maximum size of the completed transcodes that are kept in
+	 * the profile directory to be replayed and seeked in without
+	 * transcoding again, in megabytes. The least recently used transcodes
+	 * are deleted when the cache grows beyond it. Default is 0, which
+	 * disables the cache.
+	 *
+	 * @return The maximum size in megabytes.
+	 */
+	public int getTranscodeCacheSize() {
+		return Math.max(0, getInt(KEY_TRANSCODE_CACHE_SIZE, 0));
+	}
+
 	/**
 	 * Returns the font scale used for ASS subtitling. Default value is 1.4.
 	 * @return The ASS font scale.
@@ -867,6 +905,16 @@ public class PmsConfiguration {
 		configuration.setProperty(KEY_THUMBNAIL_SEEK_POS, value);
 	}
 
+	/**
+	 * Returns the maximum size of the thumbnails that are stored in the
+	 * profile directory, in megabytes. The least recently used thumbnails
+	 * are deleted when the store grows beyond it. Default is 200.
+	 * @return The maximum size in megabytes.
+	 */
+	public int getThumbnailCacheSize() {
+		return Math.max(1, getInt(KEY_THUMBNAIL_CACHE_SIZE, 200));
+	}
+
 	/**
 	 * Returns whether the user wants ASS/SSA subtitle support. Default is
 	 * true.
@@ -1469,6 +1517,40 @@ public class PmsConfiguration {
 		return getBoolean(KEY_USE_CACHE, false);
 	}
 
+	/**
+	 * Returns the number of files the library scanner parses at the same
+	 * time in each shared folder. Default value is 2.
+	 *
+	 * @return The number of scanner threads per shared folder.
+	 */
+	public int getLibraryScanThreads() {
+		return Math.max(1, getInt(KEY_LIBRARY_SCAN_THREADS, 2));
+	}
+
+	/**
+	 * Returns whether the cleanup after a library scan only checks the
+	 * files in directories that changed since the last cleanup. Files that
+	 * were changed in place are then removed by the weekly full cleanup.
+	 * Default value is false.
+	 *
+	 * @return Whether the cleanup is incremental.
+	 */
+	public boolean isLibraryCleanupIncremental() {
+		return getBoolean(KEY_LIBRARY_CLEANUP_INCREMENTAL, false);
+	}
+
+	/**
+	 * Returns the number of files whose media information is kept in memory
+	 * after it has been read from the cache, so folders that are browsed
+	 * again don't have to query the database. Without the cache, the files
+	 * parsed last are kept instead. Default value is 5000.
+	 *
+	 * @return The maximum number of files kept in memory.
+	 */
+	public int getMediaCacheSize() {
+		return Math.max(1, getInt(KEY_MEDIA_CACHE_SIZE, 5000));
+	}
+
 	/**
 	 * Set to true if PMS should cache scanned media in its internal database,
 	 * speeding up later retrieval.
@@ -1984,6 +2066,27 @@ public class PmsConfiguration {
 		return getBoolean(KEY_HTTP_ENGINE_V2, true);
 	}
 
+	/**
+	 * Returns the number of threads the HTTP Engine V2 uses to answer
+	 * control requests like browsing and other SOAP actions. Default
+	 * value is 8.
+	 *
+	 * @return The number of control request threads.
+	 */
+	public int getHttpControlThreads() {
+		return Math.max(1, getInt(KEY_HTTP_CONTROL_THREADS, 8));
+	}
+
+	/**
+	 * Returns the number of threads the HTTP Engine V2 uses to set up media
+	 * streams, which includes starting transcoders. Default value is 16.
+	 *
+	 * @return The number of media stream threads.
+	 */
+	public int getHttpStreamThreads() {
+		return Math.max(1, getInt(KEY_HTTP_STREAM_THREADS, 16));
+	}
+
 	public boolean isShowIphotoLibrary() {
 		return getBoolean(KEY_SHOW_IPHOTO_LIBRARY, false);
 	}
@@ -2016,6 +2119,18 @@ public class PmsConfiguration {
 		this.configuration.setProperty(PmsConfiguration.KEY_HIDE_EMPTY_FOLDERS, value);
 	}
 
+	/**
+	 * Returns whether shared folders are watched for changes with the
+	 * notifications of the operating system, instead of checking their
+	 * modification time each time they are browsed. Folders on file systems
+	 * without notifications are still checked. Default is true.
+	 *
+	 * @return Whether shared folders are watched.
+	 */
+	public boolean isWatchFolders() {
+		return getBoolean(KEY_WATCH_FOLDERS, true);
+	}
+
 	public boolean isHideMediaLibraryFolder() {
 		return getBoolean(PmsConfiguration.KEY_HIDE_MEDIA_LIBRARY_FOLDER, false);
 	}
@@ -20,17 +20,56 @@ import java.io.File;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class RendererConfiguration {
 	private static final Logger logger = LoggerFactory.getLogger(RendererConfiguration.class);
 	private static ArrayList<RendererConfiguration> rendererConfs;
 	private static PmsConfiguration pmsConfiguration;
 	private static RendererConfiguration defaultConf;
-	private static Map<InetAddress, RendererConfiguration> addressAssociation = new HashMap<InetAddress, RendererConfiguration>();
+	private static volatile RendererMatcher matcher = new RendererMatcher(Collections.<RendererConfiguration>emptyList());
+	private static volatile ForcedRenderers forcedRenderers;
+
+	/**
+	 * The renderers recognized by IP address. The map is never changed, it
+	 * is replaced when an address is added, so that requests can read it
+	 * without locking.
+	 */
+	private static volatile Map<InetAddress, RendererConfiguration> addressAssociation = Collections.emptyMap();
+
+	/**
+	 * The renderers that are forced for IP addresses by the "renderer_force_ip"
+	 * setting, parsed once for each value of the setting.
+	 */
+	private static class ForcedRenderers {
+		final String setting;
+		final List<IpFilter> filters = new ArrayList<IpFilter>();
+		final List<RendererConfiguration> renderers = new ArrayList<RendererConfiguration>();
+
+		ForcedRenderers(String setting) {
+			this.setting = setting;
+
+			for (String tuple : setting.split(",")) {
+				String[] parts = tuple.split("@");
+
+				// Sanity checks on the strings
+				if (parts.length == 2 && !"".equals(parts[0]) && !"".equals(parts[1])) {
+					RendererConfiguration renderer = getRendererConfigurationByName(parts[0]);
+
+					if (renderer != null) {
+						filters.add(new IpFilter(parts[1]));
+						renderers.add(renderer);
+					}
+				}
+			}
+		}
+	}
 
 	private RootFolder rootFolder;
 	private final PropertiesConfiguration configuration;
@@ -43,6 +82,9 @@ public class RendererConfiguration {
 
 	private final Map<String, String> DLNAPN;
 
+	private final Pattern userAgentPattern;
+	private final Pattern userAgentAdditionalPattern;
+
 	// property values
 	private static final String DEPRECATED_MPEGPSAC3 = "MPEGAC3"; // XXX deprecated: old name with missing container
 	private static final String LPCM = "LPCM";
@@ -151,6 +193,9 @@ public class RendererConfiguration {
 			}
 		}
 
+		matcher = new RendererMatcher(rendererConfs);
+		forcedRenderers = null;
+
 		if (rendererConfs.size() > 0) {
 			// See if a different default configuration was configured
 			String rendererFallback = pmsConfiguration.getRendererDefault();
@@ -245,7 +290,7 @@ public class RendererConfiguration {
 	 * @see #getRendererConfigurationBySocketAddress(InetAddress)
 	 */
 	public void associateIP(InetAddress sa) {
-		addressAssociation.put(sa, this);
+		associate(sa, this);
 		SpeedStats.getInstance().getSpeedInMBits(sa, getRendererName());
 	}
 
@@ -262,27 +307,25 @@ public class RendererConfiguration {
 	public static RendererConfiguration getRendererConfigurationBySocketAddress(InetAddress inetAddress) {
 		// First see if a renderer is forced for this address.
 		String forced = pmsConfiguration.getRendererForceIp();
-		
+
 		if (forced != null && !"".equals(forced)) {
-			for (String tuple : forced.split(",")) {
-				if (tuple.indexOf("@") > -1) {
-					String name = tuple.split("@")[0];
-					String ip = tuple.split("@")[1];
-
-					// Sanity checks on the strings
-					if (!"".equals(name) && !"".equals(ip)) {
-						IpFilter filter = new IpFilter(ip);
-	
-						if (filter.isMatch(inetAddress)) {
-							RendererConfiguration renderer = getRendererConfigurationByName(name);
-							
-							if (renderer != null) {
-								logger.trace("Forcing renderer match to \"" + renderer.getRendererName() + "\" based on forced IP address configuration");
-								addressAssociation.put(inetAddress, renderer);
-								return renderer;
-							}
-						}
+			ForcedRenderers forcedList = forcedRenderers;
+
+			if (forcedList == null || !forced.equals(forcedList.setting)) {
+				forcedList = new ForcedRenderers(forced);
+				forcedRenderers = forcedList;
+			}
+
+			for (int i = 0; i < forcedList.filters.size(); i++) {
+				if (forcedList.filters.get(i).isMatch(inetAddress)) {
+					RendererConfiguration renderer = forcedList.renderers.get(i);
+					logger.trace("Forcing renderer match to \"" + renderer.getRendererName() + "\" based on forced IP address configuration");
+
+					if (addressAssociation.get(inetAddress) != renderer) {
+						associate(inetAddress, renderer);
 					}
+
+					return renderer;
 				}
 			}
 		}
@@ -290,6 +333,12 @@ public class RendererConfiguration {
 		return addressAssociation.get(inetAddress);
 	}
 
+	private static synchronized void associate(InetAddress inetAddress, RendererConfiguration renderer) {
+		Map<InetAddress, RendererConfiguration> associations = new HashMap<InetAddress, RendererConfiguration>(addressAssociation);
+		associations.put(inetAddress, renderer);
+		addressAssociation = Collections.unmodifiableMap(associations);
+	}
+
 	/**
 	 * Tries to find a matching renderer configuration based on a request
 	 * header line with a User-Agent header. These matches are made using
@@ -307,10 +356,10 @@ public class RendererConfiguration {
 			return manageRendererMatch(defaultConf);
 		} else {
 			// Try to find a match
-			for (RendererConfiguration r : rendererConfs) {
-				if (r.matchUserAgent(userAgentString)) {
-					return manageRendererMatch(r);
-				}
+			RendererConfiguration r = matcher.matchUserAgent(userAgentString);
+
+			if (r != null) {
+				return manageRendererMatch(r);
 			}
 		}
 
@@ -349,13 +398,10 @@ public class RendererConfiguration {
 			return manageRendererMatch(defaultConf);
 		} else {
 			// Try to find a match
-			for (RendererConfiguration r : rendererConfs) {
-				if (StringUtils.isNotBlank(r.getUserAgentAdditionalHttpHeader()) && header.startsWith(r.getUserAgentAdditionalHttpHeader())) {
-					String value = header.substring(header.indexOf(":", r.getUserAgentAdditionalHttpHeader().length()) + 1);
-					if (r.matchAdditionalUserAgent(value)) {
-						return manageRendererMatch(r);
-					}
-				}
+			RendererConfiguration r = matcher.matchAdditionalHeader(header);
+
+			if (r != null) {
+				return manageRendererMatch(r);
 			}
 		}
 
@@ -495,6 +541,32 @@ public class RendererConfiguration {
 		if (isMediaParserV2()) {
 			formatConfiguration = new FormatConfiguration(configuration.getList(SUPPORTED));
 		}
+
+		userAgentPattern = compileSearch(USER_AGENT, getUserAgent());
+		userAgentAdditionalPattern = compileSearch(USER_AGENT_ADDITIONAL_SEARCH, getUserAgentAdditionalHttpHeaderSearch());
+	}
+
+	/**
+	 * Compiles a search expression from the configuration once, so that
+	 * matching a request header does not have to. An invalid expression is
+	 * logged and then matches nothing.
+	 *
+	 * @param key The configuration key, for the log.
+	 * @param search The expression.
+	 * @return The pattern, or <code>null</code> if the expression is empty
+	 * or invalid.
+	 */
+	private Pattern compileSearch(String key, String search) {
+		if (StringUtils.isBlank(search)) {
+			return null;
+		}
+
+		try {
+			return Pattern.compile(search, Pattern.CASE_INSENSITIVE);
+		} catch (PatternSyntaxException e) {
+			logger.warn("Invalid " + key + " in the configuration of " + getRendererName() + ": " + e.getMessage());
+			return null;
+		}
 	}
 
 	public String getDLNAPN(String old) {
@@ -689,16 +761,7 @@ public class RendererConfiguration {
 	 * @return True if the pattern matches.
 	 */
 	public boolean matchUserAgent(String header) {
-		String userAgent = getUserAgent();
-		Pattern userAgentPattern;
-
-		if (StringUtils.isNotBlank(userAgent)) {
-			userAgentPattern = Pattern.compile(userAgent, Pattern.CASE_INSENSITIVE);
-
-			return userAgentPattern.matcher(header).find();
-		} else {
-			return false;
-		}
+		return userAgentPattern != null && userAgentPattern.matcher(header).find();
 	}
 
 	/**
@@ -710,16 +773,15 @@ public class RendererConfiguration {
 	 * @return True if the pattern matches.
 	 */
 	public boolean matchAdditionalUserAgent(String header) {
-		String userAgentAdditionalHeader = getUserAgentAdditionalHttpHeaderSearch();
-		Pattern userAgentAddtionalPattern;
+		return userAgentAdditionalPattern != null && userAgentAdditionalPattern.matcher(header).find();
+	}
 
-		if (StringUtils.isNotBlank(userAgentAdditionalHeader)) {
-			userAgentAddtionalPattern = Pattern.compile(userAgentAdditionalHeader, Pattern.CASE_INSENSITIVE);
+	boolean hasUserAgentPattern() {
+		return userAgentPattern != null;
+	}
 
-			return userAgentAddtionalPattern.matcher(header).find();
-		} else {
-			return false;
-		}
+	boolean hasAdditionalUserAgentPattern() {
+		return userAgentAdditionalPattern != null;
 	}
 
 	/**
@@ -1182,7 +1244,7 @@ public class RendererConfiguration {
 	/**
 	 * Reset gathered information on IP address associations with renderers.
 	 */
-	protected static void resetAddressAssociation() {
-		addressAssociation = new HashMap<InetAddress, RendererConfiguration>();
+	protected static synchronized void resetAddressAssociation() {
+		addressAssociation = Collections.emptyMap();
 	}
 }
@@ -0,0 +1,161 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.configuration;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the renderer that sent a request header. It is built once when the
+ * renderer configurations are loaded and can be used from any thread.
+ * Renderers are tried in the order of their rank, so the first renderer
+ * whose pattern matches wins. The result for a header is remembered, since
+ * a renderer sends the same headers with every request.
+ */
+class RendererMatcher {
+	/**
+	 * Maximum number of header values whose result is remembered.
+	 */
+	private static final int MAX_CACHED = 1000;
+
+	/**
+	 * Result that is remembered for headers that match no renderer.
+	 */
+	private static final Object NO_MATCH = new Object();
+
+	private final RendererConfiguration[] userAgentRenderers;
+	private final RendererConfiguration[] additionalHeaderRenderers;
+	private final String[] additionalHeaderNames;
+	private final ConcurrentMap<String, Object> userAgentResults = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentMap<String, Object> additionalHeaderResults = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * @param renderers The renderers, in the order of their rank.
+	 */
+	RendererMatcher(List<RendererConfiguration> renderers) {
+		List<RendererConfiguration> userAgent = new ArrayList<RendererConfiguration>();
+		List<RendererConfiguration> additionalHeader = new ArrayList<RendererConfiguration>();
+		Set<String> names = new LinkedHashSet<String>();
+
+		for (RendererConfiguration r : renderers) {
+			if (r.hasUserAgentPattern()) {
+				userAgent.add(r);
+			}
+
+			if (r.hasAdditionalUserAgentPattern() && StringUtils.isNotBlank(r.getUserAgentAdditionalHttpHeader())) {
+				additionalHeader.add(r);
+				names.add(r.getUserAgentAdditionalHttpHeader());
+			}
+		}
+
+		userAgentRenderers = userAgent.toArray(new RendererConfiguration[userAgent.size()]);
+		additionalHeaderRenderers = additionalHeader.toArray(new RendererConfiguration[additionalHeader.size()]);
+		additionalHeaderNames = names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Finds the first renderer whose "UserAgentSearch" pattern matches.
+	 *
+	 * @param userAgent The User-Agent header.
+	 * @return The renderer, or <code>null</code> if none matches.
+	 */
+	RendererConfiguration matchUserAgent(String userAgent) {
+		Object result = userAgentResults.get(userAgent);
+
+		if (result == null) {
+			result = NO_MATCH;
+
+			for (RendererConfiguration r : userAgentRenderers) {
+				if (r.matchUserAgent(userAgent)) {
+					result = r;
+					break;
+				}
+			}
+
+			remember(userAgentResults, userAgent, result);
+		}
+
+		return result == NO_MATCH ? null : (RendererConfiguration) result;
+	}
+
+	/**
+	 * Finds the first renderer whose "UserAgentAdditionalHeader" starts the
+	 * header line and whose "UserAgentAdditionalHeaderSearch" pattern
+	 * matches the value of the header.
+	 *
+	 * @param headerLine The request header line.
+	 * @return The renderer, or <code>null</code> if none matches.
+	 */
+	RendererConfiguration matchAdditionalHeader(String headerLine) {
+		// Most headers are not looked at by any renderer, and some of
+		// them change with every request, so they are not remembered
+		if (!isAdditionalHeader(headerLine)) {
+			return null;
+		}
+
+		Object result = additionalHeaderResults.get(headerLine);
+
+		if (result == null) {
+			result = NO_MATCH;
+
+			for (RendererConfiguration r : additionalHeaderRenderers) {
+				String name = r.getUserAgentAdditionalHttpHeader();
+
+				if (headerLine.startsWith(name)) {
+					String value = headerLine.substring(headerLine.indexOf(":", name.length()) + 1);
+
+					if (r.matchAdditionalUserAgent(value)) {
+						result = r;
+						break;
+					}
+				}
+			}
+
+			remember(additionalHeaderResults, headerLine, result);
+		}
+
+		return result == NO_MATCH ? null : (RendererConfiguration) result;
+	}
+
+	private boolean isAdditionalHeader(String headerLine) {
+		for (String name : additionalHeaderNames) {
+			if (headerLine.startsWith(name)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static void remember(ConcurrentMap<String, Object> results, String header, Object result) {
+		// Start over rather than grow without limit when a client sends
+		// a different header with every request
+		if (results.size() >= MAX_CACHED) {
+			results.clear();
+		}
+
+		results.put(header, result);
+	}
+}
@@ -41,6 +41,13 @@ import java.awt.*;
 import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.apache.commons.lang3.StringUtils.*;
 
@@ -63,6 +70,37 @@ public class DLNAMediaDatabase implements Runnable {
 	private JdbcConnectionPool cp;
 	private int dbCount;
 
+	/**
+	 * Counts the changes to the files in the database, so views of the
+	 * library can tell whether they are up to date.
+	 */
+	private final AtomicLong libraryVersion = new AtomicLong();
+
+	/**
+	 * Writes the media information of parsed files in the background.
+	 */
+	private final DLNAMediaDatabaseWriter writer = new DLNAMediaDatabaseWriter(this);
+
+	/**
+	 * Columns of FILES that are read when media information is loaded.
+	 */
+	private static final String MEDIA_COLUMNS = "ID, FILENAME, MODIFIED, DURATION, BITRATE, WIDTH, HEIGHT, SIZE, CODECV, FRAMERATE, ASPECT, ASPECTRATIOCONTAINER, ASPECTRATIOVIDEOTRACK, REFRAMES, AVCLEVEL, BITSPERPIXEL, THUMBHASH, CONTAINER, MODEL, EXPOSURE, ORIENTATION, ISO, MUXINGMODE, FRAMERATEMODE, THUMBREADY";
+
+	/**
+	 * Length of a hash in the {@link ThumbnailStore}.
+	 */
+	private static final int SIZE_THUMBHASH = 40;
+
+	/**
+	 * Maximum number of files loaded with one query.
+	 */
+	private static final int MAX_IN_PARAMETERS = 500;
+
+	/**
+	 * Media information that was read recently.
+	 */
+	private final MediaCache mediaCache;
+
 	// Database column sizes
 	private final int SIZE_CODECV = 32;
 	private final int SIZE_FRAMERATE = 32;
@@ -96,9 +134,26 @@ public class DLNAMediaDatabase implements Runnable {
 			url = Constants.START_URL + dir + "/" + dbName;
 		}
 		dbDir = fileDir.getAbsolutePath();
+		mediaCache = MediaCache.getInstance();
 		logger.debug("Using database URL: " + url);
 		logger.info("Using database located at: " + dbDir);
+		createConnectionPool();
+	}
 
+	/**
+	 * Creates a database with the given H2 URL instead of the location in the
+	 * profile, e.g. an in-memory database for tests. It has a media cache of
+	 * its own.
+	 */
+	DLNAMediaDatabase(String url, String name) {
+		this.url = url;
+		dbName = name;
+		dbDir = new File("database").getAbsolutePath();
+		mediaCache = new MediaCache();
+		createConnectionPool();
+	}
+
+	private void createConnectionPool() {
 		try {
 			Class.forName("org.h2.Driver");
 		} catch (ClassNotFoundException e) {
@@ -186,6 +241,7 @@ public class DLNAMediaDatabase implements Runnable {
 				executeUpdate(conn, "DROP TABLE REGEXP_RULES");
 				executeUpdate(conn, "DROP TABLE AUDIOTRACKS");
 				executeUpdate(conn, "DROP TABLE SUBTRACKS");
+				executeUpdate(conn, "DROP TABLE SCANCHECKPOINTS");
 			} catch (SQLException se) {
 				if (se.getErrorCode() != 42102) { // Don't log exception "Table "FILES" not found" which will be corrected in following step
 					logger.error(null, se);
@@ -211,7 +267,7 @@ public class DLNAMediaDatabase implements Runnable {
 				sb.append(", REFRAMES          TINYINT");
 				sb.append(", AVCLEVEL          VARCHAR2(").append(SIZE_AVC_LEVEL).append(")");
 				sb.append(", BITSPERPIXEL      INT");
-				sb.append(", THUMB             BINARY");
+				sb.append(", THUMBHASH         VARCHAR2(").append(SIZE_THUMBHASH).append(")");
 				sb.append(", CONTAINER         VARCHAR2(").append(SIZE_CONTAINER).append(")");
 				sb.append(", MODEL             VARCHAR2(").append(SIZE_MODEL).append(")");
 				sb.append(", EXPOSURE          INT");
@@ -219,6 +275,8 @@ public class DLNAMediaDatabase implements Runnable {
 				sb.append(", ISO               INT");
 				sb.append(", MUXINGMODE        VARCHAR2(").append(SIZE_MUXINGMODE).append(")");
 				sb.append(", FRAMERATEMODE     VARCHAR2(").append(SIZE_FRAMERATE_MODE).append(")");
+				sb.append(", SEEKINDEX         BINARY");
+				sb.append(", THUMBREADY        BOOLEAN");
 				sb.append(", constraint PK1 primary key (FILENAME, MODIFIED, ID))");
 				executeUpdate(conn, sb.toString());
 				sb = new StringBuilder();
@@ -270,6 +328,8 @@ public class DLNAMediaDatabase implements Runnable {
 					executeUpdate(conn, "INSERT INTO REGEXP_RULES VALUES ( '" + chars[i] + "', '(?i)^" + chars[i] + ".+', " + (i + 2) + " );");
 				}
 
+				mediaCache.clear();
+				libraryVersion.incrementAndGet();
 				logger.debug("Database initialized");
 			} catch (SQLException se) {
 				logger.info("Error in table creation: " + se.getMessage());
@@ -280,6 +340,88 @@ public class DLNAMediaDatabase implements Runnable {
 			logger.debug("Database file count: " + dbCount);
 			logger.debug("Database version: " + version);
 		}
+
+		// Indexes used by searches, created here so that existing databases
+		// get them as well
+		try {
+			conn = getConnection();
+			executeUpdate(conn, "CREATE INDEX IF NOT EXISTS IDXFILEID on FILES (ID asc);");
+			executeUpdate(conn, "CREATE INDEX IF NOT EXISTS IDXSONGNAME on AUDIOTRACKS (SONGNAME asc);");
+			executeUpdate(conn, "CREATE TABLE IF NOT EXISTS SCANCHECKPOINTS (FOLDER VARCHAR2(1024) PRIMARY KEY, DIRECTORY VARCHAR2(1024) NOT NULL)");
+		} catch (SQLException se) {
+			logger.info("Error in index creation: " + se.getMessage());
+		} finally {
+			close(conn);
+		}
+
+		// Thumbnails moved from FILES to the thumbnail store. Older databases
+		// get the column for the hash; the thumbnails themselves are dropped
+		// and generated again when they are needed.
+		try {
+			conn = getConnection();
+
+			if (!hasColumn(conn, "FILES", "THUMBHASH")) {
+				executeUpdate(conn, "ALTER TABLE FILES ADD THUMBHASH VARCHAR2(" + SIZE_THUMBHASH + ")");
+			}
+
+			if (hasColumn(conn, "FILES", "THUMB")) {
+				executeUpdate(conn, "ALTER TABLE FILES DROP COLUMN THUMB");
+				logger.debug("Moved thumbnails out of the database");
+			}
+		} catch (SQLException se) {
+			logger.error("Error updating the thumbnail columns", se);
+		} finally {
+			close(conn);
+		}
+
+		// Seek indexes of MPEG files, see MpegSeekIndex
+		try {
+			conn = getConnection();
+
+			if (!hasColumn(conn, "FILES", "SEEKINDEX")) {
+				executeUpdate(conn, "ALTER TABLE FILES ADD SEEKINDEX BINARY");
+			}
+		} catch (SQLException se) {
+			logger.error("Error adding the seek index column", se);
+		} finally {
+			close(conn);
+		}
+
+		// Whether the thumbnail of a file has been looked for. The artwork
+		// of audio files is only read when the thumbnail is requested, so
+		// older databases look for it again where there is no thumbnail.
+		try {
+			conn = getConnection();
+
+			if (!hasColumn(conn, "FILES", "THUMBREADY")) {
+				executeUpdate(conn, "ALTER TABLE FILES ADD THUMBREADY BOOLEAN DEFAULT TRUE");
+				executeUpdate(conn, "UPDATE FILES SET THUMBREADY = FALSE WHERE TYPE = " + Format.AUDIO + " AND THUMBHASH IS NULL");
+			}
+		} catch (SQLException se) {
+			logger.error("Error adding the thumbnail state column", se);
+		} finally {
+			close(conn);
+		}
+	}
+
+	/**
+	 * Checks whether a table of an existing database has a column, so
+	 * columns can be added to or removed from older databases.
+	 */
+	private boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			ps = conn.prepareStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ? AND COLUMN_NAME = ?");
+			ps.setString(1, table);
+			ps.setString(2, column);
+			rs = ps.executeQuery();
+			return rs.next() && rs.getInt(1) > 0;
+		} finally {
+			close(rs);
+			close(ps);
+		}
 	}
 
 	private void executeUpdate(Connection conn, String sql) throws SQLException {
@@ -291,6 +433,10 @@ public class DLNAMediaDatabase implements Runnable {
 	}
 
 	public boolean isDataExists(String name, long modified) {
+		if (writer.isPending(name, modified)) {
+			return true;
+		}
+
 		boolean found = false;
 		Connection conn = null;
 		ResultSet rs = null;
@@ -316,97 +462,229 @@ public class DLNAMediaDatabase implements Runnable {
 	}
 
 	public ArrayList<DLNAMediaInfo> getData(String name, long modified) {
+		if (writer.isPending(name, modified)) {
+			writer.flush();
+		}
+
 		ArrayList<DLNAMediaInfo> list = new ArrayList<DLNAMediaInfo>();
+		DLNAMediaInfo media = mediaCache.get(name, modified);
+
+		if (media == null) {
+			Map<String, DLNAMediaInfo> medias = loadMedia(Collections.singletonMap(name, modified));
+
+			if (medias == null) {
+				return null;
+			}
+
+			if (medias.containsKey(name)) {
+				media = MediaCache.copy(medias.get(name));
+			}
+		}
+
+		if (media != null) {
+			list.add(media);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Reads the media information of the files of a folder with a few
+	 * queries, so resolving the files one by one afterwards doesn't need the
+	 * database.
+	 *
+	 * @param files The files of the folder; directories are ignored. Only
+	 * as many files as the cache holds are read.
+	 */
+	public void prefetch(List<File> files) {
+		Map<String, Long> wanted = new LinkedHashMap<String, Long>();
+		int limit = configuration.getMediaCacheSize();
+
+		for (File file : files) {
+			if (wanted.size() >= limit) {
+				break;
+			}
+
+			if (file.isFile()) {
+				String name = file.getAbsolutePath();
+				long modified = file.lastModified();
+
+				if (!mediaCache.contains(name, modified) && !writer.isPending(name, modified)) {
+					wanted.put(name, modified);
+				}
+			}
+		}
+
+		if (!wanted.isEmpty()) {
+			loadMedia(wanted);
+		}
+	}
+
+	/**
+	 * Reads the media information of several files without their thumbnails
+	 * and adds it to the cache. Files are read in chunks; each chunk takes
+	 * one query for the files, one for their audio tracks and one for their
+	 * subtitle tracks.
+	 *
+	 * @param wanted The modification time of each file, by filename.
+	 * @return The media information that was found, by filename, or null
+	 * if there was an error.
+	 */
+	private Map<String, DLNAMediaInfo> loadMedia(Map<String, Long> wanted) {
+		Map<String, DLNAMediaInfo> found = new HashMap<String, DLNAMediaInfo>();
+		List<String> names = new ArrayList<String>(wanted.keySet());
 		Connection conn = null;
 		ResultSet rs = null;
-		PreparedStatement stmt = null;
+		PreparedStatement ps = null;
+
 		try {
 			conn = getConnection();
-			stmt = conn.prepareStatement("SELECT * FROM FILES WHERE FILENAME = ? AND MODIFIED = ?");
-			stmt.setString(1, name);
-			stmt.setTimestamp(2, new Timestamp(modified));
-			rs = stmt.executeQuery();
-			while (rs.next()) {
-				DLNAMediaInfo media = new DLNAMediaInfo();
-				int id = rs.getInt("ID");
-				media.setDuration(toDouble(rs, "DURATION"));
-				media.setBitrate(rs.getInt("BITRATE"));
-				media.setWidth(rs.getInt("WIDTH"));
-				media.setHeight(rs.getInt("HEIGHT"));
-				media.setSize(rs.getLong("SIZE"));
-				media.setCodecV(rs.getString("CODECV"));
-				media.setFrameRate(rs.getString("FRAMERATE"));
-				media.setAspect(rs.getString("ASPECT"));
-				media.setAspectRatioContainer(rs.getString("ASPECTRATIOCONTAINER"));
-				media.setAspectRatioVideoTrack(rs.getString("ASPECTRATIOVIDEOTRACK"));
-				media.setReferenceFrameCount(rs.getByte("REFRAMES"));
-				media.setAvcLevel(rs.getString("AVCLEVEL"));
-				media.setBitsPerPixel(rs.getInt("BITSPERPIXEL"));
-				media.setThumb(rs.getBytes("THUMB"));
-				media.setContainer(rs.getString("CONTAINER"));
-				media.setModel(rs.getString("MODEL"));
-				if (media.getModel() != null && !FormatConfiguration.JPG.equals(media.getContainer())) {
-					media.setExtrasAsString(media.getModel());
+
+			for (int start = 0; start < names.size(); start += MAX_IN_PARAMETERS) {
+				List<String> chunk = names.subList(start, Math.min(names.size(), start + MAX_IN_PARAMETERS));
+				Map<Integer, DLNAMediaInfo> medias = new LinkedHashMap<Integer, DLNAMediaInfo>();
+				Map<Integer, String> filenames = new HashMap<Integer, String>();
+				ps = conn.prepareStatement("SELECT " + MEDIA_COLUMNS + " FROM FILES WHERE FILENAME IN (" + placeholders(chunk.size()) + ")");
+
+				for (int i = 0; i < chunk.size(); i++) {
+					ps.setString(i + 1, chunk.get(i));
 				}
-				media.setExposure(rs.getInt("EXPOSURE"));
-				media.setOrientation(rs.getInt("ORIENTATION"));
-				media.setIso(rs.getInt("ISO"));
-				media.setMuxingMode(rs.getString("MUXINGMODE"));
-				media.setFrameRateMode(rs.getString("FRAMERATEMODE"));
-				media.setMediaparsed(true);
-				PreparedStatement audios = conn.prepareStatement("SELECT * FROM AUDIOTRACKS WHERE FILEID = ?");
-				audios.setInt(1, id);
-				ResultSet subrs = audios.executeQuery();
-				while (subrs.next()) {
+
+				rs = ps.executeQuery();
+
+				while (rs.next()) {
+					String name = rs.getString("FILENAME");
+					long modified = rs.getTimestamp("MODIFIED").getTime();
+
+					Long expected = wanted.get(name);
+
+					if (expected == null || expected != modified) {
+						continue;
+					}
+
+					DLNAMediaInfo media = new DLNAMediaInfo();
+					int id = rs.getInt("ID");
+					media.setDuration(toDouble(rs, "DURATION"));
+					media.setBitrate(rs.getInt("BITRATE"));
+					media.setWidth(rs.getInt("WIDTH"));
+					media.setHeight(rs.getInt("HEIGHT"));
+					media.setSize(rs.getLong("SIZE"));
+					media.setCodecV(rs.getString("CODECV"));
+					media.setFrameRate(rs.getString("FRAMERATE"));
+					media.setAspect(rs.getString("ASPECT"));
+					media.setAspectRatioContainer(rs.getString("ASPECTRATIOCONTAINER"));
+					media.setAspectRatioVideoTrack(rs.getString("ASPECTRATIOVIDEOTRACK"));
+					media.setReferenceFrameCount(rs.getByte("REFRAMES"));
+					media.setAvcLevel(rs.getString("AVCLEVEL"));
+					media.setBitsPerPixel(rs.getInt("BITSPERPIXEL"));
+					media.setThumbHash(rs.getString("THUMBHASH"));
+					media.setContainer(rs.getString("CONTAINER"));
+					media.setModel(rs.getString("MODEL"));
+					if (media.getModel() != null && !FormatConfiguration.JPG.equals(media.getContainer())) {
+						media.setExtrasAsString(media.getModel());
+					}
+					media.setExposure(rs.getInt("EXPOSURE"));
+					media.setOrientation(rs.getInt("ORIENTATION"));
+					media.setIso(rs.getInt("ISO"));
+					media.setMuxingMode(rs.getString("MUXINGMODE"));
+					media.setFrameRateMode(rs.getString("FRAMERATEMODE"));
+					media.setThumbready(rs.getBoolean("THUMBREADY"));
+					media.setMediaparsed(true);
+					medias.put(id, media);
+					filenames.put(id, name);
+				}
+
+				close(rs);
+				close(ps);
+
+				if (medias.isEmpty()) {
+					continue;
+				}
+
+				String ids = placeholders(medias.size());
+				ps = conn.prepareStatement("SELECT * FROM AUDIOTRACKS WHERE FILEID IN (" + ids + ") ORDER BY FILEID, ID");
+				setIds(ps, medias.keySet());
+				rs = ps.executeQuery();
+
+				while (rs.next()) {
 					DLNAMediaAudio audio = new DLNAMediaAudio();
-					audio.setId(subrs.getInt("ID"));
-					audio.setLang(subrs.getString("LANG"));
-					audio.setFlavor(subrs.getString("FLAVOR"));
-					audio.getAudioProperties().setNumberOfChannels(subrs.getInt("NRAUDIOCHANNELS"));
-					audio.setSampleFrequency(subrs.getString("SAMPLEFREQ"));
-					audio.setCodecA(subrs.getString("CODECA"));
-					audio.setBitsperSample(subrs.getInt("BITSPERSAMPLE"));
-					audio.setAlbum(subrs.getString("ALBUM"));
-					audio.setArtist(subrs.getString("ARTIST"));
-					audio.setSongname(subrs.getString("SONGNAME"));
-					audio.setGenre(subrs.getString("GENRE"));
-					audio.setYear(subrs.getInt("YEAR"));
-					audio.setTrack(subrs.getInt("TRACK"));
-					audio.getAudioProperties().setAudioDelay(subrs.getInt("DELAY"));
-					audio.setMuxingModeAudio(subrs.getString("MUXINGMODE"));
-                    audio.setBitRate(subrs.getInt("BITRATE"));
-					media.getAudioTracksList().add(audio);
+					audio.setId(rs.getInt("ID"));
+					audio.setLang(rs.getString("LANG"));
+					audio.setFlavor(rs.getString("FLAVOR"));
+					audio.getAudioProperties().setNumberOfChannels(rs.getInt("NRAUDIOCHANNELS"));
+					audio.setSampleFrequency(rs.getString("SAMPLEFREQ"));
+					audio.setCodecA(rs.getString("CODECA"));
+					audio.setBitsperSample(rs.getInt("BITSPERSAMPLE"));
+					audio.setAlbum(rs.getString("ALBUM"));
+					audio.setArtist(rs.getString("ARTIST"));
+					audio.setSongname(rs.getString("SONGNAME"));
+					audio.setGenre(rs.getString("GENRE"));
+					audio.setYear(rs.getInt("YEAR"));
+					audio.setTrack(rs.getInt("TRACK"));
+					audio.getAudioProperties().setAudioDelay(rs.getInt("DELAY"));
+					audio.setMuxingModeAudio(rs.getString("MUXINGMODE"));
+					audio.setBitRate(rs.getInt("BITRATE"));
+					medias.get(rs.getInt("FILEID")).getAudioTracksList().add(audio);
 				}
-				subrs.close();
-				audios.close();
 
-				PreparedStatement subs = conn.prepareStatement("SELECT * FROM SUBTRACKS WHERE FILEID = ?");
-				subs.setInt(1, id);
-				subrs = subs.executeQuery();
-				while (subrs.next()) {
+				close(rs);
+				close(ps);
+
+				ps = conn.prepareStatement("SELECT * FROM SUBTRACKS WHERE FILEID IN (" + ids + ") ORDER BY FILEID, ID");
+				setIds(ps, medias.keySet());
+				rs = ps.executeQuery();
+
+				while (rs.next()) {
 					DLNAMediaSubtitle sub = new DLNAMediaSubtitle();
-					sub.setId(subrs.getInt("ID"));
-					sub.setLang(subrs.getString("LANG"));
-					sub.setFlavor(subrs.getString("FLAVOR"));
-					sub.setType(SubtitleType.valueOfStableIndex(subrs.getInt("TYPE")));
-					media.getSubtitleTracksList().add(sub);
+					sub.setId(rs.getInt("ID"));
+					sub.setLang(rs.getString("LANG"));
+					sub.setFlavor(rs.getString("FLAVOR"));
+					sub.setType(SubtitleType.valueOfStableIndex(rs.getInt("TYPE")));
+					medias.get(rs.getInt("FILEID")).getSubtitleTracksList().add(sub);
 				}
-				subrs.close();
-				subs.close();
 
-				list.add(media);
+				close(rs);
+				close(ps);
+
+				for (Map.Entry<Integer, DLNAMediaInfo> entry : medias.entrySet()) {
+					String name = filenames.get(entry.getKey());
+					mediaCache.put(name, wanted.get(name), entry.getValue());
+					found.put(name, entry.getValue());
+				}
 			}
 		} catch (SQLException se) {
 			logger.error(null, se);
 			return null;
 		} finally {
 			close(rs);
-			close(stmt);
+			close(ps);
 			close(conn);
 		}
-		return list;
+
+		return found;
 	}
-	
+
+	private static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append('?');
+		}
+
+		return sb.toString();
+	}
+
+	private static void setIds(PreparedStatement ps, Collection<Integer> ids) throws SQLException {
+		int i = 1;
+
+		for (Integer id : ids) {
+			ps.setInt(i++, id);
+		}
+	}
+
 	private Double toDouble(ResultSet rs, String column) throws SQLException {
 		Object obj = rs.getObject(column);
 		if (obj instanceof Double) {
@@ -415,173 +693,246 @@ public class DLNAMediaDatabase implements Runnable {
 		return null;
 	}
 
-	public synchronized void insertData(String name, long modified, int type, DLNAMediaInfo media) {
+	/**
+	 * Queues the media information of a file to be stored. The information
+	 * is written in the background; until then {@link #isDataExists} already
+	 * reports the file and {@link #getData} waits for it to be written.
+	 */
+	public void insertData(String name, long modified, int type, DLNAMediaInfo media) {
+		mediaCache.remove(name);
+		writer.add(name, modified, type, media);
+	}
+
+	/**
+	 * Waits until all media information queued by {@link #insertData} has
+	 * been written to the database.
+	 */
+	public void flush() {
+		writer.flush();
+	}
+
+	/**
+	 * Stores the media information of several files in one transaction.
+	 * The audio and subtitle tracks of all files are sent as JDBC batches.
+	 */
+	void insertBatch(List<DLNAMediaDatabaseWriter.PendingFile> files) {
 		Connection conn = null;
 		PreparedStatement ps = null;
+		PreparedStatement audios = null;
+		PreparedStatement subs = null;
+		boolean autoCommit = true;
 		try {
 			conn = getConnection();
-			ps = conn.prepareStatement("INSERT INTO FILES(FILENAME, MODIFIED, TYPE, DURATION, BITRATE, WIDTH, HEIGHT, SIZE, CODECV, FRAMERATE, ASPECT, ASPECTRATIOCONTAINER, ASPECTRATIOVIDEOTRACK, REFRAMES, AVCLEVEL, BITSPERPIXEL, THUMB, CONTAINER, MODEL, EXPOSURE, ORIENTATION, ISO, MUXINGMODE, FRAMERATEMODE) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-			ps.setString(1, name);
-			ps.setTimestamp(2, new Timestamp(modified));
-			ps.setInt(3, type);
-			if (media != null) {
-				if (media.getDuration() != null) {
-					ps.setDouble(4, media.getDurationInSeconds());
-				} else {
-					ps.setNull(4, Types.DOUBLE);
-				}
+			autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			ps = conn.prepareStatement("INSERT INTO FILES(FILENAME, MODIFIED, TYPE, DURATION, BITRATE, WIDTH, HEIGHT, SIZE, CODECV, FRAMERATE, ASPECT, ASPECTRATIOCONTAINER, ASPECTRATIOVIDEOTRACK, REFRAMES, AVCLEVEL, BITSPERPIXEL, THUMBHASH, CONTAINER, MODEL, EXPOSURE, ORIENTATION, ISO, MUXINGMODE, FRAMERATEMODE, THUMBREADY) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			audios = conn.prepareStatement("INSERT INTO AUDIOTRACKS VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			subs = conn.prepareStatement("INSERT INTO SUBTRACKS VALUES (?, ?, ?, ?, ?)");
+			int audioCount = 0;
+			int subCount = 0;
 
-				int databaseBitrate = 0;
-				if (type != Format.IMAGE){
-					databaseBitrate = media.getBitrate();
-					if (databaseBitrate == 0) {
-						logger.debug("Could not parse the bitrate from: " + name);
+			for (DLNAMediaDatabaseWriter.PendingFile file : files) {
+				String name = file.name;
+				DLNAMediaInfo media = file.media;
+				int id = -1;
+
+				try {
+					ps.clearParameters();
+					setFileParameters(ps, name, file.modified, file.type, media);
+					ps.executeUpdate();
+					ResultSet rs = ps.getGeneratedKeys();
+					while (rs.next()) {
+						id = rs.getInt(1);
 					}
+					rs.close();
+				} catch (SQLException se) {
+					if (se.getErrorCode() == 23001 || se.getErrorCode() == 23505) {
+						logger.debug("Duplicate key while inserting this entry: " + name + " into the database: " + se.getMessage());
+					} else {
+						logger.error("Error while inserting this entry: " + name + " into the database", se);
+					}
+					continue;
 				}
-				ps.setInt(5, databaseBitrate);
-
-				ps.setInt(6, media.getWidth());
-				ps.setInt(7, media.getHeight());
-				ps.setLong(8, media.getSize());
-				ps.setString(9, left(media.getCodecV(), SIZE_CODECV));
-				ps.setString(10, left(media.getFrameRate(), SIZE_FRAMERATE));
-				ps.setString(11, left(media.getAspect(), SIZE_ASPECT));
-				ps.setString(12, left(media.getAspect(), SIZE_ASPECTRATIO_CONTAINER));
-				ps.setString(13, left(media.getAspect(), SIZE_ASPECTRATIO_VIDEOTRACK));
-				ps.setByte(14, media.getReferenceFrameCount());
-				ps.setString(15, left(media.getAvcLevel(), SIZE_AVC_LEVEL));
-				ps.setInt(16, media.getBitsPerPixel());
-				ps.setBytes(17, media.getThumb());
-				ps.setString(18, left(media.getContainer(), SIZE_CONTAINER));
-				if (media.getExtras() != null) {
-					ps.setString(19, left(media.getExtrasAsString(), SIZE_MODEL));
-				} else {
-					ps.setString(19, left(media.getModel(), SIZE_MODEL));
-				}
-				ps.setInt(20, media.getExposure());
-				ps.setInt(21, media.getOrientation());
-				ps.setInt(22, media.getIso());
-				ps.setString(23, left(media.getMuxingModeAudio(), SIZE_MUXINGMODE));
-				ps.setString(24, left(media.getFrameRateMode(), SIZE_FRAMERATE_MODE));
-			} else {
-				ps.setString(4, null);
-				ps.setInt(5, 0);
-				ps.setInt(6, 0);
-				ps.setInt(7, 0);
-				ps.setLong(8, 0);
-				ps.setString(9, null);
-				ps.setString(10, null);
-				ps.setString(11, null);
-				ps.setString(12, null);
-				ps.setString(13, null);
-				ps.setByte(14, (byte) -1);
-				ps.setString(15, null);
-				ps.setInt(16, 0);
-				ps.setBytes(17, null);
-				ps.setString(18, null);
-				ps.setString(19, null);
-				ps.setInt(20, 0);
-				ps.setInt(21, 0);
-				ps.setInt(22, 0);
-				ps.setString(23, null);
-				ps.setString(24, null);
-			}
-			ps.executeUpdate();
-			ResultSet rs = ps.getGeneratedKeys();
-			int id = -1;
-			while (rs.next()) {
-				id = rs.getInt(1);
-			}
-			rs.close();
-			if (media != null && id > -1) {
-				PreparedStatement insert = null;
-				if (media.getAudioTracksList().size() > 0) {
-					insert = conn.prepareStatement("INSERT INTO AUDIOTRACKS VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+
+				if (media == null || id == -1) {
+					continue;
 				}
 
 				for (DLNAMediaAudio audio : media.getAudioTracksList()) {
-					insert.clearParameters();
-					insert.setInt(1, id);
-					insert.setInt(2, audio.getId());
-					insert.setString(3, left(audio.getLang(), SIZE_LANG));
-					insert.setString(4, left(audio.getFlavor(), SIZE_FLAVOR));
-					insert.setInt(5, audio.getAudioProperties().getNumberOfChannels());
-					insert.setString(6, left(audio.getSampleFrequency(), SIZE_SAMPLEFREQ));
-					insert.setString(7, left(audio.getCodecA(), SIZE_CODECA));
-					insert.setInt(8, audio.getBitsperSample());
-					insert.setString(9, left(trimToEmpty(audio.getAlbum()), SIZE_ALBUM));
-					insert.setString(10, left(trimToEmpty(audio.getArtist()), SIZE_ARTIST));
-					insert.setString(11, left(trimToEmpty(audio.getSongname()), SIZE_SONGNAME));
-					insert.setString(12, left(trimToEmpty(audio.getGenre()), SIZE_GENRE));
-					insert.setInt(13, audio.getYear());
-					insert.setInt(14, audio.getTrack());
-					insert.setInt(15, audio.getAudioProperties().getAudioDelay());
-					insert.setString(16, left(trimToEmpty(audio.getMuxingModeAudio()), SIZE_MUXINGMODE));
-                    insert.setInt(17, audio.getBitRate());
-
-					try {
-						insert.executeUpdate();
-					} catch (JdbcSQLException e) {
-						if (e.getErrorCode() == 23505) {
-							logger.debug("A duplicate key error occurred while trying to store the following file's audio information in the database: " + name);
-						} else {
-							logger.debug("An error occurred while trying to store the following file's audio information in the database: " + name);
-						}
-						logger.debug("The error given by jdbc was: " + e);
-					}
+					audios.clearParameters();
+					audios.setInt(1, id);
+					audios.setInt(2, audio.getId());
+					audios.setString(3, left(audio.getLang(), SIZE_LANG));
+					audios.setString(4, left(audio.getFlavor(), SIZE_FLAVOR));
+					audios.setInt(5, audio.getAudioProperties().getNumberOfChannels());
+					audios.setString(6, left(audio.getSampleFrequency(), SIZE_SAMPLEFREQ));
+					audios.setString(7, left(audio.getCodecA(), SIZE_CODECA));
+					audios.setInt(8, audio.getBitsperSample());
+					audios.setString(9, left(trimToEmpty(audio.getAlbum()), SIZE_ALBUM));
+					audios.setString(10, left(trimToEmpty(audio.getArtist()), SIZE_ARTIST));
+					audios.setString(11, left(trimToEmpty(audio.getSongname()), SIZE_SONGNAME));
+					audios.setString(12, left(trimToEmpty(audio.getGenre()), SIZE_GENRE));
+					audios.setInt(13, audio.getYear());
+					audios.setInt(14, audio.getTrack());
+					audios.setInt(15, audio.getAudioProperties().getAudioDelay());
+					audios.setString(16, left(trimToEmpty(audio.getMuxingModeAudio()), SIZE_MUXINGMODE));
+					audios.setInt(17, audio.getBitRate());
+					audios.addBatch();
+					audioCount++;
 				}
 
-				if (media.getSubtitleTracksList().size() > 0) {
-					insert = conn.prepareStatement("INSERT INTO SUBTRACKS VALUES (?, ?, ?, ?, ?)");
-				}
 				for (DLNAMediaSubtitle sub : media.getSubtitleTracksList()) {
 					if (sub.getExternalFile() == null) { // no save of external subtitles
-						insert.clearParameters();
-						insert.setInt(1, id);
-						insert.setInt(2, sub.getId());
-						insert.setString(3, left(sub.getLang(), SIZE_LANG));
-						insert.setString(4, left(sub.getFlavor(), SIZE_FLAVOR));
-						insert.setInt(5, sub.getType().getStableIndex());
-						try {
-							insert.executeUpdate();
-						} catch (JdbcSQLException e) {
-							if (e.getErrorCode() == 23505) {
-								logger.debug("A duplicate key error occurred while trying to store the following file's subtitle information in the database: " + name);
-							} else {
-								logger.debug("An error occurred while trying to store the following file's subtitle information in the database: " + name);
-							}
-							logger.debug("The error given by jdbc was: " + e);
-						}
+						subs.clearParameters();
+						subs.setInt(1, id);
+						subs.setInt(2, sub.getId());
+						subs.setString(3, left(sub.getLang(), SIZE_LANG));
+						subs.setString(4, left(sub.getFlavor(), SIZE_FLAVOR));
+						subs.setInt(5, sub.getType().getStableIndex());
+						subs.addBatch();
+						subCount++;
 					}
 				}
-				close(insert);
 			}
-		} catch (SQLException se) {
-			if (se.getErrorCode() == 23001) {
-				logger.debug("Duplicate key while inserting this entry: " + name + " into the database: " + se.getMessage());
-			} else {
-				logger.error(null, se);
+
+			if (audioCount > 0) {
+				executeBatch(audios, "audio");
+			}
+			if (subCount > 0) {
+				executeBatch(subs, "subtitle");
 			}
+			conn.commit();
+		} catch (SQLException se) {
+			logger.error("Error while writing " + files.size() + " entries to the database", se);
+			rollback(conn);
 		} finally {
+			close(subs);
+			close(audios);
 			close(ps);
+			if (conn != null) {
+				try {
+					conn.setAutoCommit(autoCommit);
+				} catch (SQLException se) {
+					logger.debug("Error while restoring auto-commit: " + se.getMessage());
+				}
+			}
 			close(conn);
+			libraryVersion.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Runs a batch of track inserts. A track that can't be stored, e.g.
+	 * because of a duplicate key, doesn't stop the others.
+	 */
+	private void executeBatch(PreparedStatement ps, String kind) throws SQLException {
+		try {
+			ps.executeBatch();
+		} catch (BatchUpdateException e) {
+			logger.debug("An error occurred while trying to store " + kind + " information in the database");
+			logger.debug("The error given by jdbc was: " + e);
+		}
+	}
+
+	private void rollback(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.rollback();
+			} catch (SQLException se) {
+				logger.debug("Error while rolling back: " + se.getMessage());
+			}
+		}
+	}
+
+	private void setFileParameters(PreparedStatement ps, String name, long modified, int type, DLNAMediaInfo media) throws SQLException {
+		ps.setString(1, name);
+		ps.setTimestamp(2, new Timestamp(modified));
+		ps.setInt(3, type);
+		if (media != null) {
+			if (media.getDuration() != null) {
+				ps.setDouble(4, media.getDurationInSeconds());
+			} else {
+				ps.setNull(4, Types.DOUBLE);
+			}
+
+			int databaseBitrate = 0;
+			if (type != Format.IMAGE){
+				databaseBitrate = media.getBitrate();
+				if (databaseBitrate == 0) {
+					logger.debug("Could not parse the bitrate from: " + name);
+				}
+			}
+			ps.setInt(5, databaseBitrate);
+
+			ps.setInt(6, media.getWidth());
+			ps.setInt(7, media.getHeight());
+			ps.setLong(8, media.getSize());
+			ps.setString(9, left(media.getCodecV(), SIZE_CODECV));
+			ps.setString(10, left(media.getFrameRate(), SIZE_FRAMERATE));
+			ps.setString(11, left(media.getAspect(), SIZE_ASPECT));
+			ps.setString(12, left(media.getAspect(), SIZE_ASPECTRATIO_CONTAINER));
+			ps.setString(13, left(media.getAspect(), SIZE_ASPECTRATIO_VIDEOTRACK));
+			ps.setByte(14, media.getReferenceFrameCount());
+			ps.setString(15, left(media.getAvcLevel(), SIZE_AVC_LEVEL));
+			ps.setInt(16, media.getBitsPerPixel());
+			ps.setString(17, media.getThumbHash());
+			ps.setString(18, left(media.getContainer(), SIZE_CONTAINER));
+			if (media.getExtras() != null) {
+				ps.setString(19, left(media.getExtrasAsString(), SIZE_MODEL));
+			} else {
+				ps.setString(19, left(media.getModel(), SIZE_MODEL));
+			}
+			ps.setInt(20, media.getExposure());
+			ps.setInt(21, media.getOrientation());
+			ps.setInt(22, media.getIso());
+			ps.setString(23, left(media.getMuxingModeAudio(), SIZE_MUXINGMODE));
+			ps.setString(24, left(media.getFrameRateMode(), SIZE_FRAMERATE_MODE));
+			ps.setBoolean(25, media.isThumbready());
+		} else {
+			ps.setString(4, null);
+			ps.setInt(5, 0);
+			ps.setInt(6, 0);
+			ps.setInt(7, 0);
+			ps.setLong(8, 0);
+			ps.setString(9, null);
+			ps.setString(10, null);
+			ps.setString(11, null);
+			ps.setString(12, null);
+			ps.setString(13, null);
+			ps.setByte(14, (byte) -1);
+			ps.setString(15, null);
+			ps.setInt(16, 0);
+			ps.setString(17, null);
+			ps.setString(18, null);
+			ps.setString(19, null);
+			ps.setInt(20, 0);
+			ps.setInt(21, 0);
+			ps.setInt(22, 0);
+			ps.setString(23, null);
+			ps.setString(24, null);
+			ps.setBoolean(25, true);
 		}
 	}
 
 	public synchronized void updateThumbnail(String name, long modified, int type, DLNAMediaInfo media) {
+		if (writer.isPending(name, modified)) {
+			writer.flush();
+		}
+
 		Connection conn = null;
 		PreparedStatement ps = null;
 		try {
 			conn = getConnection();
-			ps = conn.prepareStatement("UPDATE FILES SET THUMB = ? WHERE FILENAME = ? AND MODIFIED = ?");
+			ps = conn.prepareStatement("UPDATE FILES SET THUMBHASH = ?, THUMBREADY = TRUE WHERE FILENAME = ? AND MODIFIED = ?");
 			ps.setString(2, name);
 			ps.setTimestamp(3, new Timestamp(modified));
 			if (media != null) {
-				ps.setBytes(1, media.getThumb());
+				ps.setString(1, media.getThumbHash());
 			} else {
-				ps.setNull(1, Types.BINARY);
+				ps.setNull(1, Types.VARCHAR);
 			}
 			ps.executeUpdate();
+			mediaCache.remove(name);
 		} catch (SQLException se) {
 			if (se.getErrorCode() == 23001) {
 				logger.debug("Duplicate key while inserting this entry: " + name + " into the database: " + se.getMessage());
@@ -594,6 +945,121 @@ public class DLNAMediaDatabase implements Runnable {
 		}
 	}
 
+	/**
+	 * Reads the seek index of a file, see {@link net.pms.util.MpegSeekIndex}.
+	 *
+	 * @param name The absolute path of the file.
+	 * @param modified The modification time of the file.
+	 * @return The stored index, or null if there is none.
+	 */
+	public byte[] getSeekIndex(String name, long modified) {
+		Connection conn = null;
+		ResultSet rs = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn = getConnection();
+			ps = conn.prepareStatement("SELECT SEEKINDEX FROM FILES WHERE FILENAME = ? AND MODIFIED = ?");
+			ps.setString(1, name);
+			ps.setTimestamp(2, new Timestamp(modified));
+			rs = ps.executeQuery();
+
+			if (rs.next()) {
+				return rs.getBytes(1);
+			}
+		} catch (SQLException se) {
+			logger.error(null, se);
+		} finally {
+			close(rs);
+			close(ps);
+			close(conn);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Stores the seek index of a file that is in the database.
+	 *
+	 * @param name The absolute path of the file.
+	 * @param modified The modification time of the file.
+	 * @param index The index.
+	 */
+	public void updateSeekIndex(String name, long modified, byte[] index) {
+		if (writer.isPending(name, modified)) {
+			writer.flush();
+		}
+
+		Connection conn = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn = getConnection();
+			ps = conn.prepareStatement("UPDATE FILES SET SEEKINDEX = ? WHERE FILENAME = ? AND MODIFIED = ?");
+			ps.setBytes(1, index);
+			ps.setString(2, name);
+			ps.setTimestamp(3, new Timestamp(modified));
+			ps.executeUpdate();
+		} catch (SQLException se) {
+			logger.error(null, se);
+		} finally {
+			close(ps);
+			close(conn);
+		}
+	}
+
+	/**
+	 * Removes all versions of a file and their tracks, e.g. because the file
+	 * was deleted.
+	 *
+	 * @param name The absolute path of the file.
+	 */
+	public void removeData(String name) {
+		if (writer.isPending(name)) {
+			writer.flush();
+		}
+
+		Connection conn = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn = getConnection();
+			conn.setAutoCommit(false);
+
+			for (String table : new String[] { "AUDIOTRACKS", "SUBTRACKS" }) {
+				ps = conn.prepareStatement("DELETE FROM " + table + " WHERE FILEID IN (SELECT ID FROM FILES WHERE FILENAME = ?)");
+				ps.setString(1, name);
+				ps.executeUpdate();
+				ps.close();
+			}
+
+			ps = conn.prepareStatement("DELETE FROM FILES WHERE FILENAME = ?");
+			ps.setString(1, name);
+			int count = ps.executeUpdate();
+			conn.commit();
+			mediaCache.remove(name);
+
+			if (count > 0) {
+				libraryVersion.incrementAndGet();
+			}
+		} catch (SQLException se) {
+			logger.error(null, se);
+			rollback(conn);
+		} finally {
+			close(ps);
+
+			if (conn != null) {
+				try {
+					conn.setAutoCommit(true);
+				} catch (SQLException se) {
+					logger.debug("Error while restoring auto-commit: " + se.getMessage());
+				}
+			}
+
+			close(conn);
+		}
+	}
+
 	public ArrayList<String> getStrings(String sql) {
 		ArrayList<String> list = new ArrayList<String>();
 		Connection conn = null;
@@ -624,45 +1090,167 @@ public class DLNAMediaDatabase implements Runnable {
 		return list;
 	}
 
+	/**
+	 * Removes the files that were deleted or changed since they were stored.
+	 *
+	 * @see LibraryCleaner
+	 */
 	public void cleanup() {
+		new LibraryCleaner(
+			this,
+			RootFolder.getScanFolders(),
+			configuration.getLibraryScanThreads(),
+			configuration.isLibraryCleanupIncremental(),
+			PMS.get().getFrame()
+		).run();
+	}
+
+	/**
+	 * @return The number of files stored with a higher ID than the given one.
+	 */
+	int getFileCountAfter(int id) {
 		Connection conn = null;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
-		
+
 		try {
 			conn = getConnection();
-			ps = conn.prepareStatement("SELECT COUNT(*) FROM FILES");
+			ps = conn.prepareStatement("SELECT COUNT(*) FROM FILES WHERE ID > ?");
+			ps.setInt(1, id);
 			rs = ps.executeQuery();
-			dbCount = 0;
-			
+
 			if (rs.next()) {
-				dbCount = rs.getInt(1);
+				return rs.getInt(1);
 			}
+		} catch (SQLException se) {
+			logger.error(null, se);
+		} finally {
+			close(rs);
+			close(ps);
+			close(conn);
+		}
 
-			rs.close();
-			ps.close();
-			PMS.get().getFrame().setStatusLine(Messages.getString("DLNAMediaDatabase.2") + " 0%");
-			int i = 0;
-			int oldpercent = 0;
+		return 0;
+	}
 
-			if (dbCount > 0) {
-				ps = conn.prepareStatement("SELECT FILENAME, MODIFIED, ID FROM FILES", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
-				rs = ps.executeQuery();
-				while (rs.next()) {
-					String filename = rs.getString("FILENAME");
-					long modified = rs.getTimestamp("MODIFIED").getTime();
-					File file = new File(filename);
-					if (!file.exists() || file.lastModified() != modified) {
-						rs.deleteRow();
-					}
-					i++;
-					int newpercent = i * 100 / dbCount;
-					if (newpercent > oldpercent) {
-						PMS.get().getFrame().setStatusLine(Messages.getString("DLNAMediaDatabase.2") + newpercent + "%");
-						oldpercent = newpercent;
-					}
+	/**
+	 * Reads the next batch of stored files, by ID, for the cleanup. Each
+	 * batch uses its own connection, so none is held for the whole cleanup.
+	 *
+	 * @param id The ID of the last file of the previous batch.
+	 * @param count The maximum number of files to read.
+	 * @return The files, ordered by ID.
+	 */
+	List<LibraryCleaner.StoredFile> getFilesAfter(int id, int count) {
+		List<LibraryCleaner.StoredFile> files = new ArrayList<LibraryCleaner.StoredFile>(count);
+		Connection conn = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			conn = getConnection();
+			ps = conn.prepareStatement("SELECT ID, FILENAME, MODIFIED FROM FILES WHERE ID > ? ORDER BY ID LIMIT ?");
+			ps.setInt(1, id);
+			ps.setInt(2, count);
+			rs = ps.executeQuery();
+
+			while (rs.next()) {
+				files.add(new LibraryCleaner.StoredFile(rs.getInt("ID"), rs.getString("FILENAME"), rs.getTimestamp("MODIFIED").getTime()));
+			}
+		} catch (SQLException se) {
+			logger.error(null, se);
+		} finally {
+			close(rs);
+			close(ps);
+			close(conn);
+		}
+
+		return files;
+	}
+
+	/**
+	 * Deletes files and their tracks by ID, in one transaction.
+	 *
+	 * @param files The files to delete.
+	 * @return Whether the files were deleted.
+	 */
+	boolean deleteFiles(List<LibraryCleaner.StoredFile> files) {
+		if (files.isEmpty()) {
+			return true;
+		}
+
+		Connection conn = null;
+		PreparedStatement ps = null;
+		boolean autoCommit = true;
+
+		try {
+			conn = getConnection();
+			autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+
+			for (int start = 0; start < files.size(); start += MAX_IN_PARAMETERS) {
+				List<Integer> ids = new ArrayList<Integer>();
+
+				for (LibraryCleaner.StoredFile file : files.subList(start, Math.min(files.size(), start + MAX_IN_PARAMETERS))) {
+					ids.add(file.id);
+				}
+
+				for (String sql : new String[] {
+					"DELETE FROM AUDIOTRACKS WHERE FILEID IN (",
+					"DELETE FROM SUBTRACKS WHERE FILEID IN (",
+					"DELETE FROM FILES WHERE ID IN ("
+				}) {
+					ps = conn.prepareStatement(sql + placeholders(ids.size()) + ")");
+					setIds(ps, ids);
+					ps.executeUpdate();
+					ps.close();
+				}
+			}
+
+			conn.commit();
+			return true;
+		} catch (SQLException se) {
+			logger.error("Error while deleting " + files.size() + " files from the database", se);
+			rollback(conn);
+			return false;
+		} finally {
+			close(ps);
+
+			if (conn != null) {
+				try {
+					conn.setAutoCommit(autoCommit);
+				} catch (SQLException se) {
+					logger.debug("Error while restoring auto-commit: " + se.getMessage());
 				}
 			}
+
+			close(conn);
+
+			for (LibraryCleaner.StoredFile file : files) {
+				mediaCache.remove(file.name);
+			}
+
+			libraryVersion.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The value stored under a key in METADATA, or null.
+	 */
+	String getMetadata(String key) {
+		Connection conn = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			conn = getConnection();
+			ps = conn.prepareStatement("SELECT VALUE FROM METADATA WHERE KEY = ?");
+			ps.setString(1, key);
+			rs = ps.executeQuery();
+
+			if (rs.next()) {
+				return rs.getString(1);
+			}
 		} catch (SQLException se) {
 			logger.error(null, se);
 		} finally {
@@ -670,6 +1258,39 @@ public class DLNAMediaDatabase implements Runnable {
 			close(ps);
 			close(conn);
 		}
+
+		return null;
+	}
+
+	/**
+	 * Stores a value under a key in METADATA.
+	 *
+	 * @param key The key.
+	 * @param value The value, or null to remove the key.
+	 */
+	void setMetadata(String key, String value) {
+		Connection conn = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn = getConnection();
+
+			if (value == null) {
+				ps = conn.prepareStatement("DELETE FROM METADATA WHERE KEY = ?");
+				ps.setString(1, key);
+			} else {
+				ps = conn.prepareStatement("MERGE INTO METADATA (KEY, VALUE) KEY (KEY) VALUES (?, ?)");
+				ps.setString(1, key);
+				ps.setString(2, value);
+			}
+
+			ps.executeUpdate();
+		} catch (SQLException se) {
+			logger.error(null, se);
+		} finally {
+			close(ps);
+			close(conn);
+		}
 	}
 
 	public ArrayList<File> getFiles(String sql) {
@@ -700,6 +1321,210 @@ public class DLNAMediaDatabase implements Runnable {
 		return list;
 	}
 
+	/**
+	 * Returns files as they are stored in the database, without looking at
+	 * them on disk.
+	 *
+	 * @param sql The query, or the condition on the FILES table. The query
+	 * has to return the FILENAME and MODIFIED columns.
+	 * @return The file names with their modification times in the order of
+	 * the query, or null if the query failed.
+	 */
+	public LinkedHashMap<String, Long> getStoredFiles(String sql) {
+		LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>();
+		Connection conn = null;
+		ResultSet rs = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn = getConnection();
+			ps = conn.prepareStatement(sql.toLowerCase().startsWith("select") ? sql : ("SELECT FILENAME, MODIFIED FROM FILES WHERE " + sql));
+			rs = ps.executeQuery();
+
+			while (rs.next()) {
+				files.put(rs.getString("FILENAME"), rs.getTimestamp("MODIFIED").getTime());
+			}
+		} catch (SQLException se) {
+			logger.error(null, se);
+			return null;
+		} finally {
+			close(rs);
+			close(ps);
+			close(conn);
+		}
+
+		return files;
+	}
+
+	/**
+	 * Returns the version of the files in the database. It changes every
+	 * time files are added or removed.
+	 *
+	 * @return The version.
+	 */
+	public long getLibraryVersion() {
+		return libraryVersion.get();
+	}
+
+	/**
+	 * Searches the files that can be returned as items.
+	 *
+	 * @param criteria The search criteria.
+	 * @param folders The folders to search in, or null to search all files.
+	 * @param start The index of the first file to return.
+	 * @param count The maximum number of files to return.
+	 * @param files The list the requested files are added to, in the order
+	 * of their names.
+	 * @return The total number of files that match, or -1 if the database
+	 * could not be searched.
+	 */
+	public int search(SearchCriteria criteria, List<File> folders, int start, int count, List<File> files) {
+		StringBuilder where = new StringBuilder(" FROM FILES WHERE ");
+		List<Object> parameters = new ArrayList<Object>();
+		where.append(SearchCriteria.ITEM_TYPES);
+
+		if (folders != null && !folders.isEmpty()) {
+			where.append(" AND (");
+
+			for (int i = 0; i < folders.size(); i++) {
+				if (i > 0) {
+					where.append(" OR ");
+				}
+
+				// The primary key starts with the file name, so the prefix
+				// can be looked up
+				where.append("FILENAME LIKE ? ESCAPE '\\'");
+				String prefix = folders.get(i).getAbsolutePath();
+
+				if (!prefix.endsWith(File.separator)) {
+					prefix += File.separator;
+				}
+
+				parameters.add(prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+			}
+
+			where.append(")");
+		}
+
+		if (!criteria.isMatchAll()) {
+			where.append(" AND ").append(criteria.getCondition());
+			parameters.addAll(criteria.getParameters());
+		}
+
+		Connection conn = null;
+		ResultSet rs = null;
+		PreparedStatement ps = null;
+		int total = 0;
+
+		try {
+			conn = getConnection();
+			ps = conn.prepareStatement("SELECT COUNT(*)" + where);
+			setParameters(ps, parameters);
+			rs = ps.executeQuery();
+
+			if (rs.next()) {
+				total = rs.getInt(1);
+			}
+
+			rs.close();
+			ps.close();
+
+			if (count > 0 && start < total) {
+				ps = conn.prepareStatement("SELECT FILENAME" + where + " ORDER BY FILENAME LIMIT ? OFFSET ?");
+				setParameters(ps, parameters);
+				ps.setInt(parameters.size() + 1, count);
+				ps.setInt(parameters.size() + 2, start);
+				rs = ps.executeQuery();
+
+				while (rs.next()) {
+					files.add(new File(rs.getString(1)));
+				}
+			}
+		} catch (SQLException se) {
+			logger.error("Error searching for \"" + criteria + "\"", se);
+			return -1;
+		} finally {
+			close(rs);
+			close(ps);
+			close(conn);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Returns where an interrupted scan of a shared folder stopped.
+	 *
+	 * @param folder The shared folder.
+	 * @return The last directory that was completely scanned, or null if
+	 * the last scan of the folder was not interrupted.
+	 */
+	public String getScanCheckpoint(File folder) {
+		Connection conn = null;
+		ResultSet rs = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn = getConnection();
+			ps = conn.prepareStatement("SELECT DIRECTORY FROM SCANCHECKPOINTS WHERE FOLDER = ?");
+			ps.setString(1, folder.getAbsolutePath());
+			rs = ps.executeQuery();
+
+			if (rs.next()) {
+				return rs.getString(1);
+			}
+		} catch (SQLException se) {
+			logger.error(null, se);
+		} finally {
+			close(rs);
+			close(ps);
+			close(conn);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Stores where the scan of a shared folder is. Media information that is
+	 * still queued is written first, so a checkpoint never covers files that
+	 * are not in the database.
+	 *
+	 * @param folder The shared folder.
+	 * @param directory The last directory that was completely scanned, or
+	 * null when the scan of the folder is complete.
+	 */
+	public void setScanCheckpoint(File folder, String directory) {
+		writer.flush();
+		Connection conn = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn = getConnection();
+
+			if (directory == null) {
+				ps = conn.prepareStatement("DELETE FROM SCANCHECKPOINTS WHERE FOLDER = ?");
+				ps.setString(1, folder.getAbsolutePath());
+			} else {
+				ps = conn.prepareStatement("MERGE INTO SCANCHECKPOINTS (FOLDER, DIRECTORY) KEY (FOLDER) VALUES (?, ?)");
+				ps.setString(1, folder.getAbsolutePath());
+				ps.setString(2, directory);
+			}
+
+			ps.executeUpdate();
+		} catch (SQLException se) {
+			logger.error(null, se);
+		} finally {
+			close(ps);
+			close(conn);
+		}
+	}
+
+	private void setParameters(PreparedStatement ps, List<Object> parameters) throws SQLException {
+		for (int i = 0; i < parameters.size(); i++) {
+			ps.setObject(i + 1, parameters.get(i));
+		}
+	}
+
 	private void close(ResultSet rs) {
 		try {
 			if (rs != null) {
@@ -0,0 +1,177 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes media information to the database in the background. Files are
+ * queued by the threads that parse them and a single writer thread stores
+ * them in batches, each batch in one transaction, so parsing does not wait
+ * for the database. The queue is bounded: when the writer falls behind,
+ * adding a file blocks until there is room again.
+ */
+class DLNAMediaDatabaseWriter implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(DLNAMediaDatabaseWriter.class);
+
+	/**
+	 * Maximum number of files waiting to be written.
+	 */
+	static final int QUEUE_SIZE = 1000;
+
+	/**
+	 * Maximum number of files written in one transaction.
+	 */
+	static final int BATCH_SIZE = 250;
+
+	private final DLNAMediaDatabase database;
+	private final BlockingQueue<PendingFile> queue = new ArrayBlockingQueue<PendingFile>(QUEUE_SIZE);
+
+	/**
+	 * Files that are queued or being written, by filename.
+	 */
+	private final ConcurrentHashMap<String, PendingFile> pending = new ConcurrentHashMap<String, PendingFile>();
+
+	private final Object lock = new Object();
+	private long queued;
+	private long written;
+	private Thread thread;
+
+	/**
+	 * A file waiting to be written to the database.
+	 */
+	static class PendingFile {
+		final String name;
+		final long modified;
+		final int type;
+		final DLNAMediaInfo media;
+
+		PendingFile(String name, long modified, int type, DLNAMediaInfo media) {
+			this.name = name;
+			this.modified = modified;
+			this.type = type;
+			this.media = media;
+		}
+	}
+
+	DLNAMediaDatabaseWriter(DLNAMediaDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * Queues a file to be written, starting the writer thread if needed.
+	 * Blocks while the queue is full.
+	 */
+	void add(String name, long modified, int type, DLNAMediaInfo media) {
+		PendingFile file = new PendingFile(name, modified, type, media);
+		pending.put(name, file);
+
+		synchronized (lock) {
+			queued++;
+
+			if (thread == null) {
+				thread = new Thread(this, "Database Writer");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		try {
+			queue.put(file);
+		} catch (InterruptedException e) {
+			// Don't lose the file, write it ourselves
+			Thread.currentThread().interrupt();
+			write(Collections.singletonList(file));
+		}
+	}
+
+	/**
+	 * @return Whether the given version of a file is waiting to be written.
+	 */
+	boolean isPending(String name, long modified) {
+		PendingFile file = pending.get(name);
+		return file != null && file.modified == modified;
+	}
+
+	/**
+	 * @return Whether any version of a file is waiting to be written.
+	 */
+	boolean isPending(String name) {
+		return pending.containsKey(name);
+	}
+
+	/**
+	 * Waits until every file that was queued before this call is written.
+	 */
+	void flush() {
+		synchronized (lock) {
+			long target = queued;
+
+			try {
+				while (written < target) {
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		List<PendingFile> batch = new ArrayList<PendingFile>(BATCH_SIZE);
+
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private void write(List<PendingFile> batch) {
+		try {
+			database.insertBatch(batch);
+		} catch (RuntimeException e) {
+			logger.error("Error while writing media information to the database", e);
+		} finally {
+			for (PendingFile file : batch) {
+				pending.remove(file.name, file);
+			}
+
+			synchronized (lock) {
+				written += batch.size();
+				lock.notifyAll();
+			}
+		}
+	}
+}
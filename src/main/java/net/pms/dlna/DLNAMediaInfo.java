@@ -29,9 +29,12 @@ import net.pms.configuration.RendererConfiguration;
 import net.pms.formats.AudioAsVideo;
 import net.pms.formats.Format;
 import net.pms.formats.v2.SubtitleType;
+import net.pms.io.FileChannelInputStream;
 import net.pms.io.OutputParams;
+import net.pms.io.ProcessSupervisor;
 import net.pms.io.ProcessWrapperImpl;
 import net.pms.network.HTTPResource;
+import net.pms.util.AudioTags;
 import net.pms.util.CoverUtil;
 import net.pms.util.FileUtil;
 import net.pms.util.MpegUtil;
@@ -48,6 +51,7 @@ import org.jaudiotagger.audio.AudioFileIO;
 import org.jaudiotagger.audio.AudioHeader;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
+import org.jboss.netty.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,7 +77,6 @@ import static org.apache.commons.lang3.StringUtils.*;
  */
 public class DLNAMediaInfo implements Cloneable {
 	private static final Logger logger = LoggerFactory.getLogger(DLNAMediaInfo.class);
-	private static final String THUMBNAIL_DIRECTORY_NAME = "thumbs";
 	private static final PmsConfiguration configuration = PMS.getConfiguration();
 
 	/**
@@ -183,6 +186,12 @@ public class DLNAMediaInfo implements Cloneable {
 	@Deprecated
 	public byte thumb[];
 
+	/**
+	 * The hash of the thumbnail in the {@link ThumbnailStore}, which keeps
+	 * the thumbnail instead of the heap.
+	 */
+	private volatile String thumbHash;
+
 	/**
 	 * @deprecated Use standard getter and setter to access this variable.
 	 */
@@ -405,7 +414,12 @@ public class DLNAMediaInfo implements Cloneable {
 		DLNAMediaInfo forThumbnail = new DLNAMediaInfo();
 		forThumbnail.durationSec = durationSec;
 		forThumbnail.parse(input, ext, type, true);
-		setThumb(forThumbnail.getThumb());
+
+		if (forThumbnail.getThumbHash() != null) {
+			setThumbHash(forThumbnail.getThumbHash());
+		} else {
+			setThumb(forThumbnail.getThumb());
+		}
 	}
 
 	private ProcessWrapperImpl getFFmpegThumbnail(InputFile media) {
@@ -455,22 +469,17 @@ public class DLNAMediaInfo implements Cloneable {
 
 		// FAILSAFE
 		setParsing(true);
-		Runnable r = new Runnable() {
+		Timeout failsafe = ProcessSupervisor.schedule(new Runnable() {
 			@Override
 			public void run() {
-				try {
-					Thread.sleep(10000);
-					ffmpeg_failure = true;
-				} catch (InterruptedException e) { }
-
+				ffmpeg_failure = true;
 				pw.stopProcess();
 				setParsing(false);
 			}
-		};
+		}, 10000);
 
-		Thread failsafe = new Thread(r, "FFmpeg Thumbnail Failsafe");
-		failsafe.start();
 		pw.runInSameThread();
+		failsafe.cancel();
 		setParsing(false);
 		return pw;
 	}
@@ -511,22 +520,17 @@ public class DLNAMediaInfo implements Cloneable {
 
 		// FAILSAFE
 		setParsing(true);
-		Runnable r = new Runnable() {
+		Timeout failsafe = ProcessSupervisor.schedule(new Runnable() {
 			@Override
 			public void run() {
-				try {
-					Thread.sleep(3000);
-					//mplayer_thumb_failure = true;
-				} catch (InterruptedException e) { }
-
+				//mplayer_thumb_failure = true;
 				pw.stopProcess();
 				setParsing(false);
 			}
-		};
+		}, 3000);
 
-		Thread failsafe = new Thread(r, "MPlayer Thumbnail Failsafe");
-		failsafe.start();
 		pw.runInSameThread();
+		failsafe.cancel();
 		setParsing(false);
 		return pw;
 	}
@@ -542,6 +546,38 @@ public class DLNAMediaInfo implements Cloneable {
 		}
 	}
 
+	/**
+	 * Copies the properties and tags of an audio file that were read without
+	 * its artwork. The artwork, or a cover found online, is then left to
+	 * {@link #generateThumbnail}, which is called when the thumbnail is first
+	 * requested.
+	 */
+	private void parseAudioTags(AudioTags tags, DLNAMediaAudio audio) {
+		audio.setCodecA(tags.getCodec());
+		audio.setSampleFrequency("" + tags.getSampleRate());
+
+		if (tags.getBitsPerSample() > 0) {
+			audio.setBitsperSample(tags.getBitsPerSample());
+		}
+
+		audio.getAudioProperties().setNumberOfChannels(tags.getChannels() > 0 ? tags.getChannels() : 2);
+		setDuration(tags.getDuration());
+		setBitrate(tags.getBitrate());
+
+		if (tags.isTagged()) {
+			audio.setAlbum(tags.getAlbum());
+			audio.setArtist(tags.getArtist());
+			audio.setSongname(tags.getTitle());
+			audio.setYear(tags.getYear());
+			audio.setTrack(tags.getTrack() > 0 ? tags.getTrack() : 1);
+			audio.setGenre(tags.getGenre());
+		}
+
+		if (configuration.isThumbnailGenerationEnabled() && (tags.hasArtwork() || configuration.getAudioThumbnailMethod() > 0)) {
+			setThumbready(false);
+		}
+	}
+
 	public void parse(InputFile inputFile, Format ext, int type, boolean thumbOnly) {
 		int i = 0;
 
@@ -577,78 +613,92 @@ public class DLNAMediaInfo implements Cloneable {
 				DLNAMediaAudio audio = new DLNAMediaAudio();
 
 				if (inputFile.getFile() != null) {
-					try {
-						AudioFile af = AudioFileIO.read(inputFile.getFile());
-						AudioHeader ah = af.getAudioHeader();
+					AudioTags tags = null;
 
-						if (ah != null && !thumbOnly) {
-							int length = ah.getTrackLength();
-							int rate = ah.getSampleRateAsNumber();
+					if (type == Format.AUDIO && !thumbOnly) {
+						try {
+							tags = AudioTags.read(inputFile.getFile());
+						} catch (Exception e) {
+							logger.debug("Error reading the tags of {}: {}", inputFile.getFile().getAbsolutePath(), e.getMessage());
+						}
+					}
 
-							if (ah.getEncodingType().toLowerCase().contains("flac 24")) {
-								audio.setBitsperSample(24);
-							}
+					if (tags != null) {
+						parseAudioTags(tags, audio);
+					} else {
+						try {
+							AudioFile af = AudioFileIO.read(inputFile.getFile());
+							AudioHeader ah = af.getAudioHeader();
 
-							audio.setSampleFrequency("" + rate);
-							setDuration((double) length);
-							setBitrate((int) ah.getBitRateAsNumber());
-							audio.getAudioProperties().setNumberOfChannels(2);
+							if (ah != null && !thumbOnly) {
+								int length = ah.getTrackLength();
+								int rate = ah.getSampleRateAsNumber();
+
+								if (ah.getEncodingType().toLowerCase().contains("flac 24")) {
+									audio.setBitsperSample(24);
+								}
 
-							if (ah.getChannels() != null && ah.getChannels().toLowerCase().contains("mono")) {
-								audio.getAudioProperties().setNumberOfChannels(1);
-							} else if (ah.getChannels() != null && ah.getChannels().toLowerCase().contains("stereo")) {
+								audio.setSampleFrequency("" + rate);
+								setDuration((double) length);
+								setBitrate((int) ah.getBitRateAsNumber());
 								audio.getAudioProperties().setNumberOfChannels(2);
-							} else if (ah.getChannels() != null) {
-								audio.getAudioProperties().setNumberOfChannels(Integer.parseInt(ah.getChannels()));
-							}
 
-							audio.setCodecA(ah.getEncodingType().toLowerCase());
+								if (ah.getChannels() != null && ah.getChannels().toLowerCase().contains("mono")) {
+									audio.getAudioProperties().setNumberOfChannels(1);
+								} else if (ah.getChannels() != null && ah.getChannels().toLowerCase().contains("stereo")) {
+									audio.getAudioProperties().setNumberOfChannels(2);
+								} else if (ah.getChannels() != null) {
+									audio.getAudioProperties().setNumberOfChannels(Integer.parseInt(ah.getChannels()));
+								}
+
+								audio.setCodecA(ah.getEncodingType().toLowerCase());
 
-							if (audio.getCodecA().contains("(windows media")) {
-								audio.setCodecA(audio.getCodecA().substring(0, audio.getCodecA().indexOf("(windows media")).trim());
+								if (audio.getCodecA().contains("(windows media")) {
+									audio.setCodecA(audio.getCodecA().substring(0, audio.getCodecA().indexOf("(windows media")).trim());
+								}
 							}
-						}
 
-						Tag t = af.getTag();
+							Tag t = af.getTag();
 
-						if (t != null) {
-							if (t.getArtworkList().size() > 0) {
-								setThumb(t.getArtworkList().get(0).getBinaryData());
-							} else {
-								if (configuration.getAudioThumbnailMethod() > 0) {
-									setThumb(
-										CoverUtil.get().getThumbnailFromArtistAlbum(
-											configuration.getAudioThumbnailMethod() == 1 ?
-												CoverUtil.AUDIO_AMAZON :
-												CoverUtil.AUDIO_DISCOGS,
-											audio.getArtist(), audio.getAlbum()
-										)
-									);
+							if (t != null) {
+								if (t.getArtworkList().size() > 0) {
+									setThumb(t.getArtworkList().get(0).getBinaryData());
+								} else {
+									if (configuration.getAudioThumbnailMethod() > 0) {
+										setThumb(
+											CoverUtil.get().getThumbnailFromArtistAlbum(
+												configuration.getAudioThumbnailMethod() == 1 ?
+													CoverUtil.AUDIO_AMAZON :
+													CoverUtil.AUDIO_DISCOGS,
+												t.getFirst(FieldKey.ARTIST), t.getFirst(FieldKey.ALBUM)
+											)
+										);
+									}
 								}
-							}
 
-							if (!thumbOnly) {
-								audio.setAlbum(t.getFirst(FieldKey.ALBUM));
-								audio.setArtist(t.getFirst(FieldKey.ARTIST));
-								audio.setSongname(t.getFirst(FieldKey.TITLE));
-								String y = t.getFirst(FieldKey.YEAR);
+								if (!thumbOnly) {
+									audio.setAlbum(t.getFirst(FieldKey.ALBUM));
+									audio.setArtist(t.getFirst(FieldKey.ARTIST));
+									audio.setSongname(t.getFirst(FieldKey.TITLE));
+									String y = t.getFirst(FieldKey.YEAR);
 
-								try {
-									if (y.length() > 4) {
-										y = y.substring(0, 4);
+									try {
+										if (y.length() > 4) {
+											y = y.substring(0, 4);
+										}
+										audio.setYear(Integer.parseInt(((y != null && y.length() > 0) ? y : "0")));
+										y = t.getFirst(FieldKey.TRACK);
+										audio.setTrack(Integer.parseInt(((y != null && y.length() > 0) ? y : "1")));
+										audio.setGenre(t.getFirst(FieldKey.GENRE));
+									} catch (Throwable e) {
+										logger.debug("Error parsing unimportant metadata: " + e.getMessage());
 									}
-									audio.setYear(Integer.parseInt(((y != null && y.length() > 0) ? y : "0")));
-									y = t.getFirst(FieldKey.TRACK);
-									audio.setTrack(Integer.parseInt(((y != null && y.length() > 0) ? y : "1")));
-									audio.setGenre(t.getFirst(FieldKey.GENRE));
-								} catch (Throwable e) {
-									logger.debug("Error parsing unimportant metadata: " + e.getMessage());
 								}
 							}
+						} catch (Throwable e) {
+							logger.debug("Error parsing audio file: {} - {}", e.getMessage(), e.getCause() != null ? e.getCause().getMessage() : "");
+							ffmpeg_parsing = false;
 						}
-					} catch (Throwable e) {
-						logger.debug("Error parsing audio file: {} - {}", e.getMessage(), e.getCause() != null ? e.getCause().getMessage() : "");
-						ffmpeg_parsing = false;
 					}
 
 					if (audio.getSongname() == null || audio.getSongname().length() == 0) {
@@ -715,48 +765,26 @@ public class DLNAMediaInfo implements Cloneable {
 
 			if (configuration.getImageThumbnailsEnabled() && type != Format.VIDEO && type != Format.AUDIO) {
 				try {
-					File thumbDir = new File(configuration.getTempFolder(), THUMBNAIL_DIRECTORY_NAME);
-
 					logger.trace("Generating thumbnail for: {}", inputFile.getFile().getAbsolutePath());
 
-					if (!thumbDir.exists() && !thumbDir.mkdirs()) {
-						logger.warn("Could not create thumbnail directory: {}", thumbDir.getAbsolutePath());
-					} else {
-						File thumbFile = new File(thumbDir, inputFile.getFile().getName() + ".jpg");
-						String thumbFilename = thumbFile.getAbsolutePath();
-
-						logger.trace("Creating (temporary) thumbnail: {}", thumbFilename);
-
-						// Create the thumbnail image using the Thumbnailator library
-						final Builder<File> thumbnail = Thumbnails.of(inputFile.getFile());
-						thumbnail.size(320, 180);
-						thumbnail.outputFormat("jpg");
-						thumbnail.outputQuality(1.0f);
+					// Create the thumbnail image using the Thumbnailator library
+					final Builder<File> thumbnail = Thumbnails.of(inputFile.getFile());
+					thumbnail.size(320, 180);
+					thumbnail.outputFormat("jpg");
+					thumbnail.outputQuality(1.0f);
 
-						try {
-							thumbnail.toFile(thumbFilename);
-						} catch (IIOException e) {
-							logger.debug("Error generating thumbnail for: " + inputFile.getFile().getName());
-							logger.debug("The full error was: " + e);
-						}
-
-						File jpg = new File(thumbFilename);
+					// Encode in memory, it goes to the thumbnail store from there
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-						if (jpg.exists()) {
-							InputStream is = new FileInputStream(jpg);
-							int sz = is.available();
-
-							if (sz > 0) {
-								setThumb(new byte[sz]);
-								is.read(getThumb());
-							}
-
-							is.close();
+					try {
+						thumbnail.toOutputStream(out);
+					} catch (IIOException e) {
+						logger.debug("Error generating thumbnail for: " + inputFile.getFile().getName());
+						logger.debug("The full error was: " + e);
+					}
 
-							if (!jpg.delete()) {
-								jpg.deleteOnExit();
-							}
-						}
+					if (out.size() > 0) {
+						setThumb(out.toByteArray());
 					}
 				} catch (UnsupportedFormatException ufe) {
 					logger.debug("Thumbnailator does not support the format of {}: {}", inputFile.getFile().getAbsolutePath(), ufe.getMessage());
@@ -1016,8 +1044,9 @@ public class DLNAMediaInfo implements Cloneable {
 							int sz = is.available();
 
 							if (sz > 0) {
-								setThumb(new byte[sz]);
-								is.read(getThumb());
+								byte[] data = new byte[sz];
+								is.read(data);
+								setThumb(data);
 							}
 
 							is.close();
@@ -1036,19 +1065,20 @@ public class DLNAMediaInfo implements Cloneable {
 					}
 				}
 
-				if (type == Format.VIDEO && pw != null && getThumb() == null) {
+				if (type == Format.VIDEO && pw != null && !hasThumb()) {
 					InputStream is;
 					try {
 						is = pw.getInputStream(0);
 						int sz = is.available();
+						byte[] data = null;
 						if (sz > 0) {
-							setThumb(new byte[sz]);
-							is.read(getThumb());
+							data = new byte[sz];
+							is.read(data);
 						}
 						is.close();
 
 						if (sz > 0 && !net.pms.PMS.isHeadless()) {
-							BufferedImage image = ImageIO.read(new ByteArrayInputStream(getThumb()));
+							BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
 							if (image != null) {
 								Graphics g = image.getGraphics();
 								g.setColor(Color.WHITE);
@@ -1063,13 +1093,23 @@ public class DLNAMediaInfo implements Cloneable {
 								}
 								ByteArrayOutputStream out = new ByteArrayOutputStream();
 								ImageIO.write(image, "jpeg", out);
-								setThumb(out.toByteArray());
+								data = out.toByteArray();
 							}
 						}
+
+						// Store only the final image
+						if (data != null) {
+							setThumb(data);
+						}
 					} catch (IOException e) {
 						logger.debug("Error while decoding thumbnail: " + e.getMessage());
 					}
 				}
+
+				if (pw != null) {
+					// Only a video thumbnail is read from the output
+					pw.releaseOutput();
+				}
 			}
 
 			finalize(type, inputFile);
@@ -1267,9 +1307,10 @@ public class DLNAMediaInfo implements Cloneable {
 		result.append(", frame rate: ");
 		result.append(getFrameRate());
 
-		if (getThumb() != null) {
+		// Don't load a thumbnail that isn't loaded yet just to log its size
+		if (thumb != null) {
 			result.append(", thumb size : ");
-			result.append(getThumb().length);
+			result.append(thumb.length);
 		}
 
 		result.append(", muxing mode: ");
@@ -1290,8 +1331,29 @@ public class DLNAMediaInfo implements Cloneable {
 		return result.toString();
 	}
 
+	/**
+	 * Returns the thumbnail. A stored thumbnail is opened as a file, so it
+	 * can be sent without copying it through the heap.
+	 *
+	 * @return The thumbnail, or null if there is none.
+	 */
 	public InputStream getThumbnailInputStream() {
-		return new ByteArrayInputStream(getThumb());
+		String hash = thumbHash;
+
+		if (thumb == null && hash != null) {
+			File file = ThumbnailStore.getInstance().getFile(hash);
+
+			if (file != null) {
+				try {
+					return new FileChannelInputStream(file, 0, 0);
+				} catch (FileNotFoundException e) {
+					logger.debug("Stored thumbnail disappeared: " + file.getAbsolutePath());
+				}
+			}
+		}
+
+		byte[] data = getThumb();
+		return data == null ? null : new ByteArrayInputStream(data);
 	}
 
 	public String getValidFps(boolean ratios) {
@@ -1415,22 +1477,19 @@ public class DLNAMediaInfo implements Cloneable {
 
 		final ProcessWrapperImpl pw = new ProcessWrapperImpl(cmdArray, params);
 
-		Runnable r = new Runnable() {
+		Timeout failsafe = ProcessSupervisor.schedule(new Runnable() {
 			@Override
 			public void run() {
-				try {
-					Thread.sleep(3000);
-					ffmpeg_annexb_failure = true;
-				} catch (InterruptedException e) { }
+				ffmpeg_annexb_failure = true;
 				pw.stopProcess();
 			}
-		};
+		}, 3000);
 
-		Thread failsafe = new Thread(r, "FFmpeg AnnexB Frame Header Failsafe");
-		failsafe.start();
 		pw.runInSameThread();
+		failsafe.cancel();
 
 		if (ffmpeg_annexb_failure) {
+			pw.releaseOutput();
 			return null;
 		}
 
@@ -1677,15 +1736,66 @@ public class DLNAMediaInfo implements Cloneable {
 	 * @since 1.50.0
 	 */
 	public byte[] getThumb() {
-		return thumb;
+		String hash = thumbHash;
+
+		if (thumb != null || hash == null) {
+			return thumb;
+		}
+
+		byte[] data = ThumbnailStore.getInstance().read(hash);
+
+		if (data == null) {
+			// The thumbnail was evicted from the store, so generate it again
+			thumbHash = null;
+			setThumbready(false);
+		}
+
+		return data;
 	}
 
 	/**
+	 * Sets the thumbnail. It is kept in the {@link ThumbnailStore} and only
+	 * stays on the heap if it is empty or can't be stored.
+	 *
 	 * @param thumb the thumb to set
 	 * @since 1.50.0
 	 */
 	public void setThumb(byte[] thumb) {
-		this.thumb = thumb;
+		String hash = null;
+
+		if (thumb != null && thumb.length > 0) {
+			hash = ThumbnailStore.getInstance().put(thumb);
+		}
+
+		this.thumb = hash == null ? thumb : null;
+		thumbHash = hash;
+	}
+
+	/**
+	 * Returns whether there is a thumbnail, without reading it.
+	 *
+	 * @return True if {@link #getThumb()} returns a thumbnail.
+	 */
+	public boolean hasThumb() {
+		return thumb != null || thumbHash != null;
+	}
+
+	/**
+	 * @return The hash of the thumbnail in the {@link ThumbnailStore}, or
+	 * null if the thumbnail is not stored there.
+	 */
+	public String getThumbHash() {
+		return thumbHash;
+	}
+
+	/**
+	 * Sets the thumbnail to one that is already in the {@link ThumbnailStore}.
+	 *
+	 * @param thumbHash The hash of the thumbnail, or null for none.
+	 */
+	public void setThumbHash(String thumbHash) {
+		this.thumb = null;
+		this.thumbHash = thumbHash;
 	}
 
 	/**
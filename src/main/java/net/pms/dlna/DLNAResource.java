@@ -34,8 +34,10 @@ import net.pms.external.ExternalListener;
 import net.pms.external.StartStopListener;
 import net.pms.formats.Format;
 import net.pms.formats.FormatFactory;
+import net.pms.io.FileChannelInputStream;
 import net.pms.io.OutputParams;
 import net.pms.io.ProcessWrapper;
+import net.pms.io.ProcessWrapperImpl;
 import net.pms.io.SizeLimitInputStream;
 import net.pms.network.HTTPResource;
 import net.pms.util.ImagesUtil;
@@ -49,14 +51,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.lang.ref.SoftReference;
 import java.net.InetAddress;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 
 import static net.pms.util.StringUtil.*;
@@ -76,6 +79,18 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	private boolean resolved;
 
 	private static final int STOP_PLAYING_DELAY = 4000;
+
+	/**
+	 * Maximum time in milliseconds to wait for the first output of the
+	 * transcode that is started for a time seek.
+	 */
+	private static final int SEEK_OUTPUT_TIMEOUT = 5000;
+
+	/**
+	 * Maximum time in milliseconds a browse request waits for its children
+	 * to be resolved.
+	 */
+	private static final int RESOLVE_TIMEOUT = 20000;
 	private static final Logger logger = LoggerFactory.getLogger(DLNAResource.class);
 	private static final SimpleDateFormat sdfDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
 	private static final PmsConfiguration configuration = PMS.getConfiguration();
@@ -186,7 +201,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	 * @deprecated Use standard getter and setter to access this field.
 	 */
 	@Deprecated
-	public static int systemUpdateId = 1;
+	public static volatile int systemUpdateId = 1;
 
 	/**
 	 * @deprecated Use standard getter and setter to access this field.
@@ -250,6 +265,35 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	@Deprecated
 	protected List<DLNAResource> children;
 
+	/**
+	 * Guards the list of children of this container. Discovery and refreshes
+	 * take the write lock, so a container is only discovered once when it is
+	 * browsed by several renderers at the same time, while lookups take
+	 * the read lock. Locks are only ever nested from a container down to its
+	 * children, never the other way around. Clones share the lock, just like
+	 * they share the list of children.
+	 */
+	private final ReentrantReadWriteLock childrenLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Index of all materialized resources below this one by their full
+	 * resource ID. Only used on the root of a tree, see {@link #search(String, int, RendererConfiguration)}.
+	 */
+	private ConcurrentHashMap<String, DLNAResource> resourceIndex;
+
+	/**
+	 * The last DIDL fragment generated for this resource, see
+	 * {@link #getDidlBytes(RendererConfiguration)}. Softly referenced so
+	 * that the cache gives way when memory runs low.
+	 */
+	private volatile SoftReference<DidlFragment> didlFragment;
+
+	/**
+	 * Set when this resource is removed from its container, so lookups in
+	 * the index notice it without searching the children of the container.
+	 */
+	private volatile boolean removed;
+
 	/**
 	 * @deprecated Use standard getter and setter to access this field.
 	 *
@@ -439,7 +483,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	 * @see #getName()
 	 */
 	public DLNAResource searchByName(String name) {
-		for (DLNAResource child : getChildren()) {
+		for (DLNAResource child : getChildrenSnapshot()) {
 			if (child.getName().equals(name)) {
 				return child;
 			}
@@ -667,7 +711,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 							}
 						} else if (!child.getFormat().isCompatible(child.getMedia(), getDefaultRenderer()) && !child.isFolder()) {
 							logger.trace("Ignoring file \"{}\" because it is not compatible with renderer \"{}\"", child.getName(), getDefaultRenderer().getRendererName());
-							getChildren().remove(child);
+							removeChildInternal(child);
 						}
 					}
 
@@ -701,7 +745,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 			logger.error("Error adding child: \"{}\"", child.getName(), t);
 
 			child.setParent(null);
-			getChildren().remove(child);
+			removeChildInternal(child);
 		}
 	}
 
@@ -726,17 +770,23 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 			return null;
 		}
 
-		// search for transcode folder
-		for (DLNAResource child : getChildren()) {
-			if (child instanceof TranscodeVirtualFolder) {
-				return (TranscodeVirtualFolder) child;
+		childrenLock.writeLock().lock();
+
+		try {
+			// search for transcode folder
+			for (DLNAResource child : getChildren()) {
+				if (child instanceof TranscodeVirtualFolder) {
+					return (TranscodeVirtualFolder) child;
+				}
 			}
-		}
 
-		if (create) {
-			TranscodeVirtualFolder transcodeFolder = new TranscodeVirtualFolder(null);
-			addChildInternal(transcodeFolder);
-			return transcodeFolder;
+			if (create) {
+				TranscodeVirtualFolder transcodeFolder = new TranscodeVirtualFolder(null);
+				addChildInternal(transcodeFolder);
+				return transcodeFolder;
+			}
+		} finally {
+			childrenLock.writeLock().unlock();
 		}
 
 		return null;
@@ -749,7 +799,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	 *
 	 * @param child the DLNA resource to add to this node's list of children
 	 */
-	protected synchronized void addChildInternal(DLNAResource child) {
+	protected void addChildInternal(DLNAResource child) {
 		if (child.getInternalId() != null) {
 			logger.info(
 				"Node ({}) already has an ID ({}), which is overridden now. The previous parent node was: {}",
@@ -761,11 +811,210 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 			);
 		}
 
-		getChildren().add(child);
-		child.setParent(this);
+		childrenLock.writeLock().lock();
+
+		try {
+			getChildren().add(child);
+			child.setParent(this);
+			child.removed = false;
+
+			setLastChildId(getLastChildId() + 1);
+			child.setIndexId(getLastChildId());
+			updateIndex(child, true);
+		} finally {
+			childrenLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the supplied DLNA resource from the internal list of child
+	 * nodes.
+	 *
+	 * @param child the DLNA resource to remove from this node's list of children
+	 */
+	protected void removeChildInternal(DLNAResource child) {
+		childrenLock.writeLock().lock();
+
+		try {
+			if (getChildren().remove(child)) {
+				child.removed = true;
+				updateIndex(child, false);
+			}
+		} finally {
+			childrenLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all children from the internal list of child nodes.
+	 */
+	protected void clearChildrenInternal() {
+		childrenLock.writeLock().lock();
+
+		try {
+			for (DLNAResource child : getChildren()) {
+				child.removed = true;
+				updateIndex(child, false);
+			}
+
+			getChildren().clear();
+		} finally {
+			childrenLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a resource and the resources below it to the index of the tree
+	 * it belongs to, or removes them from it. Nothing happens while the
+	 * resource is part of a tree that has not been given an ID yet, its
+	 * resources are indexed when that tree is added to a container.
+	 *
+	 * @param resource The resource.
+	 * @param add True to add, false to remove.
+	 */
+	private void updateIndex(DLNAResource resource, boolean add) {
+		DLNAResource root = this;
+
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+
+		if (root.getId() == null) {
+			return;
+		}
+
+		Map<String, DLNAResource> index = root.getResourceIndex();
+		LinkedList<DLNAResource> pending = new LinkedList<DLNAResource>();
+		pending.add(resource);
+
+		while (!pending.isEmpty()) {
+			DLNAResource r = pending.removeFirst();
+			String resourceId = r.getResourceId();
+
+			if (resourceId != null) {
+				if (add) {
+					index.put(resourceId, r);
+				} else {
+					index.remove(resourceId);
+				}
+			}
+
+			if (r.getChildren() != null) {
+				pending.addAll(r.getChildrenSnapshot());
+			}
+		}
+	}
+
+	private ConcurrentHashMap<String, DLNAResource> getResourceIndex() {
+		synchronized (childrenLock) {
+			if (resourceIndex == null) {
+				resourceIndex = new ConcurrentHashMap<String, DLNAResource>();
+			}
+
+			return resourceIndex;
+		}
+	}
+
+	/**
+	 * Looks up a materialized resource in the index of this tree. The
+	 * container of the resource is checked for changes, just like when the
+	 * tree is walked to the resource.
+	 *
+	 * @param resourceId The full resource ID.
+	 * @param count The number of children wanted by the request.
+	 * @param renderer The renderer of the request.
+	 * @return The resource, or null if it is not in the index or no longer
+	 * part of the tree.
+	 */
+	private DLNAResource lookup(String resourceId, int count, RendererConfiguration renderer) {
+		ConcurrentHashMap<String, DLNAResource> index = getResourceIndex();
+		DLNAResource found = index.get(resourceId);
+
+		if (found == null) {
+			return null;
+		}
+
+		if (isAttached(found) && found.getParent() != null) {
+			found.getParent().discoverWithRenderer(renderer, count, false);
+		}
+
+		// A refresh may have replaced the resource
+		if (!isAttached(found) || !resourceId.equals(found.getResourceId())) {
+			index.remove(resourceId, found);
+			return null;
+		}
+
+		return found;
+	}
+
+	/**
+	 * Checks that neither a resource nor any container above it has been
+	 * removed, and that it belongs to the tree of this root. Children must
+	 * be removed with {@link #removeChildInternal(DLNAResource)} or
+	 * {@link #clearChildrenInternal()} for this to notice.
+	 *
+	 * @param resource The resource.
+	 * @return True if the resource is still part of this tree.
+	 */
+	private boolean isAttached(DLNAResource resource) {
+		DLNAResource child = resource;
+
+		while (child.getParent() != null) {
+			if (child.isRemoved()) {
+				return false;
+			}
+
+			child = child.getParent();
+		}
+
+		return child == this;
+	}
+
+	/**
+	 * @return True if this resource was removed from its container.
+	 */
+	protected boolean isRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Returns a copy of the list of children, so it can be iterated while
+	 * other threads add or remove children.
+	 *
+	 * @return A copy of the list of children.
+	 */
+	protected List<DLNAResource> getChildrenSnapshot() {
+		childrenLock.readLock().lock();
 
-		setLastChildId(getLastChildId() + 1);
-		child.setIndexId(getLastChildId());
+		try {
+			return new ArrayList<DLNAResource>(getChildren());
+		} finally {
+			childrenLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a range of the list of children.
+	 *
+	 * @param start The index of the first child.
+	 * @param count The maximum number of children, or 0 for all of them.
+	 * @return A copy of the requested range.
+	 */
+	private List<DLNAResource> getChildrenRange(int start, int count) {
+		childrenLock.readLock().lock();
+
+		try {
+			List<DLNAResource> children = getChildren();
+			int end = count == 0 ? children.size() : Math.min(children.size(), start + count);
+
+			if (start >= end) {
+				return new ArrayList<DLNAResource>();
+			}
+
+			return new ArrayList<DLNAResource>(children.subList(start, end));
+		} finally {
+			childrenLock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -780,7 +1029,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	 * @return List of DLNAResource items.
 	 * @throws IOException
 	 */
-	public synchronized List<DLNAResource> getDLNAResources(String objectId, boolean returnChildren, int start, int count, RendererConfiguration renderer) throws IOException {
+	public List<DLNAResource> getDLNAResources(String objectId, boolean returnChildren, int start, int count, RendererConfiguration renderer) throws IOException {
 		ArrayList<DLNAResource> resources = new ArrayList<DLNAResource>();
 		DLNAResource dlna = search(objectId, count, renderer);
 
@@ -793,45 +1042,26 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 				dlna.refreshChildrenIfNeeded();
 			} else {
 				dlna.discoverWithRenderer(renderer, count, true);
-
-				if (count == 0) {
-					count = dlna.getChildren().size();
-				}
+				List<DLNAResource> children = dlna.getChildrenRange(start, count);
+				count = children.size();
 
 				if (count > 0) {
-					ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(count);
+					ResolverPool resolverPool = ResolverPool.getInstance();
+					List<Future<?>> futures = new ArrayList<Future<?>>(count);
 
-					int nParallelThreads = 3;
-					if (dlna instanceof DVDISOFile) {
-						nParallelThreads = 1; // Some DVD drives die wih 3 parallel threads
-					}
+					for (int i = 0; i < count; i++) {
+						final DLNAResource child = children.get(i);
 
-					ThreadPoolExecutor tpe = new ThreadPoolExecutor(
-						Math.min(count, nParallelThreads),
-						count,
-						20,
-						TimeUnit.SECONDS,
-						queue
-					);
-
-					for (int i = start; i < start + count; i++) {
-						if (i < dlna.getChildren().size()) {
-							final DLNAResource child = dlna.getChildren().get(i);
-
-							if (child != null) {
-								tpe.execute(child);
-								resources.add(child);
-							} else {
-								logger.warn("null child at index {} in {}", i, systemName);
-							}
+						if (child != null) {
+							futures.add(resolverPool.submit(child));
+							resources.add(child);
+						} else {
+							logger.warn("null child at index {} in {}", start + i, systemName);
 						}
 					}
 
-					try {
-						tpe.shutdown();
-						tpe.awaitTermination(20, TimeUnit.SECONDS);
-					} catch (InterruptedException e) {
-						logger.error("error while shutting down thread pool executor for " + systemName, e);
+					if (!ResolverPool.await(futures, RESOLVE_TIMEOUT)) {
+						logger.debug("Not all children of {} were resolved within {} ms", systemName, RESOLVE_TIMEOUT);
 					}
 
 					logger.trace("End of analysis for {}", systemName);
@@ -843,9 +1073,15 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	}
 
 	protected void refreshChildrenIfNeeded() {
-		if (isDiscovered() && isRefreshNeeded()) {
-			refreshChildren();
-			notifyRefresh();
+		childrenLock.writeLock().lock();
+
+		try {
+			if (isDiscovered() && isRefreshNeeded()) {
+				refreshChildren();
+				notifyRefresh();
+			}
+		} finally {
+			childrenLock.writeLock().unlock();
 		}
 	}
 
@@ -855,10 +1091,38 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	protected void notifyRefresh() {
 		setLastRefreshTime(System.currentTimeMillis());
 		setUpdateId(getUpdateId() + 1);
-		setSystemUpdateId(getSystemUpdateId() + 1);
+		incrementSystemUpdateId();
+
+		// The fragments of the children depend on the update ID, this one
+		// may depend on the number of children.
+		didlFragment = null;
+	}
+
+	private static synchronized void incrementSystemUpdateId() {
+		systemUpdateId++;
+	}
+
+	/**
+	 * @return The lock that guards the children. Discovery and refreshes hold
+	 * its write lock, so changes made outside of them must hold it too.
+	 */
+	protected ReentrantReadWriteLock getChildrenLock() {
+		return childrenLock;
 	}
 
 	final protected void discoverWithRenderer(RendererConfiguration renderer, int count, boolean forced) {
+		// Only one thread discovers or refreshes a container at a time, the
+		// others wait for the result. Other containers are not affected.
+		childrenLock.writeLock().lock();
+
+		try {
+			discoverWithRendererLocked(renderer, count, forced);
+		} finally {
+			childrenLock.writeLock().unlock();
+		}
+	}
+
+	private void discoverWithRendererLocked(RendererConfiguration renderer, int count, boolean forced) {
 		// Discover children if it hasn't been done already
 		if (!isDiscovered()) {
 			discoverChildren();
@@ -903,7 +1167,11 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	}
 
 	/**
-	 * Recursive function that searches for a given ID.
+	 * Recursive function that searches for a given ID. On the root of a tree,
+	 * resources that have been added before are found in the index without
+	 * searching the children along the path; the container of the resource
+	 * is still checked for changes. Otherwise the containers along the path
+	 * are discovered as needed.
 	 *
 	 * @param searchId ID to search for.
 	 * @param renderer
@@ -912,6 +1180,14 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	 * @see #getId()
 	 */
 	public DLNAResource search(String searchId, int count, RendererConfiguration renderer) {
+		if (getParent() == null && getId() != null && searchId != null) {
+			DLNAResource found = lookup(searchId, count, renderer);
+
+			if (found != null) {
+				return found;
+			}
+		}
+
 		if (getId() != null && searchId != null) {
 			String[] indexPath = searchId.split("\\$", 2);
 			if (getId().equals(indexPath[0])) {
@@ -920,7 +1196,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 				} else {
 					discoverWithRenderer(renderer, count, false);
 
-					for (DLNAResource file : getChildren()) {
+					for (DLNAResource file : getChildrenSnapshot()) {
 						DLNAResource found = file.search(indexPath[1], count, renderer);
 						if (found != null) {
 							return found;
@@ -953,6 +1229,29 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	 */
 	public void doRefreshChildren() { }
 
+	/**
+	 * Returns the device this resource is read from while it is resolved.
+	 * Resources on the same device are resolved one at a time, see
+	 * {@link ResolverPool}. Override this for devices that do not cope with
+	 * parallel access.
+	 *
+	 * @return The device, or null if resolves need not be limited.
+	 */
+	protected Object getResolveDevice() {
+		return null;
+	}
+
+	/**
+	 * Returns what this resource is resolved from, e.g. a file, so that the
+	 * copies of a resource in the trees of several renderers are resolved
+	 * one after the other, see {@link ResolverPool}.
+	 *
+	 * @return The key, or null if the resource is resolved on its own.
+	 */
+	protected Object getResolveKey() {
+		return null;
+	}
+
 	/**
 	 * @return true, if the container is changed, so refresh is needed.
 	 * This could be called a lot of times.
@@ -1340,6 +1639,8 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 		try {
 			o = (DLNAResource) super.clone();
 			o.setId(null);
+			o.resourceIndex = null;
+			o.didlFragment = null;
 			// clear the cached display name
 			o.displayName = null;
 			// make sure clones (typically #--TRANSCODE--# folder files)
@@ -1374,6 +1675,117 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 		return getDidlString(mediaRenderer);
 	}
 
+	/**
+	 * A DIDL fragment together with the state it was generated from.
+	 */
+	private static class DidlFragment {
+		final RendererConfiguration renderer;
+		final DLNAResource parent;
+		final String id;
+		final String fakeParentId;
+		final int parentUpdateId;
+		final int childCount;
+		final boolean discovered;
+		final DLNAMediaInfo media;
+		final boolean mediaParsed;
+		final boolean hasThumb;
+		final boolean thumbReady;
+		final long lastModified;
+		final Player player;
+		final String displayName;
+		final String serverUrl;
+		final String shortFilenameFormat;
+		final String longFilenameFormat;
+		final boolean hideEngineNames;
+		final boolean hideExtensions;
+		final byte[] bytes;
+
+		DidlFragment(DLNAResource resource, RendererConfiguration renderer, byte[] bytes) {
+			this.renderer = renderer;
+			this.parent = resource.getParent();
+			this.id = resource.getId();
+			this.fakeParentId = resource.getFakeParentId();
+			this.parentUpdateId = parent != null ? parent.getUpdateId() : 0;
+			this.childCount = resource.childrenNumber();
+			this.discovered = resource.isDiscovered();
+			this.media = resource.getMedia();
+			this.mediaParsed = media != null && media.isMediaparsed();
+			this.hasThumb = media != null && media.hasThumb();
+			this.thumbReady = media != null && media.isThumbready();
+			this.lastModified = resource.getLastModified();
+			this.player = resource.getPlayer();
+			this.displayName = resource.getDisplayName(renderer);
+			this.serverUrl = getServerUrl();
+			this.shortFilenameFormat = configuration.getShortFilenameFormat();
+			this.longFilenameFormat = configuration.getLongFilenameFormat();
+			this.hideEngineNames = configuration.isHideEngineNames();
+			this.hideExtensions = configuration.isHideExtensions();
+			this.bytes = bytes;
+		}
+
+		boolean matches(DLNAResource resource, RendererConfiguration renderer) {
+			DLNAMediaInfo currentMedia = resource.getMedia();
+			return this.renderer == renderer
+				&& parent == resource.getParent()
+				&& StringUtils.equals(id, resource.getId())
+				&& StringUtils.equals(fakeParentId, resource.getFakeParentId())
+				&& parentUpdateId == (parent != null ? parent.getUpdateId() : 0)
+				&& childCount == resource.childrenNumber()
+				&& discovered == resource.isDiscovered()
+				&& media == currentMedia
+				&& mediaParsed == (currentMedia != null && currentMedia.isMediaparsed())
+				// The thumbnail of the same media can become available later
+				&& hasThumb == (currentMedia != null && currentMedia.hasThumb())
+				&& thumbReady == (currentMedia != null && currentMedia.isThumbready())
+				&& lastModified == resource.getLastModified()
+				&& player == resource.getPlayer()
+				&& StringUtils.equals(displayName, resource.getDisplayName(renderer))
+				// The URLs of the resources contain the address of the server
+				&& StringUtils.equals(serverUrl, getServerUrl())
+				// The titles depend on these settings, which can be changed
+				// from the GUI while the server runs
+				&& StringUtils.equals(shortFilenameFormat, configuration.getShortFilenameFormat())
+				&& StringUtils.equals(longFilenameFormat, configuration.getLongFilenameFormat())
+				&& hideEngineNames == configuration.isHideEngineNames()
+				&& hideExtensions == configuration.isHideExtensions();
+		}
+
+		private static String getServerUrl() {
+			return PMS.get().getServer() != null ? PMS.get().getServer().getURL() : null;
+		}
+	}
+
+	/**
+	 * Returns the DIDL representation of {@link #getDidlString(RendererConfiguration)}
+	 * encoded as UTF-8. The result is cached until the resource, its media
+	 * information, its parent container, the server address or the display
+	 * name settings change, so browsing the same folder again does not
+	 * rebuild the XML of every item.
+	 *
+	 * @param mediaRenderer Media Renderer for which to represent this information.
+	 * @return The UTF-8 encoded DIDL fragment. Callers must not modify it.
+	 */
+	public byte[] getDidlBytes(RendererConfiguration mediaRenderer) {
+		SoftReference<DidlFragment> reference = didlFragment;
+		DidlFragment fragment = reference != null ? reference.get() : null;
+
+		if (fragment != null && fragment.matches(this, mediaRenderer)) {
+			return fragment.bytes;
+		}
+
+		byte[] bytes;
+
+		try {
+			bytes = getDidlString(mediaRenderer).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+
+		didlFragment = new SoftReference<DidlFragment>(new DidlFragment(this, mediaRenderer, bytes));
+		return bytes;
+	}
+
 	/**
 	 * Returns an XML (DIDL) representation of the DLNA node. It gives a
 	 * complete representation of the item, with as many tags as available.
@@ -1965,17 +2377,28 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 				if (fis == null) { // error, let's return the original one
 					fis = getInputStream();
 				}
+			} else if (this instanceof RealFile) {
+				// Read straight from the file channel, so the HTTP engine
+				// can send the range without copying it (see RequestV2)
+				try {
+					fis = new FileChannelInputStream(((RealFile) this).getFile(), low, high);
+				} catch (FileNotFoundException e) {
+					logger.debug("File not found: {}", ((RealFile) this).getFile().getAbsolutePath());
+					return null;
+				}
 			} else {
 				fis = getInputStream();
 			}
 
 			if (fis != null) {
-				if (low > 0) {
-					fis.skip(low);
-				}
+				if (!(fis instanceof FileChannelInputStream)) {
+					if (low > 0) {
+						fis.skip(low);
+					}
 
-				// http://www.ps3mediaserver.org/forum/viewtopic.php?f=11&t=12035
-				fis = wrap(fis, high, low);
+					// http://www.ps3mediaserver.org/forum/viewtopic.php?f=11&t=12035
+					fis = wrap(fis, high, low);
+				}
 
 				if (timeRange.getStartOrZero() > 0 && this instanceof RealFile) {
 					fis.skip(MpegUtil.getPositionForTimeInMpeg(((RealFile) this).getFile(), (int) timeRange.getStartOrZero() ));
@@ -1997,15 +2420,18 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 				params.stdin = (IPushOutput) this;
 			}
 
+			// replay and seek from an earlier complete transcode if possible
+			InputStream cached = getCachedTranscode(params, low, high);
+
+			if (cached != null) {
+				return cached;
+			}
+
 			// (re)start transcoding process if necessary
 			if (externalProcess == null || externalProcess.isDestroyed()) {
 				// first playback attempt => start new transcoding process
-				logger.info("Starting transcode/remux of " + getName());
-				logger.debug("Launching transcode with media info: " + getMedia().toString());
-
-				externalProcess = getPlayer().launchTranscode(this, getMedia(), params);
-
-				if (params.waitbeforestart > 0) {
+				// another renderer may be playing the same transcode already
+				if (launchTranscode(params, low) && params.waitbeforestart > 0) {
 					logger.trace("Sleeping for {} milliseconds", params.waitbeforestart);
 					try {
 						Thread.sleep(params.waitbeforestart);
@@ -2016,26 +2442,57 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 				}
 			} else if (params.timeseek > 0 && getMedia() != null && getMedia().isMediaparsed()
 					&& getMedia().getDurationInSeconds() > 0) {
-				// time seek request => stop running transcode process and start new one
+				// time seek request => read from the running transcode process if
+				// its buffer still holds that time, or else start a new one
 				logger.debug("Requesting time seek: " + params.timeseek + " seconds");
-				params.minBufferSize = 1;
-				Runnable r = new Runnable() {
-					@Override
-					public void run() {
-						externalProcess.stopProcess();
-					}
-				};
-				new Thread(r, "External Process Stopper").start();
-				ProcessWrapper newExternalProcess = getPlayer().launchTranscode(this, getMedia(), params);
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					logger.error(null, e);
+				long position = -1;
+
+				// A buffer that blocks multiple connections can't be read
+				// again while the previous reader is attached
+				if (externalProcess instanceof ProcessWrapperImpl && params.timeend == 0 && !params.shift_scr
+						&& !configuration.getTrancodeBlocksMultipleConnections()) {
+					position = ((ProcessWrapperImpl) externalProcess).getPositionForTime(params.timeseek);
 				}
-				if (newExternalProcess == null) {
-					logger.trace("External process instance is null... sounds not good");
+
+				if (position >= 0) {
+					logger.debug("Time seek is still buffered at byte " + position + ", no restart needed");
+					low += position;
+				} else {
+					params.minBufferSize = 1;
+					final ProcessWrapper oldExternalProcess = externalProcess;
+
+					// start the new process before the old one is torn down
+					boolean launched = launchTranscode(params, low);
+
+					// leave the old process running for the other renderers using it
+					if (oldExternalProcess != externalProcess && !TranscodeSessions.getInstance().release(this, oldExternalProcess)) {
+						Runnable r = new Runnable() {
+							@Override
+							public void run() {
+								oldExternalProcess.stopProcess();
+							}
+						};
+						new Thread(r, "External Process Stopper").start();
+					}
+
+					if (launched) {
+						try {
+							if (externalProcess instanceof ProcessWrapperImpl) {
+								// continue as soon as the new process produces output
+								if (!((ProcessWrapperImpl) externalProcess).waitForOutput(SEEK_OUTPUT_TIMEOUT)) {
+									logger.debug("No output after the time seek yet");
+								}
+							} else {
+								Thread.sleep(1000);
+							}
+						} catch (InterruptedException e) {
+							logger.error(null, e);
+						}
+					}
+					if (externalProcess == null) {
+						logger.trace("External process instance is null... sounds not good");
+					}
 				}
-				externalProcess = newExternalProcess;
 			}
 			if (externalProcess == null) {
 				return null;
@@ -2058,7 +2515,8 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 			// not producing output after params.waitbeforestart milliseconds + 5 seconds
 			// this cleans up lingering MEncoder web video transcode processes that hang
 			// instead of exiting
-			if (is == null && externalProcess != null && !externalProcess.isDestroyed()) {
+			if (is == null && externalProcess != null && !externalProcess.isDestroyed()
+					&& !TranscodeSessions.getInstance().release(this, externalProcess)) {
 				Runnable r = new Runnable() {
 					@Override
 					public void run() {
@@ -2072,6 +2530,125 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 		}
 	}
 
+	/**
+	 * Sets {@link #externalProcess} to the transcode of this resource with the
+	 * given parameters. When another renderer is playing the same transcode
+	 * and its buffer still holds the requested position, that process is
+	 * shared. Otherwise a new transcoding process is started and registered
+	 * in {@link TranscodeSessions}, so that other renderers can share it.
+	 *
+	 * @param params The parameters of the transcode.
+	 * @param low The position in bytes that will be read.
+	 * @return True if a new process was started, false if an existing one
+	 * is shared.
+	 * @throws IOException
+	 */
+	private boolean launchTranscode(OutputParams params, long low) throws IOException {
+		TranscodeSessions sessions = TranscodeSessions.getInstance();
+		String key = TranscodeSessions.createKey(this, getPlayer(), params);
+
+		if (key != null) {
+			try {
+				ProcessWrapper sharedProcess = sessions.attach(key, this, low);
+
+				if (sharedProcess != null) {
+					logger.info("Sharing the running transcode/remux of " + getName());
+					externalProcess = sharedProcess;
+					return false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the transcode of " + getName());
+			}
+		}
+
+		logger.info("Starting transcode/remux of " + getName());
+		logger.debug("Launching transcode with media info: " + getMedia().toString());
+		TranscodeCache cache = TranscodeCache.getInstance();
+
+		if (cache != null && isCacheable(params)) {
+			String cacheKey = TranscodeCache.createKey(this, getPlayer(), params);
+
+			if (cacheKey != null) {
+				params.cacheEntry = cache.createEntry(cacheKey);
+			}
+		}
+
+		ProcessWrapper newExternalProcess = null;
+
+		try {
+			newExternalProcess = getPlayer().launchTranscode(this, getMedia(), params);
+		} finally {
+			if (key != null) {
+				// also when launching failed, to wake up the waiting renderers
+				sessions.register(key, this, newExternalProcess);
+			}
+
+			if (newExternalProcess == null && params.cacheEntry != null) {
+				params.cacheEntry.close();
+			}
+		}
+
+		externalProcess = newExternalProcess;
+		return true;
+	}
+
+	/**
+	 * Returns whether the transcode of this resource with the given
+	 * parameters can be stored in the {@link TranscodeCache}: it must cover
+	 * the whole item, and the item must have an end, unlike e.g. live web
+	 * streams.
+	 */
+	private boolean isCacheable(OutputParams params) {
+		return params.timeseek == 0 && params.timeend == 0 && params.stdin == null
+			&& getMedia() != null && getMedia().getDurationInSeconds() > 0;
+	}
+
+	/**
+	 * Opens the requested range of an earlier complete transcode of this
+	 * resource from the {@link TranscodeCache}. A time seek is looked up in
+	 * the cached MPEG stream, which does not need the timestamp shifting
+	 * that a new transcode from that time would.
+	 *
+	 * @param params The parameters of the transcode.
+	 * @param low The first byte to read.
+	 * @param high The last byte to read, or -1.
+	 * @return The stream, or null if the transcode is not cached or the time
+	 * can not be found in it.
+	 */
+	private InputStream getCachedTranscode(OutputParams params, long low, long high) {
+		TranscodeCache cache = TranscodeCache.getInstance();
+
+		if (cache == null || params.timeend > 0 || (params.timeseek > 0 && params.shift_scr)) {
+			return null;
+		}
+
+		String key = TranscodeCache.createKey(this, getPlayer(), params);
+		File file = key != null ? cache.getFile(key) : null;
+
+		if (file == null) {
+			return null;
+		}
+
+		try {
+			long origin = 0;
+
+			if (params.timeseek > 0) {
+				origin = MpegUtil.getPositionForTimeInMpeg(file, (int) params.timeseek);
+
+				if (origin <= 0) {
+					return null;
+				}
+			}
+
+			logger.info("Serving the cached transcode of " + getName());
+			return new FileChannelInputStream(file, origin, low, high);
+		} catch (IOException e) {
+			logger.debug("Cannot read the cached transcode of " + getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
 	/**
 	 * Wrap an {@link InputStream} in a {@link SizeLimitInputStream} that sets a
 	 * limit to the maximum number of bytes to be read from the original input
@@ -2123,6 +2700,8 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 	 * Checks if a thumbnail exists, and, if not, generates one (if possible).
 	 * Called from Request/RequestV2 in response to thumbnail requests e.g. HEAD /get/0$1$0$42$3/thumbnail0000%5BExample.mkv
 	 * Calls DLNAMediaInfo.generateThumbnail, which in turn calls DLNAMediaInfo.parse.
+	 * The database remembers that the thumbnail was looked for, even if
+	 * none was found, so the artwork of an audio file is only read once.
 	 *
 	 * @param inputFile File to check or generate the thumbnail for.
 	 */
@@ -2130,7 +2709,7 @@ public abstract class DLNAResource extends HTTPResource implements Cloneable, Ru
 		if (getMedia() != null && !getMedia().isThumbready() && configuration.isThumbnailGenerationEnabled()) {
 			getMedia().setThumbready(true);
 			getMedia().generateThumbnail(inputFile, getFormat(), getType());
-			if (getMedia().getThumb() != null && configuration.getUseCache() && inputFile.getFile() != null) {
+			if (configuration.getUseCache() && inputFile.getFile() != null) {
 				PMS.get().getDatabase().updateThumbnail(inputFile.getFile().getAbsolutePath(), inputFile.getFile().lastModified(), getType(), getMedia());
 			}
 		}
@@ -24,8 +24,10 @@ import net.pms.configuration.RendererConfiguration;
 import net.pms.dlna.virtual.VirtualFolder;
 import net.pms.formats.Format;
 import net.pms.io.OutputParams;
+import net.pms.io.ProcessSupervisor;
 import net.pms.io.ProcessWrapperImpl;
 import net.pms.util.ProcessUtil;
+import org.jboss.netty.util.Timeout;
 
 import java.io.File;
 import java.util.List;
@@ -78,6 +80,15 @@ public class DVDISOFile extends VirtualFolder {
 		}
 	}
 
+	/**
+	 * Reading the title list uses the same device as the titles, see
+	 * {@link DVDISOTitle#getResolveDevice()}.
+	 */
+	@Override
+	protected Object getResolveDevice() {
+		return file;
+	}
+
 	@Override
 	protected void resolveOnce() {
 		double titles[] = new double[100];
@@ -102,19 +113,9 @@ public class DVDISOFile extends VirtualFolder {
 		params.log = true;
 		final ProcessWrapperImpl pw = new ProcessWrapperImpl(cmd, params, true, false);
 
-		Runnable r = new Runnable() {
-			@Override
-			public void run() {
-				try {
-					Thread.sleep(10000);
-				} catch (InterruptedException e) { }
-				pw.stopProcess();
-			}
-		};
-
-		Thread failsafe = new Thread(r, "DVDISO Failsafe");
-		failsafe.start();
+		Timeout failsafe = ProcessSupervisor.stopAfter(pw, 10000);
 		pw.runInSameThread();
+		failsafe.cancel();
 		List<String> lines = pw.getOtherResults();
 
 		if (lines != null) {
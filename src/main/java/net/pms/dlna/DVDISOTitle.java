@@ -25,9 +25,11 @@ import net.pms.configuration.RendererConfiguration;
 import net.pms.formats.FormatFactory;
 import net.pms.formats.v2.SubtitleType;
 import net.pms.io.OutputParams;
+import net.pms.io.ProcessSupervisor;
 import net.pms.io.ProcessWrapperImpl;
 import net.pms.util.FileUtil;
 import net.pms.util.ProcessUtil;
+import org.jboss.netty.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +55,15 @@ public class DVDISOTitle extends DLNAResource {
 		setLastModified(file.lastModified());
 	}
 
+	/**
+	 * Titles are read from the DVD device itself, some DVD drives die when
+	 * they are accessed by several threads in parallel.
+	 */
+	@Override
+	protected Object getResolveDevice() {
+		return file;
+	}
+
 	@Override
 	protected void resolveOnce() {
 		String cmd[] = new String[]{
@@ -95,20 +106,9 @@ public class DVDISOTitle extends DLNAResource {
 		params.log = true;
 		final ProcessWrapperImpl pw = new ProcessWrapperImpl(cmd, params, true, false);
 
-		Runnable r = new Runnable() {
-			@Override
-			public void run() {
-				try {
-					Thread.sleep(10000);
-				} catch (InterruptedException e) {
-				}
-				pw.stopProcess();
-			}
-		};
-
-		Thread failsafe = new Thread(r, "DVD ISO Title Failsafe");
-		failsafe.start();
+		Timeout failsafe = ProcessSupervisor.stopAfter(pw, 10000);
 		pw.runInSameThread();
+		failsafe.cancel();
 		List<String> lines = pw.getOtherResults();
 
 		String duration = null;
@@ -195,8 +195,9 @@ public class DVDISOTitle extends DLNAResource {
 						int sz = is.available();
 
 						if (sz > 0) {
-							getMedia().setThumb(new byte[sz]);
-							is.read(getMedia().getThumb());
+							byte[] data = new byte[sz];
+							is.read(data);
+							getMedia().setThumb(data);
 						}
 					} finally {
 						if (is != null) {
@@ -351,10 +352,12 @@ public class DVDISOTitle extends DLNAResource {
 			alternativeCheck = true;
 		}
 
+		InputStream thumbnail = null;
+
 		if (cachedThumbnail != null) {
 			return new FileInputStream(cachedThumbnail);
-		} else if (getMedia() != null && getMedia().getThumb() != null) {
-			return getMedia().getThumbnailInputStream();
+		} else if (getMedia() != null && (thumbnail = getMedia().getThumbnailInputStream()) != null) {
+			return thumbnail;
 		} else {
 			return getGenericThumbnailInputStream("images/cdrwblank-256.png");
 		}
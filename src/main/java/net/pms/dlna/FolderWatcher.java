@@ -0,0 +1,441 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import net.pms.PMS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directories for created, changed and deleted files with the
+ * notifications of the operating system, so shared folders don't have to be
+ * compared with the file system each time they are browsed.
+ * <p>
+ * The notifications come from the <code>java.nio.file.WatchService</code> of
+ * Java 7, which is used through reflection since PMS still runs on Java 6.
+ * On Java 6, on platforms where the service polls the file system itself and
+ * when disabled in the configuration, there is no watcher and folders keep
+ * checking their modification time instead.
+ * <p>
+ * Listeners are only weakly referenced: a folder that is no longer part of
+ * the tree stops being watched without having to unregister. Folders that
+ * are removed from the tree unregister, so their directories stop being
+ * watched right away.
+ * <p>
+ * The media information of changed and deleted files is removed from the
+ * database once per change, before the listeners of every renderer's tree
+ * are called.
+ */
+public class FolderWatcher implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(FolderWatcher.class);
+
+	/**
+	 * Time in milliseconds to wait for more notifications before the changes
+	 * are reported, so a file that is being copied is reported once.
+	 */
+	private static final long SETTLE_TIME = 1000;
+
+	/**
+	 * Maximum time in milliseconds that changes are held back while
+	 * notifications keep coming.
+	 */
+	private static final long MAX_DELAY = 10000;
+
+	private static FolderWatcher instance;
+	private static boolean initialized;
+
+	private final Object watchService;
+	private final Map<File, Registration> registrations = new HashMap<File, Registration>();
+	private final Map<Object, Registration> keys = new HashMap<Object, Registration>();
+	private Thread thread;
+
+	// java.nio.file methods, looked up on their public interfaces
+	private static Method toPath;
+	private static Method register;
+	private static Method take;
+	private static Method poll;
+	private static Method close;
+	private static Method pollEvents;
+	private static Method reset;
+	private static Method cancel;
+	private static Method kind;
+	private static Method context;
+	private static Object kinds;
+	private static Object modify;
+	private static Object overflow;
+
+	/**
+	 * Receives the changes in a watched directory.
+	 */
+	public interface Listener {
+		/**
+		 * Called from the watcher thread after files in the directory were
+		 * created, changed or deleted.
+		 *
+		 * @param directory The watched directory.
+		 * @param files The affected files, which may no longer exist, or null
+		 * if the changes are not known, e.g. because too many happened at
+		 * once or the directory can no longer be watched.
+		 */
+		void filesChanged(File directory, Set<File> files);
+	}
+
+	private static class Registration {
+		final File directory;
+		final Object key;
+		final List<WeakReference<Listener>> listeners = new ArrayList<WeakReference<Listener>>();
+
+		Registration(File directory, Object key) {
+			this.directory = directory;
+			this.key = key;
+		}
+
+		/**
+		 * @return The listeners that are still referenced.
+		 */
+		List<Listener> getListeners() {
+			List<Listener> result = new ArrayList<Listener>();
+			Iterator<WeakReference<Listener>> iterator = listeners.iterator();
+
+			while (iterator.hasNext()) {
+				Listener listener = iterator.next().get();
+
+				if (listener == null) {
+					iterator.remove();
+				} else {
+					result.add(listener);
+				}
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * @return The watcher shared by all folders, or null if directories can
+	 * not be watched on this platform or watching is disabled.
+	 */
+	public static synchronized FolderWatcher getInstance() {
+		if (!initialized) {
+			initialized = true;
+
+			if (PMS.getConfiguration().isWatchFolders()) {
+				instance = create();
+			}
+		}
+
+		return instance;
+	}
+
+	private static FolderWatcher create() {
+		try {
+			Class<?> fileSystems = Class.forName("java.nio.file.FileSystems");
+			Class<?> fileSystem = Class.forName("java.nio.file.FileSystem");
+			Class<?> path = Class.forName("java.nio.file.Path");
+			Class<?> watchService = Class.forName("java.nio.file.WatchService");
+			Class<?> watchKey = Class.forName("java.nio.file.WatchKey");
+			Class<?> watchEvent = Class.forName("java.nio.file.WatchEvent");
+			Class<?> watchEventKind = Class.forName("java.nio.file.WatchEvent$Kind");
+			Class<?> standardKinds = Class.forName("java.nio.file.StandardWatchEventKinds");
+
+			kinds = Array.newInstance(watchEventKind, 3);
+			Array.set(kinds, 0, standardKinds.getField("ENTRY_CREATE").get(null));
+			Array.set(kinds, 1, standardKinds.getField("ENTRY_DELETE").get(null));
+			modify = standardKinds.getField("ENTRY_MODIFY").get(null);
+			Array.set(kinds, 2, modify);
+			overflow = standardKinds.getField("OVERFLOW").get(null);
+
+			toPath = File.class.getMethod("toPath");
+			register = path.getMethod("register", watchService, kinds.getClass());
+			take = watchService.getMethod("take");
+			poll = watchService.getMethod("poll", long.class, TimeUnit.class);
+			close = watchService.getMethod("close");
+			pollEvents = watchKey.getMethod("pollEvents");
+			reset = watchKey.getMethod("reset");
+			cancel = watchKey.getMethod("cancel");
+			kind = watchEvent.getMethod("kind");
+			context = watchEvent.getMethod("context");
+
+			Object service = fileSystem.getMethod("newWatchService").invoke(fileSystems.getMethod("getDefault").invoke(null));
+
+			if (service.getClass().getName().endsWith("PollingWatchService")) {
+				// No notifications on this platform, the folders can check
+				// their modification time themselves
+				logger.debug("The file system does not send change notifications, shared folders are checked when browsed");
+				close.invoke(service);
+				return null;
+			}
+
+			return new FolderWatcher(service);
+		} catch (ClassNotFoundException e) {
+			logger.debug("Shared folders can not be watched before Java 7, they are checked when browsed");
+		} catch (Exception e) {
+			logger.debug("Shared folders can not be watched, they are checked when browsed: " + e);
+		}
+
+		return null;
+	}
+
+	private FolderWatcher(Object watchService) {
+		this.watchService = watchService;
+	}
+
+	/**
+	 * Replaces the watcher, e.g. with none for tests that report the
+	 * changes themselves.
+	 */
+	static synchronized void setInstance(FolderWatcher watcher) {
+		initialized = true;
+		instance = watcher;
+	}
+
+	/**
+	 * Watches a directory. A directory that is already watched is not
+	 * registered again, the listener is added to it.
+	 *
+	 * @param directory The directory.
+	 * @param listener The listener, which must be referenced by its owner
+	 * for as long as it wants to receive the changes.
+	 * @return Whether the directory is watched.
+	 */
+	public synchronized boolean register(File directory, Listener listener) {
+		Registration registration = registrations.get(directory);
+
+		if (registration == null) {
+			Object key;
+
+			try {
+				key = register.invoke(toPath.invoke(directory), watchService, kinds);
+			} catch (Exception e) {
+				logger.debug("Can't watch directory " + directory.getAbsolutePath() + ": " + getCause(e));
+				return false;
+			}
+
+			registration = new Registration(directory, key);
+			registrations.put(directory, registration);
+			keys.put(key, registration);
+			logger.trace("Watching directory {}", directory.getAbsolutePath());
+		}
+
+		if (!registration.getListeners().contains(listener)) {
+			registration.listeners.add(new WeakReference<Listener>(listener));
+		}
+
+		if (thread == null) {
+			thread = new Thread(this, "Folder Watcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops reporting the changes in a directory to a listener. The
+	 * directory is no longer watched when it has no listeners left.
+	 *
+	 * @param directory The directory.
+	 * @param listener The listener.
+	 */
+	public synchronized void unregister(File directory, Listener listener) {
+		Registration registration = registrations.get(directory);
+
+		if (registration == null) {
+			return;
+		}
+
+		Iterator<WeakReference<Listener>> iterator = registration.listeners.iterator();
+
+		while (iterator.hasNext()) {
+			Listener registered = iterator.next().get();
+
+			if (registered == null || registered == listener) {
+				iterator.remove();
+			}
+		}
+
+		if (registration.listeners.isEmpty()) {
+			cancel(registration);
+		}
+	}
+
+	/**
+	 * @return Whether a directory is watched.
+	 */
+	synchronized boolean isWatched(File directory) {
+		return registrations.containsKey(directory);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			// The changes by directory, null if they are not known
+			Map<Registration, Set<File>> changes = new LinkedHashMap<Registration, Set<File>>();
+
+			try {
+				collect(take.invoke(watchService), changes);
+				long start = System.currentTimeMillis();
+				Object key;
+
+				while (System.currentTimeMillis() - start < MAX_DELAY && (key = poll.invoke(watchService, SETTLE_TIME, TimeUnit.MILLISECONDS)) != null) {
+					collect(key, changes);
+				}
+			} catch (Exception e) {
+				// Interrupted or closed
+				logger.debug("Stopped watching shared folders: " + getCause(e));
+				return;
+			}
+
+			for (Map.Entry<Registration, Set<File>> entry : changes.entrySet()) {
+				Registration registration = entry.getKey();
+				Set<File> files = entry.getValue();
+
+				if (files != null && files.isEmpty()) {
+					continue;
+				}
+
+				if (files != null) {
+					removeData(files);
+				}
+
+				for (Listener listener : getListeners(registration)) {
+					try {
+						listener.filesChanged(registration.directory, files);
+					} catch (RuntimeException e) {
+						logger.error("Error while updating the changes in " + registration.directory.getAbsolutePath(), e);
+					}
+				}
+			}
+		}
+	}
+
+	private void collect(Object key, Map<Registration, Set<File>> changes) throws Exception {
+		Registration registration;
+
+		synchronized (this) {
+			registration = keys.get(key);
+		}
+
+		List<?> events = (List<?>) pollEvents.invoke(key);
+
+		if (registration == null) {
+			reset.invoke(key);
+			return;
+		}
+
+		Set<File> files = changes.containsKey(registration) ? changes.get(registration) : new LinkedHashSet<File>();
+
+		for (Object event : events) {
+			Object eventKind = kind.invoke(event);
+
+			if (eventKind == overflow) {
+				files = null;
+			} else if (files != null) {
+				File file = new File(registration.directory, context.invoke(event).toString());
+
+				// A directory is modified when its entries change, which is
+				// reported by the watch of that directory. Some platforms,
+				// like Windows, would otherwise replace the whole folder.
+				if (eventKind == modify && file.isDirectory()) {
+					continue;
+				}
+
+				files.add(file);
+			}
+		}
+
+		if (!(Boolean) reset.invoke(key)) {
+			// The directory was deleted or can't be read anymore
+			logger.debug("Can't watch directory {} anymore", registration.directory.getAbsolutePath());
+			unregister(registration);
+			files = null;
+		}
+
+		changes.put(registration, files);
+	}
+
+	/**
+	 * Returns the listeners of a directory and stops watching it when there
+	 * are none left.
+	 */
+	private synchronized List<Listener> getListeners(Registration registration) {
+		List<Listener> listeners = registration.getListeners();
+
+		if (listeners.isEmpty()) {
+			cancel(registration);
+		}
+
+		return listeners;
+	}
+
+	private synchronized void cancel(Registration registration) {
+		try {
+			cancel.invoke(registration.key);
+		} catch (Exception e) {
+			logger.debug("Error while cancelling the watch of " + registration.directory.getAbsolutePath() + ": " + getCause(e));
+		}
+
+		unregister(registration);
+	}
+
+	private synchronized void unregister(Registration registration) {
+		if (registrations.get(registration.directory) == registration) {
+			registrations.remove(registration.directory);
+		}
+
+		keys.remove(registration.key);
+	}
+
+	/**
+	 * Removes the media information of changed and deleted files from the
+	 * database, so changed files are parsed again.
+	 */
+	private static void removeData(Set<File> files) {
+		if (PMS.getConfiguration().getUseCache()) {
+			DLNAMediaDatabase database = PMS.get().getDatabase();
+
+			if (database != null) {
+				for (File file : files) {
+					if (!file.isDirectory()) {
+						database.removeData(file.getAbsolutePath());
+					}
+				}
+			}
+		}
+	}
+
+	private static Throwable getCause(Exception e) {
+		return e instanceof InvocationTargetException ? ((InvocationTargetException) e).getCause() : e;
+	}
+}
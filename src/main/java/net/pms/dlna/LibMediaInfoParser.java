@@ -6,7 +6,6 @@ import static org.apache.commons.lang3.StringUtils.lowerCase;
 import static org.apache.commons.lang3.StringUtils.substringAfterLast;
 
 import java.io.File;
-import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,256 +25,428 @@ public class LibMediaInfoParser {
 
 	/** Pattern to parse the year from a string */
 	private static final Pattern yearPattern = Pattern.compile(YEAR_REGEX);
-	
-	private static MediaInfo MI;
-	private static Base64 base64;
 
-	static {
-		MI = new MediaInfo();
-		if (MI.isValid()) {
-			MI.Option("Complete", "1");
-			MI.Option("Language", "raw");
-		}
-		base64 = new Base64();
-	}
+	/**
+	 * Fields that determine the format of a stream, in the order in which
+	 * {@link #getFormat} expects them.
+	 */
+	private static final String[] FORMAT_FIELDS = {"Format", "Format_Version", "Format_Profile", "CodecID"};
+
+	/**
+	 * MediaInfo handles, one per core, so that files are parsed in parallel.
+	 */
+	private static final MediaInfoPool pool = new MediaInfoPool(Runtime.getRuntime().availableProcessors());
+
+	private static Base64 base64 = new Base64();
 
 	public static boolean isValid() {
-		return MI.isValid();
+		return pool.isValid();
 	}
 
 	public static void close() {
-		try {
-			MI.finalize();
-		} catch (Throwable e) {
-			logger.debug("Caught exception", e);
-		}
+		pool.close();
 	}
 
-	public synchronized static void parse(DLNAMediaInfo media, InputFile inputFile, int type) {
+	public static void parse(DLNAMediaInfo media, InputFile inputFile, int type) {
 		File file = inputFile.getFile();
 
-		if (!media.isMediaparsed() && file != null && MI.isValid() && MI.Open(file.getAbsolutePath()) > 0) {
+		if (file == null || !isValid()) {
+			return;
+		}
+
+		// Parsing the same item twice at the same time would add its tracks twice
+		synchronized (media) {
+			if (media.isMediaparsed()) {
+				return;
+			}
+
+			MediaInfo mi;
+
 			try {
-				String info = MI.Inform();
-				MediaInfo.StreamType streamType = MediaInfo.StreamType.General;
-				DLNAMediaAudio currentAudioTrack = new DLNAMediaAudio();
-				boolean audioPrepped = false;
-				DLNAMediaSubtitle currentSubTrack = new DLNAMediaSubtitle();
-				boolean subPrepped = false;
-
-				if (StringUtils.isNotBlank(info)) {
-					media.setSize(file.length());
-					StringTokenizer st = new StringTokenizer(info, "\n\r");
-					while (st.hasMoreTokens()) {
-						String line = st.nextToken().trim();
-
-						// Define the type of media
-						if (line.equals("Video") || line.startsWith("Video #")) {
-							streamType = MediaInfo.StreamType.Video;
-						} else if (line.equals("Audio") || line.startsWith("Audio #")) {
-							if (audioPrepped) {
-								addAudio(currentAudioTrack, media);
-								currentAudioTrack = new DLNAMediaAudio();
-							}
-							audioPrepped = true;
-							streamType = MediaInfo.StreamType.Audio;
-						} else if (line.equals("Text") || line.startsWith("Text #")) {
-							if (subPrepped) {
-								addSub(currentSubTrack, media);
-								currentSubTrack = new DLNAMediaSubtitle();
-							}
-							subPrepped = true;
-							streamType = MediaInfo.StreamType.Text;
-						} else if (line.equals("Menu") || line.startsWith("Menu #")) {
-							streamType = MediaInfo.StreamType.Menu;
-						} else if (line.equals("Chapters")) {
-							streamType = MediaInfo.StreamType.Chapters;
+				mi = pool.lease();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			if (mi == null) {
+				return;
+			}
+
+			try {
+				if (mi.Open(file.getAbsolutePath()) > 0) {
+					try {
+						parse(mi, media, file);
+						media.finalize(type, inputFile);
+					} catch (Exception e) {
+						logger.error("Error in MediaInfo parsing:", e);
+					} finally {
+						mi.Close();
+
+						if (media.getContainer() == null) {
+							media.setContainer(DLNAMediaLang.UND);
 						}
 
-						int point = line.indexOf(":");
-						if (point > -1) {
-							String key = line.substring(0, point).trim();
-							String ovalue = line.substring(point + 1).trim();
-							String value = ovalue.toLowerCase();
-							if (key.equals("Format") || key.startsWith("Format_Version") || key.startsWith("Format_Profile")) {
-								if (streamType == MediaInfo.StreamType.Text) {
-									// First attempt to detect subtitle track format
-									currentSubTrack.setType(SubtitleType.valueOfLibMediaInfoCodec(value));
-								} else {
-									getFormat(streamType, media, currentAudioTrack, value, file);
-								}
-							} else if (key.equals("Duration/String1") && streamType == MediaInfo.StreamType.General) {
-								media.setDuration(getDuration(value));
-							} else if (key.equals("Format_Settings_RefFrames/String") && streamType == MediaInfo.StreamType.Video) {
-								media.setReferenceFrameCount(getReferenceFrameCount(value));
-							} else if (key.equals("Format_Settings_QPel") && streamType == MediaInfo.StreamType.Video) {
-								media.putExtra(FormatConfiguration.MI_QPEL, value);
-							} else if (key.equals("Format_Settings_GMC") && streamType == MediaInfo.StreamType.Video) {
-								media.putExtra(FormatConfiguration.MI_GMC, value);
-							} else if (key.equals("MuxingMode") && streamType == MediaInfo.StreamType.Video) {
-								media.setMuxingMode(ovalue);
-							} else if (key.equals("CodecID")) {
-								if (streamType == MediaInfo.StreamType.Text) {
-									// Second attempt to detect subtitle track format (CodecID usually is more accurate)
-									currentSubTrack.setType(SubtitleType.valueOfLibMediaInfoCodec(value));
-								} else {
-									getFormat(streamType, media, currentAudioTrack, value, file);
-								}
-							} else if (key.equals("Language/String")) {
-								if (streamType == MediaInfo.StreamType.Audio) {
-									currentAudioTrack.setLang(getLang(value));
-								} else if (streamType == MediaInfo.StreamType.Text) {
-									currentSubTrack.setLang(getLang(value));
-								}
-							} else if (key.equals("Title")) {
-								if (streamType == MediaInfo.StreamType.Audio) {
-									currentAudioTrack.setFlavor(getFlavor(value));
-								} else if (streamType == MediaInfo.StreamType.Text) {
-									currentSubTrack.setFlavor(getFlavor(value));
-								}
-							} else if (key.equals("Width")) {
-								media.setWidth(getPixelValue(value));
-							} else if (key.equals("Encryption") && !media.isEncrypted()) {
-								media.setEncrypted("encrypted".equals(value));
-							} else if (key.equals("Height")) {
-								media.setHeight(getPixelValue(value));
-							} else if (key.equals("DisplayAspectRatio/String")) {
-								media.setAspectRatioContainer(value);
-							} else if (key.equals("DisplayAspectRatio_Original/Stri")) {
-								media.setAspectRatioVideoTrack(value);
-							} else if (key.equals("FrameRate")) {
-								media.setFrameRate(getFPSValue(value));
-							} else if (key.equals("FrameRateMode")) {
-								media.setFrameRateMode(getFrameRateModeValue(value));
-							} else if (key.equals("OverallBitRate")) {
-								if (streamType == MediaInfo.StreamType.General) {
-									media.setBitrate(getBitrate(value));
-								}
-							} else if (key.equals("Channel(s)")) {
-								if (streamType == MediaInfo.StreamType.Audio) {
-									currentAudioTrack.getAudioProperties().setNumberOfChannels(value);
-								}
-                            } else if (key.equals("BitRate")) {
-                                if (streamType == MediaInfo.StreamType.Audio) {
-                                    currentAudioTrack.setBitRate(getBitrate(value));
-                                }
-							} else if (key.equals("SamplingRate")) {
-								if (streamType == MediaInfo.StreamType.Audio) {
-									currentAudioTrack.setSampleFrequency(getSampleFrequency(value));
-								}
-							} else if (key.equals("ID/String")) {
-								// Special check for OGM: MediaInfo reports specific Audio/Subs IDs (0xn) while mencoder does not
-								if (value.contains("(0x") && !FormatConfiguration.OGG.equals(media.getContainer())) {
-									if (streamType == MediaInfo.StreamType.Audio) {
-										currentAudioTrack.setId(getSpecificID(value));
-									} else if (streamType == MediaInfo.StreamType.Text) {
-										currentSubTrack.setId(getSpecificID(value));
-									}
-								} else {
-									if (streamType == MediaInfo.StreamType.Audio) {
-										currentAudioTrack.setId(media.getAudioTracksList().size());
-									} else if (streamType == MediaInfo.StreamType.Text) {
-										// TODO questionable approach. What if audio and sub tracks are mixed?
-										// definitely would not work with ffmpeg
-										currentSubTrack.setId(media.getSubtitleTracksList().size());
-									}
-								}
-							} else if (key.equals("Cover_Data") && streamType == MediaInfo.StreamType.General) {
-								media.setThumb(getCover(ovalue));
-							} else if (key.equals("Track") && streamType == MediaInfo.StreamType.General) {
-								currentAudioTrack.setSongname(ovalue);
-							} else if (key.equals("Album") && streamType == MediaInfo.StreamType.General) {
-								currentAudioTrack.setAlbum(ovalue);
-							} else if (key.equals("Performer") && streamType == MediaInfo.StreamType.General) {
-								currentAudioTrack.setArtist(ovalue);
-							} else if (key.equals("Genre") && streamType == MediaInfo.StreamType.General) {
-								currentAudioTrack.setGenre(ovalue);
-							} else if (key.equals("Recorded_Date") && streamType == MediaInfo.StreamType.General) {
-								// Try to parse the year from the stored date
-								Matcher matcher = yearPattern.matcher(value);
-
-								if (matcher.matches()) {
-									try {
-										currentAudioTrack.setYear(Integer.parseInt(matcher.group(1)));
-									} catch (NumberFormatException nfe) {
-										logger.debug("Could not parse year from recorded date \"" + value + "\"");
-									}
-								}
-							} else if (key.equals("Track/Position") && streamType == MediaInfo.StreamType.General) {
-								try {
-									currentAudioTrack.setTrack(Integer.parseInt(value));
-								} catch (NumberFormatException nfe) {
-									logger.debug("Could not parse track \"" + value + "\"");
-								}
-							} else if (key.equals("BitDepth") && streamType == MediaInfo.StreamType.Audio) {
-								try {
-									currentAudioTrack.setBitsperSample(Integer.parseInt(value));
-								} catch (NumberFormatException nfe) {
-									logger.debug("Could not parse bits per sample \"" + value + "\"");
-								}
-							} else if (key.equals("Video_Delay") && streamType == MediaInfo.StreamType.Audio) {
-								try {
-									currentAudioTrack.getAudioProperties().setAudioDelay(value);
-								} catch (NumberFormatException nfe) {
-									logger.debug("Could not parse delay \"" + value + "\"");
-								}
-							}
+						if (media.getCodecV() == null) {
+							media.setCodecV(DLNAMediaLang.UND);
 						}
+
+						media.setMediaparsed(true);
 					}
 				}
+			} finally {
+				pool.release(mi);
+			}
+		}
+	}
 
-				if (audioPrepped) {
-					addAudio(currentAudioTrack, media);
-				}
+	/**
+	 * Reads the fields of an opened file, asking MediaInfo for each of them
+	 * instead of parsing its complete report.
+	 */
+	private static void parse(MediaInfo mi, DLNAMediaInfo media, File file) {
+		media.setSize(file.length());
 
-				if (subPrepped) {
-					addSub(currentSubTrack, media);
-				}
+		// The tags of the file end up in its first audio track
+		DLNAMediaAudio firstAudioTrack = new DLNAMediaAudio();
 
-				/*
-				 Native M4A/AAC streaming bug: http://www.ps3mediaserver.org/forum/viewtopic.php?f=6&t=16691
-				 Some M4A files have generic codec id "mp42" instead of "M4A". For example:
-
-				 General
-				 Format                                   : MPEG-4
-				 Format profile                           : Apple audio with iTunes info
-				 Codec ID                                 : M4A
-
-				 vs
-
-				 General
-				 Format                                   : MPEG-4
-				 Format profile                           : Base Media / Version 2
-				 Codec ID                                 : mp42
-
-				 As workaround set container type to AAC for MP4 files with single AAC audio track and no video.
-				*/
-				if (FormatConfiguration.MP4.equals(media.getContainer())
-						&& isBlank(media.getCodecV())
-						&& media.getAudioTracksList() != null
-						&& media.getAudioTracksList().size() == 1
-						&& FormatConfiguration.AAC.equals(media.getAudioTracksList().get(0).getCodecA())) {
-					media.setContainer(FormatConfiguration.AAC);
-				}
+		// General
+		parseFormat(mi, MediaInfo.StreamType.General, 0, media, firstAudioTrack, file);
+		parseEncryption(mi, MediaInfo.StreamType.General, 0, media);
+		String value = get(mi, MediaInfo.StreamType.General, 0, "Duration");
 
-				media.finalize(type, inputFile);
-			} catch (Exception e) {
-				logger.error("Error in MediaInfo parsing:", e);
-			} finally {
-				MI.Close();
-				if (media.getContainer() == null) {
-					media.setContainer(DLNAMediaLang.UND);
-				}
+		if (isNotBlank(value)) {
+			try {
+				media.setDuration(Double.parseDouble(value) / 1000);
+			} catch (NumberFormatException nfe) {
+				logger.debug("Could not parse duration \"" + value + "\"");
+			}
+		}
+
+		value = get(mi, MediaInfo.StreamType.General, 0, "OverallBitRate");
+
+		if (isNotBlank(value)) {
+			media.setBitrate(getBitrate(value));
+		}
+
+		value = get(mi, MediaInfo.StreamType.General, 0, "Cover_Data");
 
-				if (media.getCodecV() == null) {
-					media.setCodecV(DLNAMediaLang.UND);
+		if (isNotBlank(value)) {
+			media.setThumb(getCover(value));
+		}
+
+		parseTags(mi, firstAudioTrack);
+
+		// Video
+		int videoCount = mi.Count_Get(MediaInfo.StreamType.Video);
+
+		for (int i = 0; i < videoCount; i++) {
+			parseFormat(mi, MediaInfo.StreamType.Video, i, media, firstAudioTrack, file);
+			parseEncryption(mi, MediaInfo.StreamType.Video, i, media);
+		}
+
+		if (videoCount > 0) {
+			parseVideo(mi, MediaInfo.StreamType.Video, media);
+		} else if (mi.Count_Get(MediaInfo.StreamType.Image) > 0) {
+			parseVideo(mi, MediaInfo.StreamType.Image, media);
+		}
+
+		// Audio
+		int audioCount = mi.Count_Get(MediaInfo.StreamType.Audio);
+
+		for (int i = 0; i < audioCount; i++) {
+			DLNAMediaAudio audio = i == 0 ? firstAudioTrack : new DLNAMediaAudio();
+			parseFormat(mi, MediaInfo.StreamType.Audio, i, media, audio, file);
+			parseEncryption(mi, MediaInfo.StreamType.Audio, i, media);
+			parseAudio(mi, i, media, audio);
+			addAudio(audio, media);
+		}
+
+		// Subtitles
+		int textCount = mi.Count_Get(MediaInfo.StreamType.Text);
+
+		for (int i = 0; i < textCount; i++) {
+			DLNAMediaSubtitle subtitle = new DLNAMediaSubtitle();
+			parseSubtitle(mi, i, media, subtitle);
+			addSub(subtitle, media);
+		}
+
+		/*
+		 Native M4A/AAC streaming bug: http://www.ps3mediaserver.org/forum/viewtopic.php?f=6&t=16691
+		 Some M4A files have generic codec id "mp42" instead of "M4A". For example:
+
+		 General
+		 Format                                   : MPEG-4
+		 Format profile                           : Apple audio with iTunes info
+		 Codec ID                                 : M4A
+
+		 vs
+
+		 General
+		 Format                                   : MPEG-4
+		 Format profile                           : Base Media / Version 2
+		 Codec ID                                 : mp42
+
+		 As workaround set container type to AAC for MP4 files with single AAC audio track and no video.
+		*/
+		if (FormatConfiguration.MP4.equals(media.getContainer())
+				&& isBlank(media.getCodecV())
+				&& media.getAudioTracksList() != null
+				&& media.getAudioTracksList().size() == 1
+				&& FormatConfiguration.AAC.equals(media.getAudioTracksList().get(0).getCodecA())) {
+			media.setContainer(FormatConfiguration.AAC);
+		}
+	}
+
+	private static void parseFormat(MediaInfo mi, MediaInfo.StreamType streamType, int streamNumber, DLNAMediaInfo media, DLNAMediaAudio audio, File file) {
+		for (String field : FORMAT_FIELDS) {
+			String value = get(mi, streamType, streamNumber, field);
+
+			if (isNotBlank(value)) {
+				getFormat(streamType, media, audio, value.toLowerCase(), file);
+			}
+		}
+	}
+
+	private static void parseEncryption(MediaInfo mi, MediaInfo.StreamType streamType, int streamNumber, DLNAMediaInfo media) {
+		if (!media.isEncrypted() && "encrypted".equalsIgnoreCase(get(mi, streamType, streamNumber, "Encryption"))) {
+			media.setEncrypted(true);
+		}
+	}
+
+	/**
+	 * Reads the tags of the file, which are stored with the general stream.
+	 */
+	private static void parseTags(MediaInfo mi, DLNAMediaAudio audio) {
+		String value = get(mi, MediaInfo.StreamType.General, 0, "Track");
+
+		if (isNotBlank(value)) {
+			audio.setSongname(value);
+		}
+
+		value = get(mi, MediaInfo.StreamType.General, 0, "Album");
+
+		if (isNotBlank(value)) {
+			audio.setAlbum(value);
+		}
+
+		value = get(mi, MediaInfo.StreamType.General, 0, "Performer");
+
+		if (isNotBlank(value)) {
+			audio.setArtist(value);
+		}
+
+		value = get(mi, MediaInfo.StreamType.General, 0, "Genre");
+
+		if (isNotBlank(value)) {
+			audio.setGenre(value);
+		}
+
+		value = get(mi, MediaInfo.StreamType.General, 0, "Recorded_Date");
+
+		if (isNotBlank(value)) {
+			// Try to parse the year from the stored date
+			Matcher matcher = yearPattern.matcher(value);
+
+			if (matcher.matches()) {
+				try {
+					audio.setYear(Integer.parseInt(matcher.group(1)));
+				} catch (NumberFormatException nfe) {
+					logger.debug("Could not parse year from recorded date \"" + value + "\"");
 				}
+			}
+		}
+
+		value = get(mi, MediaInfo.StreamType.General, 0, "Track/Position");
+
+		if (isNotBlank(value)) {
+			try {
+				audio.setTrack(Integer.parseInt(value));
+			} catch (NumberFormatException nfe) {
+				logger.debug("Could not parse track \"" + value + "\"");
+			}
+		}
+	}
 
-				media.setMediaparsed(true);
+	/**
+	 * Reads the picture properties of the first video or image stream.
+	 */
+	private static void parseVideo(MediaInfo mi, MediaInfo.StreamType streamType, DLNAMediaInfo media) {
+		String value = get(mi, streamType, 0, "Width");
+
+		if (isNotBlank(value)) {
+			media.setWidth(getPixelValue(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, 0, "Height");
+
+		if (isNotBlank(value)) {
+			media.setHeight(getPixelValue(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, 0, "DisplayAspectRatio/String");
+
+		if (isNotBlank(value)) {
+			media.setAspectRatioContainer(value.toLowerCase());
+		}
+
+		value = get(mi, streamType, 0, "DisplayAspectRatio_Original/String");
+
+		if (isNotBlank(value)) {
+			media.setAspectRatioVideoTrack(value.toLowerCase());
+		}
+
+		if (streamType != MediaInfo.StreamType.Video) {
+			return;
+		}
+
+		value = get(mi, streamType, 0, "FrameRate");
+
+		if (isNotBlank(value)) {
+			media.setFrameRate(getFPSValue(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, 0, "FrameRateMode");
+
+		if (isNotBlank(value)) {
+			media.setFrameRateMode(getFrameRateModeValue(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, 0, "Format_Settings_RefFrames/String");
+
+		if (isNotBlank(value)) {
+			media.setReferenceFrameCount(getReferenceFrameCount(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, 0, "Format_Settings_QPel");
+
+		if (isNotBlank(value)) {
+			media.putExtra(FormatConfiguration.MI_QPEL, value.toLowerCase());
+		}
+
+		value = get(mi, streamType, 0, "Format_Settings_GMC");
+
+		if (isNotBlank(value)) {
+			media.putExtra(FormatConfiguration.MI_GMC, value.toLowerCase());
+		}
+
+		value = get(mi, streamType, 0, "MuxingMode");
+
+		if (isNotBlank(value)) {
+			media.setMuxingMode(value);
+		}
+	}
+
+	private static void parseAudio(MediaInfo mi, int streamNumber, DLNAMediaInfo media, DLNAMediaAudio audio) {
+		MediaInfo.StreamType streamType = MediaInfo.StreamType.Audio;
+		String value = get(mi, streamType, streamNumber, "Language/String");
+
+		if (isNotBlank(value)) {
+			audio.setLang(getLang(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, streamNumber, "Title");
+
+		if (isNotBlank(value)) {
+			audio.setFlavor(getFlavor(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, streamNumber, "Channel(s)");
+
+		if (isNotBlank(value)) {
+			audio.getAudioProperties().setNumberOfChannels(value.toLowerCase());
+		}
+
+		value = get(mi, streamType, streamNumber, "BitRate");
+
+		if (isNotBlank(value)) {
+			audio.setBitRate(getBitrate(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, streamNumber, "SamplingRate");
+
+		if (isNotBlank(value)) {
+			audio.setSampleFrequency(getSampleFrequency(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, streamNumber, "ID/String");
+
+		if (isNotBlank(value)) {
+			// Special check for OGM: MediaInfo reports specific Audio/Subs IDs (0xn) while mencoder does not
+			if (value.contains("(0x") && !FormatConfiguration.OGG.equals(media.getContainer())) {
+				audio.setId(getSpecificID(value.toLowerCase()));
+			} else {
+				audio.setId(media.getAudioTracksList().size());
+			}
+		}
+
+		value = get(mi, streamType, streamNumber, "BitDepth");
+
+		if (isNotBlank(value)) {
+			try {
+				audio.setBitsperSample(Integer.parseInt(value));
+			} catch (NumberFormatException nfe) {
+				logger.debug("Could not parse bits per sample \"" + value + "\"");
+			}
+		}
+
+		value = get(mi, streamType, streamNumber, "Video_Delay");
+
+		if (isNotBlank(value)) {
+			try {
+				audio.getAudioProperties().setAudioDelay(value.toLowerCase());
+			} catch (NumberFormatException nfe) {
+				logger.debug("Could not parse delay \"" + value + "\"");
+			}
+		}
+	}
+
+	private static void parseSubtitle(MediaInfo mi, int streamNumber, DLNAMediaInfo media, DLNAMediaSubtitle subtitle) {
+		MediaInfo.StreamType streamType = MediaInfo.StreamType.Text;
+
+		// The codec ID comes last, as it usually is more accurate than the format
+		for (String field : FORMAT_FIELDS) {
+			String value = get(mi, streamType, streamNumber, field);
+
+			if (isNotBlank(value)) {
+				subtitle.setType(SubtitleType.valueOfLibMediaInfoCodec(value.toLowerCase()));
+			}
+		}
+
+		String value = get(mi, streamType, streamNumber, "Language/String");
+
+		if (isNotBlank(value)) {
+			subtitle.setLang(getLang(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, streamNumber, "Title");
+
+		if (isNotBlank(value)) {
+			subtitle.setFlavor(getFlavor(value.toLowerCase()));
+		}
+
+		value = get(mi, streamType, streamNumber, "ID/String");
+
+		if (isNotBlank(value)) {
+			if (value.contains("(0x") && !FormatConfiguration.OGG.equals(media.getContainer())) {
+				subtitle.setId(getSpecificID(value.toLowerCase()));
+			} else {
+				// TODO questionable approach. What if audio and sub tracks are mixed?
+				// definitely would not work with ffmpeg
+				subtitle.setId(media.getSubtitleTracksList().size());
 			}
 		}
 	}
 
+	/**
+	 * @return The trimmed value of a field, or an empty string if the stream
+	 * does not have it.
+	 */
+	private static String get(MediaInfo mi, MediaInfo.StreamType streamType, int streamNumber, String parameter) {
+		String value = mi.Get(streamType, streamNumber, parameter);
+		return value != null ? value.trim() : "";
+	}
+
 	public static void addAudio(DLNAMediaAudio currentAudioTrack, DLNAMediaInfo media) {
 		if (currentAudioTrack.getLang() == null) {
 			currentAudioTrack.setLang(DLNAMediaLang.UND);
@@ -548,31 +719,6 @@ public class LibMediaInfoParser {
 		return value;
 	}
 
-	private static double getDuration(String value) {
-		int h = 0, m = 0, s = 0;
-		StringTokenizer st = new StringTokenizer(value, " ");
-		while (st.hasMoreTokens()) {
-			String token = st.nextToken();
-			int hl = token.indexOf("h");
-			if (hl > -1) {
-				h = Integer.parseInt(token.substring(0, hl).trim());
-			}
-			int mnl = token.indexOf("mn");
-			if (mnl > -1) {
-				m = Integer.parseInt(token.substring(0, mnl).trim());
-			}
-			int msl = token.indexOf("ms");
-			if (msl == -1) {
-				// Only check if ms was not found
-				int sl = token.indexOf("s");
-				if (sl > -1) {
-					s = Integer.parseInt(token.substring(0, sl).trim());
-				}
-			}
-		}
-		return (h * 3600) + (m * 60) + s;
-	}
-
 	public static byte[] getCover(String based64Value) {
 		try {
 			if (base64 != null) {
@@ -0,0 +1,426 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import net.pms.Messages;
+import net.pms.newgui.IFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the files that were deleted or changed since they were stored from
+ * the database.
+ * <p>
+ * The files are read from the database in batches, by ID. The files of a
+ * batch are grouped by shared folder (or, for files outside of the shared
+ * folders, by top-level directory), so that every disk or network share is
+ * checked by its own threads and a slow one does not hold up the others.
+ * The stale files of a batch are deleted with a few statements in one
+ * transaction. After each batch, the last ID is stored as a checkpoint, so
+ * an interrupted cleanup continues from there.
+ * <p>
+ * An incremental cleanup only checks the files in directories that changed
+ * since the last cleanup. It still checks every file once a week, to remove
+ * the files that were changed in place.
+ */
+public class LibraryCleaner implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(LibraryCleaner.class);
+
+	/**
+	 * Number of files read from the database and checked at a time.
+	 */
+	static final int BATCH_SIZE = 1000;
+
+	/**
+	 * Milliseconds between full cleanups when cleanups are incremental.
+	 */
+	private static final long FULL_CLEANUP_INTERVAL = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * Milliseconds between progress reports in the log.
+	 */
+	private static final long REPORT_INTERVAL = 30000;
+
+	// Keys in the METADATA table
+	static final String CHECKPOINT = "CLEANUP_CHECKPOINT";
+	static final String LAST_CLEANUP = "CLEANUP_TIME";
+	static final String LAST_FULL_CLEANUP = "FULL_CLEANUP_TIME";
+
+	private final DLNAMediaDatabase database;
+	private final List<File> folders;
+	private final int threads;
+	private final boolean incremental;
+	private final IFrame frame;
+	private volatile boolean running = true;
+
+	/**
+	 * The modification time of the directories after which their files
+	 * are checked, 0 for a full cleanup.
+	 */
+	private long changedAfter;
+
+	/**
+	 * Whether each directory that was looked at changed, by path.
+	 */
+	private final Map<String, Boolean> changedDirectories = new ConcurrentHashMap<String, Boolean>();
+
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong unchanged = new AtomicLong();
+	private final AtomicLong removed = new AtomicLong();
+	private volatile long total;
+	private volatile long startTime;
+	private volatile long endTime;
+
+	/**
+	 * A file as stored in the database.
+	 */
+	static class StoredFile {
+		final int id;
+		final String name;
+		final long modified;
+
+		StoredFile(int id, String name, long modified) {
+			this.id = id;
+			this.name = name;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * Creates a cleaner.
+	 *
+	 * @param database The database to clean up.
+	 * @param folders The shared folders, by which the files are grouped.
+	 * @param threads The number of files checked at the same time per
+	 * shared folder.
+	 * @param incremental Whether to only check the files in directories
+	 * that changed since the last cleanup.
+	 * @param frame The frame to show the progress in, or null.
+	 */
+	public LibraryCleaner(DLNAMediaDatabase database, List<File> folders, int threads, boolean incremental, IFrame frame) {
+		this.database = database;
+		this.folders = folders;
+		this.threads = threads;
+		this.incremental = incremental;
+		this.frame = frame;
+	}
+
+	/**
+	 * Stops the cleanup after the current batch. The next cleanup continues
+	 * from there.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Runs the cleanup and returns when it is finished or stopped.
+	 */
+	@Override
+	public void run() {
+		startTime = System.currentTimeMillis();
+		int lastId = 0;
+		long passStart = startTime;
+		String checkpoint = database.getMetadata(CHECKPOINT);
+
+		if (checkpoint != null) {
+			// "<last ID>,<start of the interrupted cleanup>"
+			String[] values = checkpoint.split(",");
+
+			try {
+				lastId = Integer.parseInt(values[0]);
+				passStart = Long.parseLong(values[1]);
+				logger.info("Resuming the database cleanup after file {}", lastId);
+			} catch (RuntimeException e) {
+				logger.debug("Invalid cleanup checkpoint: " + checkpoint);
+			}
+		}
+
+		long lastCleanup = getTime(LAST_CLEANUP);
+		boolean full = !incremental || lastCleanup == 0 || passStart - getTime(LAST_FULL_CLEANUP) >= FULL_CLEANUP_INTERVAL;
+		changedAfter = full ? 0 : lastCleanup;
+		total = database.getFileCountAfter(lastId);
+		Map<String, ThreadPoolExecutor> pools = new LinkedHashMap<String, ThreadPoolExecutor>();
+		long lastReport = startTime;
+		int oldpercent = -1;
+
+		try {
+			while (running) {
+				List<StoredFile> batch = database.getFilesAfter(lastId, BATCH_SIZE);
+
+				if (batch.isEmpty()) {
+					break;
+				}
+
+				List<StoredFile> stale = check(batch, pools);
+
+				if (!database.deleteFiles(stale)) {
+					// Try again next time
+					running = false;
+					break;
+				}
+
+				removed.addAndGet(stale.size());
+				lastId = batch.get(batch.size() - 1).id;
+				database.setMetadata(CHECKPOINT, lastId + "," + passStart);
+
+				int newpercent = getProgress();
+
+				if (frame != null && newpercent > oldpercent) {
+					frame.setStatusLine(Messages.getString("DLNAMediaDatabase.2") + " " + newpercent + "%");
+					oldpercent = newpercent;
+				}
+
+				if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL) {
+					logger.info("Database cleanup: {}", this);
+					lastReport = System.currentTimeMillis();
+				}
+			}
+		} catch (InterruptedException e) {
+			running = false;
+			Thread.currentThread().interrupt();
+		} finally {
+			for (ThreadPoolExecutor pool : pools.values()) {
+				pool.shutdown();
+			}
+
+			endTime = System.currentTimeMillis();
+		}
+
+		if (running) {
+			database.setMetadata(CHECKPOINT, null);
+			database.setMetadata(LAST_CLEANUP, Long.toString(passStart));
+
+			if (full) {
+				database.setMetadata(LAST_FULL_CLEANUP, Long.toString(passStart));
+			}
+		}
+
+		logger.info("Database cleanup {}: {}", running ? "finished" : "stopped", this);
+	}
+
+	/**
+	 * Checks a batch of files, in parallel per shared folder.
+	 *
+	 * @return The files that were deleted or changed.
+	 */
+	private List<StoredFile> check(List<StoredFile> batch, Map<String, ThreadPoolExecutor> pools) throws InterruptedException {
+		Map<String, List<StoredFile>> volumes = new LinkedHashMap<String, List<StoredFile>>();
+
+		for (StoredFile file : batch) {
+			String volume = getVolume(file.name);
+			List<StoredFile> files = volumes.get(volume);
+
+			if (files == null) {
+				files = new ArrayList<StoredFile>();
+				volumes.put(volume, files);
+			}
+
+			files.add(file);
+		}
+
+		final List<StoredFile> stale = Collections.synchronizedList(new ArrayList<StoredFile>());
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (Map.Entry<String, List<StoredFile>> entry : volumes.entrySet()) {
+			ThreadPoolExecutor pool = pools.get(entry.getKey());
+
+			if (pool == null) {
+				pool = LibraryScanner.createPool("Library Cleaner " + pools.size(), threads);
+				pools.put(entry.getKey(), pool);
+			}
+
+			// One task per thread
+			List<StoredFile> files = entry.getValue();
+			int size = (files.size() + threads - 1) / threads;
+
+			for (int start = 0; start < files.size(); start += size) {
+				final List<StoredFile> part = files.subList(start, Math.min(files.size(), start + size));
+
+				futures.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (StoredFile file : part) {
+							if (isStale(file)) {
+								stale.add(file);
+							}
+						}
+					}
+				}));
+			}
+		}
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				logger.error("Error while checking files for the database cleanup", e.getCause());
+			}
+		}
+
+		return stale;
+	}
+
+	private boolean isStale(StoredFile stored) {
+		File file = new File(stored.name);
+
+		if (changedAfter > 0 && !isChanged(file.getParentFile())) {
+			unchanged.incrementAndGet();
+			return false;
+		}
+
+		checked.incrementAndGet();
+
+		// lastModified() is 0 for files that don't exist, one call does both
+		return file.lastModified() != stored.modified;
+	}
+
+	private boolean isChanged(File directory) {
+		if (directory == null) {
+			return true;
+		}
+
+		String path = directory.getPath();
+		Boolean changed = changedDirectories.get(path);
+
+		if (changed == null) {
+			long modified = directory.lastModified();
+
+			// A directory that is gone changed as well
+			changed = modified == 0 || modified >= changedAfter;
+			changedDirectories.put(path, changed);
+		}
+
+		return changed;
+	}
+
+	/**
+	 * @return The shared folder of a file, or else its top-level directory.
+	 */
+	String getVolume(String filename) {
+		String volume = null;
+
+		for (File folder : folders) {
+			String path = folder.getAbsolutePath();
+
+			if (isInside(filename, path) && (volume == null || path.length() > volume.length())) {
+				volume = path;
+			}
+		}
+
+		if (volume == null) {
+			File file = new File(filename);
+
+			while (file.getParentFile() != null && file.getParentFile().getParentFile() != null) {
+				file = file.getParentFile();
+			}
+
+			volume = file.getPath();
+		}
+
+		return volume;
+	}
+
+	/**
+	 * @return Whether a file is a folder or inside of it, so that e.g.
+	 * "/media/music2/song.mp3" is not taken to be inside "/media/music".
+	 */
+	private static boolean isInside(String filename, String folder) {
+		if (folder.endsWith(File.separator)) {
+			// A root directory
+			return filename.startsWith(folder);
+		}
+
+		return filename.equals(folder) || filename.startsWith(folder + File.separator);
+	}
+
+	private long getTime(String key) {
+		String value = database.getMetadata(key);
+
+		try {
+			return value != null ? Long.parseLong(value) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The number of files whose file was checked.
+	 */
+	public long getCheckedCount() {
+		return checked.get();
+	}
+
+	/**
+	 * @return The number of files that were not checked because their
+	 * directory did not change.
+	 */
+	public long getUnchangedCount() {
+		return unchanged.get();
+	}
+
+	/**
+	 * @return The number of files that were removed from the database.
+	 */
+	public long getRemovedCount() {
+		return removed.get();
+	}
+
+	/**
+	 * @return The percentage of the files that were handled.
+	 */
+	public int getProgress() {
+		long handled = checked.get() + unchanged.get();
+		return total > 0 ? (int) Math.min(100, handled * 100 / total) : 100;
+	}
+
+	/**
+	 * @return The number of database rows handled per second since the
+	 * cleanup started.
+	 */
+	public double getThroughput() {
+		long end = endTime == 0 ? System.currentTimeMillis() : endTime;
+		long elapsed = Math.max(1, end - startTime);
+		return (checked.get() + unchanged.get()) * 1000.0 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%s, %d%%, %d checked, %d in unchanged directories, %d removed, %.1f rows/s",
+			changedAfter > 0 ? "incremental" : "full",
+			getProgress(),
+			checked.get(),
+			unchanged.get(),
+			removed.get(),
+			getThroughput()
+		);
+	}
+}
@@ -0,0 +1,572 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.pms.Messages;
+import net.pms.configuration.RendererConfiguration;
+import net.pms.dlna.virtual.VirtualFolder;
+import net.pms.formats.FormatFactory;
+import net.pms.newgui.IFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans the shared folders and stores the media information of the files in
+ * the database.
+ * <p>
+ * The scan is a pipeline of three stages: a thread per shared folder walks
+ * its directories, a shared pool detects the format of the files and skips
+ * the ones the database already knows, and a pool per shared folder parses
+ * the remaining files. Every shared folder has its own walker and parsers,
+ * so a slow disk does not hold up the others. The queues between the stages
+ * are bounded; when a stage falls behind, the stage before it does the work
+ * itself instead of queueing more.
+ * <p>
+ * Directories are walked in a fixed order. The last directory up to which
+ * every file has been handled is stored in the database as a checkpoint, so
+ * an interrupted scan continues from there.
+ * <p>
+ * Like the folders that are browsed, directories are only walked when their
+ * resource allows it (see {@link DLNAResource#allowScan()}). Archives, DVD
+ * images, playlists and cue sheets are not looked into, only the media
+ * information of real files is stored in the database.
+ */
+public class LibraryScanner implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(LibraryScanner.class);
+
+	/**
+	 * Number of directories or files that can wait for each stage.
+	 */
+	private static final int QUEUE_SIZE = 100;
+
+	/**
+	 * Milliseconds between checkpoints.
+	 */
+	private static final long CHECKPOINT_INTERVAL = 10000;
+
+	/**
+	 * Milliseconds between progress reports in the log.
+	 */
+	private static final long REPORT_INTERVAL = 30000;
+
+	/**
+	 * Milliseconds between updates of the status line.
+	 */
+	private static final long STATUS_INTERVAL = 1000;
+
+	private static final Comparator<File> NAME_ORDER = new Comparator<File>() {
+		@Override
+		public int compare(File f1, File f2) {
+			return f1.getName().compareTo(f2.getName());
+		}
+	};
+
+	private final List<File> folders;
+	private final int threads;
+	private final DLNAMediaDatabase database;
+	private final IFrame frame;
+	private final DLNAResource parent;
+	private volatile boolean running = true;
+	private volatile String currentDirectory;
+	private ThreadPoolExecutor detectors;
+
+	private final AtomicLong directories = new AtomicLong();
+	private final AtomicLong files = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong parsed = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile long startTime;
+	private volatile long endTime;
+
+	/**
+	 * Creates a scanner.
+	 *
+	 * @param folders The shared folders.
+	 * @param threads The number of files parsed at the same time per
+	 * shared folder.
+	 * @param database The database to store the media information in.
+	 * @param frame The frame to show the progress in, or null.
+	 */
+	public LibraryScanner(List<File> folders, int threads, DLNAMediaDatabase database, IFrame frame) {
+		this.folders = folders;
+		this.threads = threads;
+		this.database = database;
+		this.frame = frame;
+
+		// Files are validated the way they would be when they are added
+		// to a folder that is browsed by the default renderer
+		parent = new VirtualFolder("scan", null);
+		parent.setDefaultRenderer(RendererConfiguration.getDefaultConf());
+	}
+
+	/**
+	 * Stops the scan. The scan ends as soon as the files that are being
+	 * parsed are done.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * @return True while the scan runs and has not been stopped.
+	 */
+	public boolean isRunning() {
+		return running && endTime == 0;
+	}
+
+	/**
+	 * @return True if the scan was stopped before it finished.
+	 */
+	public boolean isStopped() {
+		return !running;
+	}
+
+	/**
+	 * Runs the scan and returns when it is finished or stopped.
+	 */
+	@Override
+	public void run() {
+		startTime = System.currentTimeMillis();
+		detectors = createPool("Library Detector", Runtime.getRuntime().availableProcessors());
+		List<Thread> walkers = new ArrayList<Thread>();
+
+		for (File folder : folders) {
+			Thread walker = new Thread(new Volume(folder), "Library Walker " + walkers.size());
+			walker.start();
+			walkers.add(walker);
+		}
+
+		long lastReport = startTime;
+
+		try {
+			for (Thread walker : walkers) {
+				while (walker.isAlive()) {
+					walker.join(STATUS_INTERVAL);
+					String directory = currentDirectory;
+
+					if (frame != null && directory != null && running) {
+						frame.setStatusLine(Messages.getString("DLNAMediaDatabase.4") + " " + directory);
+					}
+
+					if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL) {
+						logger.info("Library scan: {}", this);
+						lastReport = System.currentTimeMillis();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			running = false;
+			Thread.currentThread().interrupt();
+		} finally {
+			detectors.shutdown();
+			endTime = System.currentTimeMillis();
+		}
+
+		logger.info("Library scan {}: {}", running ? "finished" : "stopped", this);
+	}
+
+	/**
+	 * @return The number of directories that have been walked.
+	 */
+	public long getDirectoryCount() {
+		return directories.get();
+	}
+
+	/**
+	 * @return The number of files that have been found.
+	 */
+	public long getFileCount() {
+		return files.get();
+	}
+
+	/**
+	 * @return The number of files that were skipped because the database
+	 * is up to date.
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return The number of files that have been parsed.
+	 */
+	public long getParsedCount() {
+		return parsed.get();
+	}
+
+	/**
+	 * @return The number of files that could not be parsed, or failed
+	 * with an error.
+	 */
+	public long getFailedCount() {
+		return invalid.get() + errors.get();
+	}
+
+	/**
+	 * @return The number of files handled per second since the scan started.
+	 */
+	public double getThroughput() {
+		long end = endTime == 0 ? System.currentTimeMillis() : endTime;
+		long elapsed = Math.max(1, end - startTime);
+		return (skipped.get() + parsed.get() + getFailedCount()) * 1000.0 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+			"%d directories, %d files, %d up to date, %d parsed, %d invalid, %d errors, %.1f files/s",
+			directories.get(),
+			files.get(),
+			skipped.get(),
+			parsed.get(),
+			invalid.get(),
+			errors.get(),
+			getThroughput()
+		);
+	}
+
+	/**
+	 * Creates a pool with a bounded queue, whose callers do the work
+	 * themselves when the queue is full. Also used by {@link LibraryCleaner}.
+	 */
+	static ThreadPoolExecutor createPool(final String name, int size) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+			size,
+			size,
+			60,
+			TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+			new ThreadFactory() {
+				private int counter = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + " " + (counter++));
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Scans one shared folder: walks its directories on the thread that
+	 * runs it and keeps track of the directories that are done.
+	 */
+	private class Volume implements Runnable {
+		private final File folder;
+		private final ThreadPoolExecutor parsers;
+		private final List<String> checkpoint;
+
+		/**
+		 * Directories that were walked and are not done, or done while a
+		 * directory walked before them is not, by the order they were walked in.
+		 */
+		private final TreeMap<Long, String> walked = new TreeMap<Long, String>();
+
+		/**
+		 * The number of files that still have to be handled per directory,
+		 * plus one while the directory is being detected.
+		 */
+		private final Map<Long, Integer> pending = new HashMap<Long, Integer>();
+
+		private long sequence;
+		private String done;
+		private long lastCheckpoint = System.currentTimeMillis();
+
+		Volume(File folder) {
+			this.folder = folder;
+			parsers = createPool("Library Parser " + folder.getName(), threads);
+			String directory = database.getScanCheckpoint(folder);
+
+			if (directory != null) {
+				logger.info("Resuming the scan of {} after {}", folder.getAbsolutePath(), directory);
+				checkpoint = getPath(new File(directory));
+			} else {
+				checkpoint = null;
+			}
+		}
+
+		@Override
+		public void run() {
+			LinkedList<File> stack = new LinkedList<File>();
+			stack.add(folder);
+
+			try {
+				while (running && !stack.isEmpty()) {
+					File directory = stack.removeFirst();
+					File[] children = directory.listFiles();
+
+					if (children == null) {
+						logger.warn("Can't read files from directory: {}", directory.getAbsolutePath());
+						continue;
+					}
+
+					Arrays.sort(children, NAME_ORDER);
+					List<DLNAResource> media = new ArrayList<DLNAResource>();
+					int insert = 0;
+
+					for (File child : children) {
+						if (child.isHidden() || !(child.isFile() || child.isDirectory())) {
+							continue;
+						}
+
+						DLNAResource resource = MapFile.createResource(child);
+
+						if (resource.allowScan()) {
+							if (compareToCheckpoint(child) >= 0) {
+								// Keep the walk order: children before the
+								// directories that were already on the stack
+								stack.add(insert++, child);
+							}
+						} else {
+							media.add(resource);
+						}
+					}
+
+					if (compareToCheckpoint(directory) > 0) {
+						detect(directory, media);
+					}
+				}
+
+				awaitDone();
+			} catch (InterruptedException e) {
+				running = false;
+				Thread.currentThread().interrupt();
+			} finally {
+				parsers.shutdown();
+			}
+
+			if (running) {
+				database.setScanCheckpoint(folder, null);
+			} else {
+				saveCheckpoint();
+			}
+		}
+
+		/**
+		 * Compares the position of a directory in the walk order to the
+		 * checkpoint.
+		 *
+		 * @return A negative number if the directory and all directories
+		 * below it were done before the checkpoint, 0 if only the files
+		 * directly in the directory were, and a positive number if it has
+		 * not been scanned.
+		 */
+		private int compareToCheckpoint(File directory) {
+			if (checkpoint == null) {
+				return 1;
+			}
+
+			List<String> path = getPath(directory);
+
+			for (int i = 0; i < path.size(); i++) {
+				if (i == checkpoint.size()) {
+					return 1;
+				}
+
+				int result = path.get(i).compareTo(checkpoint.get(i));
+
+				if (result != 0) {
+					return result;
+				}
+			}
+
+			// The directory is the checkpoint or one of its parents
+			return 0;
+		}
+
+		/**
+		 * @return The names of the directories from the shared folder down
+		 * to a file.
+		 */
+		private List<String> getPath(File file) {
+			LinkedList<String> path = new LinkedList<String>();
+			String root = folder.getAbsolutePath();
+
+			while (file != null && !file.getAbsolutePath().equals(root)) {
+				path.addFirst(file.getName());
+				file = file.getParentFile();
+			}
+
+			return path;
+		}
+
+		private void detect(final File directory, final List<DLNAResource> media) {
+			final long id;
+
+			synchronized (this) {
+				id = sequence++;
+				walked.put(id, directory.getAbsolutePath());
+				pending.put(id, 1);
+			}
+
+			directories.incrementAndGet();
+			currentDirectory = directory.getAbsolutePath();
+
+			detectors.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (DLNAResource resource : media) {
+							if (!running) {
+								break;
+							}
+
+							files.incrementAndGet();
+
+							// Nothing is stored for the other resources
+							if (!(resource instanceof RealFile)) {
+								continue;
+							}
+
+							File file = ((RealFile) resource).getFile();
+
+							if (FormatFactory.getAssociatedFormat(file.getAbsolutePath()) == null) {
+								continue;
+							}
+
+							if (database.isDataExists(file.getAbsolutePath(), file.lastModified())) {
+								skipped.incrementAndGet();
+								continue;
+							}
+
+							parse(id, resource);
+						}
+					} finally {
+						done(id);
+					}
+				}
+			});
+		}
+
+		private void parse(final long id, final DLNAResource resource) {
+			synchronized (this) {
+				pending.put(id, pending.get(id) + 1);
+			}
+
+			parsers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (running) {
+							resource.setParent(parent);
+							boolean valid = resource.isValid();
+							RendererConfiguration renderer = parent.getDefaultRenderer();
+
+							// Only MediaParserV2 parses the files when they
+							// are validated
+							if (valid && (renderer == null || !renderer.isMediaParserV2())) {
+								resource.resolve();
+							}
+
+							if (valid && resource.getMedia() != null && resource.getMedia().isMediaparsed()) {
+								parsed.incrementAndGet();
+							} else {
+								invalid.incrementAndGet();
+							}
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+						logger.debug("Error scanning " + resource.getSystemName(), e);
+					} finally {
+						done(id);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Marks one file of a directory as handled, and moves the checkpoint
+		 * past the directories that are done.
+		 */
+		private void done(long id) {
+			boolean save = false;
+
+			synchronized (this) {
+				int remaining = pending.get(id) - 1;
+
+				if (remaining > 0) {
+					pending.put(id, remaining);
+					return;
+				}
+
+				pending.remove(id);
+
+				if (pending.isEmpty()) {
+					notifyAll();
+				}
+
+				// After a stop, files are skipped instead of handled
+				if (!running) {
+					return;
+				}
+
+				while (!walked.isEmpty() && !pending.containsKey(walked.firstKey())) {
+					done = walked.remove(walked.firstKey());
+				}
+
+				if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+					lastCheckpoint = System.currentTimeMillis();
+					save = true;
+				}
+			}
+
+			if (save) {
+				saveCheckpoint();
+			}
+		}
+
+		private synchronized void awaitDone() throws InterruptedException {
+			while (running && !pending.isEmpty()) {
+				wait(STATUS_INTERVAL);
+			}
+		}
+
+		private void saveCheckpoint() {
+			String directory;
+
+			synchronized (this) {
+				directory = done;
+			}
+
+			if (directory != null) {
+				database.setScanCheckpoint(folder, directory);
+			}
+		}
+	}
+}
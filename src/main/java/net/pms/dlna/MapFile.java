@@ -47,6 +47,29 @@ public class MapFile extends DLNAResource {
 	private static final PmsConfiguration configuration = PMS.getConfiguration();
 	private List<File> discoverable;
 
+	/**
+	 * Whether all directories of this folder are watched, so the changes
+	 * are applied as they are reported instead of when browsed.
+	 */
+	private volatile boolean watched;
+
+	/**
+	 * Whether the whole folder must be compared with the file system, since
+	 * the reported changes were incomplete.
+	 */
+	private volatile boolean refreshNeeded;
+
+	/**
+	 * Only referenced from here, so the {@link FolderWatcher} forgets this
+	 * folder once it is no longer part of the tree.
+	 */
+	private final FolderWatcher.Listener watchListener = new FolderWatcher.Listener() {
+		@Override
+		public void filesChanged(File directory, Set<File> files) {
+			MapFile.this.filesChanged(files);
+		}
+	};
+
 	/**
 	 * @deprecated Use standard getter and setter to access this variable.
 	 */
@@ -115,28 +138,43 @@ public class MapFile extends DLNAResource {
 		return isRelevant;
 	}
 
+	/**
+	 * Creates the resource for a file or directory in a folder: an archive,
+	 * a DVD image, a playlist, a cue sheet or else a {@link RealFile}.
+	 *
+	 * @param f The file or directory.
+	 * @return The resource.
+	 */
+	static DLNAResource createResource(File f) {
+		String lcFilename = f.getName().toLowerCase();
+
+		if (configuration.isArchiveBrowsing() && (lcFilename.endsWith(".zip") || lcFilename.endsWith(".cbz"))) {
+			return new ZippedFile(f);
+		} else if (configuration.isArchiveBrowsing() && (lcFilename.endsWith(".rar") || lcFilename.endsWith(".cbr"))) {
+			return new RarredFile(f);
+		} else if ((lcFilename.endsWith(".iso") || lcFilename.endsWith(".img")) || (f.isDirectory() && f.getName().toUpperCase().equals("VIDEO_TS"))) {
+			return new DVDISOFile(f);
+		} else if (lcFilename.endsWith(".m3u") || lcFilename.endsWith(".m3u8") || lcFilename.endsWith(".pls")) {
+			return new PlaylistFolder(f);
+		} else if (lcFilename.endsWith(".cue")) {
+			return new CueFolder(f);
+		}
+
+		return new RealFile(f);
+	}
+
 	private void manageFile(File f) {
 		if (f.isFile() || f.isDirectory()) {
 			String lcFilename = f.getName().toLowerCase();
 
 			if (!f.isHidden()) {
-				if (configuration.isArchiveBrowsing() && (lcFilename.endsWith(".zip") || lcFilename.endsWith(".cbz"))) {
-					addChild(new ZippedFile(f));
-				} else if (configuration.isArchiveBrowsing() && (lcFilename.endsWith(".rar") || lcFilename.endsWith(".cbr"))) {
-					addChild(new RarredFile(f));
-				} else if ((lcFilename.endsWith(".iso") || lcFilename.endsWith(".img")) || (f.isDirectory() && f.getName().toUpperCase().equals("VIDEO_TS"))) {
-					addChild(new DVDISOFile(f));
-				} else if (lcFilename.endsWith(".m3u") || lcFilename.endsWith(".m3u8") || lcFilename.endsWith(".pls")) {
-					addChild(new PlaylistFolder(f));
-				} else if (lcFilename.endsWith(".cue")) {
-					addChild(new CueFolder(f));
-				} else {
-					/* Optionally ignore empty directories */
-					if (f.isDirectory() && configuration.isHideEmptyFolders() && !isFolderRelevant(f)) {
-						logger.debug("Ignoring empty/non-relevant directory: " + f.getName());
-					} else { // Otherwise add the file
-						addChild(new RealFile(f));
-					}
+				DLNAResource resource = createResource(f);
+
+				/* Optionally ignore empty directories */
+				if (resource instanceof RealFile && f.isDirectory() && configuration.isHideEmptyFolders() && !isFolderRelevant(f)) {
+					logger.debug("Ignoring empty/non-relevant directory: " + f.getName());
+				} else { // Otherwise add the file
+					addChild(resource);
 				}
 			}
 
@@ -205,6 +243,8 @@ public class MapFile extends DLNAResource {
 			return;
 		}
 
+		// Before listing, so no change is missed
+		watch();
 		List<File> files = getFileList();
 
 		switch (configuration.getSortMethod()) {
@@ -266,10 +306,77 @@ public class MapFile extends DLNAResource {
 				discoverable.add(f); // manageFile(f);
 			}
 		}
+
+		prefetch(files);
+	}
+
+	/**
+	 * Reads the cached media information of files before they are resolved,
+	 * with a few queries for the whole folder instead of several per file.
+	 */
+	private void prefetch(List<File> files) {
+		if (configuration.getUseCache()) {
+			DLNAMediaDatabase database = PMS.get().getDatabase();
+
+			if (database != null) {
+				database.prefetch(files);
+			}
+		}
+	}
+
+	/**
+	 * Watches the directories of this folder for changes, if possible.
+	 */
+	private void watch() {
+		FolderWatcher watcher = FolderWatcher.getInstance();
+		boolean all = watcher != null;
+
+		if (watcher != null) {
+			for (File f : this.getConf().getFiles()) {
+				if (f != null && f.isDirectory() && !watcher.register(f, watchListener)) {
+					all = false;
+				}
+			}
+		}
+
+		watched = all;
+	}
+
+	/**
+	 * Stops watching the directories of this folder and of the folders
+	 * below it, when it is removed from the tree.
+	 */
+	private void unwatch() {
+		FolderWatcher watcher = FolderWatcher.getInstance();
+
+		if (watcher != null) {
+			for (File f : this.getConf().getFiles()) {
+				if (f != null) {
+					watcher.unregister(f, watchListener);
+				}
+			}
+		}
+
+		watched = false;
+
+		for (DLNAResource child : getChildrenSnapshot()) {
+			if (child instanceof MapFile) {
+				((MapFile) child).unwatch();
+			}
+		}
 	}
 
 	@Override
 	public boolean isRefreshNeeded() {
+		if (refreshNeeded) {
+			return true;
+		}
+
+		if (watched) {
+			// The changes are applied as they are reported
+			return false;
+		}
+
 		long modified = 0;
 
 		for (File f : this.getConf().getFiles()) {
@@ -283,19 +390,46 @@ public class MapFile extends DLNAResource {
 
 	@Override
 	public void doRefreshChildren() {
+		refreshNeeded = false;
+
+		if (!watched) {
+			watch();
+		}
+
 		List<File> files = getFileList();
 		List<File> addedFiles = new ArrayList<File>();
 		List<DLNAResource> removedFiles = new ArrayList<DLNAResource>();
 
+		// Index the files by name, so matching the children is not quadratic
+		Map<String, List<File>> filesByName = new HashMap<String, List<File>>();
+
+		for (File f : files) {
+			List<File> sameName = filesByName.get(f.getName());
+
+			if (sameName == null) {
+				sameName = new ArrayList<File>(1);
+				filesByName.put(f.getName(), sameName);
+			}
+
+			sameName.add(f);
+		}
+
+		Set<File> matchedFiles = new HashSet<File>();
+
 		for (DLNAResource d : getChildren()) {
-			boolean isNeedMatching = !(d.getClass() == MapFile.class || (d instanceof VirtualFolder && !(d instanceof DVDISOFile)));
-			if (isNeedMatching && !foundInList(files, d)) {
-				removedFiles.add(d);
+			if (isNeedMatching(d)) {
+				File file = foundInList(filesByName, d);
+
+				if (file == null) {
+					removedFiles.add(d);
+				} else {
+					matchedFiles.add(file);
+				}
 			}
 		}
 
 		for (File f : files) {
-			if (!f.isHidden() && (f.isDirectory() || FormatFactory.getAssociatedFormat(f.getName()) != null)) {
+			if (!matchedFiles.contains(f) && isListed(f)) {
 				addedFiles.add(f);
 			}
 		}
@@ -312,55 +446,184 @@ public class MapFile extends DLNAResource {
 		TranscodeVirtualFolder transcodeFolder = getTranscodeFolder(false);
 
 		for (DLNAResource f : removedFiles) {
-			getChildren().remove(f);
+			removeFile(f, transcodeFolder);
+		}
 
-			if (transcodeFolder != null) {
-				for (int j = transcodeFolder.getChildren().size() - 1; j >= 0; j--) {
-					if (transcodeFolder.getChildren().get(j).getName().equals(f.getName())) {
-						transcodeFolder.getChildren().remove(j);
+		prefetch(addedFiles);
+
+		for (File f : addedFiles) {
+			manageFile(f);
+		}
+
+		for (MapFileConfiguration f : this.getConf().getChildren()) {
+			addChild(new MapFile(f));
+		}
+	}
+
+	/**
+	 * Applies the changes reported by the {@link FolderWatcher}: only the
+	 * entries of the affected files are replaced, and the update IDs are
+	 * incremented once for all of them. The removed entries are replaced
+	 * while the children are locked, the new ones are added, and parsed,
+	 * afterwards.
+	 *
+	 * @param files The created, changed and deleted files, or null if the
+	 * changes are not known.
+	 */
+	void filesChanged(Set<File> files) {
+		if (files == null) {
+			// Compare the whole folder the next time it is browsed, and
+			// watch it again if it is still there
+			watched = false;
+			refreshNeeded = true;
+			return;
+		}
+
+		List<File> addedFiles = new ArrayList<File>();
+		getChildrenLock().writeLock().lock();
+
+		try {
+			if (discoverable == null) {
+				// Not browsed yet, the files are listed when it is
+				return;
+			}
+
+			if (!isDiscovered()) {
+				// Some of the files are still to be added
+				for (File file : files) {
+					discoverable.remove(file);
+
+					if (isListed(file)) {
+						discoverable.add(file);
 					}
 				}
+
+				return;
+			}
+
+			Map<String, List<DLNAResource>> childrenByName = new HashMap<String, List<DLNAResource>>();
+
+			for (DLNAResource d : getChildren()) {
+				if (isNeedMatching(d)) {
+					addByName(childrenByName, d.getName(), d);
+
+					if (d instanceof DVDISOFile) {
+						addByName(childrenByName, ((DVDISOFile) d).getFilename(), d);
+					}
+				}
+			}
+
+			Set<DLNAResource> removedFiles = Collections.newSetFromMap(new IdentityHashMap<DLNAResource, Boolean>());
+
+			for (File file : files) {
+				List<DLNAResource> sameName = childrenByName.get(file.getName());
+
+				if (sameName != null) {
+					removedFiles.addAll(sameName);
+				}
+
+				if (file.exists() && isListed(file)) {
+					addedFiles.add(file);
+				}
+			}
+
+			if (removedFiles.isEmpty() && addedFiles.isEmpty()) {
+				return;
+			}
+
+			TranscodeVirtualFolder transcodeFolder = getTranscodeFolder(false);
+
+			for (DLNAResource f : removedFiles) {
+				logger.debug("File removed: " + f.getName());
+				removeFile(f, transcodeFolder);
 			}
+		} finally {
+			getChildrenLock().writeLock().unlock();
 		}
 
+		// Adding a file may parse it, which must not keep the folder
+		// locked for the renderers that browse it
+		prefetch(addedFiles);
+
 		for (File f : addedFiles) {
+			logger.debug("File added: " + f.getName());
 			manageFile(f);
 		}
 
-		for (MapFileConfiguration f : this.getConf().getChildren()) {
-			addChild(new MapFile(f));
+		notifyRefresh();
+	}
+
+	private static void addByName(Map<String, List<DLNAResource>> map, String name, DLNAResource resource) {
+		List<DLNAResource> sameName = map.get(name);
+
+		if (sameName == null) {
+			sameName = new ArrayList<DLNAResource>(1);
+			map.put(name, sameName);
 		}
+
+		sameName.add(resource);
 	}
 
-	private boolean foundInList(List<File> files, DLNAResource dlna) {
-		for (File file: files) {
-			if (!file.isHidden() && isNameMatch(dlna, file) && (isRealFolder(dlna) || isSameLastModified(dlna, file))) {
-				files.remove(file);
-				return true;
+	private void removeFile(DLNAResource f, TranscodeVirtualFolder transcodeFolder) {
+		removeChildInternal(f);
+
+		if (f instanceof MapFile) {
+			((MapFile) f).unwatch();
+		}
+
+		if (transcodeFolder != null) {
+			for (DLNAResource child : transcodeFolder.getChildrenSnapshot()) {
+				if (child.getName().equals(f.getName())) {
+					transcodeFolder.removeChildInternal(child);
+				}
 			}
 		}
-		return false;
 	}
 
-	private boolean isSameLastModified(DLNAResource dlna, File file) {
-		return dlna.getLastModified() == file.lastModified();
+	private boolean isNeedMatching(DLNAResource d) {
+		return !(d.getClass() == MapFile.class || (d instanceof VirtualFolder && !(d instanceof DVDISOFile)));
 	}
 
-	private boolean isRealFolder(DLNAResource dlna) {
-		return dlna instanceof RealFile && dlna.isFolder();
+	private boolean isListed(File f) {
+		return !f.isHidden() && (f.isDirectory() || FormatFactory.getAssociatedFormat(f.getName()) != null);
 	}
 
-	private boolean isNameMatch(DLNAResource dlna, File file) {
-		return (dlna.getName().equals(file.getName()) || isDVDIsoMatch(dlna, file));
+	/**
+	 * Finds the file of a child and removes it from the index.
+	 *
+	 * @return The file, or null if the child has no file anymore.
+	 */
+	private File foundInList(Map<String, List<File>> filesByName, DLNAResource dlna) {
+		File file = removeMatch(filesByName.get(dlna.getName()), dlna);
+
+		if (file == null && dlna instanceof DVDISOFile) {
+			file = removeMatch(filesByName.get(((DVDISOFile) dlna).getFilename()), dlna);
+		}
+
+		return file;
 	}
 
-	private boolean isDVDIsoMatch(DLNAResource dlna, File file) {
-		if (dlna instanceof DVDISOFile) {
-			DVDISOFile dvdISOFile = (DVDISOFile) dlna;
-			return dvdISOFile.getFilename().equals(file.getName());
-		} else {
-			return false;
+	private File removeMatch(List<File> files, DLNAResource dlna) {
+		if (files != null) {
+			for (Iterator<File> iterator = files.iterator(); iterator.hasNext();) {
+				File file = iterator.next();
+
+				if (!file.isHidden() && (isRealFolder(dlna) || isSameLastModified(dlna, file))) {
+					iterator.remove();
+					return file;
+				}
+			}
 		}
+
+		return null;
+	}
+
+	private boolean isSameLastModified(DLNAResource dlna, File file) {
+		return dlna.getLastModified() == file.lastModified();
+	}
+
+	private boolean isRealFolder(DLNAResource dlna) {
+		return dlna instanceof RealFile && dlna.isFolder();
 	}
 
 	@Override
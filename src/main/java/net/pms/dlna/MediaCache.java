@@ -0,0 +1,140 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the media information of recently used files in memory, by
+ * filename, least recently used first. The database caches what it reads
+ * here, and without the database the files parsed last are kept here, so
+ * the copies of a file in the trees of several renderers are only parsed
+ * once either way.
+ * <p>
+ * The number of files kept is set by <code>media_cache_size</code>.
+ */
+public class MediaCache {
+	private static final Logger logger = LoggerFactory.getLogger(MediaCache.class);
+	private static final PmsConfiguration configuration = PMS.getConfiguration();
+
+	private static MediaCache instance;
+
+	private final Map<String, CachedMedia> medias = new LinkedHashMap<String, CachedMedia>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedMedia> eldest) {
+			return size() > configuration.getMediaCacheSize();
+		}
+	};
+
+	private static class CachedMedia {
+		final long modified;
+		final DLNAMediaInfo media;
+
+		CachedMedia(long modified, DLNAMediaInfo media) {
+			this.modified = modified;
+			this.media = media;
+		}
+	}
+
+	/**
+	 * Returns the cache shared by the database and the resources.
+	 */
+	public static synchronized MediaCache getInstance() {
+		if (instance == null) {
+			instance = new MediaCache();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns a copy of the media information of a file, which the caller
+	 * is free to change.
+	 *
+	 * @param name The filename.
+	 * @param modified The modification time of the file.
+	 * @return The media information, or null if it is not in the cache or
+	 * was stored for another modification time.
+	 */
+	public DLNAMediaInfo get(String name, long modified) {
+		DLNAMediaInfo media = null;
+
+		synchronized (medias) {
+			CachedMedia cached = medias.get(name);
+
+			if (cached != null && cached.modified == modified) {
+				media = cached.media;
+			}
+		}
+
+		return media != null ? copy(media) : null;
+	}
+
+	/**
+	 * @return Whether the media information of a file is in the cache.
+	 */
+	public boolean contains(String name, long modified) {
+		synchronized (medias) {
+			CachedMedia cached = medias.get(name);
+			return cached != null && cached.modified == modified;
+		}
+	}
+
+	/**
+	 * Adds the media information of a file. The cache keeps the given
+	 * object, so the caller must not change it afterwards.
+	 */
+	public void put(String name, long modified, DLNAMediaInfo media) {
+		synchronized (medias) {
+			medias.put(name, new CachedMedia(modified, media));
+		}
+	}
+
+	public void remove(String name) {
+		synchronized (medias) {
+			medias.remove(name);
+		}
+	}
+
+	public void clear() {
+		synchronized (medias) {
+			medias.clear();
+		}
+	}
+
+	/**
+	 * Returns a copy of media information, including its tracks.
+	 */
+	static DLNAMediaInfo copy(DLNAMediaInfo media) {
+		try {
+			return (DLNAMediaInfo) media.clone();
+		} catch (CloneNotSupportedException e) {
+			logger.debug("Error while copying media information: " + e.getMessage());
+			return media;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of independent MediaInfo handles, so that several files can be
+ * parsed at the same time. A handle is only used by one thread at a time:
+ * it is leased with {@link #lease()} and must be given back with
+ * {@link #release(MediaInfo)} once the file it opened is closed.
+ * <p>
+ * Handles are created when they are first needed, up to the size of the
+ * pool. The last released handle is leased first, so a lightly loaded
+ * server keeps using the same one.
+ */
+public class MediaInfoPool {
+	private static final Logger logger = LoggerFactory.getLogger(MediaInfoPool.class);
+
+	private final int size;
+	private final LinkedList<MediaInfo> idle = new LinkedList<MediaInfo>();
+	private int created;
+	private boolean checked;
+	private boolean valid;
+	private boolean closed;
+
+	/**
+	 * @param size The maximum number of handles.
+	 */
+	public MediaInfoPool(int size) {
+		this.size = Math.max(1, size);
+	}
+
+	/**
+	 * @return The maximum number of handles.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Checks whether the MediaInfo library works, by creating the first
+	 * handle if that was not done yet.
+	 *
+	 * @return True if handles can be leased.
+	 */
+	public synchronized boolean isValid() {
+		if (!checked) {
+			checked = true;
+			MediaInfo handle = createHandle();
+
+			if (handle != null) {
+				created++;
+				idle.add(handle);
+				valid = true;
+			}
+		}
+
+		return valid && !closed;
+	}
+
+	/**
+	 * Leases a handle, waiting for one to be released if all of them are in
+	 * use.
+	 *
+	 * @return The handle, or null if the library does not work or the pool
+	 * is closed.
+	 * @throws InterruptedException
+	 */
+	public MediaInfo lease() throws InterruptedException {
+		synchronized (this) {
+			while (true) {
+				if (!isValid()) {
+					return null;
+				}
+
+				if (!idle.isEmpty()) {
+					return idle.removeFirst();
+				}
+
+				if (created < size) {
+					created++;
+					break;
+				}
+
+				wait();
+			}
+		}
+
+		// Creating a handle loads the library state, do not block the others
+		MediaInfo handle = null;
+
+		try {
+			handle = createHandle();
+		} finally {
+			if (handle == null) {
+				synchronized (this) {
+					created--;
+					notify();
+				}
+			}
+		}
+
+		return handle;
+	}
+
+	/**
+	 * Gives back a leased handle. The file it opened must be closed.
+	 *
+	 * @param handle The handle.
+	 */
+	public void release(MediaInfo handle) {
+		if (handle == null) {
+			return;
+		}
+
+		synchronized (this) {
+			if (!closed) {
+				idle.addFirst(handle);
+				notify();
+				return;
+			}
+
+			created--;
+		}
+
+		disposeHandle(handle);
+	}
+
+	/**
+	 * Disposes of the idle handles. Handles that are still leased are
+	 * disposed of when they are released.
+	 */
+	public void close() {
+		List<MediaInfo> handles;
+
+		synchronized (this) {
+			closed = true;
+			handles = new ArrayList<MediaInfo>(idle);
+			created -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+
+		for (MediaInfo handle : handles) {
+			disposeHandle(handle);
+		}
+	}
+
+	/**
+	 * @return The number of handles that exist, leased or not.
+	 */
+	public synchronized int getHandleCount() {
+		return created;
+	}
+
+	/**
+	 * Creates a handle that returns raw values.
+	 *
+	 * @return The handle, or null if the library could not be loaded.
+	 */
+	protected MediaInfo createHandle() {
+		MediaInfo handle = new MediaInfo();
+
+		if (!handle.isValid()) {
+			return null;
+		}
+
+		handle.Option("Language", "raw");
+		return handle;
+	}
+
+	protected void disposeHandle(MediaInfo handle) {
+		try {
+			handle.dispose();
+		} catch (Throwable e) {
+			logger.debug("Caught exception", e);
+		}
+	}
+}
@@ -158,8 +158,10 @@ public class RarredEntry extends DLNAResource implements IPushOutput {
 
 	@Override
 	public InputStream getThumbnailInputStream() throws IOException {
-		if (getMedia() != null && getMedia().getThumb() != null) {
-			return getMedia().getThumbnailInputStream();
+		InputStream thumbnail = getMedia() != null ? getMedia().getThumbnailInputStream() : null;
+
+		if (thumbnail != null) {
+			return thumbnail;
 		} else {
 			return super.getThumbnailInputStream();
 		}
@@ -23,6 +23,7 @@ import net.pms.PMS;
 import net.pms.configuration.PmsConfiguration;
 import net.pms.formats.Format;
 import net.pms.formats.FormatFactory;
+import net.pms.io.FileChannelInputStream;
 import net.pms.util.FileUtil;
 import net.pms.util.ProcessUtil;
 import org.apache.commons.lang3.StringUtils;
@@ -62,7 +63,7 @@ public class RealFile extends MapFile {
 			// we need to resolve the DLNA resource now
 			run();
 
-			if (getMedia() != null && getMedia().getThumb() == null && getType() != Format.AUDIO) { // MediaInfo retrieves cover art now
+			if (getMedia() != null && !getMedia().hasThumb() && getType() != Format.AUDIO) { // MediaInfo retrieves cover art now
 				getMedia().setThumbready(false);
 			}
 
@@ -153,6 +154,17 @@ public class RealFile extends MapFile {
 		return ProcessUtil.getShortFileNameIfWideChars(getFile().getAbsolutePath());
 	}
 
+	/**
+	 * Every renderer has its own copy of the file in its tree. Resolved one
+	 * after the other, the later copies find the media information of the
+	 * first in the {@link MediaCache} instead of parsing the file again.
+	 */
+	@Override
+	protected Object getResolveKey() {
+		File file = getFile();
+		return file.getAbsolutePath() + "#" + getSplitTrack() + "@" + file.lastModified();
+	}
+
 	@Override
 	public void resolve() {
 		File file = getFile();
@@ -166,17 +178,25 @@ public class RealFile extends MapFile {
 				fileName += "#SplitTrack" + getSplitTrack();
 			}
 			
-			if (configuration.getUseCache()) {
-				DLNAMediaDatabase database = PMS.get().getDatabase();
+			DLNAMediaDatabase database = configuration.getUseCache() ? PMS.get().getDatabase() : null;
 
-				if (database != null) {
-					ArrayList<DLNAMediaInfo> medias = database.getData(fileName, file.lastModified());
+			if (database != null) {
+				// The database reads through the media cache
+				ArrayList<DLNAMediaInfo> medias = database.getData(fileName, file.lastModified());
 
-					if (medias != null && medias.size() == 1) {
-						setMedia(medias.get(0));
-						getMedia().finalize(getType(), input);
-						found = true;
-					}
+				if (medias != null && medias.size() == 1) {
+					setMedia(medias.get(0));
+					getMedia().finalize(getType(), input);
+					found = true;
+				}
+			} else {
+				DLNAMediaInfo cached = MediaCache.getInstance().get(fileName, file.lastModified());
+
+				if (cached != null) {
+					// Another renderer's copy of the file was parsed before
+					setMedia(cached);
+					getMedia().finalize(getType(), input);
+					found = true;
 				}
 			}
 
@@ -194,12 +214,10 @@ public class RealFile extends MapFile {
 					getMedia().parse(input, getFormat(), getType(), false);
 				}
 
-				if (found && configuration.getUseCache()) {
-					DLNAMediaDatabase database = PMS.get().getDatabase();
-
-					if (database != null) {
-						database.insertData(fileName, file.lastModified(), getType(), getMedia());
-					}
+				if (found && database != null) {
+					database.insertData(fileName, file.lastModified(), getType(), getMedia());
+				} else if (database == null && getMedia().isMediaparsed()) {
+					MediaCache.getInstance().put(fileName, file.lastModified(), MediaCache.copy(getMedia()));
 				}
 			}
 		}
@@ -215,6 +233,11 @@ public class RealFile extends MapFile {
 		File file = getFile();
 		File cachedThumbnail = null;
 
+		if (getType() == Format.AUDIO && getMedia() != null && !getMedia().isThumbready()) {
+			// Read the artwork now that it is needed
+			checkThumbnail();
+		}
+
 		if (getParent() != null && getParent() instanceof RealFile) {
 			cachedThumbnail = ((RealFile) getParent()).getPotentialCover();
 			File thumbFolder = null;
@@ -264,12 +287,13 @@ public class RealFile extends MapFile {
 			}
 		}
 
-		boolean hasAlreadyEmbeddedCoverArt = getType() == Format.AUDIO && getMedia() != null && getMedia().getThumb() != null;
+		boolean hasAlreadyEmbeddedCoverArt = getType() == Format.AUDIO && getMedia() != null && getMedia().hasThumb();
+		InputStream thumbnail = null;
 
 		if (cachedThumbnail != null && (!hasAlreadyEmbeddedCoverArt || file.isDirectory())) {
-			return new FileInputStream(cachedThumbnail);
-		} else if (getMedia() != null && getMedia().getThumb() != null) {
-			return getMedia().getThumbnailInputStream();
+			return new FileChannelInputStream(cachedThumbnail, 0, 0);
+		} else if (getMedia() != null && (thumbnail = getMedia().getThumbnailInputStream()) != null) {
+			return thumbnail;
 		} else {
 			return super.getThumbnailInputStream();
 		}
@@ -290,9 +314,14 @@ public class RealFile extends MapFile {
 		StringBuilder sb = new StringBuilder();
 		sb.append(PMS.get().getServer().getURL());
 		sb.append("/");
-		if (getMedia() != null && getMedia().getThumb() != null) {
+		if (getMedia() != null && getMedia().hasThumb()) {
 			return super.getThumbnailURL();
 		} else if (getType() == Format.AUDIO) {
+			if (getMedia() != null && !getMedia().isThumbready() && configuration.isThumbnailGenerationEnabled()) {
+				// The artwork is read when the thumbnail is requested
+				return super.getThumbnailURL();
+			}
+
 			if (getParent() != null && getParent() instanceof RealFile && ((RealFile) getParent()).getPotentialCover() != null) {
 				return super.getThumbnailURL();
 			}
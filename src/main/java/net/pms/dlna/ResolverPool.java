@@ -0,0 +1,233 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Server-wide thread pool that resolves resources (see
+ * {@link DLNAResource#resolve()}) before they are sent to a renderer.
+ * Resolving mostly waits for the disk and for external parsers, so the pool
+ * has a couple of threads per core.
+ * <p>
+ * A resource that is already being resolved is not queued again. Every
+ * renderer has its own tree though, so when two renderers browse the same
+ * folder they submit different resources for the same files. Resources with
+ * the same {@link DLNAResource#getResolveKey() key} are resolved one after
+ * the other, so the later ones find the result of the first in the media
+ * cache. Resources that report the same
+ * {@link DLNAResource#getResolveDevice() device} are resolved one at a
+ * time as well, as some devices (e.g. DVD drives) do not cope with parallel
+ * access.
+ */
+public class ResolverPool {
+	private static final Logger logger = LoggerFactory.getLogger(ResolverPool.class);
+
+	/**
+	 * Maximum number of resources resolved at the same time per device or
+	 * key.
+	 */
+	private static final int MAX_RESOLVES_PER_DEVICE = 1;
+
+	private static ResolverPool instance;
+
+	private final ThreadPoolExecutor executor;
+	private final Map<DLNAResource, Future<?>> pending = new IdentityHashMap<DLNAResource, Future<?>>();
+	private final Map<Object, DeviceQueue> devices = new HashMap<Object, DeviceQueue>();
+
+	/**
+	 * Resolves waiting for their device or for another resolve of the same
+	 * key.
+	 */
+	private static class DeviceQueue {
+		final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+		int active;
+	}
+
+	/**
+	 * @return The pool shared by all requests.
+	 */
+	public static synchronized ResolverPool getInstance() {
+		if (instance == null) {
+			instance = new ResolverPool(Math.max(3, 2 * Runtime.getRuntime().availableProcessors()));
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param threads The number of threads.
+	 */
+	public ResolverPool(int threads) {
+		executor = new ThreadPoolExecutor(
+			threads,
+			threads,
+			60,
+			TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				private int counter = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "resolver-" + (counter++));
+					t.setDaemon(true);
+					return t;
+				}
+			}
+		);
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a resource to be resolved, unless it already is.
+	 *
+	 * @param resource The resource to resolve.
+	 * @return The future of the resolve, shared by everyone who asked for
+	 * the same resource while it was pending.
+	 */
+	public Future<?> submit(final DLNAResource resource) {
+		Object resolveDevice = resource.getResolveDevice();
+		final Object device = resolveDevice != null ? resolveDevice : resource.getResolveKey();
+		FutureTask<Object> task;
+
+		synchronized (this) {
+			Future<?> future = pending.get(resource);
+
+			if (future != null) {
+				return future;
+			}
+
+			Runnable resolve = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						resource.run();
+					} finally {
+						synchronized (ResolverPool.this) {
+							pending.remove(resource);
+						}
+					}
+				}
+			};
+
+			task = new FutureTask<Object>(resolve, null) {
+				@Override
+				protected void done() {
+					if (device != null) {
+						next(device);
+					}
+				}
+			};
+			pending.put(resource, task);
+
+			if (device != null) {
+				DeviceQueue queue = devices.get(device);
+
+				if (queue == null) {
+					queue = new DeviceQueue();
+					devices.put(device, queue);
+				}
+
+				if (queue.active >= MAX_RESOLVES_PER_DEVICE) {
+					queue.waiting.add(task);
+					return task;
+				}
+
+				queue.active++;
+			}
+		}
+
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Starts the next resolve waiting for a device, if any.
+	 */
+	private void next(Object device) {
+		Runnable task;
+
+		synchronized (this) {
+			DeviceQueue queue = devices.get(device);
+			task = queue.waiting.poll();
+
+			if (task == null) {
+				if (--queue.active == 0) {
+					devices.remove(device);
+				}
+
+				return;
+			}
+		}
+
+		executor.execute(task);
+	}
+
+	/**
+	 * Waits for resolves to finish.
+	 *
+	 * @param futures The futures returned by {@link #submit(DLNAResource)}.
+	 * @param timeout The maximum time to wait for all of them together in
+	 * milliseconds.
+	 * @return True if all resolves finished in time.
+	 */
+	public static boolean await(List<Future<?>> futures, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		for (Future<?> future : futures) {
+			try {
+				future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				return false;
+			} catch (ExecutionException e) {
+				logger.debug("Error resolving resource", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return The number of resolves that are queued or running.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+}
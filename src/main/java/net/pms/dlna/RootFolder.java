@@ -51,16 +51,48 @@ import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Future;
 
 public class RootFolder extends DLNAResource {
 	private static final Logger logger = LoggerFactory.getLogger(RootFolder.class);
 	private static final PmsConfiguration configuration = PMS.getConfiguration();
-	private boolean running;
+	private LibraryScanner scanner;
+	private LibraryCleaner cleaner;
+
+	/**
+	 * Maximum number of items returned by one search.
+	 */
+	private static final int MAX_SEARCH_COUNT = 500;
+
+	/**
+	 * Maximum number of search results kept in the tree, after which the
+	 * results of earlier searches are dropped.
+	 */
+	private static final int MAX_SEARCH_RESULTS = 2000;
+
+	/**
+	 * Maximum time in milliseconds a search waits for its results to be
+	 * resolved.
+	 */
+	private static final int RESOLVE_TIMEOUT = 20000;
+
+	/**
+	 * Container of the search results. It is not listed as a child of the
+	 * root, but its items can be found by their IDs like any other.
+	 */
+	private VirtualFolder searchFolder;
+	private final Map<String, DLNAResource> searchResults = new HashMap<String, DLNAResource>();
+
+	/**
+	 * Incremented every time the search results are dropped.
+	 */
+	private int searchGeneration;
 
 	public RootFolder() {
 		setIndexId(0);
@@ -159,37 +191,207 @@ public class RootFolder extends DLNAResource {
 	}
 
 	/**
-	 * Returns whether or not a scan is running.
+	 * Returns the library scan that is running.
 	 *
-	 * @return <code>true</code> if a scan is running, <code>false</code>
-	 * otherwise.
+	 * @return The scanner, or <code>null</code> if no scan is running.
 	 */
-	private synchronized boolean isRunning() {
-		return running;
+	public synchronized LibraryScanner getScanner() {
+		return scanner;
 	}
 
 	/**
-	 * Sets whether or not a scan is running.
+	 * Sets the library scan that is running.
 	 *
-	 * @param running  Set to <code>true</code> if the scan is running, or to
-	 * <code>false</code> when the scan has stopped.
+	 * @param scanner The scanner, or <code>null</code> when the scan has
+	 * stopped.
 	 */
-	private synchronized void setRunning(boolean running) {
-		this.running = running;
+	private synchronized void setScanner(LibraryScanner scanner) {
+		this.scanner = scanner;
 	}
 
-	public void scan() {
-		setRunning(true);
+	/**
+	 * Returns the database cleanup that runs after a library scan.
+	 *
+	 * @return The cleaner, or <code>null</code> if no cleanup is running.
+	 */
+	public synchronized LibraryCleaner getCleaner() {
+		return cleaner;
+	}
+
+	private synchronized void setCleaner(LibraryCleaner cleaner) {
+		this.cleaner = cleaner;
+	}
+
+	@Override
+	public DLNAResource search(String searchId, int count, RendererConfiguration renderer) {
+		synchronized (searchResults) {
+			if (searchFolder != null && searchFolder.getResourceId().equals(searchId)) {
+				return searchFolder;
+			}
+		}
+
+		return super.search(searchId, count, renderer);
+	}
+
+	/**
+	 * Searches the media library for items. The items are created in a
+	 * container of search results, the same item is returned again when a
+	 * later search finds the same file.
+	 *
+	 * @param criteria The search criteria.
+	 * @param containerId The ID of the container to search in. Only files
+	 * in the folder are found if it is a real folder, virtual containers
+	 * search the whole library.
+	 * @param start The index of the first item to return.
+	 * @param count The maximum number of items to return, or 0 for as many
+	 * as possible.
+	 * @param renderer The renderer that searches.
+	 * @param results The list the requested items are added to.
+	 * @return The total number of matches, or -1 if the library could not
+	 * be searched.
+	 */
+	public int searchLibrary(SearchCriteria criteria, String containerId, int start, int count, RendererConfiguration renderer, List<DLNAResource> results) {
+		DLNAMediaDatabase database = PMS.get().getDatabase();
+		DLNAResource container = search(containerId, 0, renderer);
+
+		if (database == null || container == null) {
+			return -1;
+		}
 
-		if (!isDiscovered()) {
-			discoverChildren();
+		List<File> folders = null;
+
+		if (container instanceof RealFile && container.isFolder()) {
+			folders = new ArrayList<File>();
+			folders.add(((RealFile) container).getFile());
+		}
+
+		if (count <= 0 || count > MAX_SEARCH_COUNT) {
+			count = MAX_SEARCH_COUNT;
+		}
+
+		List<File> files = new ArrayList<File>();
+		int total = database.search(criteria, folders, start, count, files);
+
+		if (total < 0) {
+			return total;
+		}
+
+		DLNAResource[] found = new DLNAResource[files.size()];
+		VirtualFolder folder;
+		int generation;
+
+		synchronized (searchResults) {
+			if (searchFolder == null) {
+				searchFolder = new VirtualFolder("Search results", null);
+				searchFolder.setParent(this);
+				searchFolder.setId("search");
+			}
+
+			searchFolder.setDefaultRenderer(renderer);
+
+			if (searchResults.size() + files.size() > MAX_SEARCH_RESULTS) {
+				searchFolder.clearChildrenInternal();
+				searchResults.clear();
+				searchGeneration++;
+			}
+
+			for (int i = 0; i < found.length; i++) {
+				found[i] = searchResults.get(files.get(i).getAbsolutePath());
+			}
+
+			folder = searchFolder;
+			generation = searchGeneration;
+		}
+
+		// Adding a file may parse it, so other searches are not held up
+		// while the new results are added
+		for (int i = 0; i < found.length; i++) {
+			if (found[i] == null) {
+				DLNAResource result = new RealFile(files.get(i));
+				folder.addChild(result);
+
+				// Files that are gone or not supported are not added
+				if (result.getId() != null) {
+					found[i] = result;
+				}
+			}
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(found.length);
+		ResolverPool resolverPool = ResolverPool.getInstance();
+
+		synchronized (searchResults) {
+			for (int i = 0; i < found.length; i++) {
+				DLNAResource result = found[i];
+
+				if (result == null) {
+					continue;
+				}
+
+				String path = files.get(i).getAbsolutePath();
+				DLNAResource existing = searchResults.get(path);
+
+				if (existing == null) {
+					// Results that were dropped in the meantime are not
+					// remembered, they are no longer in the tree
+					if (generation == searchGeneration) {
+						searchResults.put(path, result);
+					}
+				} else if (existing != result) {
+					// Another search added the same file first
+					folder.removeChildInternal(result);
+					result = existing;
+				}
+
+				futures.add(resolverPool.submit(result));
+				results.add(result);
+			}
+		}
+
+		if (!ResolverPool.await(futures, RESOLVE_TIMEOUT)) {
+			logger.debug("Not all results of the search \"{}\" were resolved within {} ms", criteria, RESOLVE_TIMEOUT);
+		}
+
+		return total;
+	}
+
+	public void scan() {
+		List<File> folders = getScanFolders();
+		LibraryScanner libraryScanner = new LibraryScanner(
+			folders,
+			configuration.getLibraryScanThreads(),
+			PMS.get().getDatabase(),
+			PMS.get().getFrame()
+		);
+		setScanner(libraryScanner);
+
+		try {
+			libraryScanner.run();
+		} finally {
+			setScanner(null);
 		}
 
-		setDefaultRenderer(RendererConfiguration.getDefaultConf());
-		scan(this);
 		IFrame frame = PMS.get().getFrame();
+
+		if (!libraryScanner.isStopped()) {
+			LibraryCleaner libraryCleaner = new LibraryCleaner(
+				PMS.get().getDatabase(),
+				folders,
+				configuration.getLibraryScanThreads(),
+				configuration.isLibraryCleanupIncremental(),
+				frame
+			);
+			setCleaner(libraryCleaner);
+
+			try {
+				libraryCleaner.run();
+			} finally {
+				setCleaner(null);
+			}
+		}
+
+		// Only now another scan may be started
 		frame.setScanLibraryEnabled(true);
-		PMS.get().getDatabase().cleanup();
 		frame.setStatusLine(null);
 	}
 
@@ -202,50 +404,66 @@ public class RootFolder extends DLNAResource {
 	}
 
 	public void stopScan() {
-		setRunning(false);
+		LibraryScanner libraryScanner = getScanner();
+
+		if (libraryScanner != null) {
+			libraryScanner.stop();
+		}
+
+		LibraryCleaner libraryCleaner = getCleaner();
+
+		if (libraryCleaner != null) {
+			libraryCleaner.stop();
+		}
 	}
 
-	private synchronized void scan(DLNAResource resource) {
-		if (isRunning()) {
-			for (DLNAResource child : resource.getChildren()) {
-				if (isRunning() && child.allowScan()) {
-					child.setDefaultRenderer(resource.getDefaultRenderer());
-					String trace = null;
+	/**
+	 * Returns the folders to scan: the shared folders and the folders of
+	 * the virtual folders, each of them once. Also used by
+	 * {@link DLNAMediaDatabase#cleanup()}.
+	 */
+	static List<File> getScanFolders() {
+		List<File> folders = new ArrayList<File>();
 
-					if (child instanceof RealFile) {
-						trace = Messages.getString("DLNAMediaDatabase.4") + " " + child.getName();
-					}
+		for (RealFile folder : getConfiguredFolders()) {
+			addScanFolder(folders, folder.getFile());
+		}
 
-					if (trace != null) {
-						logger.debug(trace);
-						PMS.get().getFrame().setStatusLine(trace);
-					}
+		List<MapFileConfiguration> pending = new ArrayList<MapFileConfiguration>();
+		List<MapFileConfiguration> mapFileConfs = MapFileConfiguration.parse(configuration.getVirtualFolders());
 
-					if (child.isDiscovered()) {
-						child.refreshChildren();
-					} else {
-						if (child instanceof DVDISOFile || child instanceof DVDISOTitle) { // FIXME ugly hack
-							child.resolve();
-						}
-						child.discoverChildren();
-						child.analyzeChildren(-1);
-						child.setDiscovered(true);
-					}
+		if (mapFileConfs != null) {
+			pending.addAll(mapFileConfs);
+		}
 
-					int count = child.getChildren().size();
+		while (!pending.isEmpty()) {
+			MapFileConfiguration conf = pending.remove(0);
 
-					if (count == 0) {
-						continue;
-					}
+			for (File file : conf.getFiles()) {
+				addScanFolder(folders, file);
+			}
 
-					scan(child);
-					child.getChildren().clear();
-				}
+			pending.addAll(conf.getChildren());
+		}
+
+		return folders;
+	}
+
+	private static void addScanFolder(List<File> folders, File folder) {
+		if (folder == null || !folder.isDirectory()) {
+			return;
+		}
+
+		for (File other : folders) {
+			if (other.getAbsolutePath().equals(folder.getAbsolutePath())) {
+				return;
 			}
 		}
+
+		folders.add(folder);
 	}
 
-	private List<RealFile> getConfiguredFolders() {
+	private static List<RealFile> getConfiguredFolders() {
 		List<RealFile> res = new ArrayList<RealFile>();
 		File[] files = PMS.get().getFoldersConf();
 
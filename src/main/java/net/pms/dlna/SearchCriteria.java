@@ -0,0 +1,486 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import net.pms.formats.Format;
+
+/**
+ * The SearchCriteria argument of a ContentDirectory Search, translated to
+ * a condition on the FILES table of the {@link DLNAMediaDatabase}.
+ * <p>
+ * The grammar is the one of the UPnP ContentDirectory specification:
+ * relational expressions like <code>upnp:artist = "Name"</code> or
+ * <code>dc:title contains "word"</code>, combined with <code>and</code>,
+ * <code>or</code> and parentheses, or <code>*</code> to match everything.
+ * Audio properties are matched against the AUDIOTRACKS table, with
+ * subqueries that can use its indexes. <code>upnp:class</code> is matched
+ * against the type of the file. Only items are searched, so classes of
+ * containers like <code>object.container.album</code> never match.
+ * Properties that are not known to the database never match either.
+ * <p>
+ * <code>=</code> compares the exact value, so an index can be used, while
+ * <code>contains</code>, <code>doesNotContain</code> and
+ * <code>startsWith</code> ignore case. They cannot use an index and have
+ * to look at every row of the table.
+ */
+public class SearchCriteria {
+	private static final String TRUE = "1=1";
+	private static final String FALSE = "1=0";
+
+	/**
+	 * The columns of AUDIOTRACKS that properties are mapped to.
+	 */
+	private static final Map<String, String> AUDIO_COLUMNS = new HashMap<String, String>();
+
+	/**
+	 * Columns that hold numbers instead of text.
+	 */
+	private static final List<String> NUMERIC_COLUMNS = new ArrayList<String>();
+
+	/**
+	 * The classes of the items that are created for the file types.
+	 */
+	private static final Map<String, Integer> ITEM_CLASSES = new LinkedHashMap<String, Integer>();
+
+	static {
+		AUDIO_COLUMNS.put("dc:title", "SONGNAME");
+		AUDIO_COLUMNS.put("dc:creator", "ARTIST");
+		AUDIO_COLUMNS.put("upnp:artist", "ARTIST");
+		AUDIO_COLUMNS.put("upnp:album", "ALBUM");
+		AUDIO_COLUMNS.put("upnp:genre", "GENRE");
+		AUDIO_COLUMNS.put("dc:date", "YEAR");
+		AUDIO_COLUMNS.put("upnp:originaltracknumber", "TRACK");
+
+		NUMERIC_COLUMNS.add("YEAR");
+		NUMERIC_COLUMNS.add("TRACK");
+
+		ITEM_CLASSES.put("object.item.audioitem.musictrack", Format.AUDIO);
+		ITEM_CLASSES.put("object.item.imageitem.photo", Format.IMAGE);
+		ITEM_CLASSES.put("object.item.videoitem", Format.VIDEO);
+	}
+
+	/**
+	 * The condition that restricts a search to the files that can be
+	 * returned as items.
+	 */
+	public static final String ITEM_TYPES = "TYPE IN (" + Format.AUDIO + ", " + Format.IMAGE + ", " + Format.VIDEO + ")";
+
+	private final String criteria;
+	private final String condition;
+	private final List<Object> parameters;
+
+	// Parser state
+	private int position;
+	private String token;
+	private int tokenStart;
+	private boolean tokenQuoted;
+
+	/**
+	 * Parses search criteria.
+	 *
+	 * @param criteria The SearchCriteria argument, already unescaped from XML.
+	 * An empty string is the same as <code>*</code>.
+	 * @return The parsed criteria.
+	 * @throws ParseException If the criteria do not follow the grammar.
+	 */
+	public static SearchCriteria parse(String criteria) throws ParseException {
+		return new SearchCriteria(criteria == null ? "" : criteria.trim());
+	}
+
+	private SearchCriteria(String criteria) throws ParseException {
+		this.criteria = criteria;
+		List<Object> params = new ArrayList<Object>();
+
+		if (criteria.length() == 0 || criteria.equals("*")) {
+			condition = TRUE;
+		} else {
+			next();
+			condition = parseOr(params);
+
+			if (token != null) {
+				throw new ParseException("Unexpected \"" + token + "\" in search criteria: " + criteria, tokenStart);
+			}
+		}
+
+		parameters = Collections.unmodifiableList(params);
+	}
+
+	/**
+	 * @return The SQL condition on the FILES table. It does not include
+	 * {@link #ITEM_TYPES}.
+	 */
+	public String getCondition() {
+		return condition;
+	}
+
+	/**
+	 * @return The values of the parameters in the condition, in order.
+	 */
+	public List<Object> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return True if the criteria match every item.
+	 */
+	public boolean isMatchAll() {
+		return TRUE.equals(condition);
+	}
+
+	@Override
+	public String toString() {
+		return criteria;
+	}
+
+	private String parseOr(List<Object> params) throws ParseException {
+		String left = parseAnd(params);
+
+		while (isKeyword("or")) {
+			next();
+			left = "(" + left + " OR " + parseAnd(params) + ")";
+		}
+
+		return left;
+	}
+
+	private String parseAnd(List<Object> params) throws ParseException {
+		String left = parsePrimary(params);
+
+		while (isKeyword("and")) {
+			next();
+			left = "(" + left + " AND " + parsePrimary(params) + ")";
+		}
+
+		return left;
+	}
+
+	private String parsePrimary(List<Object> params) throws ParseException {
+		if (isSymbol("(")) {
+			next();
+			String expression = parseOr(params);
+
+			if (!isSymbol(")")) {
+				throw expected("\")\"");
+			}
+
+			next();
+			return expression;
+		}
+
+		if (token == null || tokenQuoted) {
+			throw expected("property");
+		}
+
+		String property = token.toLowerCase(Locale.ENGLISH);
+		next();
+
+		if (token == null || tokenQuoted) {
+			throw expected("operator");
+		}
+
+		String operator = token.toLowerCase(Locale.ENGLISH);
+		next();
+
+		if (operator.equals("exists")) {
+			if (!isKeyword("true") && !isKeyword("false")) {
+				throw expected("true or false");
+			}
+
+			boolean exists = isKeyword("true");
+			next();
+			return exists(property, exists);
+		}
+
+		if (token == null || !tokenQuoted) {
+			throw expected("quoted value");
+		}
+
+		String value = token;
+		next();
+
+		if (property.equals("upnp:class")) {
+			return matchClass(operator, value);
+		}
+
+		String column = AUDIO_COLUMNS.get(property);
+
+		if (column == null) {
+			checkOperator(operator);
+			return FALSE;
+		}
+
+		String condition = matchAudio(column, operator, value, params);
+
+		// Files without tags are listed under their file name
+		if (property.equals("dc:title") && (operator.equals("contains") || operator.equals("doesnotcontain"))) {
+			String filename = "LOWER(FILENAME) LIKE ? ESCAPE '\\'";
+			params.add("%" + escapeLike(value.toLowerCase(Locale.ENGLISH)) + "%");
+
+			if (operator.equals("contains")) {
+				condition = "(" + condition + " OR " + filename + ")";
+			} else {
+				condition = "(" + condition + " AND NOT " + filename + ")";
+			}
+		}
+
+		return condition;
+	}
+
+	private String exists(String property, boolean exists) {
+		if (property.equals("upnp:class")) {
+			return exists ? TRUE : FALSE;
+		}
+
+		String column = AUDIO_COLUMNS.get(property);
+
+		if (column == null) {
+			return exists ? FALSE : TRUE;
+		}
+
+		return (exists ? "ID IN" : "ID NOT IN") + " (SELECT FILEID FROM AUDIOTRACKS WHERE " + column + " IS NOT NULL)";
+	}
+
+	/**
+	 * Matches the class of the items. The types are known in advance, so
+	 * the operator is evaluated here and the result is a condition on the
+	 * type.
+	 */
+	private String matchClass(String operator, String value) throws ParseException {
+		String expected = value.toLowerCase(Locale.ENGLISH);
+		StringBuilder types = new StringBuilder();
+		int matches = 0;
+
+		for (Map.Entry<String, Integer> entry : ITEM_CLASSES.entrySet()) {
+			String itemClass = entry.getKey();
+			boolean match;
+
+			if (operator.equals("=")) {
+				match = itemClass.equals(expected);
+			} else if (operator.equals("!=")) {
+				match = !itemClass.equals(expected);
+			} else if (operator.equals("derivedfrom")) {
+				match = itemClass.equals(expected) || itemClass.startsWith(expected + ".");
+			} else if (operator.equals("contains")) {
+				match = itemClass.contains(expected);
+			} else if (operator.equals("doesnotcontain")) {
+				match = !itemClass.contains(expected);
+			} else if (operator.equals("startswith")) {
+				match = itemClass.startsWith(expected);
+			} else {
+				checkOperator(operator);
+				match = false;
+			}
+
+			if (match) {
+				if (matches++ > 0) {
+					types.append(", ");
+				}
+
+				types.append(entry.getValue());
+			}
+		}
+
+		if (matches == 0) {
+			return FALSE;
+		} else if (matches == ITEM_CLASSES.size()) {
+			return TRUE;
+		}
+
+		return "TYPE IN (" + types + ")";
+	}
+
+	private String matchAudio(String column, String operator, String value, List<Object> params) throws ParseException {
+		String in = "ID IN (SELECT FILEID FROM AUDIOTRACKS WHERE ";
+		boolean numeric = NUMERIC_COLUMNS.contains(column);
+
+		if (operator.equals("contains") || operator.equals("doesnotcontain") || operator.equals("startswith")) {
+			if (numeric) {
+				return FALSE;
+			}
+
+			String pattern = escapeLike(value.toLowerCase(Locale.ENGLISH)) + "%";
+
+			if (!operator.equals("startswith")) {
+				pattern = "%" + pattern;
+			}
+
+			params.add(pattern);
+
+			if (operator.equals("doesnotcontain")) {
+				in = "ID NOT IN (SELECT FILEID FROM AUDIOTRACKS WHERE ";
+			}
+
+			return in + "LOWER(" + column + ") LIKE ? ESCAPE '\\')";
+		}
+
+		String relation;
+
+		if (operator.equals("=")) {
+			relation = " = ?";
+		} else if (operator.equals("!=")) {
+			relation = " <> ?";
+		} else if (operator.equals("<") || operator.equals("<=") || operator.equals(">") || operator.equals(">=")) {
+			relation = " " + operator + " ?";
+		} else {
+			checkOperator(operator);
+			return FALSE;
+		}
+
+		if (numeric) {
+			// Dates are matched on their year
+			Integer number = parseNumber(value);
+
+			if (number == null) {
+				return FALSE;
+			}
+
+			params.add(number);
+		} else {
+			params.add(value);
+		}
+
+		return in + column + relation + ")";
+	}
+
+	private static Integer parseNumber(String value) {
+		int end = 0;
+
+		while (end < value.length() && end < 9 && Character.isDigit(value.charAt(end))) {
+			end++;
+		}
+
+		if (end == 0) {
+			return null;
+		}
+
+		return Integer.valueOf(value.substring(0, end));
+	}
+
+	private static String escapeLike(String value) {
+		return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	private void checkOperator(String operator) throws ParseException {
+		if (!operator.equals("=") && !operator.equals("!=")
+			&& !operator.equals("<") && !operator.equals("<=")
+			&& !operator.equals(">") && !operator.equals(">=")
+			&& !operator.equals("contains") && !operator.equals("doesnotcontain")
+			&& !operator.equals("derivedfrom") && !operator.equals("startswith")
+		) {
+			throw new ParseException("Unknown operator \"" + operator + "\" in search criteria: " + criteria, tokenStart);
+		}
+	}
+
+	private boolean isKeyword(String keyword) {
+		return token != null && !tokenQuoted && token.equalsIgnoreCase(keyword);
+	}
+
+	private boolean isSymbol(String symbol) {
+		return token != null && !tokenQuoted && token.equals(symbol);
+	}
+
+	private ParseException expected(String what) {
+		return new ParseException(
+			"Expected " + what + (token == null ? " at the end" : " instead of \"" + token + "\"") + " of search criteria: " + criteria,
+			tokenStart
+		);
+	}
+
+	/**
+	 * Reads the next token: a parenthesis, a quoted value, an operator made
+	 * of <code>=!&lt;&gt;</code>, or a word. Sets the token to null at the
+	 * end of the criteria.
+	 */
+	private void next() throws ParseException {
+		int length = criteria.length();
+
+		while (position < length && Character.isWhitespace(criteria.charAt(position))) {
+			position++;
+		}
+
+		tokenStart = position;
+		tokenQuoted = false;
+
+		if (position == length) {
+			token = null;
+			return;
+		}
+
+		char c = criteria.charAt(position);
+
+		if (c == '(' || c == ')') {
+			token = String.valueOf(c);
+			position++;
+		} else if (c == '"') {
+			StringBuilder value = new StringBuilder();
+			position++;
+
+			while (true) {
+				if (position == length) {
+					throw new ParseException("Unterminated value in search criteria: " + criteria, tokenStart);
+				}
+
+				c = criteria.charAt(position++);
+
+				if (c == '"') {
+					break;
+				}
+
+				if (c == '\\' && position < length) {
+					c = criteria.charAt(position++);
+				}
+
+				value.append(c);
+			}
+
+			token = value.toString();
+			tokenQuoted = true;
+		} else if (isOperatorChar(c)) {
+			while (position < length && isOperatorChar(criteria.charAt(position))) {
+				position++;
+			}
+
+			token = criteria.substring(tokenStart, position);
+		} else {
+			while (position < length) {
+				c = criteria.charAt(position);
+
+				if (Character.isWhitespace(c) || c == '(' || c == ')' || c == '"' || isOperatorChar(c)) {
+					break;
+				}
+
+				position++;
+			}
+
+			token = criteria.substring(tokenStart, position);
+		}
+	}
+
+	private static boolean isOperatorChar(char c) {
+		return c == '=' || c == '!' || c == '<' || c == '>';
+	}
+}
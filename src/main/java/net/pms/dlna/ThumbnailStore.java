@@ -0,0 +1,338 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Stores thumbnails on disk, named after the SHA-1 hash of their content, so
+ * that the database and {@link DLNAMediaInfo} only need to keep the hash.
+ * Identical thumbnails, e.g. the cover art of all tracks of an album, are
+ * stored once. The files are spread over two levels of subdirectories named
+ * after the first characters of the hash. When the store grows beyond its
+ * maximum size, the least recently used thumbnails are deleted.
+ */
+public class ThumbnailStore {
+	private static final Logger logger = LoggerFactory.getLogger(ThumbnailStore.class);
+	private static final String DIRECTORY_NAME = "thumbnails";
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+	private static ThumbnailStore instance;
+
+	private final File directory;
+	private final long maxSize;
+
+	/**
+	 * The size of each thumbnail by hash, least recently used first; a used
+	 * thumbnail is removed and added again. Loaded from the directory on
+	 * first use.
+	 */
+	private LinkedHashMap<String, Long> entries;
+	private long size;
+
+	/**
+	 * Returns the store in the profile directory, sized according to the
+	 * configuration.
+	 */
+	public static synchronized ThumbnailStore getInstance() {
+		if (instance == null) {
+			PmsConfiguration configuration = PMS.getConfiguration();
+			instance = new ThumbnailStore(
+				new File(configuration.getProfileDirectory(), DIRECTORY_NAME),
+				configuration.getThumbnailCacheSize() * 1024L * 1024L
+			);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Replaces the store, e.g. with one in a temporary directory for tests.
+	 */
+	static synchronized void setInstance(ThumbnailStore store) {
+		instance = store;
+	}
+
+	/**
+	 * @param directory The directory to store the thumbnails in.
+	 * @param maxSize The maximum total size of the thumbnails in bytes.
+	 */
+	public ThumbnailStore(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Stores a thumbnail, unless the same thumbnail is already stored. The
+	 * file is written and old thumbnails are deleted without holding the
+	 * lock of the store, so other threads can use it meanwhile.
+	 *
+	 * @param data The thumbnail.
+	 * @return The hash of the thumbnail, or null if it could not be stored.
+	 */
+	public String put(byte[] data) {
+		String hash = DigestUtils.sha1Hex(data);
+		File file = toFile(hash);
+		boolean known;
+
+		synchronized (this) {
+			load();
+			known = entries.containsKey(hash);
+
+			if (known) {
+				// Mark as recently used
+				entries.put(hash, entries.remove(hash));
+			}
+		}
+
+		if (known && file.exists()) {
+			return hash;
+		}
+
+		File temp = null;
+
+		try {
+			// Unique, so threads storing the same thumbnail don't collide
+			FileUtils.forceMkdir(file.getParentFile());
+			temp = File.createTempFile(hash, ".tmp", file.getParentFile());
+			FileUtils.writeByteArrayToFile(temp, data);
+
+			if (!temp.renameTo(file)) {
+				FileUtils.deleteQuietly(temp);
+
+				if (!file.exists()) {
+					logger.debug("Could not store thumbnail " + file.getAbsolutePath());
+					return null;
+				}
+			}
+		} catch (IOException e) {
+			logger.debug("Could not store thumbnail " + file.getAbsolutePath() + ": " + e.getMessage());
+			FileUtils.deleteQuietly(temp);
+			return null;
+		}
+
+		List<File> evicted;
+
+		synchronized (this) {
+			Long previous = entries.remove(hash);
+
+			if (previous != null) {
+				size -= previous;
+			}
+
+			entries.put(hash, (long) data.length);
+			size += data.length;
+			evicted = evict(hash);
+		}
+
+		delete(evicted);
+		return hash;
+	}
+
+	/**
+	 * Returns the file of a stored thumbnail and marks it as recently used.
+	 *
+	 * @param hash The hash of the thumbnail.
+	 * @return The file, or null if the thumbnail is not stored (anymore).
+	 */
+	public File getFile(String hash) {
+		if (hash == null || !HASH.matcher(hash).matches()) {
+			return null;
+		}
+
+		File file = toFile(hash);
+		long length = file.length();
+
+		synchronized (this) {
+			load();
+			Long previous = entries.remove(hash);
+
+			if (previous != null) {
+				size -= previous;
+			}
+
+			// A thumbnail that was evicted meanwhile has no length
+			if (length > 0) {
+				entries.put(hash, length);
+				size += length;
+				return file;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads a stored thumbnail.
+	 *
+	 * @param hash The hash of the thumbnail.
+	 * @return The thumbnail, or null if it is not stored (anymore).
+	 */
+	public byte[] read(String hash) {
+		File file = getFile(hash);
+
+		if (file != null) {
+			try {
+				return FileUtils.readFileToByteArray(file);
+			} catch (IOException e) {
+				logger.debug("Could not read thumbnail " + file.getAbsolutePath() + ": " + e.getMessage());
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return The total size of the stored thumbnails in bytes.
+	 */
+	public synchronized long getSize() {
+		load();
+		return size;
+	}
+
+	/**
+	 * Returns a strong entity tag for a thumbnail file. Stored thumbnails are
+	 * tagged with their hash; other files, e.g. cover images next to the
+	 * media, with their modification time and length.
+	 *
+	 * @param file The thumbnail file.
+	 * @return The quoted entity tag.
+	 */
+	public static String getETag(File file) {
+		String name = file.getName();
+		File parent = file.getParentFile();
+
+		if (HASH.matcher(name).matches() && parent != null && parent.getName().equals(name.substring(2, 4))) {
+			return "\"" + name + "\"";
+		}
+
+		return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+	}
+
+	private File toFile(String hash) {
+		return new File(new File(new File(directory, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+	}
+
+	/**
+	 * Reads the thumbnails that are already stored, oldest first, since the
+	 * order in which they were used is not known after a restart.
+	 */
+	private void load() {
+		if (entries != null) {
+			return;
+		}
+
+		entries = new LinkedHashMap<String, Long>();
+		size = 0;
+		List<File> files = new ArrayList<File>();
+		File[] shards = directory.listFiles();
+
+		if (shards != null) {
+			for (File shard : shards) {
+				File[] subShards = shard.listFiles();
+
+				if (subShards != null) {
+					for (File subShard : subShards) {
+						File[] thumbnails = subShard.listFiles();
+
+						if (thumbnails != null) {
+							for (File thumbnail : thumbnails) {
+								if (HASH.matcher(thumbnail.getName()).matches()) {
+									files.add(thumbnail);
+								} else {
+									// Left over from an interrupted write
+									FileUtils.deleteQuietly(thumbnail);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+			}
+		});
+
+		for (File file : files) {
+			entries.put(file.getName(), file.length());
+			size += file.length();
+		}
+
+		logger.debug("Thumbnail store contains " + entries.size() + " thumbnails (" + size + " bytes)");
+		delete(evict(null));
+	}
+
+	/**
+	 * Removes the least recently used thumbnails from the store until it
+	 * fits in its maximum size again. Their files are not deleted yet, so
+	 * that this can be done without holding the lock.
+	 *
+	 * @param keep A thumbnail that must not be removed, or null.
+	 * @return The files of the removed thumbnails.
+	 */
+	private List<File> evict(String keep) {
+		List<File> evicted = new ArrayList<File>();
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+		while (size > maxSize && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+
+			if (entry.getKey().equals(keep)) {
+				continue;
+			}
+
+			evicted.add(toFile(entry.getKey()));
+			size -= entry.getValue();
+			iterator.remove();
+		}
+
+		return evicted;
+	}
+
+	/**
+	 * Deletes the files of evicted thumbnails. One that could not be deleted
+	 * is found again when the store is loaded the next time.
+	 */
+	private static void delete(List<File> files) {
+		for (File file : files) {
+			if (!file.delete() && file.exists()) {
+				logger.debug("Could not delete thumbnail " + file.getAbsolutePath());
+			}
+		}
+	}
+}
@@ -0,0 +1,407 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.encoders.Player;
+import net.pms.io.OutputParams;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps completed transcodes on disk, so that an item that is played again,
+ * or seeked in, is read from disk instead of being transcoded again.
+ * <p>
+ * The output of a transcode is copied to a temporary file while it is
+ * streamed. Only when the transcoder reached the end of the item and exited
+ * normally, the file is renamed after the SHA-1 hash of the key of the
+ * transcode (see {@link #createKey}). When the cache grows beyond its
+ * maximum size, the least recently used transcodes are deleted.
+ */
+public class TranscodeCache {
+	private static final Logger logger = LoggerFactory.getLogger(TranscodeCache.class);
+	private static final String DIRECTORY_NAME = "transcodes";
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+	private static TranscodeCache instance;
+	private static boolean initialized;
+
+	private final File directory;
+	private final long maxSize;
+	private int entryCounter;
+
+	/**
+	 * The size of each transcode by hash, least recently used first; a used
+	 * transcode is removed and added again. Loaded from the directory on
+	 * first use.
+	 */
+	private LinkedHashMap<String, Long> entries;
+	private long size;
+
+	/**
+	 * Returns the cache in the profile directory, sized according to the
+	 * configuration.
+	 *
+	 * @return The cache, or null if it is disabled.
+	 */
+	public static synchronized TranscodeCache getInstance() {
+		if (!initialized) {
+			PmsConfiguration configuration = PMS.getConfiguration();
+
+			if (configuration.getTranscodeCacheSize() > 0) {
+				instance = new TranscodeCache(
+					new File(configuration.getProfileDirectory(), DIRECTORY_NAME),
+					configuration.getTranscodeCacheSize() * 1024L * 1024L
+				);
+			}
+
+			initialized = true;
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param directory The directory to store the transcodes in.
+	 * @param maxSize The maximum total size of the transcodes in bytes.
+	 */
+	public TranscodeCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Creates the key of the complete transcode of a resource, i.e. without
+	 * its time range. Besides the settings that determine the output, the
+	 * key contains the modification time of the resource, so a changed file
+	 * is transcoded again.
+	 *
+	 * @param resource The resource that is transcoded.
+	 * @param player The player that transcodes it.
+	 * @param params The parameters of the transcode.
+	 * @return The key, or null if the transcode can not be cached.
+	 */
+	public static String createKey(DLNAResource resource, Player player, OutputParams params) {
+		double timeseek = params.timeseek;
+		double timeend = params.timeend;
+
+		try {
+			params.timeseek = 0;
+			params.timeend = 0;
+			String key = TranscodeSessions.createKey(resource, player, params);
+			return key != null ? key + "|" + resource.getLastModified() : null;
+		} finally {
+			params.timeseek = timeseek;
+			params.timeend = timeend;
+		}
+	}
+
+	/**
+	 * Returns the file of a cached transcode and marks it as recently used.
+	 *
+	 * @param key The key of the transcode.
+	 * @return The file, or null if the transcode is not cached (anymore).
+	 */
+	public File getFile(String key) {
+		String hash = DigestUtils.sha1Hex(key);
+		File file = new File(directory, hash);
+
+		synchronized (this) {
+			load();
+			Long length = entries.remove(hash);
+
+			if (length != null) {
+				if (file.exists()) {
+					entries.put(hash, length);
+					return file;
+				}
+
+				size -= length;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Creates an entry to copy the output of a transcode to. The entry is
+	 * added to the cache when both the stream and the process ended
+	 * successfully, see {@link Entry#endOfStream} and
+	 * {@link Entry#endOfProcess}.
+	 *
+	 * @param key The key of the transcode.
+	 * @return The entry.
+	 */
+	public Entry createEntry(String key) {
+		synchronized (this) {
+			load();
+			return new Entry(DigestUtils.sha1Hex(key), entryCounter++);
+		}
+	}
+
+	/**
+	 * @return The total size of the cached transcodes in bytes.
+	 */
+	public synchronized long getSize() {
+		load();
+		return size;
+	}
+
+	/**
+	 * Adds a completed entry to the cache.
+	 */
+	private synchronized void commit(String hash, File temp, long length) {
+		File file = new File(directory, hash);
+		Long previous = entries.remove(hash);
+
+		if (previous != null) {
+			size -= previous;
+		}
+
+		FileUtils.deleteQuietly(file);
+
+		if (!temp.renameTo(file)) {
+			logger.debug("Could not store transcode " + file.getAbsolutePath());
+			FileUtils.deleteQuietly(temp);
+			return;
+		}
+
+		entries.put(hash, length);
+		size += length;
+		logger.debug("Cached transcode " + file.getName() + " (" + length + " bytes)");
+		evict(hash);
+	}
+
+	/**
+	 * Reads the transcodes that are already stored, oldest first, since the
+	 * order in which they were used is not known after a restart.
+	 */
+	private void load() {
+		if (entries != null) {
+			return;
+		}
+
+		entries = new LinkedHashMap<String, Long>();
+		size = 0;
+		List<File> files = new ArrayList<File>();
+		File[] stored = directory.listFiles();
+
+		if (stored != null) {
+			for (File file : stored) {
+				if (HASH.matcher(file.getName()).matches()) {
+					files.add(file);
+				} else {
+					// Left over from an interrupted transcode
+					FileUtils.deleteQuietly(file);
+				}
+			}
+		}
+
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+			}
+		});
+
+		for (File file : files) {
+			entries.put(file.getName(), file.length());
+			size += file.length();
+		}
+
+		logger.debug("Transcode cache contains " + entries.size() + " transcodes (" + size + " bytes)");
+		evict(null);
+	}
+
+	/**
+	 * Deletes the least recently used transcodes until the cache fits in its
+	 * maximum size again.
+	 *
+	 * @param keep A transcode that must not be deleted, or null.
+	 */
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+		while (size > maxSize && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+
+			if (entry.getKey().equals(keep)) {
+				continue;
+			}
+
+			File file = new File(directory, entry.getKey());
+
+			// Renderers that are still reading it keep their open handle
+			if (file.delete() || !file.exists()) {
+				size -= entry.getValue();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * A transcode that is being written to the cache. Write errors do not
+	 * interrupt the transcode, they only make the entry fail.
+	 */
+	public class Entry extends OutputStream {
+		private final String hash;
+		private final File temp;
+		private OutputStream output;
+		private Object owner;
+		private long length;
+		private boolean failed;
+		private boolean streamEnded;
+		private boolean processEnded;
+
+		private Entry(String hash, int number) {
+			this.hash = hash;
+			this.temp = new File(directory, hash + "." + number + ".part");
+		}
+
+		/**
+		 * Makes an object the only one that writes to and ends this entry,
+		 * since the parameters that hold the entry may be shared by several
+		 * processes of one transcode.
+		 *
+		 * @param process The object that claims the entry.
+		 * @return True if the entry was not claimed by another object yet.
+		 */
+		public synchronized boolean claim(Object process) {
+			if (owner == null) {
+				owner = process;
+			}
+
+			return owner == process;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			if (failed) {
+				return;
+			}
+
+			if (length + len > maxSize) {
+				logger.debug("Transcode is too large for the cache");
+				fail();
+				return;
+			}
+
+			try {
+				if (output == null) {
+					FileUtils.forceMkdir(directory);
+					output = new FileOutputStream(temp);
+				}
+
+				output.write(b, off, len);
+				length += len;
+			} catch (IOException e) {
+				logger.debug("Could not write transcode " + temp.getAbsolutePath() + ": " + e.getMessage());
+				fail();
+			}
+		}
+
+		/**
+		 * Reports that all output was written, or that reading it failed.
+		 *
+		 * @param complete True if the output was read to its end.
+		 */
+		public synchronized void endOfStream(boolean complete) {
+			streamEnded = true;
+			end(complete);
+		}
+
+		/**
+		 * Reports how the process ended.
+		 *
+		 * @param success True if the process exited normally.
+		 */
+		public synchronized void endOfProcess(boolean success) {
+			processEnded = true;
+			end(success);
+		}
+
+		/**
+		 * Discards the entry.
+		 */
+		@Override
+		public synchronized void close() {
+			fail();
+		}
+
+		private void end(boolean success) {
+			if (failed) {
+				return;
+			}
+
+			if (!success) {
+				fail();
+			} else if (streamEnded && processEnded) {
+				failed = !closeOutput() || length == 0;
+
+				if (failed) {
+					FileUtils.deleteQuietly(temp);
+				} else {
+					commit(hash, temp, length);
+				}
+			}
+		}
+
+		private void fail() {
+			if (!failed) {
+				failed = true;
+				closeOutput();
+				FileUtils.deleteQuietly(temp);
+			}
+		}
+
+		private boolean closeOutput() {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					logger.debug("Could not close transcode " + temp.getAbsolutePath() + ": " + e.getMessage());
+					return false;
+				} finally {
+					output = null;
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import net.pms.PMS;
+import net.pms.encoders.Player;
+import net.pms.io.OutputParams;
+import net.pms.io.ProcessWrapper;
+import net.pms.io.ProcessWrapperImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-wide registry of the running transcodes, so that renderers that
+ * play the same item with the same renderer profile share one transcoding
+ * process instead of starting identical ones.
+ * <p>
+ * Every renderer browses its own tree of resources, so a transcode is
+ * identified by what determines its output: the source, the player, the
+ * renderer profile, the audio and subtitle tracks and the time range. A
+ * resource that starts playing looks for a running transcode with the same
+ * key and, if its buffer still holds the data from the requested position,
+ * reads from it as an additional reader. The process is only stopped once
+ * none of its resources use it anymore; its buffer likewise keeps it running
+ * until its last reader is gone.
+ */
+public class TranscodeSessions {
+	private static final Logger logger = LoggerFactory.getLogger(TranscodeSessions.class);
+	private static final TranscodeSessions instance = new TranscodeSessions();
+
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+
+	private static class Session {
+		/**
+		 * The process, or null while it is being started.
+		 */
+		ProcessWrapper process;
+		final Set<DLNAResource> users = Collections.newSetFromMap(new IdentityHashMap<DLNAResource, Boolean>());
+	}
+
+	TranscodeSessions() {
+	}
+
+	/**
+	 * @return The registry shared by all renderers.
+	 */
+	public static TranscodeSessions getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Creates the key of a transcode.
+	 *
+	 * @param resource The resource that is transcoded.
+	 * @param player The player that transcodes it.
+	 * @param params The parameters of the transcode.
+	 * @return The key, or null if the transcode can not be shared.
+	 */
+	public static String createKey(DLNAResource resource, Player player, OutputParams params) {
+		String source = resource.getSystemName();
+
+		if (source == null || player == null || params.mediaRenderer == null) {
+			return null;
+		}
+
+		StringBuilder key = new StringBuilder();
+		key.append(source);
+		key.append('|').append(player.id());
+		key.append('|').append(params.mediaRenderer.getRendererName());
+
+		if (params.aid != null) {
+			key.append("|a").append(params.aid.getId()).append(':').append(params.aid.getLang());
+		}
+
+		if (params.sid != null) {
+			key.append("|s").append(params.sid.getId()).append(':').append(params.sid.getLang());
+			key.append(':').append(params.sid.getType());
+
+			if (params.sid.getExternalFile() != null) {
+				key.append(':').append(params.sid.getExternalFile().getAbsolutePath());
+			}
+		}
+
+		key.append("|t").append(params.timeseek).append('-').append(params.timeend);
+		key.append('|').append(params.shift_scr);
+		return key.toString();
+	}
+
+	/**
+	 * Looks for a running transcode a resource can read from. If the
+	 * transcode is still being started by another resource, waits for it.
+	 * When this returns null, the caller must start the transcode itself and
+	 * report it with {@link #register}, also when starting it fails.
+	 * <p>
+	 * Transcodes are never shared when they block multiple connections,
+	 * since their buffer then only has room for one reader.
+	 *
+	 * @param key The key of the transcode.
+	 * @param user The resource that wants to read it.
+	 * @param position The position in bytes the resource will read from.
+	 * @return The process, or null if there is none that can be shared.
+	 * @throws InterruptedException
+	 */
+	public ProcessWrapper attach(String key, DLNAResource user, long position) throws InterruptedException {
+		if (PMS.getConfiguration().getTrancodeBlocksMultipleConnections()) {
+			return null;
+		}
+
+		synchronized (this) {
+			Session session = sessions.get(key);
+
+			while (session != null && session.process == null) {
+				wait();
+				session = sessions.get(key);
+			}
+
+			if (session != null && !session.process.isDestroyed()) {
+				if (session.process instanceof ProcessWrapperImpl && ((ProcessWrapperImpl) session.process).isBuffered(position)) {
+					session.users.add(user);
+					logger.debug("Sharing the transcode of {} with {} other reader(s)", user.getName(), session.users.size() - 1);
+					return session.process;
+				}
+
+				// Too far behind, start another transcode but leave this
+				// one to its users
+				return null;
+			}
+
+			// This caller starts the transcode, others wait for it
+			sessions.put(key, new Session());
+			return null;
+		}
+	}
+
+	/**
+	 * Registers a transcode that a resource started after
+	 * {@link #attach} returned null.
+	 *
+	 * @param key The key of the transcode.
+	 * @param user The resource that started it.
+	 * @param process The process, or null if it could not be started.
+	 */
+	public synchronized void register(String key, DLNAResource user, ProcessWrapper process) {
+		Session session = sessions.get(key);
+
+		if (process == null) {
+			if (session != null && session.process == null) {
+				sessions.remove(key);
+			}
+		} else if (session == null || session.process == null || session.process.isDestroyed()) {
+			session = new Session();
+			session.process = process;
+			session.users.add(user);
+			sessions.put(key, session);
+		}
+
+		purge();
+		notifyAll();
+	}
+
+	/**
+	 * Stops a resource from using a transcode, e.g. because it seeks.
+	 *
+	 * @param user The resource.
+	 * @param process The process it used.
+	 * @return True if other resources still use the process, so it must not
+	 * be stopped.
+	 */
+	public synchronized boolean release(DLNAResource user, ProcessWrapper process) {
+		for (Iterator<Session> iterator = sessions.values().iterator(); iterator.hasNext();) {
+			Session session = iterator.next();
+
+			if (session.process == process) {
+				session.users.remove(user);
+
+				if (!session.users.isEmpty()) {
+					return true;
+				}
+
+				iterator.remove();
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Forgets the transcodes that have ended.
+	 */
+	private void purge() {
+		for (Iterator<Session> iterator = sessions.values().iterator(); iterator.hasNext();) {
+			Session session = iterator.next();
+
+			if (session.process != null && session.process.isDestroyed()) {
+				iterator.remove();
+			}
+		}
+	}
+}
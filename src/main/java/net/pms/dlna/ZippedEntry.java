@@ -161,8 +161,10 @@ public class ZippedEntry extends DLNAResource implements IPushOutput {
 
 	@Override
 	public InputStream getThumbnailInputStream() throws IOException {
-		if (getMedia() != null && getMedia().getThumb() != null) {
-			return getMedia().getThumbnailInputStream();
+		InputStream thumbnail = getMedia() != null ? getMedia().getThumbnailInputStream() : null;
+
+		if (thumbnail != null) {
+			return thumbnail;
 		} else {
 			return super.getThumbnailInputStream();
 		}
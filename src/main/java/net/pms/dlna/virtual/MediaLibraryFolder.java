@@ -5,6 +5,9 @@ import net.pms.dlna.*;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class MediaLibraryFolder extends VirtualFolder {
 	public static final int FILES = 0;
@@ -15,6 +18,21 @@ public class MediaLibraryFolder extends VirtualFolder {
 	private int expectedOutputs[];
 	private DLNAMediaDatabase database;
 
+	/**
+	 * The version of the database the children were last updated from.
+	 */
+	private long libraryVersion = -1;
+
+	/**
+	 * Children for the rows of the query, by file name and modification time.
+	 */
+	private final Map<String, DLNAResource> fileChildren = new HashMap<String, DLNAResource>();
+
+	/**
+	 * Subfolders for the values of the query, by name.
+	 */
+	private final Map<String, DLNAResource> textChildren = new HashMap<String, DLNAResource>();
+
 	public MediaLibraryFolder(String name, String sql, int expectedOutput) {
 		this(name, new String[]{sql}, new int[]{expectedOutput});
 	}
@@ -31,46 +49,7 @@ public class MediaLibraryFolder extends VirtualFolder {
 
 	@Override
 	public void discoverChildren() {
-		if (sqls.length > 0) {
-			String sql = sqls[0];
-			int expectedOutput = expectedOutputs[0];
-			if (sql != null) {
-				sql = transformSQL(sql);
-				if (expectedOutput == FILES) {
-					ArrayList<File> list = database.getFiles(sql);
-					if (list != null) {
-						for (File f : list) {
-							addChild(new RealFile(f));
-						}
-					}
-				} else if (expectedOutput == PLAYLISTS) {
-					ArrayList<File> list = database.getFiles(sql);
-					if (list != null) {
-						for (File f : list) {
-							addChild(new PlaylistFolder(f));
-						}
-					}
-				} else if (expectedOutput == ISOS) {
-					ArrayList<File> list = database.getFiles(sql);
-					if (list != null) {
-						for (File f : list) {
-							addChild(new DVDISOFile(f));
-						}
-					}
-				} else if (expectedOutput == TEXTS) {
-					ArrayList<String> list = database.getStrings(sql);
-					if (list != null) {
-						for (String s : list) {
-							String sqls2[] = new String[sqls.length - 1];
-							int expectedOutputs2[] = new int[expectedOutputs.length - 1];
-							System.arraycopy(sqls, 1, sqls2, 0, sqls2.length);
-							System.arraycopy(expectedOutputs, 1, expectedOutputs2, 0, expectedOutputs2.length);
-							addChild(new MediaLibraryFolder(s, sqls2, expectedOutputs2));
-						}
-					}
-				}
-			}
-		}
+		updateChildren();
 	}
 
 	private String transformSQL(String sql) {
@@ -98,119 +77,94 @@ public class MediaLibraryFolder extends VirtualFolder {
 		return name;
 	}
 
+	/**
+	 * The children only change when the files in the database do.
+	 */
 	@Override
 	public boolean isRefreshNeeded() {
-		return true;
+		return database.getLibraryVersion() != libraryVersion;
 	}
 
 	@Override
 	public void doRefreshChildren() {
-		ArrayList<File> list = null;
-		ArrayList<String> strings = null;
-		int expectedOutput = 0;
-
-		if (sqls.length > 0) {
-			String sql = sqls[0];
-			expectedOutput = expectedOutputs[0];
-			if (sql != null) {
-				sql = transformSQL(sql);
-				if (expectedOutput == FILES || expectedOutput == PLAYLISTS || expectedOutput == ISOS) {
-					list = database.getFiles(sql);
-				} else if (expectedOutput == TEXTS) {
-					strings = database.getStrings(sql);
-				}
-			}
-		}
-
-		ArrayList<File> addedFiles = new ArrayList<File>();
-		ArrayList<String> addedString = new ArrayList<String>();
-		ArrayList<DLNAResource> removedFiles = new ArrayList<DLNAResource>();
-		ArrayList<DLNAResource> removedString = new ArrayList<DLNAResource>();
-		int i = 0;
-
-		if (list != null) {
-			for (File file : list) {
-				boolean present = false;
+		updateChildren();
+	}
 
-				for (DLNAResource dlna : getChildren()) {
-					if (i == 0 && (!(dlna instanceof VirtualFolder) || (dlna instanceof MediaLibraryFolder))) {
-						removedFiles.add(dlna);
-					}
+	/**
+	 * Runs the query of this folder and brings the children in line with
+	 * the result. Children are matched by file name and modification time,
+	 * or by name for subfolders, so unchanged children are kept.
+	 */
+	private void updateChildren() {
+		// Read the version first, changes during the query are picked up
+		// by the next refresh
+		long version = database.getLibraryVersion();
+
+		if (sqls.length > 0 && sqls[0] != null) {
+			String sql = transformSQL(sqls[0]);
+			int expectedOutput = expectedOutputs[0];
 
-					String name = dlna.getName();
-					long lm = dlna.getLastModified();
-					boolean videoTSHack = false;
+			if (expectedOutput == TEXTS) {
+				ArrayList<String> strings = database.getStrings(sql);
 
-					if (dlna instanceof DVDISOFile) {
-						DVDISOFile dvdISOFile = (DVDISOFile) dlna;
-						// XXX DVDISOFile has inconsistent ideas of what constitutes a VIDEO_TS folder
-						videoTSHack = dvdISOFile.getFilename().equals(file.getName());
-					}
+				if (strings == null) {
+					return;
+				}
 
-					if ((file.getName().equals(name) || videoTSHack) && file.lastModified() == lm) {
-						removedFiles.remove(dlna);
-						present = true;
+				Map<String, DLNAResource> removed = new HashMap<String, DLNAResource>(textChildren);
+
+				for (String s : strings) {
+					if (removed.remove(s) == null) {
+						String sqls2[] = new String[sqls.length - 1];
+						int expectedOutputs2[] = new int[expectedOutputs.length - 1];
+						System.arraycopy(sqls, 1, sqls2, 0, sqls2.length);
+						System.arraycopy(expectedOutputs, 1, expectedOutputs2, 0, expectedOutputs2.length);
+						MediaLibraryFolder folder = new MediaLibraryFolder(s, sqls2, expectedOutputs2);
+						addChild(folder);
+						textChildren.put(s, folder);
 					}
 				}
 
-				i++;
+				for (Map.Entry<String, DLNAResource> entry : removed.entrySet()) {
+					removeChildInternal(entry.getValue());
+					textChildren.remove(entry.getKey());
+				}
+			} else if (expectedOutput == FILES || expectedOutput == PLAYLISTS || expectedOutput == ISOS) {
+				LinkedHashMap<String, Long> files = database.getStoredFiles(sql);
 
-				if (!present) {
-					addedFiles.add(file);
+				if (files == null) {
+					return;
 				}
-			}
-		}
 
-		i = 0;
+				Map<String, DLNAResource> removed = new HashMap<String, DLNAResource>(fileChildren);
 
-		if (strings != null) {
-			for (String f : strings) {
-				boolean present = false;
-				for (DLNAResource d : getChildren()) {
-					if (i == 0 && (!(d instanceof VirtualFolder) || (d instanceof MediaLibraryFolder))) {
-						removedString.add(d);
-					}
-					String name = d.getName();
-					if (f.equals(name)) {
-						removedString.remove(d);
-						present = true;
-					}
-				}
-				i++;
-				if (!present) {
-					addedString.add(f);
-				}
-			}
-		}
+				for (Map.Entry<String, Long> file : files.entrySet()) {
+					String key = file.getKey() + '@' + file.getValue();
 
-		for (DLNAResource f : removedFiles) {
-			getChildren().remove(f);
-		}
+					if (removed.remove(key) == null) {
+						File f = new File(file.getKey());
+						DLNAResource child;
 
-		for (DLNAResource s : removedString) {
-			getChildren().remove(s);
-		}
+						if (expectedOutput == FILES) {
+							child = new RealFile(f);
+						} else if (expectedOutput == PLAYLISTS) {
+							child = new PlaylistFolder(f);
+						} else {
+							child = new DVDISOFile(f);
+						}
 
-		for (File f : addedFiles) {
-			if (expectedOutput == FILES) {
-				addChild(new RealFile(f));
-			} else if (expectedOutput == PLAYLISTS) {
-				addChild(new PlaylistFolder(f));
-			} else if (expectedOutput == ISOS) {
-				addChild(new DVDISOFile(f));
-			}
-		}
+						addChild(child);
+						fileChildren.put(key, child);
+					}
+				}
 
-		for (String f : addedString) {
-			if (expectedOutput == TEXTS) {
-				String sqls2[] = new String[sqls.length - 1];
-				int expectedOutputs2[] = new int[expectedOutputs.length - 1];
-				System.arraycopy(sqls, 1, sqls2, 0, sqls2.length);
-				System.arraycopy(expectedOutputs, 1, expectedOutputs2, 0, expectedOutputs2.length);
-				addChild(new MediaLibraryFolder(f, sqls2, expectedOutputs2));
+				for (Map.Entry<String, DLNAResource> entry : removed.entrySet()) {
+					removeChildInternal(entry.getValue());
+					fileChildren.remove(entry.getKey());
+				}
 			}
 		}
 
-		// return removedFiles.size() != 0 || addedFiles.size() != 0 || removedString.size() != 0 || addedString.size() != 0;
+		libraryVersion = version;
 	}
 }
@@ -1914,9 +1914,8 @@ public class MEncoderVideo extends Player {
 				pw.attachProcess(audioPipeProcess);
 				videoPipeProcess.runInNewThread();
 				audioPipeProcess.runInNewThread();
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException e) { }
+				// Both pipes are created the same way, waiting for one is enough
+				videoPipe.waitForPipe(50);
 				videoPipe.deleteLater();
 				audioPipe.deleteLater();
 			} else {
@@ -2083,11 +2082,7 @@ public class MEncoderVideo extends Player {
 				ProcessWrapper pipe_process = pipe.getPipeProcess();
 				pw.attachProcess(pipe_process);
 				pipe_process.runInNewThread();
-
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException e) {
-				}
+				pipe.waitForPipe(50);
 
 				pipe.deleteLater();
 				params.input_pipes[0] = pipe;
@@ -2095,11 +2090,7 @@ public class MEncoderVideo extends Player {
 				ProcessWrapper ff_pipe_process = ffAudioPipe.getPipeProcess();
 				pw.attachProcess(ff_pipe_process);
 				ff_pipe_process.runInNewThread();
-
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException e) {
-				}
+				ffAudioPipe.waitForPipe(50);
 
 				ffAudioPipe.deleteLater();
 				pw.attachProcess(ffAudio);
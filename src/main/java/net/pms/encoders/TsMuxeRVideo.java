@@ -678,20 +678,13 @@ public class TsMuxeRVideo extends Player {
 		ProcessWrapper pipe_process = tsPipe.getPipeProcess();
 		p.attachProcess(pipe_process);
 		pipe_process.runInNewThread();
-
-		try {
-			Thread.sleep(50);
-		} catch (InterruptedException e) {
-		}
+		tsPipe.waitForPipe(50);
 		tsPipe.deleteLater();
 
 		ProcessWrapper ff_pipe_process = ffVideoPipe.getPipeProcess();
 		p.attachProcess(ff_pipe_process);
 		ff_pipe_process.runInNewThread();
-		try {
-			Thread.sleep(50);
-		} catch (InterruptedException e) {
-		}
+		ffVideoPipe.waitForPipe(50);
 		ffVideoPipe.deleteLater();
 
 		p.attachProcess(ffVideo);
@@ -706,10 +699,7 @@ public class TsMuxeRVideo extends Player {
 				ff_pipe_process = ffAudioPipe[i].getPipeProcess();
 				p.attachProcess(ff_pipe_process);
 				ff_pipe_process.runInNewThread();
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException e) {
-				}
+				ffAudioPipe[i].waitForPipe(50);
 				ffAudioPipe[i].deleteLater();
 				p.attachProcess(ffAudio[i]);
 				ffAudio[i].runInNewThread();
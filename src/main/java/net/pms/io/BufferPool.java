@@ -0,0 +1,242 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Server-wide pool of fixed-size memory segments that hold transcoded data
+ * outside of the Java heap. Segments are allocated as direct buffers the
+ * first time they are needed and are recycled when a {@link SegmentedBuffer}
+ * is released, so steady state streaming does not allocate at all.
+ * <p>
+ * The total amount of memory is limited by a budget. Each buffer reserves
+ * its share of the budget up front with {@link #reserve(int)}. When the
+ * budget is exhausted, new buffers wait for running ones to be released
+ * instead of running out of memory; if that takes too long they settle for
+ * a smaller share, and if not even that becomes available they fail. Because a buffer never takes more segments than it has
+ * reserved, a buffer that is being written to never has to wait for
+ * another one.
+ */
+public class BufferPool {
+	private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+	/**
+	 * Size of a single segment in bytes. This must be a power of two.
+	 */
+	public static final int SEGMENT_SIZE = 1048576;
+
+	/**
+	 * Maximum time in milliseconds to wait for a full reservation before
+	 * accepting a partial one.
+	 */
+	private static final int RESERVE_TIMEOUT = 10000;
+
+	/**
+	 * Maximum time in milliseconds to wait for any reservation at all.
+	 * Renderers give up on a request long before this.
+	 */
+	private static final int MAX_RESERVE_WAIT = 30000;
+
+	/**
+	 * The minimum number of segments a partial reservation will accept.
+	 */
+	private static final int MIN_PARTIAL_RESERVATION = 16;
+
+	private static BufferPool instance;
+
+	private final LinkedList<ByteBuffer> freeSegments = new LinkedList<ByteBuffer>();
+	private final long reserveTimeout;
+	private final long maxReserveWait;
+	private int maxSegments;
+	private int reservedSegments;
+	private int allocatedSegments;
+	private int segmentsInUse;
+
+	/**
+	 * Returns the pool shared by all transcoding buffers, sized according to
+	 * {@link PmsConfiguration#getTranscodeBufferPoolSize()}.
+	 *
+	 * @return The shared pool.
+	 */
+	public static synchronized BufferPool getInstance() {
+		if (instance == null) {
+			PmsConfiguration configuration = PMS.getConfiguration();
+			long budget;
+
+			if (configuration != null) {
+				budget = 1048576L * configuration.getTranscodeBufferPoolSize();
+			} else {
+				budget = Runtime.getRuntime().maxMemory() / 2;
+			}
+
+			instance = new BufferPool(budget);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Creates a pool with the given budget.
+	 *
+	 * @param budget The maximum number of bytes the pool will hand out.
+	 */
+	public BufferPool(long budget) {
+		this(budget, RESERVE_TIMEOUT, MAX_RESERVE_WAIT);
+	}
+
+	/**
+	 * Creates a pool with the given budget and waiting times, for tests.
+	 */
+	BufferPool(long budget, long reserveTimeout, long maxReserveWait) {
+		maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / SEGMENT_SIZE));
+		this.reserveTimeout = reserveTimeout;
+		this.maxReserveWait = maxReserveWait;
+		logger.debug("Transcode buffer pool budget: " + maxSegments + " MB");
+	}
+
+	/**
+	 * Reserves part of the budget. Waits for other buffers to release their
+	 * reservations when the budget is exhausted. After waiting
+	 * {@link #RESERVE_TIMEOUT} milliseconds, a smaller reservation is accepted
+	 * as soon as a reasonable amount of segments is available. After
+	 * {@link #MAX_RESERVE_WAIT} milliseconds without one, it fails.
+	 *
+	 * @param segments The number of segments wanted.
+	 * @return The number of segments reserved, at least one.
+	 * @throws InterruptedException if the thread was interrupted while
+	 * waiting.
+	 * @throws IOException if no reservation became available in time.
+	 */
+	public synchronized int reserve(int segments) throws InterruptedException, IOException {
+		int wanted = Math.max(1, Math.min(segments, maxSegments));
+		long start = System.currentTimeMillis();
+		boolean waiting = false;
+
+		while (maxSegments - reservedSegments < wanted) {
+			int available = maxSegments - reservedSegments;
+			long waited = System.currentTimeMillis() - start;
+
+			if (waited >= reserveTimeout && available >= Math.min(wanted, MIN_PARTIAL_RESERVATION)) {
+				logger.info("Transcode buffer pool exhausted, using " + available + " MB instead of " + wanted + " MB");
+				wanted = available;
+				break;
+			}
+
+			if (waited >= maxReserveWait) {
+				logger.error("Transcode buffer pool exhausted, " + reservedSegments + " of " + maxSegments + " MB are in use");
+				throw new IOException("No transcode buffer memory available");
+			}
+
+			if (!waiting) {
+				logger.debug("Transcode buffer pool exhausted, waiting for " + wanted + " MB");
+				waiting = true;
+			}
+
+			wait(waited < reserveTimeout ? reserveTimeout - waited : maxReserveWait - waited);
+		}
+
+		reservedSegments += wanted;
+		return wanted;
+	}
+
+	/**
+	 * Gives back a reservation made with {@link #reserve(int)}.
+	 *
+	 * @param segments The number of segments to give back.
+	 */
+	public synchronized void unreserve(int segments) {
+		reservedSegments -= segments;
+		notifyAll();
+	}
+
+	/**
+	 * Hands out a segment, recycling a released one when possible. Callers
+	 * must stay within their reservation.
+	 *
+	 * @return A cleared segment of {@link #SEGMENT_SIZE} bytes.
+	 * @throws IOException if no direct memory could be allocated.
+	 */
+	public synchronized ByteBuffer acquire() throws IOException {
+		ByteBuffer segment = freeSegments.poll();
+
+		if (segment == null) {
+			try {
+				segment = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+			} catch (OutOfMemoryError e) {
+				// The JVM direct memory limit is lower than the budget, adjust
+				// the budget so future reservations fit.
+				logger.error("Cannot allocate transcode buffer segment, limiting pool to " + allocatedSegments + " MB. Consider raising -XX:MaxDirectMemorySize.", e);
+				maxSegments = Math.max(1, allocatedSegments);
+				throw new IOException("Transcode buffer pool is out of direct memory");
+			}
+
+			allocatedSegments++;
+		}
+
+		segmentsInUse++;
+		return segment;
+	}
+
+	/**
+	 * Returns a segment obtained from {@link #acquire()} to the pool.
+	 *
+	 * @param segment The segment.
+	 */
+	public synchronized void release(ByteBuffer segment) {
+		segment.clear();
+		freeSegments.addFirst(segment);
+		segmentsInUse--;
+	}
+
+	/**
+	 * @return The budget in segments.
+	 */
+	public synchronized int getMaxSegments() {
+		return maxSegments;
+	}
+
+	/**
+	 * @return The number of segments currently reserved by buffers.
+	 */
+	public synchronized int getReservedSegments() {
+		return reservedSegments;
+	}
+
+	/**
+	 * @return The number of segments allocated so far, in use or free.
+	 */
+	public synchronized int getAllocatedSegments() {
+		return allocatedSegments;
+	}
+
+	/**
+	 * @return The number of segments currently held by buffers.
+	 */
+	public synchronized int getSegmentsInUse() {
+		return segmentsInUse;
+	}
+}
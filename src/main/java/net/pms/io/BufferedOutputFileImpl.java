@@ -29,9 +29,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Circular memory buffer that can be used as {@link java.io.OutputStream OutputStream}
@@ -40,6 +46,19 @@ import java.util.TimerTask;
  * misleading, as there is typically no file involved in the process at all.
  * Instead, the buffer is typically used to hold data piped by a transcoding
  * process in one thread until a request for data comes in from another thread.
+ * <p>
+ * Readers and the writer do not poll: a reader waiting for data is woken up as
+ * soon as the writer has appended bytes, and a writer waiting for free space is
+ * woken up as soon as a reader has consumed some.
+ * <p>
+ * Several readers can share one transcode (see
+ * {@link net.pms.dlna.TranscodeSessions}). The writer then waits for the
+ * slowest reader that is still reading, and the transcode is only stopped
+ * once the last reader is gone.
+ * <p>
+ * For MPEG-PS and MPEG-TS output, the buffer keeps the position of every
+ * second of the stream, so that a time seek within the buffered data can be
+ * served from the buffer instead of restarting the transcode.
  * 
  * @see net.pms.io.ProcessWrapperImpl
  * @see net.pms.network.Request Request
@@ -50,28 +69,65 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 	private static final PmsConfiguration configuration = PMS.getConfiguration();
 
 	/**
-	 * Initial size for the buffer in bytes.
-	 * The current value is 50MB.
+	 * Read position in bytes after which the overflow margin is reduced
+	 * to {@link #MARGIN_MEDIUM}. The current value is 50MB.
 	 */
-	private static final int INITIAL_BUFFER_SIZE = 50000000;
+	private static final int REDUCED_MARGIN_THRESHOLD = 50000000;
 	
 	/**
-	 * Amount of extra bytes to increase the initial buffer with when memory
-	 * allocation fails.
+	 * Amount of bytes kept free in the buffer for a client that re-reads
+	 * data it has already received.
 	 */
 	private static final int MARGIN_LARGE = 20000000;
 	private static final int MARGIN_MEDIUM = 2000000;
 	private static final int MARGIN_SMALL = 600000;
+
+	/**
+	 * Maximum time in milliseconds to wait for a signal before re-checking
+	 * the buffer state. Signals normally arrive long before this.
+	 */
 	private static final int CHECK_INTERVAL = 500;
+
+	/**
+	 * Maximum time in milliseconds a reader waits for the minimum amount
+	 * of buffered data before it is served whatever is available.
+	 */
+	private static final int MAX_READ_WAIT = 15 * CHECK_INTERVAL;
 	private static final int CHECK_END_OF_PROCESS = 2500; // must be superior to CHECK_INTERVAL
+
+	/**
+	 * Time in milliseconds a buffer is kept after the end of the output when
+	 * nobody has started reading it. Callers that run a process in their own
+	 * thread only read its output after it has ended.
+	 */
+	private static final int UNREAD_BUFFER_TIMEOUT = CHECK_END_OF_PROCESS;
+
+	/**
+	 * Time in milliseconds after which a reader that does not read anymore,
+	 * e.g. a connection the renderer abandoned or a paused renderer, no
+	 * longer holds up the writer when there are other readers.
+	 */
+	private static final int IDLE_READER_TIMEOUT = 10000;
+
+	// Types of output, for the time index
+	private static final int STREAM_UNKNOWN = 0;
+	private static final int STREAM_PS = 1;
+	private static final int STREAM_TS = 2;
+	private static final int STREAM_OTHER = 3;
+
+	/**
+	 * Size of an MPEG-TS packet in bytes.
+	 */
+	private static final int TS_PACKET_SIZE = 188;
 	private int minMemorySize;
 	private int maxMemorySize;
 	private int bufferOverflowWarning;
-	private boolean eof;
-	private long writeCount;
-	private byte buffer[];
+	private volatile boolean eof;
+	private volatile long writeCount;
+	private SegmentedBuffer buffer;
 	private boolean forcefirst = (configuration.getTrancodeBlocksMultipleConnections() && configuration.getTrancodeKeepFirstConnections());
-	private ArrayList<WaitBufferedInputStream> inputStreams;
+	private List<WaitBufferedInputStream> inputStreams;
+	private volatile boolean read;
 	private ProcessWrapper attachedThread;
 	private int secondread_minsize;
 	private Timer timer;
@@ -84,85 +140,23 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 	private long packetpos = 0;
 
 	/**
-	 * Try to increase the size of a memory buffer, while retaining its
-	 * contents. The provided new size is considered to be a request, it is
-	 * scaled down when an OutOfMemory error occurs. There is no guarantee
-	 * about the exact length of the returned byte array, only that it is
-	 * greater than or equal to the original buffer size. When null is
-	 * passed as an argument, a fresh buffer will be allocated. Copying one
-	 * byte array to another is a costly operation, both in memory usage and
-	 * performance. It is best to avoid using this method.
-	 * 
-	 * @param buffer The byte array to resize, null is allowed.
-	 * @param newSize The requested final size. Should be greater than the
-	 * original size or the original buffer will be returned.
-	 * @return The resized byte array.
+	 * Position of the first packet of each second of video in the buffer, by
+	 * seconds since the start of the output. Guarded by {@link #lock}.
 	 */
-	private byte[] growBuffer(byte[] buffer, int newSize) {
-		byte[] copy;
-		
-		if (buffer == null) {
-			// Temporary empty array to avoid null tests in the code below
-			buffer = new byte[0];
-		}
-		
-		if (newSize <= buffer.length) {
-			// Cannot shrink the original
-			return buffer;
-		}
-		
-		try {
-			// Try to allocate the requested new size
-			copy = new byte[newSize];
-		} catch (OutOfMemoryError e) {
-			if (buffer.length == 0) {
-				logger.error("Cannot initialize buffer to " + formatter.format(newSize) + " bytes.", e);
-			} else {
-				logger.warn("Cannot grow buffer size from " + formatter.format(buffer.length) + " bytes to " + formatter.format(newSize) + " bytes.", e);
-			}
-
-			// Could not allocate the requested new size, use 30% of free memory instead.
-			// Rationale behind using 30%: multiple threads are running at the same time,
-			// we do not want one thread's memory usage to suffocate the others.
-			// Using maxMemory() to ignore the initial Java heap space size that freeMemory()
-			// takes into account.
-			// See http://javarevisited.blogspot.com/2011/05/java-heap-space-memory-size-jvm.html
-			long realisticSize = Runtime.getRuntime().maxMemory() * 3 / 10;
-			
-			if (realisticSize < buffer.length) {
-				// A copy would be smaller in size, shrinking instead of growing the buffer.
-				// Better to return the original and retain its size.
-				return buffer;
-			} else {
-				try {
-					// Try to allocate the realistic alternative size
-					copy = new byte[(int) realisticSize];
-				} catch (OutOfMemoryError e2) {
-					logger.error("Cannot grow buffer size from " + formatter.format(buffer.length) + " bytes to " + formatter.format(realisticSize) + " bytes either.", e2);
-					logger.error("freeMemory: " + formatter.format(Runtime.getRuntime().freeMemory()));
-					logger.error("totalMemory: " + formatter.format(Runtime.getRuntime().totalMemory()));
-					logger.error("maxMemory: " + formatter.format(Runtime.getRuntime().maxMemory()));
-
-					// Cannot allocate memory, no other option than to return the original.
-					return buffer;
-				}
-			}
-		}
+	private final TreeMap<Integer, Long> timeIndex = new TreeMap<Integer, Long>();
+	private int streamType = STREAM_UNKNOWN;
+	private long firstPts = -1;
+	private long lastPackPosition;
 
-		if (buffer.length == 0) {
-			logger.info("Successfully initialized buffer to " + formatter.format(copy.length) + " bytes.");
-		} else {
-			try {
-				System.arraycopy(buffer, 0, copy, 0, buffer.length);
-				logger.info("Successfully grown buffer from " + formatter.format(buffer.length) + " bytes to " + formatter.format(copy.length) + " bytes.");
-			} catch (Exception ex) {
-				logger.error("Cannot grow buffer size, error copying buffer contents.", ex);
-			}
-		}
+	/**
+	 * Guards the buffer contents and counters. The writer signals
+	 * {@link #dataAvailable} after appending bytes, readers signal
+	 * {@link #spaceAvailable} when they have advanced their read position.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition dataAvailable = lock.newCondition();
+	private final Condition spaceAvailable = lock.newCondition();
 
-		return copy;
-	}
-	
 	/**
 	 * Constructor to create a memory buffer based on settings that are
 	 * passed on. Will also start up a timer task to display buffer size and
@@ -173,7 +167,21 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 	 */
 	public BufferedOutputFileImpl(OutputParams params) {
 		this.minMemorySize = (int) (1048576 * params.minBufferSize);
-		this.maxMemorySize = (int) (1048576 * params.maxBufferSize);
+
+		try {
+			// May wait for other transcodes to finish when memory is tight,
+			// which also makes the capacity smaller than requested.
+			buffer = new SegmentedBuffer(BufferPool.getInstance(), (int) (1048576 * params.maxBufferSize));
+			logger.info("Initialized buffer to " + formatter.format(buffer.capacity()) + " bytes.");
+		} catch (InterruptedException e) {
+			logger.debug("Interrupted while waiting for buffer memory");
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// Readers get no data and the output of the process is dropped
+			logger.error("Cannot create transcode buffer: " + e.getMessage());
+		}
+
+		this.maxMemorySize = buffer != null ? buffer.capacity() : (int) (1048576 * params.maxBufferSize);
 
 		// FIXME: Better to relate margin directly to maxMemorySize instead of using arbitrary fixed values
 
@@ -191,24 +199,17 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		this.timeend = params.timeend;
 		this.shiftScr = params.shift_scr;
 
-		if ((maxMemorySize > INITIAL_BUFFER_SIZE) && !configuration.initBufferMax()) {
-			// Try to limit memory usage a bit.
-			// Start with a modest allocation initially, grow to max when needed later.
-			buffer = growBuffer(null, INITIAL_BUFFER_SIZE);
-		} else {
-			buffer = growBuffer(null, maxMemorySize);
+		if (buffer != null && configuration.initBufferMax()) {
+			// Segments are normally taken from the pool as the buffer fills up
+			try {
+				buffer.allocate(0, maxMemorySize);
+			} catch (IOException e) {
+				logger.warn("Cannot preallocate buffer: " + e.getMessage());
+			}
 		}
 
-		if (buffer.length == 0) {
-			// Cannot transcode without a buffer
-			logger.info("FATAL ERROR: OutOfMemory / dumping stats");
-			logger.trace("freeMemory: " + Runtime.getRuntime().freeMemory());
-			logger.trace("totalMemory: " + Runtime.getRuntime().totalMemory());
-			logger.trace("maxMemory: " + Runtime.getRuntime().maxMemory());
-			System.exit(1);			
-		}
-		
-		inputStreams = new ArrayList<WaitBufferedInputStream>();
+		// Readers come and go on the threads of different requests
+		inputStreams = new CopyOnWriteArrayList<WaitBufferedInputStream>();
 		timer = new Timer();
 
 		if (params.maxBufferSize > 15 && !params.hidebuffer) {
@@ -237,7 +238,34 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 	@Override
 	public void close() throws IOException {
 		logger.trace("EOF");
-		eof = true;
+		lock.lock();
+
+		try {
+			eof = true;
+			dataAvailable.signalAll();
+			spaceAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		if (!read) {
+			// Output that is never read, e.g. of a parse that only needs the
+			// messages of the process, would otherwise keep its share of the
+			// buffer pool forever, since only readers reset the buffer.
+			try {
+				timer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						if (!read) {
+							logger.trace("Releasing buffer that was not read");
+							reset();
+						}
+					}
+				}, UNREAD_BUFFER_TIMEOUT);
+			} catch (IllegalStateException e) {
+				// The buffer has been reset already
+			}
+		}
 	}
 
 	@Override
@@ -256,7 +284,110 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 
 		return wai;
 	}
-	
+
+	/**
+	 * Returns the reader the writer has to wait for: with several readers,
+	 * the one furthest behind among those that are still reading.
+	 *
+	 * @return The reader, or null if there is none.
+	 */
+	private WaitBufferedInputStream getSlowestInputStream() {
+		if (forcefirst || inputStreams.size() < 2) {
+			return getCurrentInputStream();
+		}
+
+		WaitBufferedInputStream slowest = null;
+		long now = System.currentTimeMillis();
+
+		for (WaitBufferedInputStream input : inputStreams) {
+			if (now - input.getLastReadTime() < IDLE_READER_TIMEOUT && (slowest == null || input.getReadCount() < slowest.getReadCount())) {
+				slowest = input;
+			}
+		}
+
+		return slowest != null ? slowest : getCurrentInputStream();
+	}
+
+	/**
+	 * Returns whether the data from a position on is still in the buffer,
+	 * so a new reader can start reading there.
+	 *
+	 * @param position The position in bytes.
+	 * @return True if the position can be read.
+	 */
+	public boolean isBuffered(long position) {
+		lock.lock();
+
+		try {
+			return buffer != null && position <= writeCount && writeCount - position < bufferOverflowWarning;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the position in the buffer of a time in the output, if the
+	 * data from there on is still in the buffer. Only MPEG-PS and MPEG-TS
+	 * output is indexed.
+	 *
+	 * @param time The time in seconds from the start of the item.
+	 * @return The position in bytes, or -1 if the time is not buffered.
+	 */
+	public long getPositionForTime(double time) {
+		lock.lock();
+
+		try {
+			int second = (int) (time - timeseek);
+
+			if (buffer == null || timeend > 0 || second < 0) {
+				return -1;
+			}
+
+			Map.Entry<Integer, Long> entry = timeIndex.floorEntry(second);
+
+			// Past the data that was written so far, or already overwritten
+			if (entry == null || second - entry.getKey() > 1 || !isBuffered(entry.getValue())) {
+				return -1;
+			}
+
+			return entry.getValue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the transcode has produced its first output, to start
+	 * reading as soon as it is ready.
+	 *
+	 * @param timeout The maximum time to wait in milliseconds.
+	 * @return True if there is output.
+	 */
+	public boolean waitForData(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		lock.lock();
+
+		try {
+			long remaining = timeout;
+
+			while (writeCount == 0 && !eof && buffer != null && remaining > 0) {
+				awaitSignal(dataAvailable, remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+
+			return writeCount > 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of readers.
+	 */
+	public int getInputStreamCount() {
+		return inputStreams.size();
+	}
+
 	@Override
 	public InputStream getInputStream(long newReadPosition) {
 		if (attachedThread != null) {
@@ -268,6 +399,7 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		if (!configuration.getTrancodeBlocksMultipleConnections() || getCurrentInputStream() == null) {
 			atominputStream = new WaitBufferedInputStream(this);
 			inputStreams.add(atominputStream);
+			read = true;
 		} else {
 			if (configuration.getTrancodeKeepFirstConnections()) {
 				logger.debug("BufferedOutputFile is already attached to an InputStream: " + getCurrentInputStream());
@@ -284,6 +416,7 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 				inputStreams.clear();
 				atominputStream = new WaitBufferedInputStream(this);
 				inputStreams.add(atominputStream);
+				read = true;
 				logger.debug("Reassign inputstream: " + getCurrentInputStream());
 			}
 
@@ -295,6 +428,8 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 			atominputStream.setReadCount(newReadPosition);
 		}
 
+		// The writer may be waiting for a reader to make room
+		signalSpaceAvailable();
 		return atominputStream;
 	}
 
@@ -310,37 +445,39 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 			debugOutput.flush();
 		}
 		
-		WaitBufferedInputStream input = getCurrentInputStream();
+		lock.lock();
 
-		//logger.trace("write(" + b.length + ", " + off + ", " + len + "), writeCount = " + writeCount + ", readCount = " + (input != null ? input.getReadCount() : "null"));
+		try {
+			WaitBufferedInputStream input = getSlowestInputStream();
 
-		while ((input != null && (writeCount - input.getReadCount() > bufferOverflowWarning)) || (input == null && writeCount > bufferOverflowWarning)) {
-			try {
-				Thread.sleep(CHECK_INTERVAL);
-			} catch (InterruptedException e) {
+			//logger.trace("write(" + b.length + ", " + off + ", " + len + "), writeCount = " + writeCount + ", readCount = " + (input != null ? input.getReadCount() : "null"));
+
+			while ((input != null && (writeCount - input.getReadCount() > bufferOverflowWarning)) || (input == null && writeCount > bufferOverflowWarning)) {
+				awaitSignal(spaceAvailable, CHECK_INTERVAL);
+				input = getSlowestInputStream();
 			}
-			input = getCurrentInputStream();
+
+			long position = writeCount;
+			writeToBuffer(b, off, len);
+			indexTimestamps(b, off, len, position);
+			dataAvailable.signalAll();
+		} finally {
+			lock.unlock();
 		}
-		
+	}
+
+	/**
+	 * Appends bytes to the circular buffer and applies the time seek
+	 * patching to them. Must be called while holding {@link #lock}.
+	 */
+	private void writeToBuffer(byte b[], int off, int len) throws IOException {
 		if (buffer != null) {
 			int mb = (int) (writeCount % maxMemorySize);
 
-			if (mb >= buffer.length - (len - off)) {
-				if (buffer.length == INITIAL_BUFFER_SIZE) {
-					// Initial buffer size was not big enough, try to increase it
-					buffer = growBuffer(buffer, maxMemorySize);
-				}
-
-				// FIXME: This smells like 2x System.arraycopy()!
-				int s = (len - off);
-				for (int i = 0; i < s; i++) {
-					buffer[modulo(mb + i, buffer.length)] = b[off + i];
-				}
-			} else {
-				System.arraycopy(b, off, buffer, mb, (len - off));
-				if ((len - off) > 0) {
-					buffered = true;
-				}
+			if ((len - off) > 0) {
+				buffer.allocate(mb, len - off);
+				buffer.put(mb, b, off, len - off);
+				buffered = true;
 			}
 
 			// Ditlew - WDTV Live
@@ -358,24 +495,24 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 				while (packetpos + packetLength < writeCount && buffer != null) {
 					int packetposMB = (int) (packetpos % maxMemorySize);
 					int streamPos = 0;
-					if (buffer[modulo(packetposMB, buffer.length)] == 71) {// TS
+					if (buffer.get(modulo(packetposMB, buffer.capacity())) == 71) {// TS
 						packetLength = 188;
 						streamPos = 4;
 
 						// adaptation field
-						if ((buffer[modulo(packetposMB + 3, buffer.length)] & 0x20) == 0x20) {
-							streamPos += 1 + ((buffer[modulo(packetposMB + 4, buffer.length)] + 256) % 256);
+						if ((buffer.get(modulo(packetposMB + 3, buffer.capacity())) & 0x20) == 0x20) {
+							streamPos += 1 + ((buffer.get(modulo(packetposMB + 4, buffer.capacity())) + 256) % 256);
 						}
 
 						if (streamPos == 188) {
 							streamPos = -1;
 						}
 
-					} else if (buffer[modulo(packetposMB + 3, buffer.length)] == -70) { // BA
+					} else if (buffer.get(modulo(packetposMB + 3, buffer.capacity())) == -70) { // BA
 						packetLength = 14;
 						streamPos = -1;
 					} else {
-						packetLength = 6 + (((buffer[modulo(packetposMB + 4, buffer.length)] + 256) % 256)) * 256 + ((buffer[modulo(packetposMB + 5, buffer.length)] + 256) % 256);
+						packetLength = 6 + (((buffer.get(modulo(packetposMB + 4, buffer.capacity())) + 256) % 256)) * 256 + ((buffer.get(modulo(packetposMB + 5, buffer.capacity())) + 256) % 256);
 					}
 					if (streamPos != -1) {
 						mb = packetposMB + streamPos + 18;
@@ -390,6 +527,75 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		}
 	}
 
+	/**
+	 * Adds the video timestamps in written bytes to {@link #timeIndex}, and
+	 * forgets the positions that are no longer in the buffer. Must be
+	 * called while holding {@link #lock}. A header that is split over two
+	 * writes is skipped, the next one is used instead.
+	 *
+	 * @param b The bytes, from off up to len like {@link #writeToBuffer}.
+	 * @param position The position of the first byte in the output.
+	 */
+	private void indexTimestamps(byte b[], int off, int len, long position) {
+		if (streamType == STREAM_UNKNOWN && len - off >= 4) {
+			if (b[off] == 0 && b[off + 1] == 0 && b[off + 2] == 1 && (b[off + 3] & 0xff) == 0xba) {
+				streamType = STREAM_PS;
+			} else if (b[off] == 0x47 && (len - off <= TS_PACKET_SIZE || b[off + TS_PACKET_SIZE] == 0x47)) {
+				streamType = STREAM_TS;
+			} else {
+				streamType = STREAM_OTHER;
+			}
+		}
+
+		if (streamType != STREAM_PS && streamType != STREAM_TS) {
+			return;
+		}
+
+		for (int i = off; i + 14 <= len; i++) {
+			if (b[i] != 0 || b[i + 1] != 0 || b[i + 2] != 1) {
+				continue;
+			}
+
+			int streamId = b[i + 3] & 0xff;
+
+			if (streamId == 0xba) {
+				lastPackPosition = position + i - off;
+			} else if (streamId >= 0xe0 && streamId <= 0xef && (b[i + 6] & 0xc0) == 0x80 && (b[i + 7] & 0x80) != 0) {
+				// Video PES header with a presentation timestamp
+				long pts = ((long) (b[i + 9] & 0x0e) << 29)
+					| ((b[i + 10] & 0xff) << 22)
+					| ((b[i + 11] & 0xfe) << 14)
+					| ((b[i + 12] & 0xff) << 7)
+					| ((b[i + 13] & 0xff) >> 1);
+
+				if (firstPts < 0) {
+					firstPts = pts;
+				}
+
+				int second = (int) ((pts - firstPts) / 90000);
+
+				if (second >= 0 && !timeIndex.containsKey(second)) {
+					long start = position + i - off;
+
+					// Seek to the packet that holds the header
+					if (streamType == STREAM_TS) {
+						start -= start % TS_PACKET_SIZE;
+					} else {
+						start = lastPackPosition;
+					}
+
+					timeIndex.put(second, start);
+				}
+
+				i += 13;
+			}
+		}
+
+		while (!timeIndex.isEmpty() && writeCount - timeIndex.firstEntry().getValue() >= bufferOverflowWarning) {
+			timeIndex.pollFirstEntry();
+		}
+	}
+
 	/**
 	 * Determine a modulo value that is guaranteed to be zero or positive,
 	 * as opposed to the standard Java % operator which can return a
@@ -406,65 +612,93 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		return ((number % divisor) + divisor) % divisor;
 	}
 
+	/**
+	 * Waits until the condition is signalled or the timeout expires. Must be
+	 * called while holding {@link #lock}. Like the sleeps this replaces,
+	 * interrupts are ignored; the caller re-checks its own exit condition.
+	 *
+	 * @param condition The condition to wait for.
+	 * @param timeout Maximum time to wait in milliseconds.
+	 */
+	private static void awaitSignal(Condition condition, long timeout) {
+		try {
+			condition.await(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void signalSpaceAvailable() {
+		lock.lock();
+
+		try {
+			spaceAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Override
 	public void write(int b) throws IOException {
-		boolean bb = b % 100000 == 0;
-		WaitBufferedInputStream input = getCurrentInputStream();
-		while (bb && ((input != null && (writeCount - input.getReadCount() > bufferOverflowWarning)) || (input == null && writeCount == bufferOverflowWarning))) {
-			try {
-				Thread.sleep(CHECK_INTERVAL);
+		lock.lock();
+
+		try {
+			boolean bb = b % 100000 == 0;
+			WaitBufferedInputStream input = getSlowestInputStream();
+			while (bb && ((input != null && (writeCount - input.getReadCount() > bufferOverflowWarning)) || (input == null && writeCount == bufferOverflowWarning))) {
 				//logger.trace("BufferedOutputFile Full");
-			} catch (InterruptedException e) {
-			}
-			input = getCurrentInputStream();
-		}
-		int mb = (int) (writeCount++ % maxMemorySize);
-		if (buffer != null) {
-			buffer[mb] = (byte) b;
-			buffered = true;
-			if (writeCount == INITIAL_BUFFER_SIZE) {
-				buffer = growBuffer(buffer, maxMemorySize);
+				awaitSignal(spaceAvailable, CHECK_INTERVAL);
+				input = getSlowestInputStream();
 			}
+			int mb = (int) (writeCount++ % maxMemorySize);
+			if (buffer != null) {
+				buffer.allocate(mb, 1);
+				buffer.put(mb, (byte) b);
+				buffered = true;
+
+				if (timeseek > 0 && writeCount > 19) {
+					shiftByTimeSeek(mb, mb <= 20);
+				}
 
-			if (timeseek > 0 && writeCount > 19) {
-				shiftByTimeSeek(mb, mb <= 20);
+				// Ditlew - WDTV Live - update any SCR headers
+				if (timeseek > 0 && writeCount > 10) {
+					shiftSCRByTimeSeek(mb, (int) timeseek);
+				}
 			}
 
-			// Ditlew - WDTV Live - update any SCR headers
-			if (timeseek > 0 && writeCount > 10) {
-				shiftSCRByTimeSeek(mb, (int) timeseek);
-			}
+			dataAvailable.signalAll();
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	// Ditlew - Modify SCR
 	private void shiftSCRByTimeSeek(int buffer_index, int offset_sec) {
-		int m9 = modulo(buffer_index - 9, buffer.length);
-		int m8 = modulo(buffer_index - 8, buffer.length);
-		int m7 = modulo(buffer_index - 7, buffer.length);
-		int m6 = modulo(buffer_index - 6, buffer.length);
-		int m5 = modulo(buffer_index - 5, buffer.length);
-		int m4 = modulo(buffer_index - 4, buffer.length);
-		int m3 = modulo(buffer_index - 3, buffer.length);
-		int m2 = modulo(buffer_index - 2, buffer.length);
-		int m1 = modulo(buffer_index - 1, buffer.length);
-		int m0 = modulo(buffer_index, buffer.length);
+		int m9 = modulo(buffer_index - 9, buffer.capacity());
+		int m8 = modulo(buffer_index - 8, buffer.capacity());
+		int m7 = modulo(buffer_index - 7, buffer.capacity());
+		int m6 = modulo(buffer_index - 6, buffer.capacity());
+		int m5 = modulo(buffer_index - 5, buffer.capacity());
+		int m4 = modulo(buffer_index - 4, buffer.capacity());
+		int m3 = modulo(buffer_index - 3, buffer.capacity());
+		int m2 = modulo(buffer_index - 2, buffer.capacity());
+		int m1 = modulo(buffer_index - 1, buffer.capacity());
+		int m0 = modulo(buffer_index, buffer.capacity());
 
 		// SCR
-		if (buffer[m9] == 0
-			&& buffer[m8] == 0
-			&& buffer[m7] == 1
-			&& buffer[m6] == -70 && // 0xBA - Java/PMS wants -70
+		if (buffer.get(m9) == 0
+			&& buffer.get(m8) == 0
+			&& buffer.get(m7) == 1
+			&& buffer.get(m6) == -70 && // 0xBA - Java/PMS wants -70
 			// control bits
-			!((buffer[m5] & 128) == 128)
-			&& ((buffer[m5] & 64) == 64)
-			&& ((buffer[m5] & 4) == 4)
-			&& ((buffer[m3] & 4) == 4)
-			&& ((buffer[m1] & 4) == 4)
-			&& ((buffer[m0] & 1) == 1)) {
-			long scr_32_30 = ((buffer[m5] & 56) >> 3);
-			long scr_29_15 = ((buffer[m5] & 3) << 13) + (buffer[m4] << 5) + ((buffer[m3] & 248) >> 3);
-			long scr_14_00 = ((buffer[m3] & 3) << 13) + (buffer[m2] << 5) + ((buffer[m1] & 248) >> 3);
+			!((buffer.get(m5) & 128) == 128)
+			&& ((buffer.get(m5) & 64) == 64)
+			&& ((buffer.get(m5) & 4) == 4)
+			&& ((buffer.get(m3) & 4) == 4)
+			&& ((buffer.get(m1) & 4) == 4)
+			&& ((buffer.get(m0) & 1) == 1)) {
+			long scr_32_30 = ((buffer.get(m5) & 56) >> 3);
+			long scr_29_15 = ((buffer.get(m5) & 3) << 13) + (buffer.get(m4) << 5) + ((buffer.get(m3) & 248) >> 3);
+			long scr_14_00 = ((buffer.get(m3) & 3) << 13) + (buffer.get(m2) << 5) + ((buffer.get(m1) & 248) >> 3);
 
 			long scr = (scr_32_30 << 30) + (scr_29_15 << 15) + scr_14_00;
 			long scr_new = scr + (90000L * offset_sec);
@@ -474,17 +708,17 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 			long scr_14_00_new = (scr_new & 32767L);             // 000000000000000000111111111111111
 
 			// scr_32_30_new
-			buffer[m5] = (byte) ((buffer[m5] & 199) + ((scr_32_30_new << 3) & 56)); // 11000111
+			buffer.put(m5, (byte) ((buffer.get(m5) & 199) + ((scr_32_30_new << 3) & 56))); // 11000111
 
 			// scr_29_15_new
-			buffer[m5] = (byte) ((buffer[m5] & 252) + ((scr_29_15_new >> 13) & 3)); // 00000011
-			buffer[m4] = (byte) (scr_29_15_new >> 5);                               // 11111111
-			buffer[m3] = (byte) ((buffer[m3] & 7) + ((scr_29_15_new << 3) & 248));  // 11111000
+			buffer.put(m5, (byte) ((buffer.get(m5) & 252) + ((scr_29_15_new >> 13) & 3))); // 00000011
+			buffer.put(m4, (byte) (scr_29_15_new >> 5));                               // 11111111
+			buffer.put(m3, (byte) ((buffer.get(m3) & 7) + ((scr_29_15_new << 3) & 248)));  // 11111000
 
 			// scr_14_00_new
-			buffer[m3] = (byte) ((buffer[m3] & 252) + ((scr_14_00_new >> 13) & 3)); // 00000011
-			buffer[m2] = (byte) (scr_14_00_new >> 5);                               // 11111111
-			buffer[m1] = (byte) ((buffer[m1] & 7) + ((scr_14_00_new << 3) & 248));  // 11111000
+			buffer.put(m3, (byte) ((buffer.get(m3) & 252) + ((scr_14_00_new >> 13) & 3))); // 00000011
+			buffer.put(m2, (byte) (scr_14_00_new >> 5));                               // 11111111
+			buffer.put(m1, (byte) ((buffer.get(m1) & 7) + ((scr_14_00_new << 3) & 248)));  // 11111000
 
 			// Debug
 			//logger.trace("Ditlew - SCR "+scr+" ("+(int)(scr/90000)+") -> "+scr_new+" ("+(int)(scr_new/90000)+")  "+offset_sec+" secs");
@@ -494,31 +728,31 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 	// Ditlew - Modify GOP
 	@SuppressWarnings("unused")
 	private void shiftGOPByTimeSeek(int buffer_index, int offset_sec) {
-		int m7 = modulo(buffer_index - 7, buffer.length);
-		int m6 = modulo(buffer_index - 6, buffer.length);
-		int m5 = modulo(buffer_index - 5, buffer.length);
-		int m4 = modulo(buffer_index - 4, buffer.length);
-		int m3 = modulo(buffer_index - 3, buffer.length);
-		int m2 = modulo(buffer_index - 2, buffer.length);
-		int m1 = modulo(buffer_index - 1, buffer.length);
-		int m0 = modulo(buffer_index, buffer.length);
+		int m7 = modulo(buffer_index - 7, buffer.capacity());
+		int m6 = modulo(buffer_index - 6, buffer.capacity());
+		int m5 = modulo(buffer_index - 5, buffer.capacity());
+		int m4 = modulo(buffer_index - 4, buffer.capacity());
+		int m3 = modulo(buffer_index - 3, buffer.capacity());
+		int m2 = modulo(buffer_index - 2, buffer.capacity());
+		int m1 = modulo(buffer_index - 1, buffer.capacity());
+		int m0 = modulo(buffer_index, buffer.capacity());
 
 		// check if valid gop
-		if (buffer[m7] == 0
-			&& buffer[m6] == 0
-			&& buffer[m5] == 1
-			&& buffer[m4] == -72 && // 0xB8 - Java/PMS wants -72
+		if (buffer.get(m7) == 0
+			&& buffer.get(m6) == 0
+			&& buffer.get(m5) == 1
+			&& buffer.get(m4) == -72 && // 0xB8 - Java/PMS wants -72
 			// control bits
-			((buffer[m2] & 0x08) == 0x08)
-			&& ((buffer[m0] & 31) == 0)
+			((buffer.get(m2) & 0x08) == 0x08)
+			&& ((buffer.get(m0) & 31) == 0)
 			&& // of interest
-			!((buffer[m3] & 128) == 128) && // not drop frm
-			!((buffer[m0] & 16) == 16) // not broken
+			!((buffer.get(m3) & 128) == 128) && // not drop frm
+			!((buffer.get(m0) & 16) == 16) // not broken
 			) {
 			// org timecode
-			byte h = (byte) ((buffer[m3] & 124) >> 2);
-			byte m = (byte) (((buffer[m3] & 3) << 4) + ((buffer[m2] & 240) >> 4));
-			byte s = (byte) (((buffer[m2] & 7) << 3) + ((buffer[m1] & 224) >> 5));
+			byte h = (byte) ((buffer.get(m3) & 124) >> 2);
+			byte m = (byte) (((buffer.get(m3) & 3) << 4) + ((buffer.get(m2) & 240) >> 4));
+			byte s = (byte) (((buffer.get(m2) & 7) << 3) + ((buffer.get(m1) & 224) >> 5));
 
 			// updated offset
 			int _offset = s + m * 60 + h * 60 + offset_sec;
@@ -530,13 +764,13 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 
 			// update gop
 			// h - ok
-			buffer[m3] = (byte) ((buffer[m3] & 131) + (_h << 2)); // 10000011
+			buffer.put(m3, (byte) ((buffer.get(m3) & 131) + (_h << 2))); // 10000011
 			// m - ok
-			buffer[m3] = (byte) ((buffer[m3] & 252) + (_m >> 4)); // 11111100
-			buffer[m2] = (byte) ((buffer[m2] & 15) + (_m << 4)); // 00001111
+			buffer.put(m3, (byte) ((buffer.get(m3) & 252) + (_m >> 4))); // 11111100
+			buffer.put(m2, (byte) ((buffer.get(m2) & 15) + (_m << 4))); // 00001111
 			// s - ok
-			buffer[m2] = (byte) ((buffer[m2] & 248) + (_s >> 3)); // 11111000
-			buffer[m1] = (byte) ((buffer[m1] & 31) + (_s << 5)); // 00011111
+			buffer.put(m2, (byte) ((buffer.get(m2) & 248) + (_s >> 3))); // 11111000
+			buffer.put(m1, (byte) ((buffer.get(m1) & 31) + (_s << 5))); // 00011111
 
 			// Debug
 			//logger.trace("Ditlew - GOP "+h+":"+m+":"+s+" -> "+_h+":"+_m+":"+_s+"  "+offset_sec+" secs");
@@ -549,10 +783,10 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 	}
 
 	private boolean shiftAudio(int mb, boolean mod) {
-		boolean bb = (!mod && (buffer[mb - 10] == -67 || buffer[mb - 10] == -64) && buffer[mb - 11] == 1 && buffer[mb - 12] == 0 && buffer[mb - 13] == 0 && /*(buffer[mb-7]&128)==128 &&*/ (buffer[mb - 6] & 128) == 128/*buffer[mb-6] == -128*/)
-			|| (mod && (buffer[modulo(mb - 10, buffer.length)] == -67 || buffer[modulo(mb - 10, buffer.length)] == -64) && buffer[modulo(mb - 11, buffer.length)] == 1 && buffer[modulo(mb - 12, buffer.length)] == 0 && buffer[modulo(mb - 13, buffer.length)] == 0 && /*(buffer[modulo(mb-7)]&128)==128 && */ (buffer[modulo(mb - 6, buffer.length)] & 128) == 128/*buffer[modulo(mb-6, buffer.length)] == -128*/);
+		boolean bb = (!mod && (buffer.get(mb - 10) == -67 || buffer.get(mb - 10) == -64) && buffer.get(mb - 11) == 1 && buffer.get(mb - 12) == 0 && buffer.get(mb - 13) == 0 && /*(buffer.get(mb-7)&128)==128 &&*/ (buffer.get(mb - 6) & 128) == 128/*buffer.get(mb-6) == -128*/)
+			|| (mod && (buffer.get(modulo(mb - 10, buffer.capacity())) == -67 || buffer.get(modulo(mb - 10, buffer.capacity())) == -64) && buffer.get(modulo(mb - 11, buffer.capacity())) == 1 && buffer.get(modulo(mb - 12, buffer.capacity())) == 0 && buffer.get(modulo(mb - 13, buffer.capacity())) == 0 && /*(buffer.get(modulo(mb-7))&128)==128 && */ (buffer.get(modulo(mb - 6, buffer.capacity())) & 128) == 128/*buffer.get(modulo(mb-6, buffer.capacity())) == -128*/);
 		if (bb) {
-			int pts = (((((buffer[modulo(mb - 3, buffer.length)] & 0xff) << 8) + (buffer[modulo(mb - 2, buffer.length)] & 0xff)) >> 1) << 15) + ((((buffer[modulo(mb - 1, buffer.length)] & 0xff) << 8) + (buffer[modulo(mb, buffer.length)] & 0xff)) >> 1);
+			int pts = (((((buffer.get(modulo(mb - 3, buffer.capacity())) & 0xff) << 8) + (buffer.get(modulo(mb - 2, buffer.capacity())) & 0xff)) >> 1) << 15) + ((((buffer.get(modulo(mb - 1, buffer.capacity())) & 0xff) << 8) + (buffer.get(modulo(mb, buffer.capacity())) & 0xff)) >> 1);
 			pts += (int) (timeseek * 90000);
 
 			setTS(pts, mb, mod);
@@ -563,26 +797,26 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 
 	private boolean shiftVideo(int mb, boolean mod) {
 		boolean bb = (!mod
-			&& (buffer[mb - 15] == -32 || buffer[mb - 15] == -3)
-			&& buffer[mb - 16] == 1
-			&& buffer[mb - 17] == 0
-			&& buffer[mb - 18] == 0
-			&& (buffer[mb - 11] & 128) == 128
-			&& (buffer[mb - 9] & 32) == 32) || (mod
-			&& (buffer[modulo(mb - 15, buffer.length)] == -32 || buffer[modulo(mb - 15, buffer.length)] == -3)
-			&& buffer[modulo(mb - 16, buffer.length)] == 1
-			&& buffer[modulo(mb - 17, buffer.length)] == 0
-			&& buffer[modulo(mb - 18, buffer.length)] == 0
-			&& (buffer[modulo(mb - 11, buffer.length)] & 128) == 128
-			&& (buffer[modulo(mb - 9, buffer.length)] & 32) == 32);
+			&& (buffer.get(mb - 15) == -32 || buffer.get(mb - 15) == -3)
+			&& buffer.get(mb - 16) == 1
+			&& buffer.get(mb - 17) == 0
+			&& buffer.get(mb - 18) == 0
+			&& (buffer.get(mb - 11) & 128) == 128
+			&& (buffer.get(mb - 9) & 32) == 32) || (mod
+			&& (buffer.get(modulo(mb - 15, buffer.capacity())) == -32 || buffer.get(modulo(mb - 15, buffer.capacity())) == -3)
+			&& buffer.get(modulo(mb - 16, buffer.capacity())) == 1
+			&& buffer.get(modulo(mb - 17, buffer.capacity())) == 0
+			&& buffer.get(modulo(mb - 18, buffer.capacity())) == 0
+			&& (buffer.get(modulo(mb - 11, buffer.capacity())) & 128) == 128
+			&& (buffer.get(modulo(mb - 9, buffer.capacity())) & 32) == 32);
 
 		if (bb) { // check EO or FD (tsMuxeR)
 			int pts = getTS(mb - 5, mod);
 			int dts = 0;
-			boolean dts_present = (buffer[modulo(mb - 11, buffer.length)] & 64) == 64;
+			boolean dts_present = (buffer.get(modulo(mb - 11, buffer.capacity())) & 64) == 64;
 			if (dts_present) {
-				if ((buffer[modulo(mb - 4, buffer.length)] & 15) == 15) {
-					dts = (((((255 - (buffer[modulo(mb - 3, buffer.length)] & 0xff)) << 8) + (255 - (buffer[modulo(mb - 2, buffer.length)] & 0xff))) >> 1) << 15) + ((((255 - (buffer[modulo(mb - 1, buffer.length)] & 0xff)) << 8) + (255 - (buffer[modulo(mb, buffer.length)] & 0xff))) >> 1);
+				if ((buffer.get(modulo(mb - 4, buffer.capacity())) & 15) == 15) {
+					dts = (((((255 - (buffer.get(modulo(mb - 3, buffer.capacity())) & 0xff)) << 8) + (255 - (buffer.get(modulo(mb - 2, buffer.capacity())) & 0xff))) >> 1) << 15) + ((((255 - (buffer.get(modulo(mb - 1, buffer.capacity())) & 0xff)) << 8) + (255 - (buffer.get(modulo(mb, buffer.capacity())) & 0xff))) >> 1);
 					dts = -dts;
 				} else {
 					dts = getTS(mb, mod);
@@ -598,7 +832,7 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 			setTS(pts, mb - 5, mod);
 			if (dts_present) {
 				if (dts < 0) {
-					buffer[modulo(mb - 4, buffer.length)] = 17;
+					buffer.put(modulo(mb - 4, buffer.capacity()), (byte) 17);
 				}
 				dts += ts;
 				setTS(dts, mb, mod);
@@ -614,14 +848,14 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		int m1 = mb - 1;
 		int m0 = mb;
 		if (modulo) {
-			m3 = modulo(m3, buffer.length);
-			m2 = modulo(m2, buffer.length);
-			m1 = modulo(m1, buffer.length);
-			m0 = modulo(m0, buffer.length);
+			m3 = modulo(m3, buffer.capacity());
+			m2 = modulo(m2, buffer.capacity());
+			m1 = modulo(m1, buffer.capacity());
+			m0 = modulo(m0, buffer.capacity());
 		}
 
-		return (((((buffer[m3] & 0xff) << 8) + (buffer[m2] & 0xff)) >> 1) << 15)
-			+ ((((buffer[m1] & 0xff) << 8) + (buffer[m0] & 0xff)) >> 1);
+		return (((((buffer.get(m3) & 0xff) << 8) + (buffer.get(m2) & 0xff)) >> 1) << 15)
+			+ ((((buffer.get(m1) & 0xff) << 8) + (buffer.get(m0) & 0xff)) >> 1);
 	}
 
 	private void setTS(int ts, int mb, boolean modulo) {
@@ -630,25 +864,58 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		int m1 = mb - 1;
 		int m0 = mb;
 		if (modulo) {
-			m3 = modulo(m3, buffer.length);
-			m2 = modulo(m2, buffer.length);
-			m1 = modulo(m1, buffer.length);
-			m0 = modulo(m0, buffer.length);
+			m3 = modulo(m3, buffer.capacity());
+			m2 = modulo(m2, buffer.capacity());
+			m1 = modulo(m1, buffer.capacity());
+			m0 = modulo(m0, buffer.capacity());
 		}
 		int pts_low = ts & 32767;
 		int pts_high = (ts >> 15) & 32767;
 		int pts_left_low = 1 + (pts_low << 1);
 		int pts_left_high = 1 + (pts_high << 1);
-		buffer[m3] = (byte) ((pts_left_high & 65280) >> 8);
-		buffer[m2] = (byte) (pts_left_high & 255);
-		buffer[m1] = (byte) ((pts_left_low & 65280) >> 8);
-		buffer[m0] = (byte) (pts_left_low & 255);
+		buffer.put(m3, (byte) ((pts_left_high & 65280) >> 8));
+		buffer.put(m2, (byte) (pts_left_high & 255));
+		buffer.put(m1, (byte) ((pts_left_low & 65280) >> 8));
+		buffer.put(m0, (byte) (pts_left_low & 255));
 	}
 
 	@Override
 	public int read(boolean firstRead, long readCount, byte buf[], int off, int len) {
-		if (readCount > INITIAL_BUFFER_SIZE && readCount < maxMemorySize) {
+		lock.lock();
+
+		try {
+			if (!awaitData(firstRead, readCount)) {
+				return -1;
+			}
+
+			return readFromBuffer(readCount, buf, off, len);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Prepares a read at the given position: publishes the reader's
+	 * progress to a waiting writer and waits until enough data has been
+	 * buffered, the end of the stream is reached or {@link #MAX_READ_WAIT}
+	 * has elapsed. Must be called while holding {@link #lock}.
+	 * <p>
+	 * The writer does not wait for readers that have been idle for
+	 * {@link #IDLE_READER_TIMEOUT}, so when such a reader resumes, the data
+	 * at its position may have been overwritten. Its stream ends then
+	 * instead of returning the newer data.
+	 *
+	 * @param firstRead Whether this is the first read of the input stream.
+	 * @param readCount The position to read from.
+	 * @return False if there is nothing left to read, true otherwise.
+	 */
+	private boolean awaitData(boolean firstRead, long readCount) {
+		// The reader has consumed everything before readCount by now
+		spaceAvailable.signalAll();
+
+		if (readCount > REDUCED_MARGIN_THRESHOLD && readCount < maxMemorySize) {
 			int newMargin = maxMemorySize - MARGIN_MEDIUM;
+
 			if (bufferOverflowWarning != newMargin) {
 				logger.debug("Setting margin to 2Mb");
 			}
@@ -657,38 +924,59 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		}
 
 		if (eof && readCount >= writeCount) {
-			return -1;
+			return false;
+		}
+
+		if (isOverwritten(readCount)) {
+			return false;
 		}
 
-		int c = 0;
+		boolean suspended = false;
 		int minBufferS = firstRead ? minMemorySize : secondread_minsize;
-		while (writeCount - readCount <= minBufferS && !eof && c < 15) {
-			if (c == 0) {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(MAX_READ_WAIT);
+		long deadline = System.nanoTime() + remaining;
+
+		while (writeCount - readCount <= minBufferS && !eof && buffer != null && remaining > 0) {
+			if (!suspended) {
 				logger.trace("Suspend Read: readCount=" + readCount + " / writeCount=" + writeCount);
+				suspended = true;
 			}
 
-			c++;
-
-			try {
-				Thread.sleep(CHECK_INTERVAL);
-			} catch (InterruptedException e) {
-			}
+			awaitSignal(dataAvailable, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+			remaining = deadline - System.nanoTime();
 		}
 
 		if (attachedThread != null) {
 			attachedThread.setReadyToStop(false);
 		}
 
-		if (c > 0) {
+		if (suspended) {
 			logger.trace("Resume Read: readCount=" + readCount + " / writeCount=" + writeCount);
 		}
 
-		if (buffer == null || !buffered) {
-			return -1;
+		return buffer != null && buffered && !isOverwritten(readCount);
+	}
+
+	/**
+	 * @return Whether the data at a position has been overwritten by the
+	 * writer.
+	 */
+	private boolean isOverwritten(long readCount) {
+		if (writeCount - readCount > maxMemorySize) {
+			logger.debug("The reader at " + readCount + " fell too far behind the writer at " + writeCount + ", ending its stream");
+			return true;
 		}
 
+		return false;
+	}
+
+	/**
+	 * Copies buffered bytes to the destination array. Must be called while
+	 * holding {@link #lock}.
+	 */
+	private int readFromBuffer(long readCount, byte buf[], int off, int len) {
 		int mb = (int) (readCount % maxMemorySize);
-		int endOF = buffer.length;
+		int endOF = buffer.capacity();
 		int cut = 0;
 
 		if (eof && (writeCount - readCount) < len) {
@@ -697,10 +985,10 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 
 		if (mb >= endOF - len) {
 			try {
-				System.arraycopy(buffer, mb, buf, off, endOF - mb - cut);
-			} catch (ArrayIndexOutOfBoundsException ex) {
+				buffer.get(mb, buf, off, endOF - mb - cut);
+			} catch (IndexOutOfBoundsException ex) {
 				logger.error("Something went wrong with the buffer.", ex);
-				logger.error("buffer.length: " + formatter.format(buffer.length) + " bytes.");
+				logger.error("buffer.capacity: " + formatter.format(buffer.capacity()) + " bytes.");
 				logger.error("mb: " + mb);
 				logger.error("buf.length: " + formatter.format(buf.length) + " bytes.");
 				logger.error("off: " + off);
@@ -708,63 +996,29 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 			}
 			return endOF - mb;
 		} else {
-			System.arraycopy(buffer, mb, buf, off, len - cut);
+			buffer.get(mb, buf, off, len - cut);
 			return len;
 		}
 	}
 
 	@Override
 	public int read(boolean firstRead, long readCount) {
-		if (readCount > INITIAL_BUFFER_SIZE && readCount < maxMemorySize) {
-			int newMargin = maxMemorySize - MARGIN_MEDIUM;
-
-			if (bufferOverflowWarning != newMargin) {
-				logger.debug("Setting margin to 2Mb");
-			}
+		lock.lock();
 
-			this.bufferOverflowWarning = newMargin;
-		}
-
-		if (eof && readCount >= writeCount) {
-			return -1;
-		}
-
-		int c = 0;
-		int minBufferS = firstRead ? minMemorySize : secondread_minsize;
-
-		while (writeCount - readCount <= minBufferS && !eof && c < 15) {
-			if (c == 0) {
-				logger.trace("Suspend Read: readCount=" + readCount + " / writeCount=" + writeCount);
+		try {
+			if (!awaitData(firstRead, readCount)) {
+				return -1;
 			}
 
-			c++;
-
-			try {
-				Thread.sleep(CHECK_INTERVAL);
-			} catch (InterruptedException e) {
-			}
-		}
-
-		if (attachedThread != null) {
-			attachedThread.setReadyToStop(false);
-		}
-
-		if (c > 0) {
-			logger.trace("Resume Read: readCount=" + readCount + " / writeCount=" + writeCount);
-		}
-
-		if (buffer == null || !buffered) {
-			return -1;
-		}
-
-		try {
-			return 0xff & buffer[(int) (readCount % maxMemorySize)];
+			return 0xff & buffer.get((int) (readCount % maxMemorySize));
 		} catch (ArrayIndexOutOfBoundsException ex) {
 			logger.error("Buffer read ArrayIndexOutOfBoundsException error.", ex);
-			logger.error("buffer.length: " + formatter.format(buffer.length) + " bytes.");
+			logger.error("buffer.capacity: " + formatter.format(buffer.capacity()) + " bytes.");
 			logger.error("readCount: \"" + readCount + "\"");
 			logger.error("maxMemorySize: \"" + maxMemorySize + "\"");
 			return -1;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -781,10 +1035,18 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 	@Override
 	public void removeInputStream(WaitBufferedInputStream inputStream) {
 		inputStreams.remove(inputStream);
+
+		// The writer may have been waiting for this reader
+		signalSpaceAvailable();
 	}
 	
 	@Override
 	public void detachInputStream() {
+		if (!inputStreams.isEmpty()) {
+			// Other readers still use the transcode
+			return;
+		}
+
 		PMS.get().getFrame().setReadValue(0, "");
 
 		if (attachedThread != null) {
@@ -794,13 +1056,7 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 		Runnable checkEnd = new Runnable() {
 			@Override
 			public void run() {
-				try {
-					Thread.sleep(CHECK_END_OF_PROCESS);
-				} catch (InterruptedException e) {
-					logger.error(null, e);
-				}
-
-				if (attachedThread != null && attachedThread.isReadyToStop()) {
+				if (attachedThread != null && attachedThread.isReadyToStop() && inputStreams.isEmpty()) {
 					if (!attachedThread.isDestroyed()) {
 						attachedThread.stopProcess();
 					}
@@ -809,27 +1065,37 @@ public class BufferedOutputFileImpl extends OutputStream implements BufferedOutp
 				}
 			}
 		};
-		new Thread(checkEnd, "Buffered IO End Checker").start();
+		ProcessSupervisor.schedule(checkEnd, CHECK_END_OF_PROCESS);
 	}
 
 	@Override
-	public synchronized void reset() {
-		if (debugOutput != null) {
-			try {
-				debugOutput.close();
-			} catch (IOException ex) {
-				logger.warn("Caught exception", ex);
+	public void reset() {
+		lock.lock();
+
+		try {
+			if (debugOutput != null) {
+				try {
+					debugOutput.close();
+				} catch (IOException ex) {
+					logger.warn("Caught exception", ex);
+				}
 			}
-		}
 
-		timer.cancel();
+			timer.cancel();
 
-		if (buffer != null) {
-			logger.info("Destroying buffer");
-			buffer = null;
-		}
+			if (buffer != null) {
+				logger.info("Destroying buffer");
+				buffer.release();
+				buffer = null;
+			}
+
+			buffered = false;
 
-		buffered = false;
+			// Release readers waiting for data that will never arrive
+			dataAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
 
 		if (maxMemorySize != 1048576) {
 			PMS.get().getFrame().setValue(0, Messages.getString("StatusTab.5"));
@@ -0,0 +1,152 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream over a byte range of a file, backed by its {@link FileChannel}.
+ * It can be consumed like any other input stream, but it also exposes the
+ * channel and the remaining range so that the HTTP server can hand the file
+ * to the operating system instead of copying it through the Java heap
+ * (see {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}).
+ */
+public class FileChannelInputStream extends InputStream {
+	private final File path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long origin;
+	private final long end;
+	private long position;
+
+	/**
+	 * Opens a byte range of a file.
+	 *
+	 * @param file The file to read.
+	 * @param low The first byte to read.
+	 * @param high The last byte to read, or a value less than or equal to
+	 * low to read until the end of the file.
+	 * @throws FileNotFoundException if the file cannot be opened.
+	 */
+	public FileChannelInputStream(File file, long low, long high) throws FileNotFoundException {
+		this(file, 0, low, high);
+	}
+
+	/**
+	 * Opens a byte range of the part of a file that starts at an offset,
+	 * e.g. the part of a cached transcode after a time seek.
+	 *
+	 * @param file The file to read.
+	 * @param origin The offset in the file of the first byte of the part.
+	 * @param low The first byte to read, relative to the origin.
+	 * @param high The last byte to read, relative to the origin, or a value
+	 * less than or equal to low to read until the end of the file.
+	 * @throws FileNotFoundException if the file cannot be opened.
+	 */
+	public FileChannelInputStream(File file, long origin, long low, long high) throws FileNotFoundException {
+		this.path = file;
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		long length = file.length();
+		this.origin = Math.max(0, Math.min(origin, length));
+		this.position = Math.max(this.origin, Math.min(this.origin + low, length));
+		this.end = high > low ? Math.min(this.origin + high + 1, length) : length;
+	}
+
+	/**
+	 * @return The file that is read.
+	 */
+	public File getFile() {
+		return path;
+	}
+
+	/**
+	 * @return The channel of the file.
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return The length of the part of the file after the origin.
+	 */
+	public long getLength() {
+		return path.length() - origin;
+	}
+
+	/**
+	 * @return The position in the file of the next byte to read.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return The number of bytes left in the range.
+	 */
+	public long getRemaining() {
+		return Math.max(0, end - position);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long remaining = getRemaining();
+
+		if (remaining == 0) {
+			return -1;
+		}
+
+		int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+
+		if (n > 0) {
+			position += n;
+		}
+
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = Math.max(0, Math.min(n, getRemaining()));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, getRemaining());
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -18,6 +18,7 @@
  */
 package net.pms.io;
 
+import net.pms.dlna.TranscodeCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +29,7 @@ import java.util.List;
 public class OutputBufferConsumer extends OutputConsumer {
 	private static final Logger logger = LoggerFactory.getLogger(OutputBufferConsumer.class);
 	private BufferedOutputFile outputBuffer;
+	private TranscodeCache.Entry cacheEntry;
 	
 	/**
 	 * Size of a buffer in bytes. The buffer is used to copy data from an
@@ -47,19 +49,39 @@ public class OutputBufferConsumer extends OutputConsumer {
 		outputBuffer = new BufferedOutputFileImpl(params);
 	}
 
+	/**
+	 * Copies the output to an entry of the transcode cache as well.
+	 *
+	 * @param cacheEntry The entry.
+	 */
+	public void setCacheEntry(TranscodeCache.Entry cacheEntry) {
+		this.cacheEntry = cacheEntry;
+	}
+
 	public void run() {
+		boolean complete = false;
+
 		try {
 			// logger.trace("Starting read from pipe");
 			byte buf[] = new byte[PIPE_BUFFER_SIZE];
 			int n = 0;
 			while ((n = inputStream.read(buf)) > 0) {
 				// logger.trace("Fetched " + n + " from pipe");
+				if (cacheEntry != null) {
+					cacheEntry.write(buf, 0, n);
+				}
+
 				outputBuffer.write(buf, 0, n);
 			}
 			// logger.debug("Finished to read");
+			complete = true;
 		} catch (IOException ioe) {
 			logger.debug("Error consuming stream of spawned process: " + ioe.getMessage());
 		} finally {
+			if (cacheEntry != null) {
+				cacheEntry.endOfStream(complete);
+			}
+
 			// logger.trace("Closing read from pipe");
 			if (inputStream != null) {
 				try {
@@ -26,15 +26,103 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-public abstract class OutputConsumer extends Thread {
+/**
+ * Reads the output of a process. The output is read on the shared pool of
+ * the {@link ProcessSupervisor} rather than on a thread of its own.
+ * <p>
+ * This used to be a {@link Thread}. It still has the methods of a thread
+ * that plugins use, {@link #start()}, {@link #join(long)},
+ * {@link #isAlive()} and {@link #interrupt()}, but it is no longer a thread
+ * itself.
+ */
+public abstract class OutputConsumer implements Runnable {
 	private static final Logger logger = LoggerFactory.getLogger(OutputConsumer.class);
 	protected InputStream inputStream;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private final Object runnerLock = new Object();
+	private volatile boolean started;
+
+	// The pool thread that reads the output, while it does
+	private Thread runner;
 
 	public OutputConsumer(InputStream inputStream) {
 		this.inputStream = inputStream;
 	}
 
+	/**
+	 * Starts reading the output on the shared pool.
+	 */
+	public void start() {
+		started = true;
+		ProcessSupervisor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (runnerLock) {
+					runner = Thread.currentThread();
+				}
+
+				try {
+					OutputConsumer.this.run();
+				} finally {
+					synchronized (runnerLock) {
+						runner = null;
+
+						// Don't pass an interrupt on to the next task of the pool
+						Thread.interrupted();
+					}
+
+					finished.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for all output to be read.
+	 *
+	 * @param millis The maximum time to wait in milliseconds, or 0 to wait
+	 * without a limit, as for {@link Thread#join(long)}.
+	 * @throws InterruptedException
+	 */
+	public void join(long millis) throws InterruptedException {
+		if (millis == 0) {
+			finished.await();
+		} else {
+			finished.await(millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Waits until all output has been read.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		join(0);
+	}
+
+	/**
+	 * @return True if the output is being read, i.e. the consumer was
+	 * started and has not finished yet.
+	 */
+	public boolean isAlive() {
+		return started && finished.getCount() > 0;
+	}
+
+	/**
+	 * Interrupts the thread that reads the output, if it is running.
+	 */
+	public void interrupt() {
+		synchronized (runnerLock) {
+			if (runner != null) {
+				runner.interrupt();
+			}
+		}
+	}
+
 	@Deprecated
 	public void destroy() {
 		IOUtils.closeQuietly(inputStream);
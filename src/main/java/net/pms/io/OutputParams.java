@@ -23,6 +23,7 @@ import net.pms.configuration.RendererConfiguration;
 import net.pms.dlna.DLNAMediaAudio;
 import net.pms.dlna.DLNAMediaSubtitle;
 import net.pms.dlna.IPushOutput;
+import net.pms.dlna.TranscodeCache;
 
 import java.io.File;
 import java.util.Arrays;
@@ -62,6 +63,11 @@ public class OutputParams {
 	public boolean avidemux;
 	public boolean shift_scr;
 
+	/**
+	 * Entry of the transcode cache that the output is copied to, or null.
+	 */
+	public TranscodeCache.Entry cacheEntry;
+
 	public OutputParams(PmsConfiguration configuration) {
 		if (configuration != null) {
 			waitbeforestart = configuration.getVideoTranscodeStartDelay() * 1000;
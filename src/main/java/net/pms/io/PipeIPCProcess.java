@@ -111,6 +111,21 @@ public class PipeIPCProcess extends Thread implements ProcessWrapper {
 		return this;
 	}
 
+	/**
+	 * Waits for both pipes to be created, if they are not yet.
+	 *
+	 * @param millis The time to give the pipe processes.
+	 * @see PipeProcess#waitForPipe(long)
+	 */
+	public void waitForPipe(long millis) {
+		if (!mkin.isCreated() || !mkout.isCreated()) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
 	public void deleteLater() {
 		mkin.deleteLater();
 		mkout.deleteLater();
@@ -147,10 +162,7 @@ public class PipeIPCProcess extends Thread implements ProcessWrapper {
 
 			// Allow the threads some time to do their work before
 			// starting the main thread
-			try {
-				Thread.sleep(150);
-			} catch (InterruptedException e) {
-			}
+			waitForPipe(150);
 		}
 
 		start();
@@ -164,10 +176,7 @@ public class PipeIPCProcess extends Thread implements ProcessWrapper {
 
 			// Allow the threads some time to do their work before
 			// running the main thread
-			try {
-				Thread.sleep(150);
-			} catch (InterruptedException e) {
-			}
+			waitForPipe(150);
 		}
 
 		run();
@@ -25,6 +25,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Process to create a platform specific communications pipe that provides
@@ -35,8 +39,35 @@ public class PipeProcess {
 	private static final Logger logger = LoggerFactory.getLogger(PipeProcess.class);
 	private static final PmsConfiguration configuration = PMS.getConfiguration();
 
+	/**
+	 * FIFOs that exist and have not been unlinked yet. Those that are left
+	 * at shutdown are unlinked then.
+	 */
+	private static final Set<String> fifos = new HashSet<String>();
+
+	static {
+		if (!Platform.isWindows()) {
+			Runtime.getRuntime().addShutdownHook(new Thread("FIFO Cleaner") {
+				@Override
+				public void run() {
+					List<String> remaining;
+
+					synchronized (fifos) {
+						remaining = new ArrayList<String>(fifos);
+						fifos.clear();
+					}
+
+					for (String fifo : remaining) {
+						new File(fifo).delete();
+					}
+				}
+			});
+		}
+	}
+
 	private String linuxPipeName;
 	private WindowsNamedPipe mk;
+	private FifoProcess fifo;
 	private boolean forcereconnect;
 
 	public PipeProcess(String pipeName, OutputParams params, String... extras) {
@@ -89,8 +120,25 @@ public class PipeProcess {
 		return mk.getPipeName();
 	}
 
+	/**
+	 * Returns the process that creates the pipe. On Unix-like systems the
+	 * FIFO is made in-process when the C library is available, and unlinked
+	 * when the process is stopped.
+	 *
+	 * @return The process.
+	 */
 	public ProcessWrapper getPipeProcess() {
 		if (!Platform.isWindows()) {
+			if (PosixUtils.isAvailable()) {
+				synchronized (this) {
+					if (fifo == null) {
+						fifo = new FifoProcess(linuxPipeName);
+					}
+
+					return fifo;
+				}
+			}
+
 			OutputParams mkfifo_vid_params = new OutputParams(configuration);
 			mkfifo_vid_params.maxBufferSize = 0.1;
 			mkfifo_vid_params.log = true;
@@ -109,10 +157,41 @@ public class PipeProcess {
 		return mk;
 	}
 
+	/**
+	 * Waits for the pipe process that was started with
+	 * {@link ProcessWrapper#runInNewThread()} to create the pipe. A FIFO that
+	 * was made in-process already exists, so this only sleeps when a command
+	 * or a Windows thread creates the pipe.
+	 *
+	 * @param millis The time to give the command or thread.
+	 */
+	public void waitForPipe(long millis) {
+		if (isCreated()) {
+			return;
+		}
+
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * @return True if the pipe is known to exist.
+	 */
+	public synchronized boolean isCreated() {
+		return fifo != null && fifo.isCreated();
+	}
+
+	/**
+	 * Makes sure the FIFO is unlinked at the latest when PMS exits. FIFOs
+	 * made in-process are unlinked as soon as their process is stopped.
+	 */
 	public void deleteLater() {
 		if (!Platform.isWindows()) {
-			File f = new File(linuxPipeName);
-			f.deleteOnExit();
+			synchronized (fifos) {
+				fifos.add(linuxPipeName);
+			}
 		}
 	}
 
@@ -145,4 +224,93 @@ public class PipeProcess {
 
 		return mk.getWritable();
 	}
+
+	/**
+	 * Makes a FIFO through the C library when it is run, and unlinks it when
+	 * it is stopped. Running it again after that does nothing.
+	 */
+	private static class FifoProcess implements ProcessWrapper {
+		private final String name;
+		private boolean created;
+		private boolean stopped;
+
+		FifoProcess(String name) {
+			this.name = name;
+		}
+
+		synchronized boolean isCreated() {
+			return created;
+		}
+
+		@Override
+		public synchronized void runInSameThread() {
+			if (created || stopped) {
+				return;
+			}
+
+			if (PosixUtils.mkfifo(name)) {
+				created = true;
+
+				synchronized (fifos) {
+					fifos.add(name);
+				}
+
+				logger.trace("Created FIFO " + name);
+			}
+		}
+
+		/**
+		 * Makes the FIFO in the current thread, since that takes no time.
+		 */
+		@Override
+		public void runInNewThread() {
+			runInSameThread();
+		}
+
+		@Override
+		public synchronized void stopProcess() {
+			if (stopped) {
+				return;
+			}
+
+			stopped = true;
+
+			synchronized (fifos) {
+				fifos.remove(name);
+			}
+
+			if (created && !new File(name).delete()) {
+				logger.debug("Can't unlink FIFO " + name);
+			}
+		}
+
+		@Override
+		public synchronized boolean isDestroyed() {
+			return stopped;
+		}
+
+		@Override
+		public InputStream getInputStream(long seek) throws IOException {
+			return null;
+		}
+
+		@Override
+		public List<String> getResults() {
+			return null;
+		}
+
+		@Override
+		public boolean isReadyToStop() {
+			return false;
+		}
+
+		@Override
+		public void setReadyToStop(boolean nullable) {
+		}
+
+		@Override
+		public String toString() {
+			return "FifoProcess [" + name + "]";
+		}
+	}
 }
@@ -0,0 +1,124 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls the C library on Unix-like systems, so that making a FIFO or
+ * signalling a process does not cost a new process. When the library can
+ * not be loaded, {@link #isAvailable()} returns false and callers run the
+ * mkfifo and kill commands instead.
+ */
+public class PosixUtils {
+	private static final Logger logger = LoggerFactory.getLogger(PosixUtils.class);
+
+	/**
+	 * Permissions of the FIFOs, like "mkfifo --mode=777".
+	 */
+	private static final int FIFO_MODE = 0777;
+
+	interface CLibrary extends Library {
+		int mkfifo(String path, int mode);
+
+		int chmod(String path, int mode);
+
+		int kill(int pid, int signal);
+	}
+
+	private static CLibrary library;
+	private static boolean loaded;
+
+	private PosixUtils() {
+	}
+
+	private static synchronized CLibrary getLibrary() {
+		if (!loaded) {
+			loaded = true;
+
+			if (!Platform.isWindows()) {
+				try {
+					library = (CLibrary) Native.loadLibrary("c", CLibrary.class);
+				} catch (Throwable e) {
+					logger.debug("Can't load the C library, falling back to mkfifo and kill commands: " + e.getMessage());
+				}
+			}
+		}
+
+		return library;
+	}
+
+	/**
+	 * @return True if the native calls can be made.
+	 */
+	public static boolean isAvailable() {
+		return getLibrary() != null;
+	}
+
+	/**
+	 * Makes a FIFO that everybody can read and write.
+	 *
+	 * @param path The path of the FIFO.
+	 * @return True if the FIFO was made, false if it could not be made or
+	 * the library is not available.
+	 */
+	public static boolean mkfifo(String path) {
+		CLibrary c = getLibrary();
+
+		if (c == null) {
+			return false;
+		}
+
+		if (c.mkfifo(path, FIFO_MODE) != 0) {
+			logger.warn("Can't make the FIFO " + path + ": error " + Native.getLastError());
+			return false;
+		}
+
+		// The mode given to mkfifo is masked by the umask
+		c.chmod(path, FIFO_MODE);
+		return true;
+	}
+
+	/**
+	 * Sends a signal to a process.
+	 *
+	 * @param pid The process ID.
+	 * @param signal The signal number.
+	 * @return True if the signal was sent, false if it could not be sent or
+	 * the library is not available.
+	 */
+	public static boolean kill(int pid, int signal) {
+		CLibrary c = getLibrary();
+
+		if (c == null) {
+			return false;
+		}
+
+		if (c.kill(pid, signal) != 0) {
+			logger.debug("Can't send signal " + signal + " to the Unix process " + pid + ": error " + Native.getLastError());
+			return false;
+		}
+
+		return true;
+	}
+}
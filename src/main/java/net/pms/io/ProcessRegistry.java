@@ -0,0 +1,216 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import net.pms.util.ProcessUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the external processes that are running, which can be used
+ * from any thread. It reports how many there are and how much CPU time
+ * they used, and logs how each one ended.
+ * <p>
+ * This replaces the list that {@link net.pms.PMS#currentProcesses} used to
+ * be. Plugins that call <code>add(process)</code> and
+ * <code>remove(process)</code> on it still compile, but have to be
+ * recompiled; other code that used it as a list can use {@link #asList()}.
+ */
+public class ProcessRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(ProcessRegistry.class);
+
+	private static class Entry {
+		final String name;
+		final long started = System.currentTimeMillis();
+
+		Entry(String name) {
+			this.name = name;
+		}
+	}
+
+	private final Map<Process, Entry> processes = new ConcurrentHashMap<Process, Entry>();
+	private final AtomicLong started = new AtomicLong();
+
+	/**
+	 * Adds a process that has been started.
+	 *
+	 * @param process The process.
+	 * @param name The name used in the log.
+	 */
+	public void add(Process process, String name) {
+		processes.put(process, new Entry(name));
+		started.incrementAndGet();
+	}
+
+	/**
+	 * Adds a process that has been started, under a name made from the
+	 * process itself.
+	 *
+	 * @param process The process.
+	 */
+	public void add(Process process) {
+		add(process, String.valueOf(process));
+	}
+
+	/**
+	 * Removes a process that has ended or has been stopped, and logs its
+	 * exit code and run time.
+	 *
+	 * @param process The process.
+	 */
+	public void remove(Process process) {
+		if (process == null) {
+			return;
+		}
+
+		Entry entry = processes.remove(process);
+
+		if (entry == null) {
+			return;
+		}
+
+		String exit;
+
+		try {
+			exit = String.valueOf(process.exitValue());
+		} catch (IllegalThreadStateException e) {
+			exit = "none, still running";
+		}
+
+		logger.debug("Process " + entry.name + " ended after " + (System.currentTimeMillis() - entry.started) + " ms, exit code: " + exit);
+	}
+
+	/**
+	 * @return The number of processes that are running.
+	 */
+	public int getProcessCount() {
+		return processes.size();
+	}
+
+	/**
+	 * @return The number of processes that have been started.
+	 */
+	public long getStartedCount() {
+		return started.get();
+	}
+
+	/**
+	 * Returns the CPU time used by the processes that are running and by
+	 * all child processes of PMS that ended. It is only known on systems
+	 * that have a /proc file system.
+	 *
+	 * @return The CPU time in milliseconds, or -1 if it is not known.
+	 */
+	public long getCpuTime() {
+		long total = ProcessUtil.getChildrenCpuTime();
+
+		if (total < 0) {
+			return -1;
+		}
+
+		for (Process p : processes.keySet()) {
+			long cpuTime = ProcessUtil.getCpuTime(p);
+
+			if (cpuTime > 0) {
+				total += cpuTime;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * @return The processes that are running.
+	 */
+	public List<Process> getProcesses() {
+		return new ArrayList<Process>(processes.keySet());
+	}
+
+	/**
+	 * Destroys the processes that are still running.
+	 */
+	public void destroyAll() {
+		for (Process p : getProcesses()) {
+			try {
+				p.exitValue();
+			} catch (IllegalThreadStateException ise) {
+				logger.trace("Forcing shutdown of process: " + p);
+				ProcessUtil.destroy(p);
+			}
+		}
+	}
+
+	/**
+	 * Returns a list view of the processes that are running, for code that
+	 * used {@link net.pms.PMS#currentProcesses} when it was a list. Adding
+	 * and removing processes through it changes the registry.
+	 *
+	 * @return The view.
+	 * @deprecated Use {@link #add(Process, String)}, {@link #remove(Process)}
+	 * and {@link #getProcesses()} instead.
+	 */
+	@Deprecated
+	public List<Process> asList() {
+		return new AbstractList<Process>() {
+			@Override
+			public Process get(int index) {
+				return getProcesses().get(index);
+			}
+
+			@Override
+			public int size() {
+				return getProcessCount();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return processes.containsKey(o);
+			}
+
+			@Override
+			public void add(int index, Process process) {
+				ProcessRegistry.this.add(process);
+			}
+
+			@Override
+			public Process remove(int index) {
+				Process process = get(index);
+				ProcessRegistry.this.remove(process);
+				return process;
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (o instanceof Process && processes.containsKey(o)) {
+					ProcessRegistry.this.remove((Process) o);
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches over external processes with shared threads. Timeouts are kept
+ * on a single timer wheel, and the output of the processes is read by a
+ * shared pool, instead of every process starting its own watchdog and
+ * consumer threads.
+ * <p>
+ * The pool reuses its threads but is not bounded: reading output blocks,
+ * so every stream that is read at the same time needs a thread. Each
+ * {@link ProcessWrapperImpl} also still waits for its process on a thread
+ * of its own.
+ */
+public class ProcessSupervisor {
+	private static final Logger logger = LoggerFactory.getLogger(ProcessSupervisor.class);
+
+	/**
+	 * Resolution of the timeouts in milliseconds.
+	 */
+	private static final long TICK = 100;
+
+	/**
+	 * Number of threads that are kept when the pool is idle. More threads
+	 * are started when more output has to be read at the same time, since a
+	 * process blocks when nobody reads its output; they stop after a minute
+	 * without work.
+	 */
+	private static final int CORE_THREADS = 4;
+
+	private static final Timer timer = new HashedWheelTimer(
+		new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "process-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		},
+		TICK,
+		TimeUnit.MILLISECONDS
+	);
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+		CORE_THREADS,
+		Integer.MAX_VALUE,
+		60,
+		TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(),
+		new ThreadFactory() {
+			private int counter = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "process-worker-" + (counter++));
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	private ProcessSupervisor() {
+	}
+
+	/**
+	 * Runs a task on the shared pool, e.g. reading the output of a process.
+	 *
+	 * @param task The task.
+	 */
+	public static void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Runs a task on the shared pool after a delay, unless the returned
+	 * timeout is cancelled before. Tasks run on the pool and not on the
+	 * timer thread, so they may block.
+	 *
+	 * @param task The task.
+	 * @param delay The delay in milliseconds.
+	 * @return The timeout, to cancel the task.
+	 */
+	public static Timeout schedule(final Runnable task, long delay) {
+		return timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) {
+				if (!timeout.isCancelled()) {
+					execute(task);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops a process if it is still running after a timeout. Cancel the
+	 * returned timeout when the process has ended.
+	 *
+	 * @param process The process.
+	 * @param delay The timeout in milliseconds.
+	 * @return The timeout.
+	 */
+	public static Timeout stopAfter(final ProcessWrapper process, long delay) {
+		return schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!process.isDestroyed()) {
+					logger.debug("Stopping process that timed out: " + process);
+					process.stopProcess();
+				}
+			}
+		}, delay);
+	}
+
+	/**
+	 * @return The number of threads in the shared pool.
+	 */
+	public static int getThreadCount() {
+		return executor.getPoolSize();
+	}
+}
@@ -19,6 +19,7 @@
 package net.pms.io;
 
 import net.pms.PMS;
+import net.pms.dlna.TranscodeCache;
 import net.pms.encoders.AviDemuxerInputStream;
 import net.pms.util.ProcessUtil;
 import org.slf4j.Logger;
@@ -32,6 +33,8 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 	private static final Logger logger = LoggerFactory.getLogger(ProcessWrapperImpl.class);
@@ -41,19 +44,23 @@ public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 
 	private String cmdLine;
 	private Process process;
-	private OutputConsumer stdoutConsumer;
+	private volatile OutputConsumer stdoutConsumer;
 	private OutputConsumer stderrConsumer;
 	private OutputParams params;
 	private boolean destroyed;
 	private String[] cmdArray;
 	private boolean nullable;
 	private ArrayList<ProcessWrapper> attachedProcesses;
-	private BufferedOutputFile bo = null;
+	private volatile BufferedOutputFile bo = null;
+	private TranscodeCache.Entry cacheEntry;
 	private boolean keepStdout;
 	private boolean keepStderr;
 	private static int processCounter = 0;
 	private boolean success;
 
+	// Counted down once the output buffer exists, or the process has ended
+	private final CountDownLatch outputCreated = new CountDownLatch(1);
+
 	@Override
 	public String toString() {
 		return super.getName();
@@ -181,7 +188,7 @@ public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 			// following line:
 			// pb.redirectErrorStream(true);
 			process = pb.start();
-			PMS.get().currentProcesses.add(process);
+			PMS.get().currentProcesses.add(process, getName());
 
 			stderrConsumer = keepStderr
 				? new OutputTextConsumer(process.getErrorStream(), true)
@@ -216,6 +223,13 @@ public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 				bo.attachThread(this);
 			}
 
+			outputCreated.countDown();
+
+			if (params.cacheEntry != null && stdoutConsumer instanceof OutputBufferConsumer && params.cacheEntry.claim(this)) {
+				cacheEntry = params.cacheEntry;
+				((OutputBufferConsumer) stdoutConsumer).setCacheEntry(cacheEntry);
+			}
+
 			if (stdoutConsumer != null) {
 				stdoutConsumer.start();
 			}
@@ -249,6 +263,8 @@ public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 			logger.error("Error initializing process: ", e);
 			stopProcess();
 		} finally {
+			outputCreated.countDown();
+
 			try {
 				if (bo != null) {
 					bo.close();
@@ -269,6 +285,11 @@ public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 				}
 			}
 
+			if (cacheEntry != null) {
+				// Without the exit check, only a stopped process failed
+				cacheEntry.endOfProcess(!destroyed && (success || params.noexitcheck));
+			}
+
 			if (attachedProcesses != null) {
 				for (ProcessWrapper pw : attachedProcesses) {
 					if (pw != null) {
@@ -309,6 +330,74 @@ public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 		return null;
 	}
 
+	/**
+	 * Returns whether another reader can start reading the output of this
+	 * process at a position, i.e. whether the output is kept in a buffer
+	 * that still holds the data from there on.
+	 *
+	 * @param seek The position in bytes.
+	 * @return True if the output can be read from the position.
+	 */
+	public boolean isBuffered(long seek) {
+		BufferedOutputFileImpl buffer = getMemoryBuffer();
+		return !destroyed && buffer != null && buffer.isBuffered(seek);
+	}
+
+	/**
+	 * Returns the position of a time in the output that is still buffered,
+	 * so a time seek can be read from the buffer without a new transcode.
+	 *
+	 * @param time The time in seconds from the start of the item.
+	 * @return The position in bytes, or -1 if the time is not buffered.
+	 * @see BufferedOutputFileImpl#getPositionForTime(double)
+	 */
+	public long getPositionForTime(double time) {
+		BufferedOutputFileImpl buffer = getMemoryBuffer();
+		return !destroyed && buffer != null ? buffer.getPositionForTime(time) : -1;
+	}
+
+	/**
+	 * Waits until the process has produced its first output.
+	 *
+	 * @param timeout The maximum time to wait in milliseconds.
+	 * @return True if there is output.
+	 * @throws InterruptedException
+	 */
+	public boolean waitForOutput(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		// The buffer is created once the process has started
+		outputCreated.await(timeout, TimeUnit.MILLISECONDS);
+		BufferedOutputFileImpl buffer = getMemoryBuffer();
+
+		return buffer != null && buffer.waitForData(Math.max(0, deadline - System.currentTimeMillis()));
+	}
+
+	/**
+	 * Gives the memory of the output buffer back to the pool right away, for
+	 * callers that do not read the output of a process that has ended.
+	 */
+	public void releaseOutput() {
+		BufferedOutputFileImpl buffer = getMemoryBuffer();
+
+		if (buffer != null && buffer.getInputStreamCount() == 0) {
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * @return The memory buffer the output is read from, or null.
+	 */
+	private BufferedOutputFileImpl getMemoryBuffer() {
+		BufferedOutputFile buffer = bo;
+
+		if (buffer == null && stdoutConsumer != null) {
+			buffer = stdoutConsumer.getBuffer();
+		}
+
+		return buffer instanceof BufferedOutputFileImpl ? (BufferedOutputFileImpl) buffer : null;
+	}
+
 	public List<String> getOtherResults() {
 		if (stdoutConsumer == null) {
 			return null;
@@ -355,6 +444,9 @@ public class ProcessWrapperImpl extends Thread implements ProcessWrapper {
 			if (stdoutConsumer != null && stdoutConsumer.getBuffer() != null) {
 				stdoutConsumer.getBuffer().reset();
 			}
+
+			// No output is coming anymore
+			outputCreated.countDown();
 		}
 	}
 
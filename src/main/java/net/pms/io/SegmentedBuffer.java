@@ -0,0 +1,210 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed capacity byte storage made of {@link BufferPool} segments. Segments
+ * are taken from the pool the first time a part of the buffer is written,
+ * so the buffer grows without copying and only uses as much memory as has
+ * actually been written. Indexes wrap around at {@link #capacity()}.
+ * <p>
+ * This class is not thread-safe, callers must provide their own locking.
+ */
+class SegmentedBuffer {
+	private static final int SEGMENT_SHIFT = Integer.numberOfTrailingZeros(BufferPool.SEGMENT_SIZE);
+	private static final int SEGMENT_MASK = BufferPool.SEGMENT_SIZE - 1;
+
+	private final BufferPool pool;
+	private final ByteBuffer[] segments;
+	private final int capacity;
+
+	/**
+	 * Creates a buffer, reserving its segments in the pool. This waits when
+	 * the pool budget is exhausted and may result in a smaller capacity than
+	 * requested.
+	 *
+	 * @param pool The pool to take segments from.
+	 * @param requestedCapacity The wanted capacity in bytes.
+	 * @throws InterruptedException if the thread was interrupted while
+	 * waiting for the pool.
+	 * @throws IOException if the pool had no memory left in time.
+	 */
+	SegmentedBuffer(BufferPool pool, int requestedCapacity) throws InterruptedException, IOException {
+		this.pool = pool;
+		int wanted = (int) ((requestedCapacity + (long) SEGMENT_MASK) >> SEGMENT_SHIFT);
+		int reserved = pool.reserve(wanted);
+		segments = new ByteBuffer[reserved];
+		capacity = (int) Math.min(requestedCapacity, (long) reserved << SEGMENT_SHIFT);
+	}
+
+	/**
+	 * @return The capacity of the buffer in bytes.
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The number of bytes of memory currently held by the buffer.
+	 */
+	long allocated() {
+		long allocated = 0;
+
+		for (ByteBuffer segment : segments) {
+			if (segment != null) {
+				allocated += BufferPool.SEGMENT_SIZE;
+			}
+		}
+
+		return allocated;
+	}
+
+	/**
+	 * Makes sure the segments covering a range of the buffer are present.
+	 *
+	 * @param index The start of the range.
+	 * @param length The length of the range, wrapping around if needed.
+	 * @throws IOException if the pool could not provide a segment.
+	 */
+	void allocate(int index, int length) throws IOException {
+		if (length >= capacity) {
+			index = 0;
+			length = capacity;
+		}
+
+		int first = index >> SEGMENT_SHIFT;
+		int last = (int) (((long) index + length - 1) % capacity) >> SEGMENT_SHIFT;
+		int i = first;
+
+		while (true) {
+			if (segments[i] == null) {
+				segments[i] = pool.acquire();
+			}
+
+			if (i == last) {
+				break;
+			}
+
+			i = (i + 1) % segments.length;
+		}
+	}
+
+	/**
+	 * Reads one byte. Parts of the buffer that have never been written read
+	 * as zero.
+	 *
+	 * @param index The position in the buffer.
+	 * @return The byte at that position.
+	 */
+	byte get(int index) {
+		ByteBuffer segment = segments[index >> SEGMENT_SHIFT];
+		return segment == null ? 0 : segment.get(index & SEGMENT_MASK);
+	}
+
+	/**
+	 * Overwrites one byte of data that has been written before. Writes to
+	 * parts of the buffer that have never been allocated are ignored.
+	 *
+	 * @param index The position in the buffer.
+	 * @param value The new value.
+	 */
+	void put(int index, byte value) {
+		ByteBuffer segment = segments[index >> SEGMENT_SHIFT];
+
+		if (segment != null) {
+			segment.put(index & SEGMENT_MASK, value);
+		}
+	}
+
+	/**
+	 * Copies bytes out of the buffer, wrapping around at the end.
+	 *
+	 * @param index The position to start reading.
+	 * @param dst The destination array.
+	 * @param off The offset in the destination array.
+	 * @param length The number of bytes to copy.
+	 */
+	void get(int index, byte[] dst, int off, int length) {
+		while (length > 0) {
+			int n = chunkLength(index, length);
+			ByteBuffer segment = segments[index >> SEGMENT_SHIFT];
+
+			if (segment == null) {
+				Arrays.fill(dst, off, off + n, (byte) 0);
+			} else {
+				ByteBuffer view = segment.duplicate();
+				view.position(index & SEGMENT_MASK);
+				view.get(dst, off, n);
+			}
+
+			index = (index + n) % capacity;
+			off += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Copies bytes into the buffer, wrapping around at the end. The range
+	 * must have been allocated with {@link #allocate(int, int)}.
+	 *
+	 * @param index The position to start writing.
+	 * @param src The source array.
+	 * @param off The offset in the source array.
+	 * @param length The number of bytes to copy.
+	 */
+	void put(int index, byte[] src, int off, int length) {
+		while (length > 0) {
+			int n = chunkLength(index, length);
+			ByteBuffer view = segments[index >> SEGMENT_SHIFT].duplicate();
+			view.position(index & SEGMENT_MASK);
+			view.put(src, off, n);
+			index = (index + n) % capacity;
+			off += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Returns all segments and the reservation to the pool. The buffer can
+	 * no longer be used afterwards.
+	 */
+	void release() {
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i] != null) {
+				pool.release(segments[i]);
+				segments[i] = null;
+			}
+		}
+
+		pool.unreserve(segments.length);
+	}
+
+	/**
+	 * Returns the number of bytes that can be copied from the given position
+	 * without crossing a segment boundary or the end of the buffer.
+	 */
+	private int chunkLength(int index, int length) {
+		int n = Math.min(length, BufferPool.SEGMENT_SIZE - (index & SEGMENT_MASK));
+		return Math.min(n, capacity - index);
+	}
+}
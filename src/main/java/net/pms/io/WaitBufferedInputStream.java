@@ -23,7 +23,8 @@ import java.io.InputStream;
 
 class WaitBufferedInputStream extends InputStream {
 	private BufferedOutputFile outputStream;
-	private long readCount;
+	private volatile long readCount;
+	private volatile long lastReadTime = System.currentTimeMillis();
 	private boolean firstRead;
 
 	public void setReadCount(long readCount) {
@@ -33,6 +34,14 @@ class WaitBufferedInputStream extends InputStream {
 	public long getReadCount() {
 		return readCount;
 	}
+
+	/**
+	 * @return The time of the last read, or of the creation of the stream
+	 * if it has not been read yet.
+	 */
+	public long getLastReadTime() {
+		return lastReadTime;
+	}
 	
 	WaitBufferedInputStream(BufferedOutputFile outputStream) {
 		this.outputStream = outputStream;
@@ -40,6 +49,7 @@ class WaitBufferedInputStream extends InputStream {
 	}
 
 	public int read() throws IOException {
+		lastReadTime = System.currentTimeMillis();
 		int r = outputStream.read(firstRead, getReadCount());
 		if (r != -1) {
 			setReadCount(getReadCount() + 1);
@@ -50,6 +60,7 @@ class WaitBufferedInputStream extends InputStream {
 
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
+		lastReadTime = System.currentTimeMillis();
 		int returned = outputStream.read(firstRead, getReadCount(), b, off, len);
 		if (returned != -1) {
 			setReadCount(getReadCount() + returned);
@@ -21,6 +21,8 @@ package net.pms.network;
 import net.pms.PMS;
 import net.pms.configuration.PmsConfiguration;
 import net.pms.dlna.DLNAMediaDatabase;
+import net.pms.dlna.LibraryScanner;
+import net.pms.io.ProcessRegistry;
 import net.pms.util.PropertiesUtil;
 
 public class HTMLConsole {
@@ -41,6 +43,11 @@ public class HTMLConsole {
 			}
 			if (database.isScanLibraryRunning()) {
 				sb.append("<p align=center><b>Scan in progress! you can also <a href=\"stop\">stop it</a></b></p><br>");
+				LibraryScanner scanner = PMS.get().getRootFolder(null).getScanner();
+
+				if (scanner != null) {
+					sb.append("<p align=center>").append(scanner).append("</p><br>");
+				}
 			}
 		}
 
@@ -53,6 +60,24 @@ public class HTMLConsole {
 		sb.append("<a href=\"home\">Home</a><br>");
 		sb.append("<a href=\"scan\">Scan folders</a><br>");
 		sb.append("<a href=\"compact\">Shrink cache database (not recommended)</a>");
+
+		ProcessRegistry processes = PMS.get().currentProcesses;
+		long cpuTime = processes.getCpuTime();
+		sb.append("<br><br>Processes: ").append(processes.getProcessCount()).append(" running, ").append(processes.getStartedCount()).append(" started");
+
+		if (cpuTime >= 0) {
+			sb.append(", ").append(cpuTime / 1000).append(" s of CPU time");
+		}
+
+		HTTPServer server = PMS.get().getServer();
+		RequestExecutor executor = server != null ? server.getRequestExecutor() : null;
+
+		if (executor != null) {
+			sb.append("<br>HTTP requests: ").append(executor.getControlPool()).append("<br>").append(executor.getStreamPool());
+		}
+
+		sb.append("<br>Streams: ").append(StreamWriter.getActiveCount()).append(" sending, ").append(StreamWriter.getBytesSent() / 1048576).append(" MB sent");
+		sb.append("<br>");
 		sb.append("</p></body></html>");
 		return sb.toString();
 	}
@@ -39,6 +39,12 @@ import java.util.concurrent.Executors;
 public class HTTPServer implements Runnable {
 	private static final Logger logger = LoggerFactory.getLogger(HTTPServer.class);
 	private static final PmsConfiguration configuration = PMS.getConfiguration();
+
+	/**
+	 * Number of requests each pool of the V2 engine can queue while all its
+	 * threads are busy.
+	 */
+	private static final int REQUEST_QUEUE_SIZE = 100;
 	private final int port;
 	private String hostname;
 	private ServerSocketChannel serverSocketChannel;
@@ -50,6 +56,7 @@ public class HTTPServer implements Runnable {
 	private Channel channel;
 	private NetworkInterface networkInterface;
 	private ChannelGroup group;
+	private RequestExecutor executor;
 
 	// XXX not used
 	@Deprecated
@@ -83,6 +90,14 @@ public class HTTPServer implements Runnable {
 		return port;
 	}
 
+	/**
+	 * @return The executor that answers the requests of the V2 engine, or
+	 * null if it is not running.
+	 */
+	public RequestExecutor getRequestExecutor() {
+		return executor;
+	}
+
 	public boolean start() throws IOException {
 		hostname = configuration.getServerHostname();
 		InetSocketAddress address;
@@ -113,8 +128,14 @@ public class HTTPServer implements Runnable {
 				Executors.newCachedThreadPool()
 			);
 
+			executor = new RequestExecutor(
+				configuration.getHttpControlThreads(),
+				configuration.getHttpStreamThreads(),
+				REQUEST_QUEUE_SIZE
+			);
+
 			ServerBootstrap bootstrap = new ServerBootstrap(factory);
-			HttpServerPipelineFactory pipeline = new HttpServerPipelineFactory(group);
+			HttpServerPipelineFactory pipeline = new HttpServerPipelineFactory(group, executor);
 			bootstrap.setPipelineFactory(pipeline);
 			bootstrap.setOption("child.tcpNoDelay", true);
 			bootstrap.setOption("child.keepAlive", true);
@@ -201,6 +222,10 @@ public class HTTPServer implements Runnable {
 			if (factory != null) {
 				factory.releaseExternalResources();
 			}
+
+			if (executor != null) {
+				executor.shutdown();
+			}
 		}
 
 		NetworkConfiguration.forgetConfiguration();
@@ -40,9 +40,15 @@ import static org.jboss.netty.channel.Channels.pipeline;
 public class HttpServerPipelineFactory implements ChannelPipelineFactory {
 	private static final Logger logger = LoggerFactory.getLogger(HttpServerPipelineFactory.class);
 	private ChannelGroup group;
+	private RequestExecutor executor;
 	
 	public HttpServerPipelineFactory(ChannelGroup group) {
+	    this(group, null);
+	}
+
+	public HttpServerPipelineFactory(ChannelGroup group, RequestExecutor executor) {
 	    this.group = group;
+	    this.executor = executor;
 	}
 
     public ChannelPipeline getPipeline() throws Exception {
@@ -53,7 +59,7 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory {
 		pipeline.addLast("aggregator", new HttpChunkAggregator(65536)); // eliminate the need to decode http chunks from the client
 		pipeline.addLast("encoder", new HttpResponseEncoder());
 		pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());
-		pipeline.addLast("handler", new RequestHandlerV2(group));
+		pipeline.addLast("handler", new RequestHandlerV2(group, executor));
 		return pipeline;
 	}
 }
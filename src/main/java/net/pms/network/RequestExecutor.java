@@ -0,0 +1,263 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes HTTP requests of the V2 engine away from the Netty I/O worker
+ * threads. Answering a request can involve browsing folders, parsing media
+ * and starting transcoders, which would otherwise stall every connection
+ * served by the same worker, including running playback streams.
+ * <p>
+ * Requests are split over two bounded pools: one for control requests
+ * (SOAP actions, browsing, descriptions, icons) and one for media stream
+ * setup. This way a burst of slow transcode starts cannot delay browsing,
+ * and vice versa. When a pool and its queue are full, new requests are
+ * rejected so the caller can answer them with an error instead of piling
+ * up work.
+ */
+public class RequestExecutor {
+	private static final Logger logger = LoggerFactory.getLogger(RequestExecutor.class);
+
+	/**
+	 * Time in milliseconds idle threads are kept alive.
+	 */
+	private static final long KEEP_ALIVE = 60000;
+
+	/**
+	 * Requests that waited longer than this many milliseconds in a queue
+	 * are logged, as they indicate the pool is too small.
+	 */
+	private static final long SLOW_QUEUE_WAIT = 1000;
+
+	private final Pool controlPool;
+	private final Pool streamPool;
+
+	/**
+	 * Creates the executor.
+	 *
+	 * @param controlThreads The number of threads for control requests.
+	 * @param streamThreads The number of threads for media stream setup.
+	 * @param queueSize The number of requests each pool can queue when all
+	 * its threads are busy.
+	 */
+	public RequestExecutor(int controlThreads, int streamThreads, int queueSize) {
+		controlPool = new Pool("http-control", controlThreads, queueSize);
+		streamPool = new Pool("http-stream", streamThreads, queueSize);
+	}
+
+	/**
+	 * Queues a control request: SOAP actions, browsing and everything else
+	 * that is not a media stream.
+	 *
+	 * @param task The request handling code.
+	 * @throws RejectedExecutionException if the pool and its queue are full.
+	 */
+	public void executeControl(Runnable task) {
+		controlPool.execute(task);
+	}
+
+	/**
+	 * Queues the setup of a media stream.
+	 *
+	 * @param task The request handling code.
+	 * @throws RejectedExecutionException if the pool and its queue are full.
+	 */
+	public void executeStream(Runnable task) {
+		streamPool.execute(task);
+	}
+
+	/**
+	 * @return The statistics of the control request pool.
+	 */
+	public Pool getControlPool() {
+		return controlPool;
+	}
+
+	/**
+	 * @return The statistics of the media stream pool.
+	 */
+	public Pool getStreamPool() {
+		return streamPool;
+	}
+
+	/**
+	 * Stops accepting requests. Requests that are running or queued are
+	 * allowed to finish.
+	 */
+	public void shutdown() {
+		logger.debug("HTTP request statistics: " + controlPool + ", " + streamPool);
+		controlPool.executor.shutdown();
+		streamPool.executor.shutdown();
+	}
+
+	/**
+	 * A bounded thread pool with counters describing its load.
+	 */
+	public static class Pool {
+		private final String name;
+		private final ThreadPoolExecutor executor;
+		private final AtomicLong completed = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong totalQueueTime = new AtomicLong();
+		private final AtomicLong totalRunTime = new AtomicLong();
+		private final AtomicLong maxQueueTime = new AtomicLong();
+
+		Pool(final String name, int threads, int queueSize) {
+			this.name = name;
+			executor = new ThreadPoolExecutor(
+				threads,
+				threads,
+				KEEP_ALIVE,
+				TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					private final AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + "-" + counter.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				}
+			);
+			executor.allowCoreThreadTimeOut(true);
+		}
+
+		void execute(final Runnable task) {
+			final long queued = System.currentTimeMillis();
+
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						long started = System.currentTimeMillis();
+						long queueTime = started - queued;
+						totalQueueTime.addAndGet(queueTime);
+						updateMaxQueueTime(queueTime);
+
+						if (queueTime > SLOW_QUEUE_WAIT) {
+							logger.debug("HTTP request waited " + queueTime + " ms in the " + name + " queue");
+						}
+
+						try {
+							task.run();
+						} finally {
+							totalRunTime.addAndGet(System.currentTimeMillis() - started);
+							completed.incrementAndGet();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				rejected.incrementAndGet();
+				throw e;
+			}
+		}
+
+		private void updateMaxQueueTime(long queueTime) {
+			long max;
+
+			do {
+				max = maxQueueTime.get();
+			} while (queueTime > max && !maxQueueTime.compareAndSet(max, queueTime));
+		}
+
+		/**
+		 * @return The name of the pool.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The number of requests currently being handled.
+		 */
+		public int getActiveCount() {
+			return executor.getActiveCount();
+		}
+
+		/**
+		 * @return The number of requests waiting for a thread.
+		 */
+		public int getQueueSize() {
+			return executor.getQueue().size();
+		}
+
+		/**
+		 * @return The number of requests handled so far.
+		 */
+		public long getCompletedCount() {
+			return completed.get();
+		}
+
+		/**
+		 * @return The number of requests refused because the pool was full.
+		 */
+		public long getRejectedCount() {
+			return rejected.get();
+		}
+
+		/**
+		 * @return The average time in milliseconds requests waited for a
+		 * thread.
+		 */
+		public long getAverageQueueTime() {
+			long count = completed.get();
+			return count == 0 ? 0 : totalQueueTime.get() / count;
+		}
+
+		/**
+		 * @return The longest time in milliseconds a request waited for a
+		 * thread.
+		 */
+		public long getMaxQueueTime() {
+			return maxQueueTime.get();
+		}
+
+		/**
+		 * @return The average time in milliseconds spent handling a request.
+		 */
+		public long getAverageRunTime() {
+			long count = completed.get();
+			return count == 0 ? 0 : totalRunTime.get() / count;
+		}
+
+		@Override
+		public String toString() {
+			return name + " [active=" + getActiveCount()
+				+ ", queued=" + getQueueSize()
+				+ ", completed=" + getCompletedCount()
+				+ ", rejected=" + getRejectedCount()
+				+ ", avg queue=" + getAverageQueueTime() + " ms"
+				+ ", max queue=" + getMaxQueueTime() + " ms"
+				+ ", avg run=" + getAverageRunTime() + " ms]";
+		}
+	}
+}
@@ -36,6 +36,7 @@ import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
 import java.util.StringTokenizer;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -47,8 +48,8 @@ public class RequestHandlerV2 extends SimpleChannelUpstreamHandler {
 		Pattern.CASE_INSENSITIVE
 	);
 
-	private volatile HttpRequest nettyRequest;
 	private final ChannelGroup group;
+	private final RequestExecutor executor;
 
 	// Used to filter out known headers when the renderer is not recognized
 	private final static String[] KNOWN_HEADERS = {
@@ -68,22 +69,29 @@ public class RequestHandlerV2 extends SimpleChannelUpstreamHandler {
 	};
 	
 	public RequestHandlerV2(ChannelGroup group) {
+		this(group, null);
+	}
+
+	/**
+	 * Creates a handler that answers requests on the given executor instead
+	 * of the Netty I/O thread that received them.
+	 *
+	 * @param group The group to add channels to.
+	 * @param executor The executor to answer requests on, or null to answer
+	 * them on the I/O thread.
+	 */
+	public RequestHandlerV2(ChannelGroup group, RequestExecutor executor) {
 		this.group = group;
+		this.executor = executor;
 	}
 
 	@Override
-	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
 		throws Exception {
-		RequestV2 request = null;
-		RendererConfiguration renderer = null;
-		String userAgentString = null;
-		StringBuilder unknownHeaders = new StringBuilder();
-		String separator = "";
-		
-		HttpRequest nettyRequest = this.nettyRequest = (HttpRequest) e.getMessage();
+		final HttpRequest nettyRequest = (HttpRequest) e.getMessage();
 
-		InetSocketAddress remoteAddress = (InetSocketAddress) e.getChannel().getRemoteAddress();
-		InetAddress ia = remoteAddress.getAddress();
+		final InetSocketAddress remoteAddress = (InetSocketAddress) e.getChannel().getRemoteAddress();
+		final InetAddress ia = remoteAddress.getAddress();
 
 		// Apply the IP filter
 		if (filterIp(ia)) {
@@ -92,6 +100,67 @@ public class RequestHandlerV2 extends SimpleChannelUpstreamHandler {
 			return;
 		}
 
+		if (executor == null) {
+			handleRequest(e, nettyRequest, remoteAddress);
+			return;
+		}
+
+		// Answering may take a while, so hand it over to the executor and
+		// leave the I/O thread free for the other connections. Reading is
+		// suspended until the answer has been started, so requests on the
+		// same connection are still answered in order.
+		final Channel channel = e.getChannel();
+		channel.setReadable(false);
+
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handleRequest(e, nettyRequest, remoteAddress);
+				} catch (Exception ex) {
+					Channels.fireExceptionCaught(channel, ex);
+				} finally {
+					if (channel.isOpen()) {
+						channel.setReadable(true);
+					}
+				}
+			}
+		};
+
+		try {
+			if (isStreamRequest(nettyRequest)) {
+				executor.executeStream(task);
+			} else {
+				executor.executeControl(task);
+			}
+		} catch (RejectedExecutionException ex) {
+			logger.debug("Too many HTTP requests, refusing " + nettyRequest.getMethod() + " " + nettyRequest.getUri() + " from " + ia);
+			channel.setReadable(true);
+			sendError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE);
+		}
+	}
+
+	/**
+	 * Returns whether a request asks for media content, as opposed to
+	 * control requests like SOAP actions and descriptions.
+	 *
+	 * @param nettyRequest The request.
+	 * @return True for media requests.
+	 */
+	private static boolean isStreamRequest(HttpRequest nettyRequest) {
+		return (HttpMethod.GET.equals(nettyRequest.getMethod()) || HttpMethod.HEAD.equals(nettyRequest.getMethod()))
+			&& nettyRequest.getUri().startsWith("/get/");
+	}
+
+	private void handleRequest(MessageEvent e, HttpRequest nettyRequest, InetSocketAddress remoteAddress)
+		throws Exception {
+		RequestV2 request = null;
+		RendererConfiguration renderer = null;
+		String userAgentString = null;
+		StringBuilder unknownHeaders = new StringBuilder();
+		String separator = "";
+		InetAddress ia = remoteAddress.getAddress();
+
 		logger.trace("Opened request handler on socket " + remoteAddress);
 		PMS.get().getRegistry().disableGoToSleep();
 
@@ -164,6 +233,10 @@ public class RequestHandlerV2 extends SimpleChannelUpstreamHandler {
 					request.setSoapaction(s.nextToken());
 				} else if (request != null && temp.toUpperCase().equals("CALLBACK:")) {
 					request.setSoapaction(s.nextToken());
+				} else if (request != null && temp.toUpperCase().equals("IF-NONE-MATCH:")) {
+					request.setIfNoneMatch(headerLine.substring(headerLine.indexOf(':') + 1).trim());
+				} else if (request != null && temp.toUpperCase().equals("IF-MODIFIED-SINCE:")) {
+					request.setIfModifiedSince(headerLine.substring(headerLine.indexOf(':') + 1).trim());
 				} else if (headerLine.toUpperCase().indexOf("RANGE: BYTES=") > -1) {
 					String nums = headerLine.substring(
 						headerLine.toUpperCase().indexOf(
@@ -255,7 +328,7 @@ public class RequestHandlerV2 extends SimpleChannelUpstreamHandler {
 				+ request.getLowRange() + "-" + request.getHighRange());
 		}
 
-		writeResponse(e, request, ia);
+		writeResponse(e, nettyRequest, request, ia);
 	}
 
 	/**
@@ -270,7 +343,7 @@ public class RequestHandlerV2 extends SimpleChannelUpstreamHandler {
 		return !PMS.getConfiguration().getIpFiltering().allowed(inetAddress);
 	}
 
-	private void writeResponse(MessageEvent e, RequestV2 request, InetAddress ia) {
+	private void writeResponse(MessageEvent e, HttpRequest nettyRequest, RequestV2 request, InetAddress ia) {
 		// Decide whether to close the connection or not.
 		boolean close = HttpHeaders.Values.CLOSE.equalsIgnoreCase(nettyRequest.getHeader(HttpHeaders.Names.CONNECTION))
 			|| nettyRequest.getProtocolVersion().equals(
@@ -25,25 +25,33 @@ import net.pms.dlna.DLNAMediaInfo;
 import net.pms.dlna.DLNAMediaSubtitle;
 import net.pms.dlna.DLNAResource;
 import net.pms.dlna.Range;
+import net.pms.dlna.SearchCriteria;
+import net.pms.dlna.ThumbnailStore;
 import net.pms.external.StartStopListenerDelegate;
+import net.pms.io.FileChannelInputStream;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.stream.ChunkedStream;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -56,6 +64,13 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 public class RequestV2 extends HTTPResource {
 	private static final Logger logger = LoggerFactory.getLogger(RequestV2.class);
 	private final static String CRLF = "\r\n";
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Estimated size in bytes of the DIDL fragment of a single item, used to
+	 * size browse response buffers.
+	 */
+	private final static int DIDL_BUFFER_SIZE = 1024;
 	private static SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss", Locale.US);
 	private static int BUFFER_SIZE = 8 * 1024;
 	private static final int[] MULTIPLIER = new int[] { 1, 60, 3600, 24*3600};
@@ -84,6 +99,8 @@ public class RequestV2 extends HTTPResource {
 	private RendererConfiguration mediaRenderer;
 	private String transferMode;
 	private String contentFeatures;
+	private String ifNoneMatch;
+	private String ifModifiedSince;
 	private final Range.Time range = new Range.Time();
 
 	/**
@@ -137,6 +154,20 @@ public class RequestV2 extends HTTPResource {
 		this.contentFeatures = contentFeatures;
 	}
 
+	/**
+	 * @param ifNoneMatch The entity tags of the If-None-Match header.
+	 */
+	public void setIfNoneMatch(String ifNoneMatch) {
+		this.ifNoneMatch = ifNoneMatch;
+	}
+
+	/**
+	 * @param ifModifiedSince The date of the If-Modified-Since header.
+	 */
+	public void setIfModifiedSince(String ifModifiedSince) {
+		this.ifModifiedSince = ifModifiedSince;
+	}
+
 	public void setTimeRangeStart(Double timeseek) {
 		this.range.setStart(timeseek);
 	}
@@ -248,6 +279,8 @@ public class RequestV2 extends HTTPResource {
 		ChannelFuture future = null;
 		long CLoverride = -2; // 0 and above are valid Content-Length values, -1 means omit
 		StringBuilder response = new StringBuilder();
+		// Large responses are written here directly instead of into response
+		ChannelBuffer body = null;
 		DLNAResource dlna = null;
 		boolean xbox = mediaRenderer.isXBOX();
 
@@ -300,6 +333,22 @@ public class RequestV2 extends HTTPResource {
 					}
 
 					inputStream = dlna.getThumbnailInputStream();
+
+					if (inputStream instanceof FileChannelInputStream) {
+						// The thumbnail is a file: let the renderer validate its
+						// copy instead of downloading the thumbnail again
+						File thumbnail = ((FileChannelInputStream) inputStream).getFile();
+						String etag = ThumbnailStore.getETag(thumbnail);
+						long lastModified = thumbnail.lastModified() / 1000 * 1000;
+						output.setHeader(HttpHeaders.Names.ETAG, etag);
+						output.setHeader(HttpHeaders.Names.LAST_MODIFIED, formatHttpDate(lastModified));
+
+						if (isNotModified(etag, lastModified)) {
+							output.setStatus(HttpResponseStatus.NOT_MODIFIED);
+							inputStream.close();
+							inputStream = null;
+						}
+					}
 				} else if (fileName.indexOf("subtitle0000") > -1) {
 					// This is a request for a subtitle file
 					output.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
@@ -397,6 +446,11 @@ public class RequestV2 extends HTTPResource {
 
 						long totalsize = dlna.length(mediaRenderer);
 
+						if (totalsize == DLNAMediaInfo.TRANS_SIZE && inputStream instanceof FileChannelInputStream) {
+							// Served from the transcode cache, so the size is known
+							totalsize = ((FileChannelInputStream) inputStream).getLength();
+						}
+
 						if (chunked && totalsize == DLNAMediaInfo.TRANS_SIZE) {
 							// In chunked mode we try to avoid arbitrary values.
 							totalsize = -1;
@@ -571,7 +625,11 @@ public class RequestV2 extends HTTPResource {
 				response.append(CRLF);
 				response.append(HTTPXMLHelper.SOAP_ENCODING_HEADER);
 				response.append(CRLF);
-				response.append(HTTPXMLHelper.SEARCHCAPS_RESPONSE);
+				if (configuration.getUseCache()) {
+					response.append(HTTPXMLHelper.SEARCHCAPS_LIBRARY_RESPONSE);
+				} else {
+					response.append(HTTPXMLHelper.SEARCHCAPS_RESPONSE);
+				}
 				response.append(CRLF);
 				response.append(HTTPXMLHelper.SOAP_ENCODING_FOOTER);
 				response.append(CRLF);
@@ -640,13 +698,42 @@ public class RequestV2 extends HTTPResource {
 					}
 				}
 
-				List<DLNAResource> files = PMS.get().getRootFolder(mediaRenderer).getDLNAResources(
-					objectID,
-					browseFlag != null && browseFlag.equals("BrowseDirectChildren"),
-					startingIndex,
-					requestCount,
-					mediaRenderer
-				);
+				// Searches are answered from the media library if there is one
+				List<DLNAResource> files = null;
+				int totalMatches = -1;
+
+				if (soapaction != null && soapaction.contains("ContentDirectory:1#Search") && !xbox && configuration.getUseCache()) {
+					String criteria = getEnclosingValue(content, "<SearchCriteria>", "</SearchCriteria>");
+					String searchContainerID = getEnclosingValue(content, "<ContainerID>", "</ContainerID>");
+					List<DLNAResource> found = new ArrayList<DLNAResource>();
+
+					try {
+						totalMatches = PMS.get().getRootFolder(mediaRenderer).searchLibrary(
+							SearchCriteria.parse(StringEscapeUtils.unescapeXml(criteria)),
+							isEmpty(searchContainerID) ? "0" : searchContainerID,
+							startingIndex,
+							requestCount,
+							mediaRenderer,
+							found
+						);
+					} catch (ParseException pe) {
+						logger.debug("Invalid search criteria, browsing instead: " + pe.getMessage());
+					}
+
+					if (totalMatches >= 0) {
+						files = found;
+					}
+				}
+
+				if (files == null) {
+					files = PMS.get().getRootFolder(mediaRenderer).getDLNAResources(
+						objectID,
+						browseFlag != null && browseFlag.equals("BrowseDirectChildren"),
+						startingIndex,
+						requestCount,
+						mediaRenderer
+					);
+				}
 
 				if (searchCriteria != null && files != null) {
 					for (int i = files.size() - 1; i >= 0; i--) {
@@ -660,6 +747,15 @@ public class RequestV2 extends HTTPResource {
 					}
 				}
 
+				// Write the DIDL fragments of the items straight into the
+				// response content, they are cached as encoded bytes.
+				body = ChannelBuffers.dynamicBuffer(
+					DIDL_BUFFER_SIZE * (files != null ? files.size() + 1 : 1),
+					e.getChannel().getConfig().getBufferFactory()
+				);
+				writeUTF8(body, response);
+				response.setLength(0);
+
 				int minus = 0;
 				if (files != null) {
 					for (DLNAResource uf : files) {
@@ -667,7 +763,7 @@ public class RequestV2 extends HTTPResource {
 							uf.setFakeParentId(containerID);
 						}
 						if (uf.isCompatible(mediaRenderer) && (uf.getPlayer() == null || uf.getPlayer().isPlayerCompatible(mediaRenderer))) {
-							response.append(uf.getDidlString(mediaRenderer));
+							body.writeBytes(uf.getDidlBytes(mediaRenderer));
 						} else {
 							minus++;
 						}
@@ -687,7 +783,9 @@ public class RequestV2 extends HTTPResource {
 				if (files != null && filessize > 0) {
 					parentFolder = files.get(0).getParent();
 				}
-				if (browseFlag != null && browseFlag.equals("BrowseDirectChildren") && mediaRenderer.isMediaParserV2() && mediaRenderer.isDLNATreeHack()) {
+				if (totalMatches >= 0) {
+					response.append("<TotalMatches>").append(Math.max(0, totalMatches - minus)).append("</TotalMatches>");
+				} else if (browseFlag != null && browseFlag.equals("BrowseDirectChildren") && mediaRenderer.isMediaParserV2() && mediaRenderer.isDLNATreeHack()) {
 					// with the new parser, files are parsed and analyzed *before* creating the DLNA tree,
 					// every 10 items (the ps3 asks 10 by 10),
 					// so we do not know exactly the total number of items in the DLNA folder to send
@@ -721,7 +819,12 @@ public class RequestV2 extends HTTPResource {
 				response.append(CRLF);
 				response.append(HTTPXMLHelper.SOAP_ENCODING_FOOTER);
 				response.append(CRLF);
-				logger.trace(response.toString());
+				writeUTF8(body, response);
+				response.setLength(0);
+
+				if (logger.isTraceEnabled()) {
+					logger.trace(body.toString(UTF8));
+				}
 			}
 		} else if (method.equals("SUBSCRIBE")) {
 			output.setHeader("SID", PMS.get().usn());
@@ -793,16 +896,18 @@ public class RequestV2 extends HTTPResource {
 
 		output.setHeader("Server", PMS.get().getServerName());
 
-		if (response.length() > 0) {
+		if (response.length() > 0 || body != null) {
 			// A response message was constructed; convert it to data ready to be sent.
-			byte responseData[] = response.toString().getBytes("UTF-8");
-			output.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "" + responseData.length);
+			if (body == null) {
+				body = ChannelBuffers.wrappedBuffer(response.toString().getBytes("UTF-8"));
+			}
+
+			output.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "" + body.readableBytes());
 
 			// HEAD requests only require headers to be set, no need to set contents.
 			if (!method.equals("HEAD")) {
 				// Not a HEAD request, so set the contents of the response.
-				ChannelBuffer buf = ChannelBuffers.copiedBuffer(responseData);
-				output.setContent(buf);
+				output.setContent(body);
 			}
 
 			// Send the response to the client.
@@ -842,8 +947,19 @@ public class RequestV2 extends HTTPResource {
 			future = e.getChannel().write(output);
 
 			if (lowRange != DLNAMediaInfo.ENDFILE_POS && !method.equals("HEAD")) {
-				// Send the response body to the client in chunks.
-				ChannelFuture chunkWriteFuture = e.getChannel().write(new ChunkedStream(inputStream, BUFFER_SIZE));
+				ChannelFuture chunkWriteFuture;
+
+				if (inputStream instanceof FileChannelInputStream) {
+					// File on disk: let the operating system send the range
+					// directly from the file to the socket.
+					FileChannelInputStream fileStream = (FileChannelInputStream) inputStream;
+					logger.trace("Sending " + fileStream.getRemaining() + " bytes from file channel");
+					chunkWriteFuture = e.getChannel().write(new DefaultFileRegion(fileStream.getChannel(), fileStream.getPosition(), fileStream.getRemaining()));
+				} else {
+					// Send the response body to the client in chunks. Reading
+					// a transcode may block, so it is not done on the I/O thread.
+					chunkWriteFuture = StreamWriter.write(e.getChannel(), inputStream, BUFFER_SIZE);
+				}
 
 				// Add a listener to clean up after sending the entire response body.
 				chunkWriteFuture.addListener(new ChannelFutureListener() {
@@ -907,6 +1023,56 @@ public class RequestV2 extends HTTPResource {
 		return future;
 	}
 
+	/**
+	 * Appends text to a buffer, encoded as UTF-8.
+	 * @param buffer The {@link ChannelBuffer} to write to.
+	 * @param text The text to append.
+	 */
+	private static void writeUTF8(ChannelBuffer buffer, CharSequence text) {
+		buffer.writeBytes(text.toString().getBytes(UTF8));
+	}
+
+	/**
+	 * Evaluates the conditional headers of the request against the current
+	 * validators of the requested file. If-None-Match takes precedence over
+	 * If-Modified-Since.
+	 *
+	 * @return True if the renderer's copy is still valid.
+	 */
+	private boolean isNotModified(String etag, long lastModified) {
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+
+				if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		if (ifModifiedSince != null) {
+			try {
+				return lastModified <= createHttpDateFormat().parse(ifModifiedSince).getTime();
+			} catch (ParseException e) {
+				logger.trace("Invalid If-Modified-Since date: " + ifModifiedSince);
+			}
+		}
+
+		return false;
+	}
+
+	private static String formatHttpDate(long time) {
+		return createHttpDateFormat().format(new Date(time));
+	}
+
+	private static SimpleDateFormat createHttpDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+
 	/**
 	 * Returns a date somewhere in the far future.
 	 * @return The {@link String} containing the date
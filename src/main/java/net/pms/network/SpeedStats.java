@@ -20,8 +20,10 @@ package net.pms.network;
 
 import net.pms.PMS;
 import net.pms.io.OutputParams;
+import net.pms.io.ProcessSupervisor;
 import net.pms.io.ProcessWrapperImpl;
 import net.pms.io.SystemUtils;
+import org.jboss.netty.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -126,19 +128,9 @@ public class SpeedStats {
 			SystemUtils sysUtil = PMS.get().getRegistry();
 			final ProcessWrapperImpl pw = new ProcessWrapperImpl(sysUtil.getPingCommand(addr.getHostAddress(), 3, 64000), op,
 					true, false);
-			Runnable r = new Runnable() {
-				public void run() {
-					try {
-						Thread.sleep(2000);
-					} catch (InterruptedException e) {
-					}
-					pw.stopProcess();
-				}
-			};
-
-			Thread failsafe = new Thread(r, "SpeedStats Failsafe");
-			failsafe.start();
+			Timeout failsafe = ProcessSupervisor.stopAfter(pw, 2000);
 			pw.runInSameThread();
+			failsafe.cancel();
 			List<String> ls = pw.getOtherResults();
 			int time = 0;
 			int c = 0;
@@ -0,0 +1,219 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.network;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a response body that is read from a stream, e.g. the output of a
+ * transcode, from a thread of its own. Reading such a stream blocks until
+ * the transcoder has produced more data; done by a ChunkedStream, the
+ * reading happens on the Netty I/O thread whenever the socket becomes
+ * writable, so a stalled transcode would stall every connection of that
+ * thread.
+ * <p>
+ * At most {@link #MAX_STREAMS} streams are sent at the same time. Streams
+ * beyond that wait in a small queue for a thread to become free, and are
+ * refused when the queue is full as well.
+ */
+public class StreamWriter implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(StreamWriter.class);
+
+	/**
+	 * Number of chunks that may be waiting to be sent to the socket before
+	 * reading more of the stream.
+	 */
+	private static final int MAX_PENDING_WRITES = 16;
+
+	/**
+	 * Maximum number of streams that are sent at the same time. Each of them
+	 * keeps a thread busy for as long as it plays.
+	 */
+	private static final int MAX_STREAMS = 64;
+
+	/**
+	 * Number of streams that can wait for a thread when all of them are busy.
+	 */
+	private static final int QUEUE_SIZE = 16;
+
+	/**
+	 * Time in milliseconds idle threads are kept alive.
+	 */
+	private static final long KEEP_ALIVE = 60000;
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+		MAX_STREAMS,
+		MAX_STREAMS,
+		KEEP_ALIVE,
+		TimeUnit.MILLISECONDS,
+		new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+		new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "http-writer-" + counter.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private static final AtomicInteger activeCount = new AtomicInteger();
+	private static final AtomicLong bytesSent = new AtomicLong();
+
+	private final Channel channel;
+	private final InputStream input;
+	private final int chunkSize;
+	private final ChannelFuture future;
+
+	private StreamWriter(Channel channel, InputStream input, int chunkSize) {
+		this.channel = channel;
+		this.input = input;
+		this.chunkSize = chunkSize;
+		future = Channels.future(channel);
+	}
+
+	/**
+	 * Starts sending a stream to a channel.
+	 *
+	 * @param channel The channel.
+	 * @param input The stream. It is not closed.
+	 * @param chunkSize The number of bytes read and written at a time.
+	 * @return The future that is notified when the whole stream has been
+	 * sent, or when sending it failed. It fails right away when too many
+	 * streams are being sent already.
+	 */
+	public static ChannelFuture write(Channel channel, InputStream input, int chunkSize) {
+		StreamWriter writer = new StreamWriter(channel, input, chunkSize);
+
+		try {
+			executor.execute(writer);
+		} catch (RejectedExecutionException e) {
+			logger.info("Refusing to send a stream, " + MAX_STREAMS + " streams are being sent already");
+			writer.future.setFailure(new IOException("Too many streams"));
+		}
+
+		return writer.future;
+	}
+
+	@Override
+	public void run() {
+		LinkedList<ChannelFuture> pending = new LinkedList<ChannelFuture>();
+
+		// A chunk is only reused once its write has completed. As no more
+		// than MAX_PENDING_WRITES - 1 writes are pending when reading, the
+		// chunk written MAX_PENDING_WRITES writes ago is always free again.
+		byte[][] chunks = new byte[MAX_PENDING_WRITES][];
+		int writes = 0;
+		activeCount.incrementAndGet();
+
+		try {
+			while (channel.isOpen()) {
+				int index = writes % MAX_PENDING_WRITES;
+
+				if (chunks[index] == null) {
+					chunks[index] = new byte[chunkSize];
+				}
+
+				byte[] chunk = chunks[index];
+				int n = input.read(chunk);
+
+				if (n < 0) {
+					break;
+				}
+
+				if (n > 0) {
+					pending.add(channel.write(ChannelBuffers.wrappedBuffer(chunk, 0, n)));
+					bytesSent.addAndGet(n);
+					writes++;
+				}
+
+				// Let the socket catch up with the stream
+				if (pending.size() >= MAX_PENDING_WRITES && !await(pending.removeFirst())) {
+					return;
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				if (!await(pending.removeFirst())) {
+					return;
+				}
+			}
+
+			if (channel.isOpen()) {
+				future.setSuccess();
+			} else {
+				future.setFailure(new ClosedChannelException());
+			}
+		} catch (IOException e) {
+			logger.debug("Error reading the stream to send: " + e.getMessage());
+			future.setFailure(e);
+		} finally {
+			activeCount.decrementAndGet();
+		}
+	}
+
+	private boolean await(ChannelFuture write) {
+		write.awaitUninterruptibly();
+
+		if (!write.isSuccess()) {
+			// Usually the renderer closed the connection
+			future.setFailure(write.getCause());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return The number of streams that are being sent.
+	 */
+	public static int getActiveCount() {
+		return activeCount.get();
+	}
+
+	/**
+	 * @return The number of bytes sent from streams so far.
+	 */
+	public static long getBytesSent() {
+		return bytesSent.get();
+	}
+}
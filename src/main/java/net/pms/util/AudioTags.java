@@ -0,0 +1,1199 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Reads the stream properties and tags of FLAC, MP3, M4A and Ogg Vorbis
+ * files from their headers, without reading embedded artwork. Only the
+ * metadata blocks, frames and atoms that hold the needed values are read,
+ * everything else is skipped. Whether the file has embedded artwork is
+ * recorded, so that it can be read when it is needed.
+ * <p>
+ * Files in other formats, or that use features of these formats that are
+ * not supported here (e.g. unsynchronised ID3v2 tags), are left to a
+ * complete tag library.
+ */
+public class AudioTags {
+	/**
+	 * Longest tag value that is read. Longer values (e.g. pictures stored
+	 * in comments) are skipped.
+	 */
+	private static final int MAX_VALUE_SIZE = 65536;
+
+	/**
+	 * Number of bytes after the ID3v2 tag that are searched for the first
+	 * MPEG audio frame.
+	 */
+	private static final int MAX_SYNC_SEARCH = 65536;
+
+	/**
+	 * Number of bytes at the end of an Ogg file that are searched for the
+	 * last page.
+	 */
+	private static final int OGG_TAIL_SIZE = 65536;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset UTF_16 = Charset.forName("UTF-16");
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+	/**
+	 * MPEG audio layer III bit rates in kbit/s by index, for MPEG-1 and for
+	 * MPEG-2 and 2.5.
+	 */
+	private static final int[] MPEG1_BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+	private static final int[] MPEG2_BITRATES = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+	private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+
+	/**
+	 * ID3v1 genres, which ID3v2 and MP4 tags refer to by number.
+	 */
+	private static final String[] GENRES = {
+		"Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop",
+		"Jazz", "Metal", "New Age", "Oldies", "Other", "Pop", "R&B", "Rap",
+		"Reggae", "Rock", "Techno", "Industrial", "Alternative", "Ska", "Death Metal", "Pranks",
+		"Soundtrack", "Euro-Techno", "Ambient", "Trip-Hop", "Vocal", "Jazz+Funk", "Fusion", "Trance",
+		"Classical", "Instrumental", "Acid", "House", "Game", "Sound Clip", "Gospel", "Noise",
+		"AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative", "Instrumental Pop", "Instrumental Rock",
+		"Ethnic", "Gothic", "Darkwave", "Techno-Industrial", "Electronic", "Pop-Folk", "Eurodance", "Dream",
+		"Southern Rock", "Comedy", "Cult", "Gangsta", "Top 40", "Christian Rap", "Pop/Funk", "Jungle",
+		"Native American", "Cabaret", "New Wave", "Psychadelic", "Rave", "Showtunes", "Trailer", "Lo-Fi",
+		"Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll", "Hard Rock",
+		"Folk", "Folk-Rock", "National Folk", "Swing", "Fast Fusion", "Bebob", "Latin", "Revival",
+		"Celtic", "Bluegrass", "Avantgarde", "Gothic Rock", "Progressive Rock", "Psychedelic Rock", "Symphonic Rock", "Slow Rock",
+		"Big Band", "Chorus", "Easy Listening", "Acoustic", "Humour", "Speech", "Chanson", "Opera",
+		"Chamber Music", "Sonata", "Symphony", "Booty Bass", "Primus", "Porn Groove", "Satire", "Slow Jam",
+		"Club", "Tango", "Samba", "Folklore", "Ballad", "Power Ballad", "Rhythmic Soul", "Freestyle",
+		"Duet", "Punk Rock", "Drum Solo", "A capella", "Euro-House", "Dance Hall"
+	};
+
+	private String codec;
+	private int sampleRate;
+	private int channels;
+	private int bitsPerSample;
+	private double duration;
+	private int bitrate;
+	private boolean tagged;
+	private String title;
+	private String artist;
+	private String album;
+	private String genre;
+	private String year;
+	private String track;
+	private boolean artwork;
+
+	/**
+	 * Handler of the MP4 track that is being read.
+	 */
+	private String mp4Handler;
+
+	private AudioTags() {
+	}
+
+	/**
+	 * Reads the properties and tags of a file.
+	 *
+	 * @param file The file.
+	 * @return The properties and tags, or null if the file is not in one of
+	 * the supported formats.
+	 * @throws IOException If the file could not be read or is malformed.
+	 */
+	public static AudioTags read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			AudioTags tags = new AudioTags();
+			return tags.read(new FileInput(raf)) ? tags : null;
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return The codec, named like in FormatConfiguration, or "vorbis".
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return The number of channels, or 0 if unknown.
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return The number of bits per sample, or 0 if unknown.
+	 */
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	/**
+	 * @return The duration in seconds, or 0 if unknown.
+	 */
+	public double getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return The (average) bit rate in kbit/s, or 0 if unknown.
+	 */
+	public int getBitrate() {
+		return bitrate;
+	}
+
+	/**
+	 * @return True if the file has a tag, even if it is empty.
+	 */
+	public boolean isTagged() {
+		return tagged;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getArtist() {
+		return artist;
+	}
+
+	public String getAlbum() {
+		return album;
+	}
+
+	public String getGenre() {
+		return genre;
+	}
+
+	/**
+	 * @return The year the item was recorded, or 0 if unknown.
+	 */
+	public int getYear() {
+		return parseNumber(year, 4);
+	}
+
+	/**
+	 * @return The track number, or 0 if unknown.
+	 */
+	public int getTrack() {
+		return parseNumber(track, 9);
+	}
+
+	/**
+	 * @return True if the file has embedded artwork, which was not read.
+	 */
+	public boolean hasArtwork() {
+		return artwork;
+	}
+
+	private boolean read(FileInput input) throws IOException {
+		byte[] header = new byte[12];
+		readFully(input, header);
+
+		if (startsWith(header, 0, "OggS")) {
+			input.seek(0);
+			return readOgg(input);
+		}
+
+		if (startsWith(header, 4, "ftyp")) {
+			return readMp4(input);
+		}
+
+		long audioStart = 0;
+		boolean id3 = startsWith(header, 0, "ID3");
+
+		if (id3) {
+			audioStart = 10 + syncsafe(header, 6) + ((header[5] & 0x10) != 0 ? 10 : 0);
+		}
+
+		input.seek(audioStart);
+		byte[] marker = new byte[4];
+		readFully(input, marker);
+
+		if (startsWith(marker, 0, "fLaC")) {
+			return readFlac(input);
+		}
+
+		if (id3) {
+			input.seek(0);
+
+			if (!readId3v2(input)) {
+				return false;
+			}
+		}
+
+		return readMpegAudio(input, audioStart);
+	}
+
+	/**
+	 * Reads the metadata blocks of a FLAC file, up to its first frame.
+	 */
+	private boolean readFlac(FileInput input) throws IOException {
+		boolean streamInfo = false;
+		long samples = 0;
+		boolean last = false;
+
+		while (!last) {
+			int header = readInt(input);
+			last = (header & 0x80000000) != 0;
+			int type = (header >>> 24) & 0x7f;
+			long next = input.position() + (header & 0xffffff);
+
+			if (type == 0) {
+				byte[] info = new byte[34];
+				readFully(input, info);
+				sampleRate = ((info[10] & 0xff) << 12) | ((info[11] & 0xff) << 4) | ((info[12] & 0xf0) >> 4);
+				channels = ((info[12] & 0x0e) >> 1) + 1;
+				bitsPerSample = (((info[12] & 0x01) << 4) | ((info[13] & 0xf0) >> 4)) + 1;
+				samples = ((info[13] & 0x0fL) << 32) | ((info[14] & 0xffL) << 24) | ((info[15] & 0xff) << 16) | ((info[16] & 0xff) << 8) | (info[17] & 0xff);
+				streamInfo = true;
+			} else if (type == 4) {
+				readVorbisComments(input);
+			} else if (type == 6) {
+				artwork = true;
+			} else if (type == 127) {
+				throw new IOException("Invalid FLAC metadata block");
+			}
+
+			input.seek(next);
+		}
+
+		if (!streamInfo || sampleRate == 0) {
+			return false;
+		}
+
+		codec = "flac";
+
+		if (samples > 0) {
+			duration = (double) samples / sampleRate;
+			bitrate = (int) ((input.length() - input.position()) * 8 / duration / 1000);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads the identification and comment headers of an Ogg Vorbis file,
+	 * and the position of its last page for the duration.
+	 */
+	private boolean readOgg(FileInput input) throws IOException {
+		OggInput ogg = new OggInput(input);
+		byte[] identification = new byte[30];
+		readFully(ogg, identification);
+
+		if (identification[0] != 1 || !startsWith(identification, 1, "vorbis")) {
+			return false;
+		}
+
+		channels = identification[11] & 0xff;
+		sampleRate = readIntLE(identification, 12);
+		int nominalBitrate = readIntLE(identification, 20);
+		byte[] header = new byte[7];
+		readFully(ogg, header);
+
+		if (header[0] != 3 || !startsWith(header, 1, "vorbis") || sampleRate <= 0) {
+			return false;
+		}
+
+		readVorbisComments(ogg);
+		codec = "vorbis";
+
+		// The granule position of the last page is its number of samples
+		long length = input.length();
+		long tailStart = Math.max(0, length - OGG_TAIL_SIZE);
+		byte[] tail = new byte[(int) (length - tailStart)];
+		input.seek(tailStart);
+		readFully(input, tail);
+
+		for (int i = tail.length - 27; i >= 0; i--) {
+			if (startsWith(tail, i, "OggS") && tail[i + 4] == 0 && readIntLE(tail, i + 14) == ogg.serial) {
+				long samples = (readIntLE(tail, i + 6) & 0xffffffffL) | ((long) readIntLE(tail, i + 10) << 32);
+
+				if (samples > 0) {
+					duration = (double) samples / sampleRate;
+				}
+
+				break;
+			}
+		}
+
+		if (nominalBitrate > 0) {
+			bitrate = nominalBitrate / 1000;
+		} else if (duration > 0) {
+			bitrate = (int) (length * 8 / duration / 1000);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads a Vorbis comment block, as used by FLAC and Ogg Vorbis.
+	 */
+	private void readVorbisComments(InputStream input) throws IOException {
+		skipFully(input, readIntLE(input));
+		int count = readIntLE(input);
+		tagged = true;
+
+		for (int i = 0; i < count; i++) {
+			int length = readIntLE(input);
+
+			if (length < 0) {
+				throw new IOException("Invalid Vorbis comment");
+			}
+
+			StringBuilder name = new StringBuilder();
+			int read = 0;
+
+			while (read < length) {
+				int c = input.read();
+
+				if (c < 0) {
+					throw new EOFException();
+				}
+
+				read++;
+
+				if (c == '=') {
+					break;
+				}
+
+				if (name.length() < 64) {
+					name.append((char) c);
+				}
+			}
+
+			String key = name.toString().toUpperCase(Locale.ROOT);
+			int remaining = length - read;
+
+			if (key.equals("METADATA_BLOCK_PICTURE") || key.equals("COVERART")) {
+				artwork = true;
+			} else if (remaining <= MAX_VALUE_SIZE && isVorbisField(key)) {
+				byte[] value = new byte[remaining];
+				readFully(input, value);
+				setVorbisField(key, new String(value, UTF_8).trim());
+				continue;
+			}
+
+			skipFully(input, remaining);
+		}
+	}
+
+	private static boolean isVorbisField(String key) {
+		return key.equals("TITLE") ||
+			key.equals("ARTIST") ||
+			key.equals("ALBUM") ||
+			key.equals("DATE") ||
+			key.equals("YEAR") ||
+			key.equals("TRACKNUMBER") ||
+			key.equals("GENRE");
+	}
+
+	private void setVorbisField(String key, String value) {
+		// Fields can be repeated, the first value is used
+		if (key.equals("TITLE") && title == null) {
+			title = value;
+		} else if (key.equals("ARTIST") && artist == null) {
+			artist = value;
+		} else if (key.equals("ALBUM") && album == null) {
+			album = value;
+		} else if ((key.equals("DATE") || key.equals("YEAR")) && year == null) {
+			year = value;
+		} else if (key.equals("TRACKNUMBER") && track == null) {
+			track = value;
+		} else if (key.equals("GENRE") && genre == null) {
+			genre = value;
+		}
+	}
+
+	/**
+	 * Reads the text frames of an ID3v2.2, 2.3 or 2.4 tag.
+	 *
+	 * @return False if the tag uses features that are not supported.
+	 */
+	private boolean readId3v2(FileInput input) throws IOException {
+		byte[] header = new byte[10];
+		readFully(input, header);
+		int version = header[3];
+		int flags = header[5] & 0xff;
+		long end = 10 + syncsafe(header, 6);
+
+		if (version < 2 || version > 4 || (flags & 0x80) != 0 || (version == 2 && (flags & 0x40) != 0)) {
+			return false;
+		}
+
+		if ((flags & 0x40) != 0) {
+			// Extended header
+			int size = version == 3 ? readInt(input) : syncsafe(readBytes(input, 4), 0) - 4;
+			skipFully(input, size);
+		}
+
+		tagged = true;
+		int headerSize = version == 2 ? 6 : 10;
+		byte[] frameHeader = new byte[headerSize];
+
+		while (input.position() + headerSize <= end) {
+			readFully(input, frameHeader);
+
+			if (frameHeader[0] == 0) {
+				// Padding
+				break;
+			}
+
+			String id;
+			int size;
+			int frameFlags = 0;
+
+			if (version == 2) {
+				id = new String(frameHeader, 0, 3, ISO_8859_1);
+				size = ((frameHeader[3] & 0xff) << 16) | ((frameHeader[4] & 0xff) << 8) | (frameHeader[5] & 0xff);
+			} else {
+				id = new String(frameHeader, 0, 4, ISO_8859_1);
+				size = version == 4 ? syncsafe(frameHeader, 4) : readInt(frameHeader, 4);
+				frameFlags = frameHeader[9] & 0xff;
+			}
+
+			long next = input.position() + size;
+
+			if (size < 0 || next > end) {
+				break;
+			}
+
+			if (id.equals("APIC") || id.equals("PIC")) {
+				artwork = true;
+			} else if (size <= MAX_VALUE_SIZE && isId3Field(id)) {
+				int skip = 0;
+				boolean readable;
+
+				if (version == 3) {
+					// Compressed or encrypted frames are not read, grouped frames have an extra byte
+					readable = (frameFlags & 0xc0) == 0;
+					skip = (frameFlags & 0x20) != 0 ? 1 : 0;
+				} else if (version == 4) {
+					// Also skip unsynchronised frames, and the data length indicator
+					readable = (frameFlags & 0x0e) == 0;
+					skip = ((frameFlags & 0x40) != 0 ? 1 : 0) + ((frameFlags & 0x01) != 0 ? 4 : 0);
+				} else {
+					readable = true;
+				}
+
+				if (readable && size > skip) {
+					byte[] data = readBytes(input, size);
+					setId3Field(id, decodeText(data, skip, size - skip));
+				}
+			}
+
+			input.seek(next);
+		}
+
+		input.seek(end);
+		return true;
+	}
+
+	private static boolean isId3Field(String id) {
+		return id.equals("TIT2") || id.equals("TT2") ||
+			id.equals("TPE1") || id.equals("TP1") ||
+			id.equals("TALB") || id.equals("TAL") ||
+			id.equals("TYER") || id.equals("TYE") || id.equals("TDRC") ||
+			id.equals("TRCK") || id.equals("TRK") ||
+			id.equals("TCON") || id.equals("TCO");
+	}
+
+	private void setId3Field(String id, String value) {
+		if (value == null) {
+			return;
+		}
+
+		if (id.equals("TIT2") || id.equals("TT2")) {
+			title = value;
+		} else if (id.equals("TPE1") || id.equals("TP1")) {
+			artist = value;
+		} else if (id.equals("TALB") || id.equals("TAL")) {
+			album = value;
+		} else if (id.equals("TYER") || id.equals("TYE") || id.equals("TDRC")) {
+			year = value;
+		} else if (id.equals("TRCK") || id.equals("TRK")) {
+			track = value;
+		} else {
+			genre = getId3Genre(value);
+		}
+	}
+
+	/**
+	 * Decodes the first value of an ID3v2 text frame.
+	 */
+	private static String decodeText(byte[] data, int offset, int length) {
+		if (length < 1) {
+			return null;
+		}
+
+		Charset charset;
+		int width = 1;
+
+		switch (data[offset]) {
+			case 0:
+				charset = ISO_8859_1;
+				break;
+			case 1:
+				charset = UTF_16;
+				width = 2;
+				break;
+			case 2:
+				charset = UTF_16BE;
+				width = 2;
+				break;
+			case 3:
+				charset = UTF_8;
+				break;
+			default:
+				return null;
+		}
+
+		int start = offset + 1;
+		int end = start;
+
+		while (end + width <= offset + length && (data[end] != 0 || (width == 2 && data[end + 1] != 0))) {
+			end += width;
+		}
+
+		return new String(data, start, end - start, charset).trim();
+	}
+
+	/**
+	 * Translates genre numbers, which are written as "17" or "(17)", or
+	 * as "(17)Rock" with a refinement.
+	 */
+	private static String getId3Genre(String value) {
+		String number = value;
+
+		if (value.startsWith("(") && value.indexOf(')') > 1) {
+			String refinement = value.substring(value.indexOf(')') + 1).trim();
+
+			if (refinement.length() > 0) {
+				return refinement;
+			}
+
+			number = value.substring(1, value.indexOf(')'));
+		}
+
+		if (number.matches("\\d{1,3}")) {
+			int index = Integer.parseInt(number);
+			return index < GENRES.length ? GENRES[index] : value;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Finds the first MPEG audio layer III frame and determines the
+	 * duration from its Xing or VBRI header, or else from its bit rate.
+	 */
+	private boolean readMpegAudio(FileInput input, long audioStart) throws IOException {
+		long length = input.length();
+		input.seek(audioStart);
+		byte[] data = new byte[(int) Math.min(MAX_SYNC_SEARCH + 4096, length - audioStart)];
+		readFully(input, data);
+
+		for (int i = 0; i + 4 <= data.length && i < MAX_SYNC_SEARCH; i++) {
+			if ((data[i] & 0xff) != 0xff || (data[i + 1] & 0xe0) != 0xe0) {
+				continue;
+			}
+
+			int header = readInt(data, i);
+			int frameLength = getFrameLength(header);
+
+			if (frameLength <= 0) {
+				continue;
+			}
+
+			// Check that another frame with the same format follows
+			long next = audioStart + i + frameLength;
+
+			if (next + 4 > length) {
+				continue;
+			}
+
+			int nextHeader;
+
+			if (i + frameLength + 4 <= data.length) {
+				nextHeader = readInt(data, i + frameLength);
+			} else {
+				input.seek(next);
+				nextHeader = readInt(input);
+			}
+
+			if (getFrameLength(nextHeader) <= 0 || (nextHeader & 0xfffe0c00) != (header & 0xfffe0c00)) {
+				continue;
+			}
+
+			readMpegFrame(input, data, i, audioStart + i, header);
+			return true;
+		}
+
+		return false;
+	}
+
+	private void readMpegFrame(FileInput input, byte[] data, int offset, long frameStart, int header) throws IOException {
+		boolean mpeg1 = ((header >> 19) & 3) == 3;
+		boolean mono = ((header >> 6) & 3) == 3;
+		int frameBitrate = (mpeg1 ? MPEG1_BITRATES : MPEG2_BITRATES)[(header >> 12) & 0xf];
+		int samplesPerFrame = mpeg1 ? 1152 : 576;
+		codec = "mp3";
+		sampleRate = getSampleRate(header);
+		channels = mono ? 1 : 2;
+
+		long audioEnd = input.length();
+
+		if (audioEnd >= 128) {
+			byte[] id3v1 = new byte[128];
+			input.seek(audioEnd - 128);
+			readFully(input, id3v1);
+
+			if (startsWith(id3v1, 0, "TAG")) {
+				audioEnd -= 128;
+
+				if (!tagged) {
+					readId3v1(id3v1);
+				}
+			}
+		}
+
+		long audioLength = audioEnd - frameStart;
+		long frames = 0;
+		int xing = offset + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+		int vbri = offset + 4 + 32;
+
+		if (xing + 12 <= data.length && (startsWith(data, xing, "Xing") || startsWith(data, xing, "Info"))) {
+			if ((readInt(data, xing + 4) & 1) != 0) {
+				frames = readInt(data, xing + 8) & 0xffffffffL;
+			}
+		} else if (vbri + 18 <= data.length && startsWith(data, vbri, "VBRI")) {
+			frames = readInt(data, vbri + 14) & 0xffffffffL;
+		}
+
+		if (frames > 0) {
+			duration = (double) frames * samplesPerFrame / sampleRate;
+			bitrate = (int) (audioLength * 8 / duration / 1000);
+		} else {
+			duration = audioLength * 8.0 / (frameBitrate * 1000);
+			bitrate = frameBitrate;
+		}
+	}
+
+	private void readId3v1(byte[] data) {
+		tagged = true;
+		title = decodeId3v1(data, 3, 30);
+		artist = decodeId3v1(data, 33, 30);
+		album = decodeId3v1(data, 63, 30);
+		year = decodeId3v1(data, 93, 4);
+
+		if (data[125] == 0 && data[126] != 0) {
+			// ID3v1.1 track number
+			track = Integer.toString(data[126] & 0xff);
+		}
+
+		int index = data[127] & 0xff;
+
+		if (index < GENRES.length) {
+			genre = GENRES[index];
+		}
+	}
+
+	private static String decodeId3v1(byte[] data, int offset, int length) {
+		int end = offset;
+
+		while (end < offset + length && data[end] != 0) {
+			end++;
+		}
+
+		String value = new String(data, offset, end - offset, ISO_8859_1).trim();
+		return value.length() > 0 ? value : null;
+	}
+
+	/**
+	 * @return The length of an MPEG audio layer III frame in bytes, or 0 if
+	 * the header is not a valid one.
+	 */
+	private static int getFrameLength(int header) {
+		int version = (header >> 19) & 3;
+		int layer = (header >> 17) & 3;
+		int bitrateIndex = (header >> 12) & 0xf;
+
+		if ((header & 0xffe00000) != 0xffe00000 || version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 || ((header >> 10) & 3) == 3) {
+			return 0;
+		}
+
+		int frameBitrate = (version == 3 ? MPEG1_BITRATES : MPEG2_BITRATES)[bitrateIndex];
+		return (version == 3 ? 144000 : 72000) * frameBitrate / getSampleRate(header) + ((header >> 9) & 1);
+	}
+
+	private static int getSampleRate(int header) {
+		int version = (header >> 19) & 3;
+		int rate = MPEG1_SAMPLE_RATES[(header >> 10) & 3];
+		return version == 3 ? rate : (version == 2 ? rate / 2 : rate / 4);
+	}
+
+	/**
+	 * Reads the movie header, the audio sample description and the iTunes
+	 * metadata of an MP4 file.
+	 */
+	private boolean readMp4(FileInput input) throws IOException {
+		readMp4Boxes(input, 0, input.length(), null, 0);
+
+		if (codec == null || sampleRate == 0) {
+			return false;
+		}
+
+		if (duration > 0) {
+			bitrate = (int) (input.length() * 8 / duration / 1000);
+		}
+
+		return true;
+	}
+
+	private void readMp4Boxes(FileInput input, long start, long end, String parent, int depth) throws IOException {
+		long position = start;
+
+		while (position + 8 <= end) {
+			input.seek(position);
+			long size = readInt(input) & 0xffffffffL;
+			String type = new String(readBytes(input, 4), ISO_8859_1);
+			int headerSize = 8;
+
+			if (size == 1) {
+				size = ((long) readInt(input) << 32) | (readInt(input) & 0xffffffffL);
+				headerSize = 16;
+			} else if (size == 0) {
+				size = end - position;
+			}
+
+			if (size < headerSize || position + size > end) {
+				return;
+			}
+
+			long content = position + headerSize;
+			long contentEnd = position + size;
+
+			if ("ilst".equals(parent)) {
+				readMp4Item(input, type, content, contentEnd);
+			} else if (depth < 8 && (type.equals("moov") || type.equals("trak") || type.equals("mdia") || type.equals("minf") || type.equals("stbl") || type.equals("udta") || type.equals("ilst"))) {
+				if (type.equals("trak")) {
+					mp4Handler = null;
+				}
+
+				readMp4Boxes(input, content, contentEnd, type, depth + 1);
+			} else if (depth < 8 && type.equals("meta")) {
+				// A full box: version and flags come first
+				readMp4Boxes(input, content + 4, contentEnd, type, depth + 1);
+			} else if (type.equals("mvhd")) {
+				readMp4MovieHeader(input);
+			} else if (type.equals("hdlr") && "mdia".equals(parent)) {
+				skipFully(input, 8);
+				mp4Handler = new String(readBytes(input, 4), ISO_8859_1);
+			} else if (type.equals("stsd") && "soun".equals(mp4Handler) && codec == null) {
+				readMp4SampleDescription(input);
+			}
+
+			position = contentEnd;
+		}
+	}
+
+	private void readMp4MovieHeader(FileInput input) throws IOException {
+		int version = input.read();
+		skipFully(input, 3);
+		long timescale;
+		long units;
+
+		if (version == 1) {
+			skipFully(input, 16);
+			timescale = readInt(input) & 0xffffffffL;
+			units = ((long) readInt(input) << 32) | (readInt(input) & 0xffffffffL);
+		} else {
+			skipFully(input, 8);
+			timescale = readInt(input) & 0xffffffffL;
+			units = readInt(input) & 0xffffffffL;
+		}
+
+		if (timescale > 0) {
+			duration = (double) units / timescale;
+		}
+	}
+
+	private void readMp4SampleDescription(FileInput input) throws IOException {
+		// Version, flags and the number of entries, then the size of the first one
+		skipFully(input, 12);
+		String format = new String(readBytes(input, 4), ISO_8859_1);
+
+		if (format.equals("mp4a")) {
+			codec = "aac";
+		} else if (format.equals("alac")) {
+			codec = "alac";
+		} else {
+			return;
+		}
+
+		// Reserved, data reference index, version, revision and vendor
+		skipFully(input, 16);
+		channels = readShort(input);
+		bitsPerSample = readShort(input);
+		skipFully(input, 4);
+		sampleRate = (int) ((readInt(input) & 0xffffffffL) >>> 16);
+	}
+
+	private void readMp4Item(FileInput input, String type, long start, long end) throws IOException {
+		tagged = true;
+
+		if (type.equals("covr")) {
+			artwork = true;
+			return;
+		}
+
+		boolean text = type.equals("\u00a9nam") || type.equals("\u00a9ART") || type.equals("\u00a9alb") || type.equals("\u00a9day") || type.equals("\u00a9gen");
+
+		if (!text && !type.equals("trkn") && !type.equals("gnre")) {
+			return;
+		}
+
+		// The value is in a data box: size, type, data type and locale
+		input.seek(start);
+		long size = readInt(input) & 0xffffffffL;
+
+		if (size < 16 || start + size > end || size - 16 > MAX_VALUE_SIZE || !new String(readBytes(input, 4), ISO_8859_1).equals("data")) {
+			return;
+		}
+
+		skipFully(input, 8);
+		byte[] value = readBytes(input, (int) size - 16);
+
+		if (type.equals("trkn")) {
+			if (value.length >= 4) {
+				track = Integer.toString(((value[2] & 0xff) << 8) | (value[3] & 0xff));
+			}
+		} else if (type.equals("gnre")) {
+			if (value.length >= 2) {
+				int index = (((value[0] & 0xff) << 8) | (value[1] & 0xff)) - 1;
+
+				if (index >= 0 && index < GENRES.length) {
+					genre = GENRES[index];
+				}
+			}
+		} else {
+			String s = new String(value, UTF_8).trim();
+
+			if (type.equals("\u00a9nam")) {
+				title = s;
+			} else if (type.equals("\u00a9ART")) {
+				artist = s;
+			} else if (type.equals("\u00a9alb")) {
+				album = s;
+			} else if (type.equals("\u00a9day")) {
+				year = s;
+			} else {
+				genre = s;
+			}
+		}
+	}
+
+	/**
+	 * Parses the number at the start of a value, e.g. the year of a date or
+	 * the track of "3/12".
+	 *
+	 * @return The number, or 0 if the value does not start with one.
+	 */
+	private static int parseNumber(String value, int maxDigits) {
+		if (value == null) {
+			return 0;
+		}
+
+		value = value.trim();
+		int end = 0;
+
+		while (end < value.length() && end < maxDigits && Character.isDigit(value.charAt(end))) {
+			end++;
+		}
+
+		return end > 0 ? Integer.parseInt(value.substring(0, end)) : 0;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, String prefix) {
+		if (offset + prefix.length() > data.length) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length(); i++) {
+			if (data[offset + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int syncsafe(byte[] data, int offset) {
+		return ((data[offset] & 0x7f) << 21) | ((data[offset + 1] & 0x7f) << 14) | ((data[offset + 2] & 0x7f) << 7) | (data[offset + 3] & 0x7f);
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	private static int readIntLE(byte[] data, int offset) {
+		return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+	}
+
+	private static int readInt(InputStream input) throws IOException {
+		return readInt(readBytes(input, 4), 0);
+	}
+
+	private static int readIntLE(InputStream input) throws IOException {
+		return readIntLE(readBytes(input, 4), 0);
+	}
+
+	private static int readShort(InputStream input) throws IOException {
+		byte[] data = readBytes(input, 2);
+		return ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+	}
+
+	private static byte[] readBytes(InputStream input, int length) throws IOException {
+		byte[] data = new byte[length];
+		readFully(input, data);
+		return data;
+	}
+
+	private static void readFully(InputStream input, byte[] data) throws IOException {
+		int offset = 0;
+
+		while (offset < data.length) {
+			int read = input.read(data, offset, data.length - offset);
+
+			if (read < 0) {
+				throw new EOFException();
+			}
+
+			offset += read;
+		}
+	}
+
+	private static void skipFully(InputStream input, long length) throws IOException {
+		if (length < 0) {
+			throw new IOException("Invalid length " + length);
+		}
+
+		while (length > 0) {
+			long skipped = input.skip(length);
+
+			if (skipped <= 0) {
+				if (input.read() < 0) {
+					throw new EOFException();
+				}
+
+				skipped = 1;
+			}
+
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * Buffered input from a file that can seek.
+	 */
+	private static class FileInput extends InputStream {
+		private final RandomAccessFile raf;
+		private final byte[] buffer = new byte[8192];
+		private long bufferStart;
+		private int count;
+		private int index;
+
+		FileInput(RandomAccessFile raf) {
+			this.raf = raf;
+		}
+
+		long position() {
+			return bufferStart + index;
+		}
+
+		long length() throws IOException {
+			return raf.length();
+		}
+
+		void seek(long position) {
+			if (position >= bufferStart && position <= bufferStart + count) {
+				index = (int) (position - bufferStart);
+			} else {
+				bufferStart = position;
+				count = 0;
+				index = 0;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			bufferStart += index;
+			index = 0;
+			raf.seek(bufferStart);
+			count = Math.max(0, raf.read(buffer));
+			return count > 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (index == count && !fill()) {
+				return -1;
+			}
+
+			return buffer[index++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			if (index == count && !fill()) {
+				return -1;
+			}
+
+			int n = Math.min(len, count - index);
+			System.arraycopy(buffer, index, b, off, n);
+			index += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.max(0, Math.min(n, length() - position()));
+			seek(position() + skipped);
+			return skipped;
+		}
+	}
+
+	/**
+	 * The packet data of the first logical stream of an Ogg file. Page
+	 * headers are read as the data crosses them; packet boundaries are not
+	 * kept, since the Vorbis headers know their own lengths.
+	 */
+	private static class OggInput extends InputStream {
+		private final FileInput input;
+		private int serial;
+		private boolean started;
+		private long remaining;
+
+		OggInput(FileInput input) {
+			this.input = input;
+		}
+
+		private boolean nextPage() throws IOException {
+			while (true) {
+				byte[] header = new byte[27];
+
+				try {
+					readFully(input, header);
+				} catch (EOFException e) {
+					return false;
+				}
+
+				if (!startsWith(header, 0, "OggS")) {
+					throw new IOException("Invalid Ogg page");
+				}
+
+				byte[] segments = readBytes(input, header[26] & 0xff);
+				remaining = 0;
+
+				for (byte segment : segments) {
+					remaining += segment & 0xff;
+				}
+
+				int pageSerial = readIntLE(header, 14);
+
+				if (!started) {
+					serial = pageSerial;
+					started = true;
+				}
+
+				if (pageSerial == serial) {
+					return true;
+				}
+
+				// A page of another logical stream
+				skipFully(input, remaining);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (remaining == 0) {
+				if (!nextPage()) {
+					return -1;
+				}
+			}
+
+			remaining--;
+			return input.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			while (remaining == 0) {
+				if (!nextPage()) {
+					return -1;
+				}
+			}
+
+			int n = input.read(b, off, (int) Math.min(len, remaining));
+
+			if (n > 0) {
+				remaining -= n;
+			}
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			while (remaining == 0) {
+				if (!nextPage()) {
+					return 0;
+				}
+			}
+
+			long skipped = input.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+	}
+}
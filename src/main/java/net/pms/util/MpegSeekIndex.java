@@ -0,0 +1,609 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps times to byte positions in an MPEG-TS, M2TS or MPEG-PS file, so that
+ * a time seek is a lookup instead of a search through the file.
+ * <p>
+ * The index samples the presentation timestamp of the video at regular
+ * intervals through the file, at most {@link #MAX_SAMPLES} times, and
+ * interpolates between the samples. The timestamps are unwrapped, so a
+ * stream in which the 33-bit clock wraps around is handled too. The index
+ * can be stored as bytes (see {@link #toByteArray()}) to be kept with the
+ * media information of the file.
+ */
+public class MpegSeekIndex {
+	/**
+	 * Number of bytes read at each sample. A window must hold at least one
+	 * video timestamp, which high bitrate streams only have every few
+	 * hundred kilobytes.
+	 */
+	private static final int WINDOW_SIZE = 250000;
+
+	/**
+	 * Maximum number of windows read backwards from the end of a file to
+	 * find its last timestamp.
+	 */
+	private static final int MAX_LAST_WINDOWS = 32;
+
+	/**
+	 * Maximum number of samples, which limits the size of the index and
+	 * the time it takes to create it.
+	 */
+	static final int MAX_SAMPLES = 2000;
+
+	/**
+	 * Minimum distance between samples in bytes.
+	 */
+	private static final long MIN_STEP = 1024 * 1024;
+
+	private static final int TS_PACKET_SIZE = 188;
+	private static final long PTS_WRAP = 1L << 33;
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Packet size for transport streams, or 0 for program streams.
+	 */
+	private final int packetSize;
+
+	/**
+	 * Position of the first packet, to align positions on packets.
+	 */
+	private final long firstPacket;
+
+	/**
+	 * Positions of the samples, and their time in 90 kHz ticks since the
+	 * first sample, both ascending.
+	 */
+	private final long[] positions;
+	private final long[] times;
+
+	private MpegSeekIndex(int packetSize, long firstPacket, long[] positions, long[] times) {
+		this.packetSize = packetSize;
+		this.firstPacket = firstPacket;
+		this.positions = positions;
+		this.times = times;
+	}
+
+	/**
+	 * Creates the index of a file.
+	 *
+	 * @param file The file.
+	 * @return The index, or null if the file is not an MPEG stream with
+	 * video timestamps.
+	 * @throws IOException
+	 */
+	public static MpegSeekIndex create(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			long length = raf.length();
+			Sampler sampler = new Sampler(raf);
+
+			if (!sampler.detect()) {
+				return null;
+			}
+
+			List<long[]> samples = new ArrayList<long[]>();
+			long step = Math.max(MIN_STEP, length / MAX_SAMPLES);
+			long end = 0;
+
+			for (long position = 0; position < length - WINDOW_SIZE; position += step) {
+				long[] sample = sampler.sample(position, false);
+
+				if (sample != null) {
+					samples.add(sample);
+					end = position + WINDOW_SIZE;
+				}
+			}
+
+			long[] last = sampler.sampleLast(length, end);
+
+			if (last != null) {
+				samples.add(last);
+			}
+
+			if (samples.isEmpty()) {
+				return null;
+			}
+
+			long[] positions = new long[samples.size()];
+			long[] times = new long[samples.size()];
+			long firstPts = samples.get(0)[1];
+			long previousPts = firstPts;
+			long wraps = 0;
+
+			for (int i = 0; i < samples.size(); i++) {
+				long pts = samples.get(i)[1];
+
+				// The clock wrapped around, continue after it
+				if (pts < previousPts - PTS_WRAP / 2) {
+					wraps++;
+				}
+
+				previousPts = pts;
+				positions[i] = Math.max(samples.get(i)[0], i > 0 ? positions[i - 1] : 0);
+
+				// Timestamps of reordered frames may go back a little
+				times[i] = Math.max(pts + wraps * PTS_WRAP - firstPts, i > 0 ? times[i - 1] : 0);
+			}
+
+			return new MpegSeekIndex(sampler.packetSize, sampler.firstPacket, positions, times);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the duration of a file from the timestamps at its start and its
+	 * end, without creating an index.
+	 *
+	 * @param file The file.
+	 * @return The duration in seconds, or 0 if it is unknown.
+	 * @throws IOException
+	 */
+	public static double readDuration(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			Sampler sampler = new Sampler(raf);
+
+			if (!sampler.detect() || raf.length() < 2 * WINDOW_SIZE) {
+				return 0;
+			}
+
+			long[] first = sampler.sample(0, false);
+			long[] last = sampler.sampleLast(raf.length(), WINDOW_SIZE);
+
+			if (first == null || last == null) {
+				return 0;
+			}
+
+			long ticks = last[1] - first[1];
+
+			if (ticks < 0) {
+				ticks += PTS_WRAP;
+			}
+
+			return ticks / 90000.0;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Finds the position of a time in a file by bisecting it, without an
+	 * index. Each step reads one window, so this is slower than a lookup
+	 * in an index but does not need to sample the whole file first.
+	 *
+	 * @param file The file.
+	 * @param time The time in seconds since the start of the video.
+	 * @return The position in bytes, at the start of a packet or a pack,
+	 * or 0 if the file is not an MPEG stream with video timestamps.
+	 * @throws IOException
+	 */
+	public static long findPosition(File file, double time) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			Sampler sampler = new Sampler(raf);
+
+			if (!sampler.detect()) {
+				return 0;
+			}
+
+			long[] first = sampler.sample(0, false);
+
+			if (first == null) {
+				return 0;
+			}
+
+			long ticks = (long) (time * 90000);
+			long position = first[0];
+			long low = 0;
+			long high = raf.length();
+
+			while (high - low > WINDOW_SIZE) {
+				long middle = low + (high - low) / 2;
+				long[] sample = sampler.sample(middle, false);
+
+				if (sample == null) {
+					break;
+				}
+
+				long elapsed = sample[1] - first[1];
+
+				if (elapsed < 0) {
+					elapsed += PTS_WRAP;
+				}
+
+				if (elapsed <= ticks) {
+					low = middle;
+					position = sample[0];
+				} else {
+					high = middle;
+				}
+			}
+
+			return position;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads an index that was stored with {@link #toByteArray()}.
+	 *
+	 * @param data The stored index.
+	 * @return The index, or null if the data is not a valid index.
+	 */
+	public static MpegSeekIndex read(byte[] data) {
+		if (data == null) {
+			return null;
+		}
+
+		try {
+			DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+
+			if (input.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+
+			int packetSize = input.readInt();
+			long firstPacket = input.readLong();
+			int count = input.readInt();
+
+			if (count <= 0 || count > 2 * MAX_SAMPLES) {
+				return null;
+			}
+
+			long[] positions = new long[count];
+			long[] times = new long[count];
+
+			for (int i = 0; i < count; i++) {
+				positions[i] = input.readLong();
+				times[i] = input.readLong();
+			}
+
+			return new MpegSeekIndex(packetSize, firstPacket, positions, times);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The index as bytes, to be read with {@link #read(byte[])}.
+	 */
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + 16 * positions.length);
+		DataOutputStream output = new DataOutputStream(bytes);
+
+		try {
+			output.writeInt(FORMAT_VERSION);
+			output.writeInt(packetSize);
+			output.writeLong(firstPacket);
+			output.writeInt(positions.length);
+
+			for (int i = 0; i < positions.length; i++) {
+				output.writeLong(positions[i]);
+				output.writeLong(times[i]);
+			}
+
+			output.close();
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return The time between the first and the last sample in seconds,
+	 * i.e. the duration of the video.
+	 */
+	public double getDuration() {
+		return times[times.length - 1] / 90000.0;
+	}
+
+	/**
+	 * @return The number of samples.
+	 */
+	public int getSampleCount() {
+		return positions.length;
+	}
+
+	/**
+	 * Returns the position of a time in the file. For transport streams it
+	 * is the start of a packet; for program streams, use
+	 * {@link #getPosition(File, double)} to get the start of a pack.
+	 *
+	 * @param time The time in seconds since the start of the video.
+	 * @return The position in bytes.
+	 */
+	public long getPosition(double time) {
+		long ticks = (long) (time * 90000);
+
+		if (ticks <= 0) {
+			return positions[0];
+		}
+
+		// The last sample at or before the time
+		int low = 0;
+		int high = times.length - 1;
+
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+
+			if (times[middle] <= ticks) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		long position = positions[low];
+
+		if (low < times.length - 1 && times[low + 1] > times[low]) {
+			position += (positions[low + 1] - positions[low]) * (ticks - times[low]) / (times[low + 1] - times[low]);
+		}
+
+		if (packetSize > 0 && position > firstPacket) {
+			position -= (position - firstPacket) % packetSize;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Returns the position of a time in a file, at the start of a packet
+	 * or a pack. For program streams, this reads the file once at the
+	 * interpolated position to find the next pack.
+	 *
+	 * @param file The file of the index.
+	 * @param time The time in seconds since the start of the video.
+	 * @return The position in bytes.
+	 * @throws IOException
+	 */
+	public long getPosition(File file, double time) throws IOException {
+		long position = getPosition(time);
+
+		if (packetSize > 0) {
+			return position;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			byte[] buffer = new byte[WINDOW_SIZE];
+			raf.seek(position);
+			int n = raf.read(buffer);
+
+			for (int i = 0; i + 4 <= n; i++) {
+				if (buffer[i] == 0 && buffer[i + 1] == 0 && buffer[i + 2] == 1 && (buffer[i + 3] & 0xff) == 0xba) {
+					return position + i;
+				}
+			}
+
+			return position;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Finds video timestamps in windows of a file.
+	 */
+	private static class Sampler {
+		private final RandomAccessFile raf;
+		private final byte[] buffer = new byte[WINDOW_SIZE];
+		private int packetSize;
+		private long firstPacket;
+
+		/**
+		 * The PID (transport streams) or stream ID (program streams) of the
+		 * video, -1 until it is found.
+		 */
+		private int video = -1;
+
+		Sampler(RandomAccessFile raf) {
+			this.raf = raf;
+		}
+
+		/**
+		 * Detects the type of stream from the start of the file.
+		 *
+		 * @return True if it is a transport or program stream.
+		 */
+		boolean detect() throws IOException {
+			int n = read(0);
+			int sync = findSync(n, TS_PACKET_SIZE);
+
+			if (sync >= 0) {
+				packetSize = TS_PACKET_SIZE;
+				firstPacket = sync;
+				return true;
+			}
+
+			sync = findSync(n, TS_PACKET_SIZE + 4);
+
+			if (sync >= 4) {
+				// M2TS packets start with a 4 byte timestamp
+				packetSize = TS_PACKET_SIZE + 4;
+				firstPacket = sync - 4;
+				return true;
+			}
+
+			packetSize = 0;
+			return n >= 4 && buffer[0] == 0 && buffer[1] == 0 && buffer[2] == 1 && (buffer[3] & 0xff) == 0xba;
+		}
+
+		/**
+		 * Finds a video timestamp in the window at a position.
+		 *
+		 * @param position The position of the window.
+		 * @param last True for the last timestamp in the window, false for
+		 * the first.
+		 * @return The position of the packet or pack of the timestamp and the
+		 * timestamp, or null if there is none.
+		 */
+		long[] sample(long position, boolean last) throws IOException {
+			int n = read(position);
+			long[] sample = null;
+
+			if (packetSize > 0) {
+				int sync = findSync(n, packetSize);
+
+				for (int i = sync; sync >= 0 && i + TS_PACKET_SIZE <= n && buffer[i] == 0x47; i += packetSize) {
+					boolean unitStart = (buffer[i + 1] & 0x40) != 0;
+					int pid = ((buffer[i + 1] & 0x1f) << 8) | (buffer[i + 2] & 0xff);
+					int adaptation = (buffer[i + 3] >> 4) & 3;
+					int payload = i + 4 + ((adaptation & 2) != 0 ? 1 + (buffer[i + 4] & 0xff) : 0);
+
+					if (!unitStart || (adaptation & 1) == 0 || payload + 14 > i + TS_PACKET_SIZE || (video >= 0 && pid != video)) {
+						continue;
+					}
+
+					long pts = getPts(payload);
+
+					if (pts >= 0) {
+						video = pid;
+						sample = new long[] {position + i - (packetSize - TS_PACKET_SIZE), pts};
+
+						if (!last) {
+							break;
+						}
+					}
+				}
+			} else {
+				long pack = -1;
+
+				for (int i = 0; i + 14 <= n; i++) {
+					if (buffer[i] != 0 || buffer[i + 1] != 0 || buffer[i + 2] != 1) {
+						continue;
+					}
+
+					if ((buffer[i + 3] & 0xff) == 0xba) {
+						pack = position + i;
+					} else if (pack >= 0 && (video < 0 || (buffer[i + 3] & 0xff) == video)) {
+						long pts = getPts(i);
+
+						if (pts >= 0) {
+							video = buffer[i + 3] & 0xff;
+							sample = new long[] {pack, pts};
+
+							if (!last) {
+								break;
+							}
+						}
+					}
+				}
+			}
+
+			return sample;
+		}
+
+		/**
+		 * Finds the last video timestamp before a position, reading the
+		 * file backwards one window at a time until there is one.
+		 *
+		 * @param end The position to search backwards from.
+		 * @param start The position not to search before.
+		 * @return The position of the packet or pack of the timestamp and
+		 * the timestamp, or null if there is none.
+		 */
+		long[] sampleLast(long end, long start) throws IOException {
+			for (int i = 1; i <= MAX_LAST_WINDOWS; i++) {
+				long position = Math.max(0, end - i * (long) WINDOW_SIZE);
+				long[] sample = sample(position, true);
+
+				if (sample != null) {
+					return sample;
+				}
+
+				if (position <= start) {
+					break;
+				}
+			}
+
+			return null;
+		}
+
+		private int read(long position) throws IOException {
+			raf.seek(position);
+			int n = 0;
+
+			while (n < buffer.length) {
+				int count = raf.read(buffer, n, buffer.length - n);
+
+				if (count < 0) {
+					break;
+				}
+
+				n += count;
+			}
+
+			return n;
+		}
+
+		/**
+		 * @return The offset of the first of three sync bytes in a row, or
+		 * -1 if there is none.
+		 */
+		private int findSync(int n, int size) {
+			for (int i = 0; i < size && i + 2 * size < n; i++) {
+				if (buffer[i] == 0x47 && buffer[i + size] == 0x47 && buffer[i + 2 * size] == 0x47) {
+					return i;
+				}
+			}
+
+			return -1;
+		}
+
+		/**
+		 * @return The presentation timestamp of the video PES header at an
+		 * offset, or -1 if there is none.
+		 */
+		private long getPts(int offset) {
+			int streamId = buffer[offset + 3] & 0xff;
+
+			if (buffer[offset] != 0 || buffer[offset + 1] != 0 || buffer[offset + 2] != 1
+					|| streamId < 0xe0 || streamId > 0xef
+					|| (buffer[offset + 6] & 0xc0) != 0x80 || (buffer[offset + 7] & 0x80) == 0) {
+				return -1;
+			}
+
+			return ((long) (buffer[offset + 9] & 0x0e) << 29)
+				| ((buffer[offset + 10] & 0xff) << 22)
+				| ((buffer[offset + 11] & 0xfe) << 14)
+				| ((buffer[offset + 12] & 0xff) << 7)
+				| ((buffer[offset + 13] & 0xff) >> 1);
+		}
+	}
+}
@@ -2,82 +2,59 @@ package net.pms.util;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import net.pms.PMS;
+import net.pms.dlna.DLNAMediaDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class MpegUtil {
-	public static int getDurationFromMpeg(File f) throws IOException {
-		RandomAccessFile raf = new RandomAccessFile(f, "r");
-		if (raf.length() >= 500000) {
-			Map<Integer, Integer> ptsStart = checkRange(raf, 0, 250000, false);
-			if (ptsStart != null) {
-				Map<Integer, Integer> ptsEnd = checkRange(raf, 0, 250000, true);
-				if (ptsEnd != null) {
-					Iterator<Integer> iterator = ptsStart.keySet().iterator();
-					while (iterator.hasNext()) {
-						Integer id = iterator.next();
-						if (ptsEnd.get(id) != null) {
-							int dur = ptsEnd.get(id).intValue()
-								- ptsStart.get(id).intValue();
-							dur = dur / 90000;
-							return dur;
-						}
-					}
-				}
-			}
-		}
-		raf.close();
-		return 0;
-	}
+	private static final Logger logger = LoggerFactory.getLogger(MpegUtil.class);
 
-	private static Map<Integer, Integer> checkRange(RandomAccessFile raf, long startingPos,
-		int range, boolean end) throws IOException {
-		Map<Integer, Integer> pts = new HashMap<Integer, Integer>();
-		byte buffer[] = new byte[range];
-		if (end) // statringPos not applicable for end==true
-		{
-			raf.seek(raf.length() - range);
-		} else {
-			raf.seek(0 + startingPos);
-		}
-		raf.read(buffer, 0, buffer.length);
-		int ps = 0;
-		int start = 0;
-		for (int i = 0; i < 400; i++) {
-			if (buffer[i] == 71 && buffer[i + 188] == 71) { // T
-				// ok
-				ps = 188;
-				start = i;
-				break;
-			} else if (buffer[i] == 71 && buffer[i + 192] == 71) { // MT
-				// ok
-				ps = 192;
-				start = i;
-				break;
-			}
+	/**
+	 * Number of seek indexes kept in memory.
+	 */
+	private static final int INDEX_CACHE_SIZE = 32;
+
+	/**
+	 * Seek indexes by path and modification time, least recently used first.
+	 */
+	private static final Map<String, MpegSeekIndex> indexes = new LinkedHashMap<String, MpegSeekIndex>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MpegSeekIndex> eldest) {
+			return size() > INDEX_CACHE_SIZE;
 		}
-		if (ps == 0) {
-			return null;
+	};
+
+	/**
+	 * Files whose seek index is being created in the background.
+	 */
+	private static final Set<String> pending = new HashSet<String>();
+
+	/**
+	 * gets the duration of an MPEG stream (M2TS, TS, PS) from the timestamps
+	 * at its start and end
+	 * @param f - file to check
+	 * @return duration in seconds, 0 if unknown
+	 * @throws IOException
+	 */
+	public static int getDurationFromMpeg(File f) throws IOException {
+		MpegSeekIndex index = getCachedSeekIndex(f);
+
+		if (index != null) {
+			return (int) index.getDuration();
 		}
-		for (int i = start; i < buffer.length - ps; i += ps) {
-			Integer id = (((buffer[i + 1] + 256) % 256) - 64) * 256 + ((buffer[i + 2] + 256) % 256); // calc id
-			if (buffer[i + 7] == -32 && buffer[i + 6] == 1) {
-				int diff = i + 7 + 4; // 47 50 11 11 00 00 01 E0 00 00 84 C0
-				// check pts
-				if ((buffer[diff] & 128) == 128 && (buffer[diff + 2] & 32) == 32
-						&& (pts.get(id) == null || (pts.get(id) != null && end))) {
-					pts.put(id, Integer.valueOf(getTS(buffer, diff + 3)));
-				}
-			}
+
+		if (f.length() < 500000) {
+			return 0;
 		}
-		return pts;
-	}
 
-	private static int getTS(byte buffer[], int diff) {
-		return (((((buffer[diff + 0] & 0xff) << 8) + (buffer[diff + 1] & 0xff)) >> 1) << 15)
-			+ ((((buffer[diff + 2] & 0xff) << 8) + (buffer[diff + 3] & 0xff)) >> 1);
+		return (int) MpegSeekIndex.readDuration(f);
 	}
 
 	/**
@@ -94,51 +71,100 @@ public class MpegUtil {
 	}
 
 	/**
-	 * gets position for specified time in MPEG stream (M2TS, TS)
+	 * gets position for specified time in MPEG stream (M2TS, TS, PS)
 	 * @param f - file to check
 	 * @param timeS - time (in seconds) to find
-	 * @return position in stream (in bytes).
+	 * @return position in stream (in bytes), 0 if unknown
 	 * @throws IOException
 	 */
 	public static long getPositionForTimeInMpeg(File f, int timeS) throws IOException {
-		RandomAccessFile raf = new RandomAccessFile(f, "r");
-		Map<Integer, Integer> ptsStart = checkRange(raf, 0, 250000, false);
-		long currentPos = 0;
-
-		if (ptsStart != null && !ptsStart.isEmpty()) {
-			long minRangePos = 0;
-			long maxRangePos = raf.length();
-			boolean nextPosition = true;
-			while (maxRangePos - minRangePos > 250000 && nextPosition) {
-				nextPosition = false;
-				currentPos = minRangePos + (maxRangePos - minRangePos) / 2;
-				Map<Integer, Integer> ptsEnd = checkRange(raf, currentPos, 250000, false);
-				if (ptsEnd != null) {
-					Iterator<Integer> iterator = ptsStart.keySet().iterator();
-					while (iterator.hasNext()) {
-						Integer id = iterator.next();
-						if (ptsEnd.get(id) != null) {
-							int time = (ptsEnd.get(id).intValue() - ptsStart.get(id).intValue()) / 90000;
-
-							if (time == timeS) // found it
-							{
-								return currentPos;
-							}
-
-							nextPosition = true;
-							if (time > timeS) {
-								maxRangePos = currentPos;
-							} else {
-								minRangePos = currentPos;
-							}
-							break;
-						}
+		MpegSeekIndex index = getSeekIndex(f);
+
+		if (index != null) {
+			return index.getPosition(f, timeS);
+		}
+
+		// Search the file until its index has been created
+		return MpegSeekIndex.findPosition(f, timeS);
+	}
+
+	/**
+	 * Returns the seek index of a file. It is taken from memory, or else
+	 * from the database. Otherwise the index is created in the background
+	 * and stored in the database when the file is in it, so that the seek
+	 * that needs it does not wait for the whole file to be sampled.
+	 *
+	 * @param f The file.
+	 * @return The index, or null if it does not exist yet or the file is
+	 * not an MPEG stream.
+	 */
+	public static MpegSeekIndex getSeekIndex(File f) {
+		MpegSeekIndex index = getCachedSeekIndex(f);
+
+		if (index != null) {
+			return index;
+		}
+
+		final File file = f;
+		final String name = f.getAbsolutePath();
+		final long modified = f.lastModified();
+		final DLNAMediaDatabase database = PMS.getConfiguration().getUseCache() ? PMS.get().getDatabase() : null;
+
+		if (database != null) {
+			index = MpegSeekIndex.read(database.getSeekIndex(name, modified));
+
+			if (index != null) {
+				remember(name, modified, index);
+				return index;
+			}
+		}
+
+		synchronized (pending) {
+			if (!pending.add(name + ":" + modified)) {
+				return null;
+			}
+		}
+
+		TaskRunner.getInstance().submitNamed("seek-index", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long start = System.currentTimeMillis();
+					MpegSeekIndex created = MpegSeekIndex.create(file);
+
+					if (created == null) {
+						return;
+					}
+
+					logger.debug("Created seek index of " + name + " with " + created.getSampleCount() + " samples in " + (System.currentTimeMillis() - start) + " ms");
+
+					if (database != null) {
+						database.updateSeekIndex(name, modified, created.toByteArray());
+					}
+
+					remember(name, modified, created);
+				} catch (IOException e) {
+					logger.debug("Error creating the seek index of " + name + ": " + e.getMessage());
+				} finally {
+					synchronized (pending) {
+						pending.remove(name + ":" + modified);
 					}
-				} else {
-					return currentPos;
 				}
 			}
+		});
+
+		return null;
+	}
+
+	private static void remember(String name, long modified, MpegSeekIndex index) {
+		synchronized (indexes) {
+			indexes.put(name + ":" + modified, index);
+		}
+	}
+
+	private static MpegSeekIndex getCachedSeekIndex(File f) {
+		synchronized (indexes) {
+			return indexes.get(f.getAbsolutePath() + ":" + f.lastModified());
 		}
-		return currentPos;
 	}
 }
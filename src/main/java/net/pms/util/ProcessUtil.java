@@ -2,10 +2,14 @@ package net.pms.util;
 
 import net.pms.PMS;
 import net.pms.io.Gob;
+import net.pms.io.PosixUtils;
+import net.pms.io.ProcessSupervisor;
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Field;
@@ -18,6 +22,11 @@ public class ProcessUtil {
 	private static final int TERM_TIMEOUT = 10000;
 	// how long to wait in milliseconds until a kill -ALRM on Unix has been deemed to fail
 	private static final int ALRM_TIMEOUT = 2000;
+	// positions of utime and cutime in /proc/<pid>/stat, counted from the state field
+	private static final int STAT_UTIME = 11;
+	private static final int STAT_CUTIME = 13;
+	// USER_HZ, the unit of the times in /proc/<pid>/stat
+	private static final int CLOCK_TICKS = 100;
 
 	// work around a Java bug
 	// see: http://kylecartmell.com/?p=9
@@ -79,10 +88,22 @@ public class ProcessUtil {
 	 *
 	 *     https://code.google.com/p/ps3mediaserver/issues/detail?id=680#c11
 	 */
-	// send a Unix process the specified signal
+	// send a Unix process the specified signal, through the C library if
+	// possible instead of running kill
 	public static boolean kill(Integer pid, int signal) {
 		boolean killed = false;
 		logger.warn("Sending kill -" + signal + " to the Unix process: " + pid);
+
+		if (PosixUtils.isAvailable()) {
+			killed = PosixUtils.kill(pid, signal);
+
+			if (killed) {
+				logger.debug("Successfully sent kill -" + signal + " to the Unix process: " + pid);
+			}
+
+			return killed;
+		}
+
 		try {
 			Process process = Runtime.getRuntime().exec("kill -" + signal + " " + pid);
 			// "Gob": a cryptic name for (e.g.) StreamGobbler - i.e. a stream
@@ -108,39 +129,72 @@ public class ProcessUtil {
 
 			if (pid != null) { // Unix only
 				logger.trace("Killing the Unix process: " + pid);
-				Runnable r = new Runnable() {
-					public void run() {
-						try {
-							Thread.sleep(TERM_TIMEOUT);
-						} catch (InterruptedException e) {
-						}
 
+				// the supervisor's timer replaces a sleeping thread per process
+				ProcessSupervisor.schedule(new Runnable() {
+					public void run() {
 						try {
 							p.exitValue();
 						} catch (IllegalThreadStateException itse) { // still running: nuke it
 							// kill -14 (ALRM) works (for MEncoder) and is less dangerous than kill -9
 							// so try that first 
 							if (!kill(pid, 14)) {
-								try {
-									// This is a last resort, so let's not be too eager
-									Thread.sleep(ALRM_TIMEOUT);
-								} catch (InterruptedException ie) {
-								}
-
-								kill(pid, 9);
+								// This is a last resort, so let's not be too eager
+								ProcessSupervisor.schedule(new Runnable() {
+									public void run() {
+										kill(pid, 9);
+									}
+								}, ALRM_TIMEOUT);
 							}
 						}
 					}
-				};
-
-				Thread failsafe = new Thread(r, "Process Destroyer");
-				failsafe.start();
+				}, TERM_TIMEOUT);
 			}
 
 			p.destroy();
 		}
 	}
 
+	// get the CPU time in milliseconds that a Unix process used so far from
+	// /proc (returns -1 otherwise)
+	public static long getCpuTime(Process p) {
+		Integer pid = getProcessID(p);
+
+		if (pid == null) {
+			return -1;
+		}
+
+		return readCpuTime("/proc/" + pid + "/stat", false);
+	}
+
+	// get the CPU time in milliseconds that the ended child processes of
+	// PMS used from /proc (returns -1 otherwise)
+	public static long getChildrenCpuTime() {
+		return readCpuTime("/proc/self/stat", true);
+	}
+
+	private static long readCpuTime(String stat, boolean children) {
+		File file = new File(stat);
+
+		if (!file.exists()) {
+			return -1;
+		}
+
+		try {
+			String line = FileUtils.readFileToString(file);
+
+			// the command name is in parentheses and may contain spaces, so
+			// count the fields from the state that follows it
+			String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+			int first = children ? STAT_CUTIME : STAT_UTIME;
+			long ticks = Long.parseLong(fields[first]) + Long.parseLong(fields[first + 1]);
+			return ticks * 1000 / CLOCK_TICKS;
+		} catch (Exception e) {
+			// the process ended in the meantime
+			return -1;
+		}
+	}
+
 	public static String getShortFileNameIfWideChars(String name) {
 		return PMS.get().getRegistry().getShortPathNameW(name);
 	}
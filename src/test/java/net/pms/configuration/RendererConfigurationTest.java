@@ -25,9 +25,15 @@ import static net.pms.configuration.RendererConfiguration.getRendererConfigurati
 import static net.pms.configuration.RendererConfiguration.loadRendererConfigurations;
 import static net.pms.configuration.RendererConfiguration.resetAddressAssociation;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
@@ -366,4 +372,60 @@ public class RendererConfigurationTest {
 		assertEquals("PlayStation 3", conf.getRendererName());
 
 	}
+
+	/**
+	 * Test that repeated headers are recognized the same way every time,
+	 * including headers that match nothing.
+	 */
+	@Test
+	public void testRepeatedHeaders() {
+		PmsConfiguration pmsConf = null;
+
+		try {
+			pmsConf = new PmsConfiguration(false);
+		} catch (ConfigurationException e) {
+			// This should be impossible since no configuration file will be loaded.
+		}
+
+		// Initialize the RendererConfiguration
+		loadRendererConfigurations(pmsConf);
+
+		for (int i = 0; i < 3; i++) {
+			Iterator<Entry<String, String>> it = testCases.entrySet().iterator();
+
+			while (it.hasNext()) {
+				Entry<String, String> entry = it.next();
+				testHeader(entry.getKey(), entry.getValue());
+			}
+		}
+
+		// Headers that no renderer looks at never match
+		assertNull(getRendererConfigurationByUAAHH("Range: bytes=0-"));
+		assertSame(getRendererConfigurationByUA("User-Agent: PLAYSTATION 3"), getRendererConfigurationByUA("User-Agent: PLAYSTATION 3"));
+	}
+
+	/**
+	 * Test that an invalid search expression in a renderer configuration
+	 * matches nothing instead of failing each request.
+	 */
+	@Test
+	public void testInvalidSearch() throws IOException, ConfigurationException {
+		File conf = File.createTempFile("renderer", ".conf");
+		conf.deleteOnExit();
+		FileWriter writer = new FileWriter(conf);
+
+		try {
+			writer.write("RendererName = Broken\n");
+			writer.write("UserAgentSearch = [Broken\n");
+			writer.write("UserAgentAdditionalHeader = X-Broken\n");
+			writer.write("UserAgentAdditionalHeaderSearch = Broken\n");
+		} finally {
+			writer.close();
+		}
+
+		RendererConfiguration rc = new RendererConfiguration(conf);
+		assertFalse(rc.matchUserAgent("[Broken"));
+		assertTrue(rc.matchAdditionalUserAgent("broken"));
+		assertFalse(rc.matchAdditionalUserAgent("other"));
+	}
 }
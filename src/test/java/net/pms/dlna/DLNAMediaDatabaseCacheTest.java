@@ -0,0 +1,158 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.formats.Format;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests how {@link DLNAMediaDatabase} loads media information and keeps it
+ * in memory.
+ */
+public class DLNAMediaDatabaseCacheTest {
+	private static File thumbnails;
+	private DLNAMediaDatabase database;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+
+		// Keep the thumbnails out of the profile directory
+		thumbnails = File.createTempFile("thumbnails", "");
+		assertTrue(thumbnails.delete());
+		assertTrue(thumbnails.mkdir());
+		ThumbnailStore.setInstance(new ThumbnailStore(thumbnails, 10 * 1024 * 1024));
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		ThumbnailStore.setInstance(null);
+		FileUtils.deleteDirectory(thumbnails);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		String name = "cachetest" + System.nanoTime();
+		database = new DLNAMediaDatabase("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", name);
+		database.init(false);
+	}
+
+	private static DLNAMediaInfo createMedia(String songname, byte[] thumb) {
+		DLNAMediaInfo media = new DLNAMediaInfo();
+		media.setContainer("mp3");
+		media.setThumb(thumb);
+		DLNAMediaAudio audio = new DLNAMediaAudio();
+		audio.setSongname(songname);
+		media.getAudioTracksList().add(audio);
+		return media;
+	}
+
+	@Test
+	public void testThumbnailIsLoadedWhenNeeded() throws Exception {
+		byte[] thumb = {1, 2, 3};
+		database.insertData("/music/a.mp3", 1000L, Format.AUDIO, createMedia("A", thumb));
+		database.insertData("/music/b.mp3", 1000L, Format.AUDIO, createMedia("B", null));
+		database.flush();
+
+		DLNAMediaInfo media = database.getData("/music/a.mp3", 1000L).get(0);
+		assertTrue(media.hasThumb());
+		assertNotNull(media.getThumbHash());
+		assertTrue(Arrays.equals(thumb, media.getThumb()));
+
+		media = database.getData("/music/b.mp3", 1000L).get(0);
+		assertFalse(media.hasThumb());
+		assertNull(media.getThumb());
+	}
+
+	@Test
+	public void testThumbnailStateIsStored() throws Exception {
+		// Audio whose artwork has not been read yet
+		DLNAMediaInfo media = createMedia("A", null);
+		media.setThumbready(false);
+		database.insertData("/music/a.mp3", 1000L, Format.AUDIO, media);
+		database.flush();
+
+		media = database.getData("/music/a.mp3", 1000L).get(0);
+		assertFalse(media.isThumbready());
+
+		// Looked for, but there was none
+		media.setThumbready(true);
+		database.updateThumbnail("/music/a.mp3", 1000L, Format.AUDIO, media);
+
+		media = database.getData("/music/a.mp3", 1000L).get(0);
+		assertTrue(media.isThumbready());
+		assertFalse(media.hasThumb());
+	}
+
+	@Test
+	public void testCachedMediaIsCopied() throws Exception {
+		database.insertData("/music/a.mp3", 1000L, Format.AUDIO, createMedia("A", null));
+		database.flush();
+
+		DLNAMediaInfo media = database.getData("/music/a.mp3", 1000L).get(0);
+		media.getAudioTracksList().clear();
+		media = database.getData("/music/a.mp3", 1000L).get(0);
+		assertEquals(1, media.getAudioTracksList().size());
+		assertEquals("A", media.getAudioTracksList().get(0).getSongname());
+
+		// A new version of the file replaces the cached one
+		database.insertData("/music/a.mp3", 2000L, Format.AUDIO, createMedia("A2", null));
+		assertEquals("A2", database.getData("/music/a.mp3", 2000L).get(0).getAudioTracksList().get(0).getSongname());
+	}
+
+	@Test
+	public void testPrefetchedFolder() throws Exception {
+		List<File> files = new ArrayList<File>();
+
+		for (int i = 0; i < 3; i++) {
+			File file = File.createTempFile("cachetest", ".mp3");
+			file.deleteOnExit();
+			files.add(file);
+			database.insertData(file.getAbsolutePath(), file.lastModified(), Format.AUDIO, createMedia("Song " + i, null));
+		}
+
+		database.flush();
+		database.prefetch(files);
+
+		for (int i = 0; i < 3; i++) {
+			File file = files.get(i);
+			ArrayList<DLNAMediaInfo> medias = database.getData(file.getAbsolutePath(), file.lastModified());
+			assertEquals(1, medias.size());
+			assertEquals("Song " + i, medias.get(0).getAudioTracksList().get(0).getSongname());
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.ConsoleAppender;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.formats.Format;
+import net.pms.formats.v2.SubtitleType;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests the background writing of {@link DLNAMediaDatabase#insertData} and
+ * measures its throughput with synthetic media information.
+ */
+public class DLNAMediaDatabaseWriterTest {
+	private static final Logger logger = LoggerFactory.getLogger(DLNAMediaDatabaseWriterTest.class);
+	private static final AtomicInteger databases = new AtomicInteger();
+	private DLNAMediaDatabase database;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		// Except for the results of the benchmark
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%msg%n");
+		encoder.start();
+		ConsoleAppender<ILoggingEvent> console = new ConsoleAppender<ILoggingEvent>();
+		console.setContext(context);
+		console.setEncoder(encoder);
+		console.start();
+		((ch.qos.logback.classic.Logger) logger).addAppender(console);
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		String name = "writertest" + databases.incrementAndGet();
+		database = new DLNAMediaDatabase("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", name);
+		database.init(false);
+	}
+
+	private static DLNAMediaInfo createMedia(int i) {
+		DLNAMediaInfo media = new DLNAMediaInfo();
+		media.setDuration(180.0 + i);
+		media.setBitrate(320000);
+		media.setSize(5000000L + i);
+		media.setContainer("mp3");
+
+		for (int track = 0; track < 2; track++) {
+			DLNAMediaAudio audio = new DLNAMediaAudio();
+			audio.setId(track);
+			audio.setCodecA("mp3");
+			audio.setSampleFrequency("44100");
+			audio.setArtist("Artist " + (i % 100));
+			audio.setAlbum("Album " + (i % 500));
+			audio.setSongname("Song " + i);
+			audio.setGenre("Rock");
+			audio.setYear(2000 + i % 20);
+			audio.setTrack(i % 12 + 1);
+			media.getAudioTracksList().add(audio);
+		}
+
+		DLNAMediaSubtitle sub = new DLNAMediaSubtitle();
+		sub.setId(0);
+		sub.setLang("eng");
+		sub.setType(SubtitleType.SUBRIP);
+		media.getSubtitleTracksList().add(sub);
+		return media;
+	}
+
+	@Test
+	public void testQueuedFilesAreFound() throws Exception {
+		database.insertData("/music/song.mp3", 1000L, Format.AUDIO, createMedia(1));
+		assertTrue(database.isDataExists("/music/song.mp3", 1000L));
+		assertFalse(database.isDataExists("/music/song.mp3", 2000L));
+
+		ArrayList<DLNAMediaInfo> medias = database.getData("/music/song.mp3", 1000L);
+		assertEquals(1, medias.size());
+		DLNAMediaInfo media = medias.get(0);
+		assertEquals(2, media.getAudioTracksList().size());
+		assertEquals("Song 1", media.getAudioTracksList().get(0).getSongname());
+		assertEquals(1, media.getSubtitleTracksList().size());
+		assertEquals(SubtitleType.SUBRIP, media.getSubtitleTracksList().get(0).getType());
+	}
+
+	@Test
+	public void testFilesWithoutMediaInformation() throws Exception {
+		database.insertData("/music/a.mp3", 1000L, Format.AUDIO, createMedia(1));
+		database.insertData("/music/b.mp3", 1000L, Format.AUDIO, null);
+		database.flush();
+
+		assertTrue(database.isDataExists("/music/b.mp3", 1000L));
+		ArrayList<DLNAMediaInfo> medias = database.getData("/music/b.mp3", 1000L);
+		assertEquals(1, medias.size());
+		assertEquals(0, medias.get(0).getAudioTracksList().size());
+	}
+
+	/**
+	 * Inserts synthetic media information and logs the number of files
+	 * written per second. Only runs when the system property
+	 * "database.benchmark" is true.
+	 */
+	@Test
+	public void testInsertThroughput() throws Exception {
+		assumeTrue(Boolean.getBoolean("database.benchmark"));
+		int count = 5000;
+		long libraryVersion = database.getLibraryVersion();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < count; i++) {
+			database.insertData("/music/artist/album/song" + i + ".mp3", 1000L + i, Format.AUDIO, createMedia(i));
+		}
+
+		long queued = System.nanoTime();
+		database.flush();
+		long written = System.nanoTime();
+
+		assertEquals(count, database.getStoredFiles("SELECT FILENAME, MODIFIED FROM FILES").size());
+		assertTrue(database.getLibraryVersion() > libraryVersion);
+
+		logger.info(String.format(
+			"Inserted %d files in %d ms (%.0f files/s), callers were blocked for %d ms",
+			count,
+			(written - start) / 1000000,
+			count * 1e9 / (written - start),
+			(queued - start) / 1000000
+		));
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.configuration.RendererConfiguration;
+import net.pms.dlna.virtual.VirtualFolder;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Browses a resource tree from many simulated renderers at the same time.
+ */
+public class DLNAResourceConcurrencyTest {
+	private static final int FOLDERS = 8;
+	private static final int FILES = 50;
+	private static final int RENDERERS = 16;
+	private static final int BROWSES = 200;
+
+	private VirtualFolder root;
+	private List<CountingFolder> folders;
+
+	/**
+	 * Folder that counts how often it is discovered and takes some time
+	 * doing so, to give other threads a chance to interfere.
+	 */
+	private static class CountingFolder extends VirtualFolder {
+		final AtomicInteger discoveries = new AtomicInteger();
+
+		CountingFolder(String name) {
+			super(name, null);
+		}
+
+		@Override
+		public void discoverChildren() {
+			discoveries.incrementAndGet();
+			pause();
+
+			for (int i = 0; i < FILES; i++) {
+				addChild(new VirtualFolder(getName() + "-" + i, null));
+			}
+		}
+
+		void pause() {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Folder whose discovery does not finish until it is released.
+	 */
+	private static class BlockingFolder extends CountingFolder {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		BlockingFolder(String name) {
+			super(name);
+		}
+
+		@Override
+		void pause() {
+			entered.countDown();
+
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Before
+	public void setUp() {
+		root = new VirtualFolder("root", null);
+		root.setId("0");
+		folders = new ArrayList<CountingFolder>();
+
+		for (int i = 0; i < FOLDERS; i++) {
+			CountingFolder folder = new CountingFolder("folder" + i);
+			root.addChild(folder);
+			folders.add(folder);
+		}
+	}
+
+	@Test
+	public void testConcurrentBrowsing() throws Exception {
+		ExecutorService renderers = Executors.newFixedThreadPool(RENDERERS);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+		for (int r = 0; r < RENDERERS; r++) {
+			final RendererConfiguration renderer = new RendererConfiguration(null);
+			final Random random = new Random(r);
+
+			results.add(renderers.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = 0; i < BROWSES; i++) {
+						String folderId = "0$" + (1 + random.nextInt(FOLDERS));
+
+						switch (random.nextInt(4)) {
+							case 0:
+								assertEquals(FOLDERS, root.getDLNAResources("0", true, 0, 0, renderer).size());
+								break;
+							case 1:
+								assertEquals(FILES, root.getDLNAResources(folderId, true, 0, 0, renderer).size());
+								break;
+							case 2:
+								assertEquals(5, root.getDLNAResources(folderId, true, 10, 5, renderer).size());
+								break;
+							default:
+								String fileId = folderId + "$" + (1 + random.nextInt(FILES));
+								List<DLNAResource> found = root.getDLNAResources(fileId, false, 0, 0, renderer);
+								assertEquals(1, found.size());
+								assertEquals(fileId, found.get(0).getResourceId());
+								break;
+						}
+					}
+
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<Void> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			renderers.shutdownNow();
+		}
+
+		for (CountingFolder folder : folders) {
+			assertEquals("Discoveries of " + folder.getName(), 1, folder.discoveries.get());
+			assertEquals(FILES, folder.getChildren().size());
+		}
+	}
+
+	@Test
+	public void testSlowDiscoveryDoesNotBlockOtherFolders() throws Exception {
+		final BlockingFolder slow = new BlockingFolder("slow");
+		root.addChild(slow);
+		final RendererConfiguration renderer = new RendererConfiguration(null);
+		ExecutorService renderers = Executors.newFixedThreadPool(2);
+
+		try {
+			Future<List<DLNAResource>> slowBrowse = renderers.submit(new Callable<List<DLNAResource>>() {
+				@Override
+				public List<DLNAResource> call() throws Exception {
+					return root.getDLNAResources(slow.getResourceId(), true, 0, 0, renderer);
+				}
+			});
+			assertTrue("Slow discovery started", slow.entered.await(5, TimeUnit.SECONDS));
+
+			Future<List<DLNAResource>> otherBrowse = renderers.submit(new Callable<List<DLNAResource>>() {
+				@Override
+				public List<DLNAResource> call() throws Exception {
+					return root.getDLNAResources("0$1", true, 0, 0, renderer);
+				}
+			});
+			assertEquals(FILES, otherBrowse.get(5, TimeUnit.SECONDS).size());
+			assertFalse("Slow discovery still running", slowBrowse.isDone());
+
+			slow.release.countDown();
+			assertEquals(FILES, slowBrowse.get(5, TimeUnit.SECONDS).size());
+			assertEquals(1, slow.discoveries.get());
+		} finally {
+			slow.release.countDown();
+			renderers.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.configuration.RendererConfiguration;
+import net.pms.dlna.virtual.VirtualFolder;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the index used by {@link DLNAResource#search(String, int, RendererConfiguration)}.
+ */
+public class DLNAResourceIndexTest {
+	private VirtualFolder root;
+	private CheckedFolder folder;
+	private RendererConfiguration renderer;
+
+	/**
+	 * Folder that counts how often it is checked for changes, which happens
+	 * every time a search passes through it, and how often its children are
+	 * searched.
+	 */
+	private static class CheckedFolder extends VirtualFolder {
+		int checks;
+		int searches;
+		boolean refreshNeeded;
+
+		CheckedFolder(String name) {
+			super(name, null);
+		}
+
+		@Override
+		public void discoverChildren() {
+			for (int i = 0; i < 100; i++) {
+				addChild(new VirtualFolder("file" + i, null) {
+					@Override
+					public DLNAResource search(String searchId, int count, RendererConfiguration renderer) {
+						searches++;
+						return super.search(searchId, count, renderer);
+					}
+				});
+			}
+		}
+
+		@Override
+		public boolean isRefreshNeeded() {
+			checks++;
+			return refreshNeeded;
+		}
+
+		@Override
+		public void doRefreshChildren() {
+			refreshNeeded = false;
+			clearChildrenInternal();
+			discoverChildren();
+		}
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		root = new VirtualFolder("root", null);
+		root.setId("0");
+		folder = new CheckedFolder("folder");
+		root.addChild(folder);
+		renderer = new RendererConfiguration(null);
+	}
+
+	@Test
+	public void testMaterializedResourcesAreFoundWithoutWalking() throws Exception {
+		// The first lookup has to discover the folder
+		DLNAResource file = root.search("0$1$50", 0, renderer);
+		assertNotNull(file);
+		assertEquals("file49", file.getName());
+		int checks = folder.checks;
+		int searches = folder.searches;
+
+		assertSame(file, root.search("0$1$50", 0, renderer));
+		assertSame(folder, root.search("0$1", 0, renderer));
+		assertEquals("Children were not searched again", searches, folder.searches);
+		assertEquals("Folder was checked for changes", checks + 1, folder.checks);
+	}
+
+	@Test
+	public void testChangedFolderIsRefreshed() throws Exception {
+		DLNAResource file = root.search("0$1$50", 0, renderer);
+		folder.refreshNeeded = true;
+
+		// The refresh replaced the children
+		assertNotSame(file, root.search(file.getResourceId(), 0, renderer));
+		assertFalse(folder.refreshNeeded);
+	}
+
+	@Test
+	public void testResourcesOfRemovedFoldersAreNotFound() throws Exception {
+		DLNAResource file = root.search("0$1$50", 0, renderer);
+		String resourceId = file.getResourceId();
+		root.removeChildInternal(folder);
+
+		assertFalse(file.isRemoved());
+		assertNull(root.search(resourceId, 0, renderer));
+	}
+
+	@Test
+	public void testRemovedResourcesAreNotFound() throws Exception {
+		DLNAResource file = root.search("0$1$50", 0, renderer);
+		folder.removeChildInternal(file);
+		assertTrue(file.isRemoved());
+		assertNull(root.search("0$1$50", 0, renderer));
+
+		folder.clearChildrenInternal();
+		assertNull(root.search("0$1$1", 0, renderer));
+	}
+
+	@Test
+	public void testAddedSubtreesAreIndexed() throws Exception {
+		VirtualFolder subtree = new VirtualFolder("subtree", null);
+		VirtualFolder file = new VirtualFolder("file", null);
+		subtree.addChild(file);
+		root.addChild(subtree);
+
+		assertSame(file, root.search(file.getResourceId(), 0, renderer));
+		assertEquals("0$2$1", file.getResourceId());
+	}
+}
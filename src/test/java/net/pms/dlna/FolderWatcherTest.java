@@ -0,0 +1,111 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+public class FolderWatcherTest {
+	private File directory;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("watched", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testCreatedFileIsReported() throws Exception {
+		FolderWatcher watcher = FolderWatcher.getInstance();
+
+		// Nothing to test on platforms without notifications
+		assumeNotNull(watcher);
+
+		final File file = new File(directory, "song.mp3");
+		final CountDownLatch reported = new CountDownLatch(1);
+		FolderWatcher.Listener listener = new FolderWatcher.Listener() {
+			@Override
+			public void filesChanged(File changed, Set<File> files) {
+				if (files != null && files.contains(file)) {
+					reported.countDown();
+				}
+			}
+		};
+
+		assertTrue(watcher.register(directory, listener));
+		FileUtils.writeByteArrayToFile(file, new byte[] {1, 2, 3});
+		assertTrue(reported.await(30, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testUnregisteredDirectoryIsNotWatched() throws Exception {
+		FolderWatcher watcher = FolderWatcher.getInstance();
+		assumeNotNull(watcher);
+
+		FolderWatcher.Listener first = new FolderWatcher.Listener() {
+			@Override
+			public void filesChanged(File changed, Set<File> files) {
+			}
+		};
+		FolderWatcher.Listener second = new FolderWatcher.Listener() {
+			@Override
+			public void filesChanged(File changed, Set<File> files) {
+			}
+		};
+
+		assertTrue(watcher.register(directory, first));
+		assertTrue(watcher.register(directory, second));
+
+		// Still watched for the other listener
+		watcher.unregister(directory, first);
+		assertTrue(watcher.isWatched(directory));
+
+		watcher.unregister(directory, second);
+		assertFalse(watcher.isWatched(directory));
+	}
+}
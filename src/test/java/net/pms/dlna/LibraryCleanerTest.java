@@ -0,0 +1,157 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.formats.Format;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class LibraryCleanerTest {
+	private DLNAMediaDatabase database;
+	private File directory;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		String name = "cleanertest" + System.nanoTime();
+		database = new DLNAMediaDatabase("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", name);
+		database.init(false);
+
+		directory = File.createTempFile("library", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private File createFile(String name) throws Exception {
+		File file = new File(directory, name);
+		FileUtils.writeByteArrayToFile(file, new byte[] {1, 2, 3});
+		database.insertData(file.getAbsolutePath(), file.lastModified(), Format.AUDIO, null);
+		return file;
+	}
+
+	private LibraryCleaner createCleaner(boolean incremental) {
+		return new LibraryCleaner(database, Collections.singletonList(directory), 2, incremental, null);
+	}
+
+	private int getFileCount() {
+		return database.getStoredFiles("SELECT FILENAME, MODIFIED FROM FILES").size();
+	}
+
+	@Test
+	public void testDeletedAndChangedFilesAreRemoved() throws Exception {
+		File kept = createFile("kept.mp3");
+		File deleted = createFile("deleted.mp3");
+		File changed = createFile("changed.mp3");
+		database.flush();
+
+		assertTrue(deleted.delete());
+		assertTrue(changed.setLastModified(changed.lastModified() - 60000));
+		long libraryVersion = database.getLibraryVersion();
+
+		LibraryCleaner cleaner = createCleaner(false);
+		cleaner.run();
+
+		assertEquals(3, cleaner.getCheckedCount());
+		assertEquals(2, cleaner.getRemovedCount());
+		assertEquals(100, cleaner.getProgress());
+		assertEquals(1, getFileCount());
+		assertTrue(database.isDataExists(kept.getAbsolutePath(), kept.lastModified()));
+		assertTrue(database.getLibraryVersion() > libraryVersion);
+		assertNull(database.getMetadata(LibraryCleaner.CHECKPOINT));
+		assertNotNull(database.getMetadata(LibraryCleaner.LAST_CLEANUP));
+	}
+
+	@Test
+	public void testInterruptedCleanupResumes() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			createFile("song" + i + ".mp3").delete();
+		}
+
+		database.flush();
+		int lastId = database.getFilesAfter(0, 4).get(3).id;
+		database.setMetadata(LibraryCleaner.CHECKPOINT, lastId + "," + System.currentTimeMillis());
+
+		LibraryCleaner cleaner = createCleaner(false);
+		cleaner.run();
+
+		// The files before the checkpoint were handled by the earlier run
+		assertEquals(6, cleaner.getCheckedCount());
+		assertEquals(4, getFileCount());
+	}
+
+	@Test
+	public void testIncrementalCleanupSkipsUnchangedDirectories() throws Exception {
+		File subdirectory = new File(directory, "album");
+		assertTrue(subdirectory.mkdir());
+		File file = new File(subdirectory, "song.mp3");
+		FileUtils.writeByteArrayToFile(file, new byte[] {1, 2, 3});
+		database.insertData(file.getAbsolutePath(), file.lastModified(), Format.AUDIO, null);
+		File deleted = createFile("deleted.mp3");
+		database.flush();
+
+		assertTrue(subdirectory.setLastModified(System.currentTimeMillis() - 120000));
+		database.setMetadata(LibraryCleaner.LAST_CLEANUP, Long.toString(System.currentTimeMillis() - 60000));
+		database.setMetadata(LibraryCleaner.LAST_FULL_CLEANUP, Long.toString(System.currentTimeMillis() - 60000));
+		assertTrue(deleted.delete());
+
+		LibraryCleaner cleaner = createCleaner(true);
+		cleaner.run();
+
+		assertEquals(1, cleaner.getUnchangedCount());
+		assertEquals(1, cleaner.getCheckedCount());
+		assertEquals(1, cleaner.getRemovedCount());
+		assertEquals(1, getFileCount());
+	}
+
+	@Test
+	public void testFilesAreGroupedBySharedFolder() throws Exception {
+		File music = new File(directory, "music");
+		File music2 = new File(directory, "music2");
+		LibraryCleaner cleaner = new LibraryCleaner(database, Arrays.asList(directory, music), 2, false, null);
+
+		assertEquals(music.getAbsolutePath(), cleaner.getVolume(new File(music, "song.mp3").getAbsolutePath()));
+		assertEquals(directory.getAbsolutePath(), cleaner.getVolume(new File(music2, "song.mp3").getAbsolutePath()));
+		assertEquals(music.getAbsolutePath(), cleaner.getVolume(music.getAbsolutePath()));
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import java.util.Collections;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.formats.Format;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class LibraryScannerTest {
+	private DLNAMediaDatabase database;
+	private File directory;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		String name = "scannertest" + System.nanoTime();
+		database = new DLNAMediaDatabase("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", name);
+		database.init(false);
+
+		directory = File.createTempFile("library", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Creates a file that the database already knows, so the scan does not
+	 * have to parse it.
+	 */
+	private File createKnownFile(String name) throws Exception {
+		File file = new File(directory, name);
+		FileUtils.writeByteArrayToFile(file, new byte[] {1, 2, 3});
+		database.insertData(file.getAbsolutePath(), file.lastModified(), Format.AUDIO, null);
+		return file;
+	}
+
+	private LibraryScanner createScanner() {
+		return new LibraryScanner(Collections.singletonList(directory), 2, database, null);
+	}
+
+	@Test
+	public void testKnownFilesAreSkipped() throws Exception {
+		createKnownFile("a/song1.mp3");
+		createKnownFile("b/song2.mp3");
+		FileUtils.writeStringToFile(new File(directory, "b/notes.txt"), "notes");
+		database.flush();
+
+		LibraryScanner scanner = createScanner();
+		scanner.run();
+
+		assertFalse(scanner.isStopped());
+		assertEquals(3, scanner.getDirectoryCount());
+		assertEquals(3, scanner.getFileCount());
+		assertEquals(2, scanner.getSkippedCount());
+		assertEquals(0, scanner.getParsedCount());
+		assertEquals(0, scanner.getFailedCount());
+		assertNull(database.getScanCheckpoint(directory));
+	}
+
+	@Test
+	public void testHiddenDirectoriesAreNotWalked() throws Exception {
+		createKnownFile("song.mp3");
+		FileUtils.writeByteArrayToFile(new File(directory, ".hidden/song.mp3"), new byte[] {1, 2, 3});
+		database.flush();
+
+		LibraryScanner scanner = createScanner();
+		scanner.run();
+
+		assertEquals(1, scanner.getDirectoryCount());
+		assertEquals(1, scanner.getFileCount());
+		assertEquals(1, scanner.getSkippedCount());
+		assertEquals(0, scanner.getFailedCount());
+	}
+
+	@Test
+	public void testInterruptedScanResumes() throws Exception {
+		createKnownFile("a/song.mp3");
+		createKnownFile("b/song.mp3");
+		createKnownFile("c/song.mp3");
+		database.flush();
+		database.setScanCheckpoint(directory, new File(directory, "a").getAbsolutePath());
+
+		LibraryScanner scanner = createScanner();
+		scanner.run();
+
+		// The shared folder itself and "a" were done by the earlier scan
+		assertEquals(2, scanner.getDirectoryCount());
+		assertEquals(2, scanner.getSkippedCount());
+		assertNull(database.getScanCheckpoint(directory));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import java.util.Collections;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests how a {@link MapFile} applies the changes reported by the
+ * {@link FolderWatcher}.
+ */
+public class MapFileTest {
+	private static FolderWatcher watcher;
+	private File directory;
+	private RealFile folder;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+
+		// The changes are reported by the tests, not by the file system
+		watcher = FolderWatcher.getInstance();
+		FolderWatcher.setInstance(null);
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws Exception {
+		FolderWatcher.setInstance(watcher);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("mapfile", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+		createFile("a.mp3");
+		assertTrue(new File(directory, "sub").mkdir());
+
+		folder = new RealFile(directory);
+		folder.discoverChildren();
+		folder.analyzeChildren(-1);
+		folder.setDiscovered(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private File createFile(String name) throws Exception {
+		File file = new File(directory, name);
+		FileUtils.writeByteArrayToFile(file, new byte[] {1, 2, 3});
+		return file;
+	}
+
+	private DLNAResource getChild(String name) {
+		for (DLNAResource child : folder.getChildrenSnapshot()) {
+			if (child.getName().equals(name)) {
+				return child;
+			}
+		}
+
+		return null;
+	}
+
+	@Test
+	public void testCreatedFileIsAdded() throws Exception {
+		DLNAResource sub = getChild("sub");
+		int updateId = folder.getUpdateId();
+		File file = createFile("b.mp3");
+
+		folder.filesChanged(Collections.singleton(file));
+
+		assertEquals(3, folder.childrenNumber());
+		assertEquals(updateId + 1, folder.getUpdateId());
+
+		// The other entries are kept
+		assertSame(sub, getChild("sub"));
+		assertNotNull(getChild("b.mp3"));
+	}
+
+	@Test
+	public void testDeletedFileIsRemoved() throws Exception {
+		DLNAResource sub = getChild("sub");
+		File file = new File(directory, "a.mp3");
+		assertNotNull(getChild("a.mp3"));
+		assertTrue(file.delete());
+
+		folder.filesChanged(Collections.singleton(file));
+
+		assertEquals(1, folder.childrenNumber());
+		assertNull(getChild("a.mp3"));
+		assertSame(sub, getChild("sub"));
+	}
+
+	@Test
+	public void testChangedFileIsReplaced() throws Exception {
+		DLNAResource old = getChild("a.mp3");
+		File file = new File(directory, "a.mp3");
+
+		folder.filesChanged(Collections.singleton(file));
+
+		assertEquals(2, folder.childrenNumber());
+		assertNotNull(getChild("a.mp3"));
+		assertNotSame(old, getChild("a.mp3"));
+	}
+
+	@Test
+	public void testUnknownChangesRefreshTheFolder() throws Exception {
+		folder.filesChanged(null);
+		assertTrue(folder.isRefreshNeeded());
+
+		createFile("b.mp3");
+		assertTrue(folder.refreshChildren());
+		assertEquals(3, folder.childrenNumber());
+	}
+
+	@Test
+	public void testChangesBeforeDiscoveryAreListed() throws Exception {
+		RealFile other = new RealFile(directory);
+		other.discoverChildren();
+		File file = createFile("b.mp3");
+
+		// Reported before the files are added to the folder
+		other.filesChanged(Collections.singleton(file));
+		other.analyzeChildren(-1);
+
+		assertEquals(3, other.childrenNumber());
+	}
+}
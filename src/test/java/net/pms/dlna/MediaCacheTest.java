@@ -0,0 +1,78 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link MediaCache} that the database and the resources share.
+ */
+public class MediaCacheTest {
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	private static DLNAMediaInfo createMedia(String songname) {
+		DLNAMediaInfo media = new DLNAMediaInfo();
+		DLNAMediaAudio audio = new DLNAMediaAudio();
+		audio.setSongname(songname);
+		media.getAudioTracksList().add(audio);
+		media.setMediaparsed(true);
+		return media;
+	}
+
+	@Test
+	public void testCopiesAreReturned() {
+		MediaCache cache = new MediaCache();
+		cache.put("/music/a.mp3", 1000L, createMedia("A"));
+
+		DLNAMediaInfo media = cache.get("/music/a.mp3", 1000L);
+		assertNotNull(media);
+		media.getAudioTracksList().clear();
+
+		media = cache.get("/music/a.mp3", 1000L);
+		assertEquals(1, media.getAudioTracksList().size());
+		assertEquals("A", media.getAudioTracksList().get(0).getSongname());
+	}
+
+	@Test
+	public void testChangedFileIsNotReturned() {
+		MediaCache cache = new MediaCache();
+		cache.put("/music/a.mp3", 1000L, createMedia("A"));
+
+		assertTrue(cache.contains("/music/a.mp3", 1000L));
+		assertFalse(cache.contains("/music/a.mp3", 2000L));
+		assertNull(cache.get("/music/a.mp3", 2000L));
+
+		cache.remove("/music/a.mp3");
+		assertNull(cache.get("/music/a.mp3", 1000L));
+	}
+}
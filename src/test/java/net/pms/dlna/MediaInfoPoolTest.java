@@ -0,0 +1,217 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.ConsoleAppender;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.formats.Format;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MediaInfoPoolTest {
+	private static final Logger logger = LoggerFactory.getLogger(MediaInfoPoolTest.class);
+
+	/**
+	 * Pool that counts the handles it creates and disposes of, without
+	 * using the native library.
+	 */
+	private static class CountingPool extends MediaInfoPool {
+		final AtomicInteger disposed = new AtomicInteger();
+
+		CountingPool(int size) {
+			super(size);
+		}
+
+		@Override
+		protected MediaInfo createHandle() {
+			return new MediaInfo();
+		}
+
+		@Override
+		protected void disposeHandle(MediaInfo handle) {
+			disposed.incrementAndGet();
+		}
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		// The parse benchmark still reports what it measured
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%msg%n");
+		encoder.start();
+		ConsoleAppender<ILoggingEvent> console = new ConsoleAppender<ILoggingEvent>();
+		console.setContext(context);
+		console.setEncoder(encoder);
+		console.start();
+		((ch.qos.logback.classic.Logger) logger).addAppender(console);
+	}
+
+	@Test
+	public void testReleasedHandlesAreReused() throws Exception {
+		MediaInfoPool pool = new CountingPool(4);
+		assertTrue(pool.isValid());
+
+		MediaInfo first = pool.lease();
+		pool.release(first);
+		assertSame(first, pool.lease());
+
+		MediaInfo second = pool.lease();
+		assertNotNull(second);
+		assertNotSame(first, second);
+		assertEquals(2, pool.getHandleCount());
+	}
+
+	@Test
+	public void testLeaseWaitsForRelease() throws Exception {
+		final MediaInfoPool pool = new CountingPool(1);
+		final MediaInfo handle = pool.lease();
+
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				pool.release(handle);
+			}
+		};
+
+		long start = System.currentTimeMillis();
+		releaser.start();
+		assertSame(handle, pool.lease());
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertEquals(1, pool.getHandleCount());
+	}
+
+	@Test
+	public void testCloseDisposesOfHandles() throws Exception {
+		CountingPool pool = new CountingPool(2);
+		MediaInfo idle = pool.lease();
+		MediaInfo leased = pool.lease();
+		pool.release(idle);
+
+		pool.close();
+		assertEquals(1, pool.disposed.get());
+		assertNull(pool.lease());
+		assertFalse(pool.isValid());
+
+		// A handle that was still in use is disposed of when it comes back
+		pool.release(leased);
+		assertEquals(2, pool.disposed.get());
+		assertEquals(0, pool.getHandleCount());
+	}
+
+	@Test
+	public void testInvalidLibrary() throws Exception {
+		MediaInfoPool pool = new MediaInfoPool(2) {
+			@Override
+			protected MediaInfo createHandle() {
+				return null;
+			}
+		};
+
+		assertFalse(pool.isValid());
+		assertNull(pool.lease());
+		assertEquals(0, pool.getHandleCount());
+	}
+
+	/**
+	 * Parses the files in the directory named by the system property
+	 * "mediainfo.benchmark.directory" with one thread and with one thread
+	 * per handle, and logs the number of files parsed per second.
+	 */
+	@Test
+	public void testParseThroughput() throws Exception {
+		String directory = System.getProperty("mediainfo.benchmark.directory");
+		assumeTrue(directory != null && LibMediaInfoParser.isValid());
+		PMS.setConfiguration(new PmsConfiguration(false));
+
+		final List<File> files = new ArrayList<File>();
+		File[] children = new File(directory).listFiles();
+		assertNotNull(children);
+
+		for (File child : children) {
+			if (child.isFile()) {
+				files.add(child);
+			}
+		}
+
+		assumeTrue(!files.isEmpty());
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		for (int threads : cores > 1 ? new int[] {1, cores} : new int[] {1}) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			final AtomicInteger parsed = new AtomicInteger();
+			long start = System.nanoTime();
+
+			for (final File file : files) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						DLNAMediaInfo media = new DLNAMediaInfo();
+						InputFile input = new InputFile();
+						input.setFile(file);
+						LibMediaInfoParser.parse(media, input, Format.VIDEO);
+
+						if (media.isMediaparsed()) {
+							parsed.incrementAndGet();
+						}
+					}
+				});
+			}
+
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.MINUTES));
+			long elapsed = System.nanoTime() - start;
+
+			logger.info(String.format(
+				"Parsed %d of %d files with %d threads in %d ms (%.1f files/s)",
+				parsed.get(),
+				files.size(),
+				threads,
+				elapsed / 1000000,
+				parsed.get() * 1e9 / elapsed
+			));
+		}
+	}
+}
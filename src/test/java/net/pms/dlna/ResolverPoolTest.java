@@ -0,0 +1,148 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.dlna.virtual.VirtualFolder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class ResolverPoolTest {
+	/**
+	 * Resource that takes a while to resolve and keeps track of how many
+	 * resolves of its device run at the same time.
+	 */
+	private static class SlowResource extends VirtualFolder {
+		final AtomicInteger resolves = new AtomicInteger();
+		private final Object device;
+		private final Object key;
+		private final AtomicInteger active;
+		private final AtomicInteger maxActive;
+
+		SlowResource(Object device, AtomicInteger active, AtomicInteger maxActive) {
+			this(device, null, active, maxActive);
+		}
+
+		SlowResource(Object device, Object key, AtomicInteger active, AtomicInteger maxActive) {
+			super("slow", null);
+			this.device = device;
+			this.key = key;
+			this.active = active;
+			this.maxActive = maxActive;
+		}
+
+		@Override
+		protected Object getResolveDevice() {
+			return device;
+		}
+
+		@Override
+		protected Object getResolveKey() {
+			return key;
+		}
+
+		@Override
+		protected void resolveOnce() {
+			resolves.incrementAndGet();
+			int now = active.incrementAndGet();
+
+			synchronized (maxActive) {
+				maxActive.set(Math.max(maxActive.get(), now));
+			}
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			active.decrementAndGet();
+		}
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Test
+	public void testPendingResolveIsShared() throws Exception {
+		ResolverPool pool = new ResolverPool(4);
+		SlowResource resource = new SlowResource(null, new AtomicInteger(), new AtomicInteger());
+
+		Future<?> first = pool.submit(resource);
+		Future<?> second = pool.submit(resource);
+		assertSame(first, second);
+
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		futures.add(first);
+		assertTrue(ResolverPool.await(futures, 5000));
+		assertEquals(1, resource.resolves.get());
+		assertEquals(0, pool.getPendingCount());
+	}
+
+	@Test
+	public void testResolvesPerDeviceAreLimited() throws Exception {
+		ResolverPool pool = new ResolverPool(4);
+		AtomicInteger dvdActive = new AtomicInteger();
+		AtomicInteger dvdMaxActive = new AtomicInteger();
+		AtomicInteger otherActive = new AtomicInteger();
+		AtomicInteger otherMaxActive = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < 4; i++) {
+			futures.add(pool.submit(new SlowResource("dvd", dvdActive, dvdMaxActive)));
+			futures.add(pool.submit(new SlowResource(null, otherActive, otherMaxActive)));
+		}
+
+		assertTrue(ResolverPool.await(futures, 5000));
+		assertEquals("Parallel resolves on the same device", 1, dvdMaxActive.get());
+		assertTrue("Resources without a device are resolved in parallel", otherMaxActive.get() > 1);
+	}
+
+	@Test
+	public void testSameFileIsResolvedOnceAtATime() throws Exception {
+		ResolverPool pool = new ResolverPool(4);
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		// The same file in the trees of four renderers
+		for (int i = 0; i < 4; i++) {
+			futures.add(pool.submit(new SlowResource(null, "/media/movie.mkv@1", active, maxActive)));
+		}
+
+		assertTrue(ResolverPool.await(futures, 5000));
+		assertEquals("Parallel resolves of the same file", 1, maxActive.get());
+		assertEquals(0, pool.getPendingCount());
+	}
+}
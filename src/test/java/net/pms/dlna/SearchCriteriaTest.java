@@ -0,0 +1,96 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SearchCriteriaTest {
+	@Test
+	public void testMatchAll() throws Exception {
+		assertTrue(SearchCriteria.parse("*").isMatchAll());
+		assertTrue(SearchCriteria.parse("").isMatchAll());
+		assertTrue(SearchCriteria.parse(null).isMatchAll());
+		assertTrue(SearchCriteria.parse("upnp:class derivedfrom \"object.item\"").isMatchAll());
+	}
+
+	@Test
+	public void testClass() throws Exception {
+		assertEquals("TYPE IN (1)", SearchCriteria.parse("upnp:class derivedfrom \"object.item.audioItem\"").getCondition());
+		assertEquals("TYPE IN (4)", SearchCriteria.parse("upnp:class = \"object.item.videoItem\"").getCondition());
+		assertEquals("TYPE IN (1, 2)", SearchCriteria.parse("upnp:class != \"object.item.videoItem\"").getCondition());
+		assertEquals("1=0", SearchCriteria.parse("upnp:class derivedfrom \"object.container\"").getCondition());
+	}
+
+	@Test
+	public void testAudioProperties() throws Exception {
+		SearchCriteria criteria = SearchCriteria.parse("upnp:artist = \"The \\\"Band\\\"\" and upnp:album contains \"50%\"");
+		assertEquals(
+			"(ID IN (SELECT FILEID FROM AUDIOTRACKS WHERE ARTIST = ?) AND ID IN (SELECT FILEID FROM AUDIOTRACKS WHERE LOWER(ALBUM) LIKE ? ESCAPE '\\'))",
+			criteria.getCondition()
+		);
+		assertEquals(Arrays.asList((Object) "The \"Band\"", "%50\\%%"), criteria.getParameters());
+
+		criteria = SearchCriteria.parse("dc:date >= \"2004-01-01\"");
+		assertEquals("ID IN (SELECT FILEID FROM AUDIOTRACKS WHERE YEAR >= ?)", criteria.getCondition());
+		assertEquals(Arrays.asList((Object) 2004), criteria.getParameters());
+	}
+
+	@Test
+	public void testPrecedence() throws Exception {
+		SearchCriteria criteria = SearchCriteria.parse(
+			"upnp:class derivedfrom \"object.item.audioItem\" and (upnp:genre=\"Rock\" or upnp:genre = \"Pop\") or upnp:class = \"object.item.imageItem.photo\""
+		);
+		assertEquals(
+			"((TYPE IN (1) AND (ID IN (SELECT FILEID FROM AUDIOTRACKS WHERE GENRE = ?) OR ID IN (SELECT FILEID FROM AUDIOTRACKS WHERE GENRE = ?))) OR TYPE IN (2))",
+			criteria.getCondition()
+		);
+		assertEquals(Arrays.asList((Object) "Rock", "Pop"), criteria.getParameters());
+	}
+
+	@Test
+	public void testUnknownProperties() throws Exception {
+		assertEquals("1=0", SearchCriteria.parse("@refID = \"1\"").getCondition());
+		assertEquals("1=1", SearchCriteria.parse("@refID exists false").getCondition());
+	}
+
+	@Test
+	public void testInvalidCriteria() throws Exception {
+		String[] invalid = {
+			"upnp:artist",
+			"upnp:artist = Name",
+			"upnp:artist like \"Name\"",
+			"(upnp:artist = \"Name\"",
+			"upnp:artist = \"Name",
+			"upnp:artist = \"Name\" upnp:album = \"Album\"",
+		};
+
+		for (String criteria : invalid) {
+			try {
+				SearchCriteria.parse(criteria);
+				fail("Parsed invalid criteria: " + criteria);
+			} catch (ParseException e) {
+				// expected
+			}
+		}
+	}
+}
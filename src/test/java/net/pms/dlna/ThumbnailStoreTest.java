@@ -0,0 +1,141 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailStoreTest {
+	private File directory;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("thumbnails", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private static byte[] createThumbnail(int value, int size) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) value);
+		return data;
+	}
+
+	@Test
+	public void testIdenticalThumbnailsAreStoredOnce() throws Exception {
+		ThumbnailStore store = new ThumbnailStore(directory, 1000);
+		String hash = store.put(createThumbnail(1, 100));
+		assertEquals(40, hash.length());
+		assertEquals(hash, store.put(createThumbnail(1, 100)));
+		assertEquals(100, store.getSize());
+
+		File file = store.getFile(hash);
+		assertNotNull(file);
+		assertEquals(hash.substring(2, 4), file.getParentFile().getName());
+		assertEquals(hash.substring(0, 2), file.getParentFile().getParentFile().getName());
+		assertTrue(Arrays.equals(createThumbnail(1, 100), store.read(hash)));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedThumbnailsAreEvicted() throws Exception {
+		ThumbnailStore store = new ThumbnailStore(directory, 250);
+		String first = store.put(createThumbnail(1, 100));
+		String second = store.put(createThumbnail(2, 100));
+
+		// Use the first one, so the second one is evicted
+		assertNotNull(store.getFile(first));
+		String third = store.put(createThumbnail(3, 100));
+
+		assertNotNull(store.getFile(first));
+		assertNull(store.getFile(second));
+		assertNull(store.read(second));
+		assertNotNull(store.getFile(third));
+		assertEquals(200, store.getSize());
+
+		// A new store finds the thumbnails on disk
+		assertEquals(200, new ThumbnailStore(directory, 250).getSize());
+	}
+
+	@Test
+	public void testConcurrentPuts() throws Exception {
+		final ThumbnailStore store = new ThumbnailStore(directory, 1000);
+		Thread[] threads = new Thread[8];
+
+		for (int i = 0; i < threads.length; i++) {
+			final int value = i % 2;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 20; j++) {
+						store.put(createThumbnail(value, 100));
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Two thumbnails, each stored once, and no temporary files left
+		assertEquals(200, store.getSize());
+		assertEquals(2, FileUtils.listFiles(directory, null, true).size());
+	}
+
+	@Test
+	public void testETag() throws Exception {
+		ThumbnailStore store = new ThumbnailStore(directory, 1000);
+		String hash = store.put(createThumbnail(1, 100));
+		assertEquals("\"" + hash + "\"", ThumbnailStore.getETag(store.getFile(hash)));
+
+		File cover = new File(directory, "folder.jpg");
+		FileUtils.writeByteArrayToFile(cover, createThumbnail(1, 16));
+		assertEquals("\"" + Long.toHexString(cover.lastModified()) + "-10\"", ThumbnailStore.getETag(cover));
+	}
+
+	@Test
+	public void testInvalidHashes() throws Exception {
+		ThumbnailStore store = new ThumbnailStore(directory, 1000);
+		assertNull(store.getFile(null));
+		assertNull(store.getFile("../../etc/passwd"));
+		assertNull(store.read("0000000000000000000000000000000000000000"));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class TranscodeCacheTest {
+	private File directory;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("transcodes", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private static void transcode(TranscodeCache cache, String key, int size, boolean success) {
+		TranscodeCache.Entry entry = cache.createEntry(key);
+		entry.write(new byte[size], 0, size);
+		entry.endOfStream(true);
+		entry.endOfProcess(success);
+	}
+
+	@Test
+	public void testCompleteTranscodeIsCached() throws Exception {
+		TranscodeCache cache = new TranscodeCache(directory, 1000);
+		TranscodeCache.Entry entry = cache.createEntry("movie");
+		entry.write(new byte[100], 0, 100);
+		entry.endOfProcess(true);
+
+		// The consumer may still be writing after the process exited
+		assertNull(cache.getFile("movie"));
+		entry.write(new byte[50], 0, 50);
+		entry.endOfStream(true);
+
+		File file = cache.getFile("movie");
+		assertNotNull(file);
+		assertEquals(150, file.length());
+		assertEquals(150, cache.getSize());
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void testFailedTranscodeIsDiscarded() throws Exception {
+		TranscodeCache cache = new TranscodeCache(directory, 1000);
+		transcode(cache, "stopped", 100, false);
+		transcode(cache, "too large", 1001, true);
+
+		assertNull(cache.getFile("stopped"));
+		assertNull(cache.getFile("too large"));
+		assertEquals(0, cache.getSize());
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedTranscodesAreEvicted() throws Exception {
+		TranscodeCache cache = new TranscodeCache(directory, 250);
+		transcode(cache, "first", 100, true);
+		transcode(cache, "second", 100, true);
+
+		// Play the first one again, so the second one is evicted
+		assertNotNull(cache.getFile("first"));
+		transcode(cache, "third", 100, true);
+
+		assertNotNull(cache.getFile("first"));
+		assertNull(cache.getFile("second"));
+		assertNotNull(cache.getFile("third"));
+		assertEquals(200, cache.getSize());
+
+		// A new cache finds the transcodes on disk
+		assertEquals(200, new TranscodeCache(directory, 250).getSize());
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.dlna;
+
+import ch.qos.logback.classic.LoggerContext;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import net.pms.dlna.virtual.VirtualFolder;
+import net.pms.io.OutputParams;
+import net.pms.io.ProcessWrapper;
+import net.pms.io.ProcessWrapperImpl;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class TranscodeSessionsTest {
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	/**
+	 * A process that is never started, whose buffer holds every position.
+	 */
+	private static class BufferedProcess extends ProcessWrapperImpl {
+		private boolean buffered = true;
+
+		BufferedProcess() {
+			super(new String[] {"transcoder"}, new OutputParams(null));
+		}
+
+		@Override
+		public boolean isBuffered(long seek) {
+			return buffered;
+		}
+	}
+
+	@Test
+	public void testSecondViewerSharesTheTranscode() throws Exception {
+		TranscodeSessions sessions = new TranscodeSessions();
+		DLNAResource first = new VirtualFolder("first", null);
+		DLNAResource second = new VirtualFolder("second", null);
+		ProcessWrapper process = new BufferedProcess();
+
+		assertNull(sessions.attach("key", first, 0));
+		sessions.register("key", first, process);
+		assertSame(process, sessions.attach("key", second, 0));
+
+		// The process is only stopped once neither viewer uses it
+		assertTrue(sessions.release(first, process));
+		assertFalse(sessions.release(second, process));
+		assertNull(sessions.attach("key", first, 0));
+	}
+
+	@Test
+	public void testViewerTooFarBehindStartsItsOwnTranscode() throws Exception {
+		TranscodeSessions sessions = new TranscodeSessions();
+		DLNAResource first = new VirtualFolder("first", null);
+		DLNAResource second = new VirtualFolder("second", null);
+		BufferedProcess process = new BufferedProcess();
+
+		assertNull(sessions.attach("key", first, 0));
+		sessions.register("key", first, process);
+		process.buffered = false;
+
+		BufferedProcess secondProcess = new BufferedProcess();
+		assertNull(sessions.attach("key", second, 0));
+		sessions.register("key", second, secondProcess);
+		assertFalse(sessions.release(second, secondProcess));
+		assertFalse(sessions.release(first, process));
+	}
+
+	@Test
+	public void testBlockedTranscodeIsNotShared() throws Exception {
+		TranscodeSessions sessions = new TranscodeSessions();
+		DLNAResource first = new VirtualFolder("first", null);
+		DLNAResource second = new VirtualFolder("second", null);
+		ProcessWrapper process = new BufferedProcess();
+
+		assertNull(sessions.attach("key", first, 0));
+		sessions.register("key", first, process);
+		PMS.getConfiguration().setTranscodeBlocksMultipleConnections(true);
+
+		try {
+			assertNull(sessions.attach("key", second, 0));
+		} finally {
+			PMS.getConfiguration().setTranscodeBlocksMultipleConnections(false);
+		}
+	}
+
+	@Test
+	public void testFailedLaunchWakesUpWaitingViewers() throws Exception {
+		final TranscodeSessions sessions = new TranscodeSessions();
+		final DLNAResource first = new VirtualFolder("first", null);
+		DLNAResource second = new VirtualFolder("second", null);
+
+		assertNull(sessions.attach("key", first, 0));
+
+		Thread launcher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+
+				sessions.register("key", first, null);
+			}
+		};
+		launcher.start();
+
+		// Waits for the launch, then becomes the launcher itself
+		assertNull(sessions.attach("key", second, 0));
+		launcher.join();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+	private static final int SEGMENT_SIZE = BufferPool.SEGMENT_SIZE;
+
+	@Test
+	public void testSegmentsAreRecycled() throws Exception {
+		BufferPool pool = new BufferPool(4L * SEGMENT_SIZE);
+		ByteBuffer segment = pool.acquire();
+		assertTrue(segment.isDirect());
+		assertEquals(SEGMENT_SIZE, segment.capacity());
+		pool.release(segment);
+
+		assertSame(segment, pool.acquire());
+		assertEquals(1, pool.getAllocatedSegments());
+		assertEquals(1, pool.getSegmentsInUse());
+	}
+
+	@Test
+	public void testReservationWaitsForBudget() throws Exception {
+		final BufferPool pool = new BufferPool(4L * SEGMENT_SIZE);
+		assertEquals(4, pool.reserve(4));
+
+		final int[] reserved = new int[1];
+		Thread waiting = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reserved[0] = pool.reserve(2);
+				} catch (InterruptedException e) {
+					// reserved remains unset
+				} catch (IOException e) {
+					// reserved remains unset
+				}
+			}
+		});
+		waiting.start();
+
+		Thread.sleep(200);
+		assertTrue("Reservation waits while the budget is exhausted", waiting.isAlive());
+
+		pool.unreserve(4);
+		waiting.join(5000);
+		assertEquals(2, reserved[0]);
+		assertEquals(2, pool.getReservedSegments());
+	}
+
+	@Test
+	public void testReservationFailsAfterWaiting() throws Exception {
+		BufferPool pool = new BufferPool(32L * SEGMENT_SIZE, 100, 300);
+		assertEquals(24, pool.reserve(24));
+
+		// Less than the minimum partial reservation is left
+		long start = System.currentTimeMillis();
+
+		try {
+			pool.reserve(20);
+			fail("Reservation succeeded without memory");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		assertTrue(System.currentTimeMillis() - start >= 300);
+		assertEquals(24, pool.getReservedSegments());
+	}
+
+	@Test
+	public void testPartialReservation() throws Exception {
+		BufferPool pool = new BufferPool(40L * SEGMENT_SIZE, 100, 300);
+		assertEquals(20, pool.reserve(20));
+
+		// After the first timeout, what is left is enough
+		assertEquals(20, pool.reserve(30));
+		assertEquals(40, pool.getReservedSegments());
+	}
+
+	@Test
+	public void testSegmentedBufferWrapsAround() throws Exception {
+		BufferPool pool = new BufferPool(2L * SEGMENT_SIZE);
+		int capacity = SEGMENT_SIZE + SEGMENT_SIZE / 2;
+		SegmentedBuffer buffer = new SegmentedBuffer(pool, capacity);
+		assertEquals(capacity, buffer.capacity());
+		assertEquals(0, buffer.allocated());
+
+		// Write across the segment boundary and across the end of the buffer
+		byte[] data = new byte[SEGMENT_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		int index = capacity - 100;
+		buffer.allocate(index, data.length);
+		buffer.put(index, data, 0, data.length);
+		assertEquals(2L * SEGMENT_SIZE, buffer.allocated());
+
+		byte[] copy = new byte[data.length];
+		buffer.get(index, copy, 0, copy.length);
+		assertArrayEquals(data, copy);
+		assertEquals(data[100], buffer.get(0));
+
+		buffer.release();
+		assertEquals(0, pool.getReservedSegments());
+		assertEquals(0, pool.getSegmentsInUse());
+	}
+}
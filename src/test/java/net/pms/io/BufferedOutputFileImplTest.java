@@ -0,0 +1,271 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.IOException;
+import java.io.InputStream;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency tests for {@link BufferedOutputFileImpl}. The previous implementation
+ * polled the buffer state every 500 ms, so a reader waiting for data or a writer
+ * waiting for space could be kept waiting for up to half a second after the
+ * other side had made progress. These tests check that both sides are woken up
+ * well within that interval.
+ */
+public class BufferedOutputFileImplTest {
+	/**
+	 * Maximum acceptable latency in milliseconds. This is half the old
+	 * polling interval, leaving plenty of room for slow build machines.
+	 */
+	private static final long MAX_LATENCY = 250;
+
+	private static final int CHUNK_SIZE = 300000;
+
+	@BeforeClass
+	public static void setUpClass() throws ConfigurationException {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	/**
+	 * Creates a 1 MB buffer, small enough to stay out of the way of the GUI
+	 * status updates.
+	 */
+	private static BufferedOutputFileImpl createBuffer() {
+		OutputParams params = new OutputParams(null);
+		params.maxBufferSize = 1;
+		params.minBufferSize = 0.1;
+		params.secondread_minsize = 1000;
+		params.hidebuffer = true;
+		return new BufferedOutputFileImpl(params);
+	}
+
+	@Test
+	public void testTimeToFirstByte() throws Exception {
+		final BufferedOutputFileImpl buffer = createBuffer();
+		final InputStream input = buffer.getInputStream(0);
+		final long[] firstByteTime = new long[1];
+
+		try {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (input.read(new byte[CHUNK_SIZE]) > 0) {
+							firstByteTime[0] = System.nanoTime();
+						}
+					} catch (IOException e) {
+						// firstByteTime remains unset
+					}
+				}
+			});
+			reader.start();
+
+			// Make sure the reader is waiting for data
+			Thread.sleep(200);
+			assertTrue("Reader is waiting for data", reader.isAlive());
+
+			long writeTime = System.nanoTime();
+			buffer.write(new byte[CHUNK_SIZE]);
+			reader.join(5000);
+
+			assertTrue("Reader received data", firstByteTime[0] != 0);
+			long latency = (firstByteTime[0] - writeTime) / 1000000;
+			assertTrue("Time to first byte was " + latency + " ms", latency < MAX_LATENCY);
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	@Test
+	public void testWriterWokenByReader() throws Exception {
+		final BufferedOutputFileImpl buffer = createBuffer();
+		final InputStream input = buffer.getInputStream(0);
+		final long[] writeDoneTime = new long[1];
+
+		try {
+			// Fill the buffer beyond its overflow margin
+			buffer.write(new byte[CHUNK_SIZE]);
+			buffer.write(new byte[CHUNK_SIZE]);
+
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						buffer.write(new byte[CHUNK_SIZE]);
+						writeDoneTime[0] = System.nanoTime();
+					} catch (IOException e) {
+						// writeDoneTime remains unset
+					}
+				}
+			});
+			writer.start();
+
+			// Make sure the writer is waiting for space
+			Thread.sleep(200);
+			assertTrue("Writer is waiting for space", writer.isAlive());
+
+			byte[] b = new byte[CHUNK_SIZE];
+			assertEquals(CHUNK_SIZE, input.read(b));
+
+			// The next read publishes the progress of the previous one
+			long readTime = System.nanoTime();
+			assertTrue(input.read(b, 0, 1) > 0);
+			writer.join(5000);
+
+			assertTrue("Writer finished", writeDoneTime[0] != 0);
+			long latency = (writeDoneTime[0] - readTime) / 1000000;
+			assertTrue("Writer wake-up took " + latency + " ms", latency < MAX_LATENCY);
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	/**
+	 * Creates one second of an MPEG-PS stream: a pack header and a video
+	 * packet with a presentation timestamp, padded to 10000 bytes.
+	 */
+	private static byte[] createMpegSecond(int second) {
+		byte[] data = new byte[10000];
+		long pts = (second + 3) * 90000L;
+		data[2] = 1;
+		data[3] = (byte) 0xba;
+		data[16] = 1;
+		data[17] = (byte) 0xe0;
+		data[20] = (byte) 0x80;
+		data[21] = (byte) 0x80;
+		data[22] = 5;
+		data[23] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+		data[24] = (byte) (pts >> 22);
+		data[25] = (byte) (((pts >> 14) & 0xfe) | 1);
+		data[26] = (byte) (pts >> 7);
+		data[27] = (byte) (((pts << 1) & 0xfe) | 1);
+		return data;
+	}
+
+	@Test
+	public void testOverwrittenDataIsNotRead() throws Exception {
+		BufferedOutputFileImpl buffer = createBuffer();
+
+		try {
+			// A reader ahead of the writer does not hold it up
+			assertNotNull(buffer.getInputStream(2000000));
+
+			for (int i = 0; i < 5; i++) {
+				buffer.write(new byte[CHUNK_SIZE]);
+			}
+
+			// The start of the stream has been overwritten by now
+			InputStream behind = buffer.getInputStream(0);
+			assertEquals(-1, behind.read(new byte[1000]));
+
+			InputStream within = buffer.getInputStream(1000000);
+			assertEquals(1000, within.read(new byte[1000]));
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	@Test
+	public void testTimeSeekWithinBuffer() throws Exception {
+		BufferedOutputFileImpl buffer = createBuffer();
+
+		try {
+			for (int second = 0; second < 10; second++) {
+				buffer.write(createMpegSecond(second));
+			}
+
+			assertEquals(0, buffer.getPositionForTime(0));
+			assertEquals(50000, buffer.getPositionForTime(5.5));
+			assertEquals(90000, buffer.getPositionForTime(9));
+
+			// Not transcoded yet
+			assertEquals(-1, buffer.getPositionForTime(20));
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	@Test
+	public void testWaitForData() throws Exception {
+		final BufferedOutputFileImpl buffer = createBuffer();
+
+		try {
+			assertFalse(buffer.waitForData(100));
+
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(200);
+						buffer.write(new byte[1000]);
+					} catch (Exception e) {
+						// waitForData times out
+					}
+				}
+			});
+			writer.start();
+
+			long start = System.currentTimeMillis();
+			assertTrue(buffer.waitForData(5000));
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			writer.join();
+		} finally {
+			buffer.reset();
+		}
+	}
+
+	@Test
+	public void testUnreadBufferIsReleased() throws Exception {
+		BufferPool pool = BufferPool.getInstance();
+		int reserved = pool.getReservedSegments();
+
+		// Output that is read after the process has ended is still there
+		BufferedOutputFileImpl readLater = createBuffer();
+		readLater.write(new byte[1000]);
+		readLater.close();
+		InputStream input = readLater.getInputStream(0);
+		assertEquals(1000, input.read(new byte[1000]));
+
+		// Output that is never read gives back its memory
+		BufferedOutputFileImpl unread = createBuffer();
+		unread.write(new byte[1000]);
+		unread.close();
+		assertEquals(reserved + 2, pool.getReservedSegments());
+
+		Thread.sleep(3500);
+		assertEquals(reserved + 1, pool.getReservedSegments());
+
+		input.close();
+		readLater.reset();
+		assertEquals(reserved, pool.getReservedSegments());
+	}
+}
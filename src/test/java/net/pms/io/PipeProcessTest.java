@@ -0,0 +1,104 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import net.pms.PMS;
+import net.pms.configuration.PmsConfiguration;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class PipeProcessTest {
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+
+		PMS.setConfiguration(new PmsConfiguration(false));
+	}
+
+	@Test
+	public void testFifoIsUnlinkedWhenStopped() throws Exception {
+		assumeTrue(PosixUtils.isAvailable());
+		PipeProcess pipe = new PipeProcess("pipetest" + System.currentTimeMillis());
+		File fifo = new File(pipe.getInputPipe());
+
+		ProcessWrapper process = pipe.getPipeProcess();
+		assertSame(process, pipe.getPipeProcess());
+		process.runInNewThread();
+
+		// The FIFO exists as soon as the process has been started
+		assertTrue(pipe.isCreated());
+		assertTrue(fifo.exists());
+		assertFalse(fifo.isFile());
+
+		process.stopProcess();
+		assertTrue(process.isDestroyed());
+		assertFalse(fifo.exists());
+	}
+
+	@Test
+	public void testDataFlowsThroughFifo() throws Exception {
+		assumeTrue(PosixUtils.isAvailable());
+		final PipeProcess pipe = new PipeProcess("pipetest" + System.currentTimeMillis(), "out");
+		ProcessWrapper process = pipe.getPipeProcess();
+		process.runInSameThread();
+
+		// The data is lost if the writer closes the FIFO before it is read
+		final CountDownLatch read = new CountDownLatch(1);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream output = pipe.getOutputStream();
+					output.write(new byte[] {1, 2, 3});
+					output.flush();
+					read.await();
+					output.close();
+				} catch (Exception e) {
+					// The reader fails
+				}
+			}
+		};
+
+		try {
+			writer.start();
+			InputStream input = pipe.getInputStream();
+			assertEquals(1, input.read());
+			assertEquals(2, input.read());
+			assertEquals(3, input.read());
+			read.countDown();
+			assertEquals(-1, input.read());
+			input.close();
+			writer.join(5000);
+		} finally {
+			read.countDown();
+			process.stopProcess();
+		}
+	}
+}
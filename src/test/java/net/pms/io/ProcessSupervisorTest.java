@@ -0,0 +1,229 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.io;
+
+import ch.qos.logback.classic.LoggerContext;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.util.Timeout;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class ProcessSupervisorTest {
+	/**
+	 * Process wrapper that only records whether it was stopped.
+	 */
+	private static class StoppableProcess extends InternalJavaProcessImpl {
+		private volatile boolean stopped;
+
+		StoppableProcess() {
+			super(null);
+		}
+
+		@Override
+		public boolean isDestroyed() {
+			return stopped;
+		}
+
+		@Override
+		public void stopProcess() {
+			stopped = true;
+		}
+	}
+
+	/**
+	 * Process that has ended with the given exit code.
+	 */
+	private static class EndedProcess extends Process {
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return null;
+		}
+
+		@Override
+		public int waitFor() {
+			return 0;
+		}
+
+		@Override
+		public int exitValue() {
+			return 0;
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		// Silence all log messages from the PMS code that is being tested
+		LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		context.reset();
+	}
+
+	@Test
+	public void testScheduledTaskRuns() throws Exception {
+		final CountDownLatch ran = new CountDownLatch(1);
+		ProcessSupervisor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		}, 100);
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCancelledTaskDoesNotRun() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		Timeout timeout = ProcessSupervisor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 200);
+
+		timeout.cancel();
+		Thread.sleep(600);
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	public void testStopAfterTimeout() throws Exception {
+		StoppableProcess slow = new StoppableProcess();
+		StoppableProcess fast = new StoppableProcess();
+		ProcessSupervisor.stopAfter(slow, 100);
+		ProcessSupervisor.stopAfter(fast, 100).cancel();
+
+		Thread.sleep(600);
+		assertTrue(slow.isDestroyed());
+		assertFalse(fast.isDestroyed());
+	}
+
+	@Test
+	public void testConsumersShareThreads() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			OutputTextConsumer consumer = new OutputTextConsumer(new ByteArrayInputStream(("line " + i + "\n").getBytes("UTF-8")), false);
+			consumer.start();
+			consumer.join(5000);
+
+			List<String> results = consumer.getResults();
+			assertEquals(1, results.size());
+			assertEquals("line " + i, results.get(0));
+		}
+
+		// Consumers that run one after the other reuse the same threads
+		assertTrue(ProcessSupervisor.getThreadCount() < 20);
+	}
+
+	@Test
+	public void testConsumerCanBeInterrupted() throws Exception {
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		OutputConsumer consumer = new OutputConsumer(null) {
+			@Override
+			public void run() {
+				running.countDown();
+
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+			}
+
+			@Override
+			public BufferedOutputFile getBuffer() {
+				return null;
+			}
+
+			@Override
+			public List<String> getResults() {
+				return null;
+			}
+		};
+
+		assertFalse(consumer.isAlive());
+		consumer.start();
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+		assertTrue(consumer.isAlive());
+
+		// Plugins stop a consumer like the thread it used to be
+		consumer.interrupt();
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		consumer.join();
+		assertFalse(consumer.isAlive());
+	}
+
+	@Test
+	public void testRegistry() throws Exception {
+		ProcessRegistry registry = new ProcessRegistry();
+		Process first = new EndedProcess();
+		Process second = new EndedProcess();
+		registry.add(first, "first");
+		registry.add(second, "second");
+		assertEquals(2, registry.getProcessCount());
+
+		registry.remove(first);
+		registry.remove(first);
+		assertEquals(1, registry.getProcessCount());
+		assertEquals(2, registry.getStartedCount());
+		assertSame(second, registry.getProcesses().get(0));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testRegistryListView() throws Exception {
+		ProcessRegistry registry = new ProcessRegistry();
+		Process first = new EndedProcess();
+		Process second = new EndedProcess();
+		List<Process> processes = registry.asList();
+
+		// The way plugins used to add and remove processes
+		registry.add(first);
+		processes.add(second);
+		assertEquals(2, processes.size());
+		assertTrue(processes.contains(first));
+
+		assertTrue(processes.remove(first));
+		assertFalse(processes.remove(first));
+		assertEquals(1, registry.getProcessCount());
+		assertSame(second, processes.get(0));
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.network;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RequestExecutorTest {
+	private static Runnable blockOn(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					// done
+				}
+			}
+		};
+	}
+
+	private static Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+	@Test
+	public void testBusyStreamPoolDoesNotDelayControlRequests() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1, 1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		try {
+			// Occupy the stream thread and its queue
+			executor.executeStream(blockOn(release));
+			executor.executeStream(blockOn(release));
+
+			CountDownLatch done = new CountDownLatch(1);
+			executor.executeControl(countDown(done));
+			assertTrue("Control request was answered", done.await(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRejectsWhenFull() throws Exception {
+		RequestExecutor executor = new RequestExecutor(1, 1, 1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		try {
+			executor.executeControl(blockOn(release));
+			executor.executeControl(blockOn(release));
+
+			try {
+				executor.executeControl(blockOn(release));
+				fail("Request should have been rejected");
+			} catch (RejectedExecutionException e) {
+				// expected
+			}
+
+			assertEquals(1, executor.getControlPool().getRejectedCount());
+			assertEquals(1, executor.getControlPool().getQueueSize());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+}
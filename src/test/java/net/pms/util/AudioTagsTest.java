@@ -0,0 +1,515 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.tag.Tag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class AudioTagsTest {
+	private static final Logger logger = LoggerFactory.getLogger(AudioTagsTest.class);
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("audiotags", ".tmp");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		OutputStream output = new FileOutputStream(file);
+
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static void writeIntLE(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	private static void writeBytes(ByteArrayOutputStream out, byte[] data) {
+		out.write(data, 0, data.length);
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] vorbisComments(String... comments) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeIntLE(out, 6);
+		writeBytes(out, bytes("vendor"));
+		writeIntLE(out, comments.length);
+
+		for (String comment : comments) {
+			writeIntLE(out, bytes(comment).length);
+			writeBytes(out, bytes(comment));
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Creates a FLAC file of 3 minutes of 44.1 kHz 16-bit stereo audio,
+	 * with an embedded picture of the given size.
+	 */
+	private static byte[] flac(int pictureSize) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeBytes(out, bytes("fLaC"));
+
+		// STREAMINFO
+		long samples = 180 * 44100L;
+		byte[] info = new byte[34];
+		info[10] = (byte) (44100 >> 12);
+		info[11] = (byte) (44100 >> 4);
+		info[12] = (byte) (((44100 & 0x0f) << 4) | (1 << 1) | (15 >> 4));
+		info[13] = (byte) (((15 & 0x0f) << 4) | (int) (samples >> 32));
+		info[14] = (byte) (samples >> 24);
+		info[15] = (byte) (samples >> 16);
+		info[16] = (byte) (samples >> 8);
+		info[17] = (byte) samples;
+		writeInt(out, info.length);
+		writeBytes(out, info);
+
+		byte[] comments = vorbisComments("TITLE=Song", "ARTIST=Artist", "ALBUM=Album", "DATE=2004-05-03", "TRACKNUMBER=3/12", "GENRE=Rock");
+		writeInt(out, (4 << 24) | comments.length);
+		writeBytes(out, comments);
+
+		// PICTURE: type, MIME type, description, size, depth, colors, data
+		ByteArrayOutputStream picture = new ByteArrayOutputStream();
+		writeInt(picture, 3);
+		writeInt(picture, 10);
+		writeBytes(picture, bytes("image/jpeg"));
+		writeInt(picture, 0);
+		writeInt(picture, 500);
+		writeInt(picture, 500);
+		writeInt(picture, 24);
+		writeInt(picture, 0);
+		writeInt(picture, pictureSize);
+		writeBytes(picture, new byte[pictureSize]);
+		writeInt(out, 0x80000000 | (6 << 24) | picture.size());
+		writeBytes(out, picture.toByteArray());
+
+		writeBytes(out, new byte[100000]);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testFlac() throws Exception {
+		write(file, flac(1000));
+		AudioTags tags = AudioTags.read(file);
+		assertNotNull(tags);
+
+		assertEquals("flac", tags.getCodec());
+		assertEquals(44100, tags.getSampleRate());
+		assertEquals(2, tags.getChannels());
+		assertEquals(16, tags.getBitsPerSample());
+		assertEquals(180, tags.getDuration(), 0.001);
+		assertEquals("Song", tags.getTitle());
+		assertEquals("Artist", tags.getArtist());
+		assertEquals("Album", tags.getAlbum());
+		assertEquals("Rock", tags.getGenre());
+		assertEquals(2004, tags.getYear());
+		assertEquals(3, tags.getTrack());
+		assertTrue(tags.hasArtwork());
+	}
+
+	private static void writeId3Frame(ByteArrayOutputStream out, String id, byte[] content) {
+		writeBytes(out, bytes(id));
+		writeInt(out, content.length);
+		out.write(0);
+		out.write(0);
+		writeBytes(out, content);
+	}
+
+	private static byte[] id3Text(String value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(3);
+		writeBytes(out, bytes(value));
+		out.write(0);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes MPEG-1 layer III frames of 128 kbit/s at 44.1 kHz, stereo.
+	 * The first frame has a Xing header if frames is greater than 0.
+	 */
+	private static void writeMp3Frames(ByteArrayOutputStream out, int count, int frames) {
+		for (int i = 0; i < count; i++) {
+			byte[] frame = new byte[417];
+			frame[0] = (byte) 0xff;
+			frame[1] = (byte) 0xfb;
+			frame[2] = (byte) 0x90;
+			frame[3] = (byte) 0x00;
+
+			if (i == 0 && frames > 0) {
+				System.arraycopy(bytes("Xing"), 0, frame, 36, 4);
+				frame[43] = 1;
+				frame[44] = (byte) (frames >>> 24);
+				frame[45] = (byte) (frames >>> 16);
+				frame[46] = (byte) (frames >>> 8);
+				frame[47] = (byte) frames;
+			}
+
+			writeBytes(out, frame);
+		}
+	}
+
+	@Test
+	public void testMp3WithId3v2() throws Exception {
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		writeId3Frame(frames, "TIT2", id3Text("Song"));
+		writeId3Frame(frames, "TPE1", id3Text("Artist"));
+		writeId3Frame(frames, "TALB", id3Text("Album"));
+		writeId3Frame(frames, "TYER", id3Text("1999"));
+		writeId3Frame(frames, "TRCK", id3Text("7/10"));
+		writeId3Frame(frames, "TCON", id3Text("(17)"));
+		writeId3Frame(frames, "APIC", new byte[5000]);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeBytes(out, bytes("ID3"));
+		out.write(3);
+		out.write(0);
+		out.write(0);
+		int size = frames.size() + 100;
+		out.write((size >> 21) & 0x7f);
+		out.write((size >> 14) & 0x7f);
+		out.write((size >> 7) & 0x7f);
+		out.write(size & 0x7f);
+		writeBytes(out, frames.toByteArray());
+		writeBytes(out, new byte[100]);
+
+		// A VBR file: the Xing header says 10 seconds
+		int count = 10 * 44100 / 1152;
+		writeMp3Frames(out, count, count);
+		write(file, out.toByteArray());
+
+		AudioTags tags = AudioTags.read(file);
+		assertNotNull(tags);
+		assertEquals("mp3", tags.getCodec());
+		assertEquals(44100, tags.getSampleRate());
+		assertEquals(2, tags.getChannels());
+		assertEquals(count * 1152.0 / 44100, tags.getDuration(), 0.001);
+		assertEquals("Song", tags.getTitle());
+		assertEquals("Artist", tags.getArtist());
+		assertEquals("Album", tags.getAlbum());
+		assertEquals("Rock", tags.getGenre());
+		assertEquals(1999, tags.getYear());
+		assertEquals(7, tags.getTrack());
+		assertTrue(tags.hasArtwork());
+	}
+
+	@Test
+	public void testMp3WithId3v1() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeMp3Frames(out, 1000, 0);
+
+		byte[] tag = new byte[128];
+		System.arraycopy(bytes("TAG"), 0, tag, 0, 3);
+		System.arraycopy(bytes("Song"), 0, tag, 3, 4);
+		System.arraycopy(bytes("2001"), 0, tag, 93, 4);
+		tag[126] = 4;
+		tag[127] = 8;
+		writeBytes(out, tag);
+		write(file, out.toByteArray());
+
+		AudioTags tags = AudioTags.read(file);
+		assertNotNull(tags);
+		assertEquals(128, tags.getBitrate());
+
+		// The duration follows from the size of the frames and their bit rate
+		assertEquals(1000 * 417 * 8 / 128000.0, tags.getDuration(), 0.001);
+		assertEquals("Song", tags.getTitle());
+		assertNull(tags.getArtist());
+		assertEquals(2001, tags.getYear());
+		assertEquals(4, tags.getTrack());
+		assertEquals("Jazz", tags.getGenre());
+		assertFalse(tags.hasArtwork());
+	}
+
+	private static byte[] box(String type, byte[]... children) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		for (byte[] child : children) {
+			writeBytes(content, child);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeInt(out, content.size() + 8);
+		writeBytes(out, type.getBytes(Charset.forName("ISO-8859-1")));
+		writeBytes(out, content.toByteArray());
+		return out.toByteArray();
+	}
+
+	private static byte[] dataBox(byte[] value) {
+		return box("data", new byte[] {0, 0, 0, 1, 0, 0, 0, 0}, value);
+	}
+
+	@Test
+	public void testM4a() throws Exception {
+		ByteArrayOutputStream mvhd = new ByteArrayOutputStream();
+		writeInt(mvhd, 0);
+		writeInt(mvhd, 0);
+		writeInt(mvhd, 0);
+		writeInt(mvhd, 1000);
+		writeInt(mvhd, 245500);
+		writeBytes(mvhd, new byte[80]);
+
+		ByteArrayOutputStream hdlr = new ByteArrayOutputStream();
+		writeInt(hdlr, 0);
+		writeInt(hdlr, 0);
+		writeBytes(hdlr, bytes("soun"));
+		writeBytes(hdlr, new byte[13]);
+
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		writeBytes(entry, new byte[16]);
+		entry.write(0);
+		entry.write(2);
+		entry.write(0);
+		entry.write(16);
+		writeInt(entry, 0);
+		writeInt(entry, 48000 << 16);
+		ByteArrayOutputStream stsd = new ByteArrayOutputStream();
+		writeInt(stsd, 0);
+		writeInt(stsd, 1);
+		writeBytes(stsd, box("mp4a", entry.toByteArray()));
+
+		byte[] ilst = box("ilst",
+			box("\u00a9nam", dataBox(bytes("Song"))),
+			box("\u00a9ART", dataBox(bytes("Artist"))),
+			box("\u00a9alb", dataBox(bytes("Album"))),
+			box("\u00a9day", dataBox(bytes("2010-01-01T00:00:00Z"))),
+			box("trkn", dataBox(new byte[] {0, 0, 0, 5, 0, 12, 0, 0})),
+			box("gnre", dataBox(new byte[] {0, 14})),
+			box("covr", dataBox(new byte[20000]))
+		);
+
+		byte[] moov = box("moov",
+			box("mvhd", mvhd.toByteArray()),
+			box("trak",
+				box("mdia",
+					box("hdlr", hdlr.toByteArray()),
+					box("minf", box("stbl", box("stsd", stsd.toByteArray())))
+				)
+			),
+			box("udta", box("meta", new byte[4], ilst))
+		);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeBytes(out, box("ftyp", bytes("M4A "), new byte[4]));
+		writeBytes(out, moov);
+		writeBytes(out, box("mdat", new byte[50000]));
+		write(file, out.toByteArray());
+
+		AudioTags tags = AudioTags.read(file);
+		assertNotNull(tags);
+		assertEquals("aac", tags.getCodec());
+		assertEquals(48000, tags.getSampleRate());
+		assertEquals(2, tags.getChannels());
+		assertEquals(245.5, tags.getDuration(), 0.001);
+		assertEquals("Song", tags.getTitle());
+		assertEquals("Artist", tags.getArtist());
+		assertEquals("Album", tags.getAlbum());
+		assertEquals("Pop", tags.getGenre());
+		assertEquals(2010, tags.getYear());
+		assertEquals(5, tags.getTrack());
+		assertTrue(tags.hasArtwork());
+	}
+
+	private static void writeOggPage(ByteArrayOutputStream out, long granule, byte[] data) {
+		writeBytes(out, bytes("OggS"));
+		out.write(0);
+		out.write(0);
+		writeIntLE(out, (int) granule);
+		writeIntLE(out, (int) (granule >>> 32));
+		writeIntLE(out, 1234);
+		writeIntLE(out, 0);
+		writeIntLE(out, 0);
+		int segments = data.length / 255 + 1;
+		out.write(segments);
+
+		for (int i = 0; i < segments - 1; i++) {
+			out.write(255);
+		}
+
+		out.write(data.length % 255);
+		writeBytes(out, data);
+	}
+
+	@Test
+	public void testOggVorbis() throws Exception {
+		ByteArrayOutputStream identification = new ByteArrayOutputStream();
+		identification.write(1);
+		writeBytes(identification, bytes("vorbis"));
+		writeIntLE(identification, 0);
+		identification.write(1);
+		writeIntLE(identification, 22050);
+		writeIntLE(identification, 0);
+		writeIntLE(identification, 96000);
+		writeIntLE(identification, 0);
+		identification.write(0xb8);
+		identification.write(1);
+
+		// The comments span several pages because of the picture
+		ByteArrayOutputStream comments = new ByteArrayOutputStream();
+		comments.write(3);
+		writeBytes(comments, bytes("vorbis"));
+		StringBuilder picture = new StringBuilder("METADATA_BLOCK_PICTURE=");
+
+		for (int i = 0; i < 20000; i++) {
+			picture.append('A');
+		}
+
+		writeBytes(comments, vorbisComments(picture.toString(), "TITLE=Song", "ARTIST=Artist"));
+		comments.write(1);
+		byte[] data = comments.toByteArray();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeOggPage(out, 0, identification.toByteArray());
+
+		for (int offset = 0; offset < data.length; offset += 4000) {
+			byte[] part = new byte[Math.min(4000, data.length - offset)];
+			System.arraycopy(data, offset, part, 0, part.length);
+			writeOggPage(out, 0, part);
+		}
+
+		writeOggPage(out, 60 * 22050L, new byte[3000]);
+		write(file, out.toByteArray());
+
+		AudioTags tags = AudioTags.read(file);
+		assertNotNull(tags);
+		assertEquals("vorbis", tags.getCodec());
+		assertEquals(22050, tags.getSampleRate());
+		assertEquals(1, tags.getChannels());
+		assertEquals(96, tags.getBitrate());
+		assertEquals(60, tags.getDuration(), 0.001);
+		assertEquals("Song", tags.getTitle());
+		assertEquals("Artist", tags.getArtist());
+		assertTrue(tags.hasArtwork());
+	}
+
+	@Test
+	public void testOtherFile() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeBytes(out, bytes("RIFF"));
+		writeBytes(out, new byte[100000]);
+		write(file, out.toByteArray());
+
+		assertNull(AudioTags.read(file));
+	}
+
+	/**
+	 * Reads the same FLAC files with a complete tag library, like the
+	 * parser did before, and with the tag-only reader, and logs the
+	 * number of files read per second. Runs only when the system property
+	 * "audiotags.benchmark" is true.
+	 */
+	@Test
+	public void testScanThroughput() throws Exception {
+		assumeTrue(Boolean.getBoolean("audiotags.benchmark"));
+		int count = 200;
+		List<File> files = new ArrayList<File>();
+		byte[] data = flac(500000);
+
+		try {
+			for (int i = 0; i < count; i++) {
+				File flac = File.createTempFile("audiotags", ".flac");
+				files.add(flac);
+				write(flac, data);
+			}
+
+			long start = System.nanoTime();
+			int completeReads = 0;
+
+			for (File flac : files) {
+				try {
+					AudioFile audioFile = AudioFileIO.read(flac);
+					Tag tag = audioFile.getTag();
+
+					if (tag != null && tag.getArtworkList().size() > 0) {
+						tag.getArtworkList().get(0).getBinaryData();
+					}
+
+					completeReads++;
+				} catch (Exception e) {
+					// Only the time is of interest
+				}
+			}
+
+			long complete = System.nanoTime() - start;
+			start = System.nanoTime();
+
+			for (File flac : files) {
+				assertNotNull(AudioTags.read(flac));
+			}
+
+			long tagOnly = System.nanoTime() - start;
+
+			logger.info(String.format(
+				"Read %d FLAC files with artwork: %.0f files/s with artwork (%d read), %.0f files/s tags only",
+				count,
+				count * 1e9 / complete,
+				completeReads,
+				count * 1e9 / tagOnly
+			));
+		} finally {
+			for (File flac : files) {
+				flac.delete();
+			}
+		}
+	}
+}
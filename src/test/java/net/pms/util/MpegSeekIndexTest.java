@@ -0,0 +1,242 @@
+/*
+ * PS3 Media Server, for streaming any medias to your PS3.
+ * Copyright (C) 2008  A.Brochard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; version 2
+ * of the License only.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package net.pms.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MpegSeekIndexTest {
+	/**
+	 * Bytes per second of the test streams.
+	 */
+	private static final int BYTE_RATE = 94000;
+
+	/**
+	 * Bytes per second and frames per second of the high bitrate stream.
+	 */
+	private static final int HIGH_BYTE_RATE = 2500000;
+	private static final int FRAME_RATE = 12;
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("seekindex", ".ts");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	/**
+	 * Writes a transport stream in which every packet starts a video PES
+	 * packet, with timestamps that grow with the position.
+	 */
+	private void writeTransportStream(int seconds, long firstPts) throws Exception {
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+
+		try {
+			int packets = seconds * BYTE_RATE / 188;
+
+			for (int i = 0; i < packets; i++) {
+				byte[] packet = new byte[188];
+				packet[0] = 0x47;
+				packet[1] = 0x41;
+				packet[2] = 0x00;
+				packet[3] = 0x10;
+				long pts = (firstPts + i * 188L * 90000 / BYTE_RATE) % (1L << 33);
+				writePesHeader(packet, 4, pts);
+				output.write(packet);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Writes a high bitrate transport stream like a broadcast recording:
+	 * only the first packet of each frame has a video timestamp, about
+	 * 200 KB apart, audio packets with their own timestamps are mixed in
+	 * and the stream ends with null packets.
+	 */
+	private void writeSparseTransportStream(int seconds, int nullBytes) throws Exception {
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+
+		try {
+			long packets = (long) seconds * HIGH_BYTE_RATE / 188;
+			long previousFrame = -1;
+
+			for (long i = 0; i < packets; i++) {
+				byte[] packet = new byte[188];
+				packet[0] = 0x47;
+				long frame = i * 188 * FRAME_RATE / HIGH_BYTE_RATE;
+
+				if (frame != previousFrame) {
+					// Video packet that starts a frame
+					packet[1] = 0x41;
+					packet[3] = 0x10;
+					writePesHeader(packet, 4, 90000 + frame * 90000 / FRAME_RATE);
+					previousFrame = frame;
+				} else if (i % 40 == 0) {
+					// Audio packet that starts a frame
+					packet[1] = 0x41;
+					packet[2] = 0x01;
+					packet[3] = 0x10;
+					writePesHeader(packet, 4, i % 1000);
+					packet[7] = (byte) 0xc0;
+				} else {
+					// Rest of a video frame
+					packet[1] = 0x01;
+					packet[3] = 0x10;
+				}
+
+				output.write(packet);
+			}
+
+			for (int i = 0; i < nullBytes / 188; i++) {
+				byte[] packet = new byte[188];
+				packet[0] = 0x47;
+				packet[1] = 0x1f;
+				packet[2] = (byte) 0xff;
+				packet[3] = 0x10;
+				output.write(packet);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	private static void writePesHeader(byte[] data, int offset, long pts) {
+		data[offset + 2] = 1;
+		data[offset + 3] = (byte) 0xe0;
+		data[offset + 6] = (byte) 0x80;
+		data[offset + 7] = (byte) 0x80;
+		data[offset + 8] = 5;
+		data[offset + 9] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+		data[offset + 10] = (byte) (pts >> 22);
+		data[offset + 11] = (byte) (((pts >> 14) & 0xfe) | 1);
+		data[offset + 12] = (byte) (pts >> 7);
+		data[offset + 13] = (byte) (((pts << 1) & 0xfe) | 1);
+	}
+
+	@Test
+	public void testTransportStream() throws Exception {
+		writeTransportStream(60, 90000);
+		MpegSeekIndex index = MpegSeekIndex.create(file);
+		assertNotNull(index);
+
+		assertEquals(60, index.getDuration(), 0.1);
+		assertEquals(60, MpegSeekIndex.readDuration(file), 0.1);
+		assertEquals(0, index.getPosition(0));
+
+		long position = index.getPosition(30);
+		assertEquals(0, position % 188);
+		assertEquals(30 * BYTE_RATE, position, 188);
+	}
+
+	@Test
+	public void testSparseTimestamps() throws Exception {
+		writeSparseTransportStream(10, 600000);
+		MpegSeekIndex index = MpegSeekIndex.create(file);
+		assertNotNull(index);
+
+		// The last frame starts in the last second
+		assertEquals(10, index.getDuration(), 1.0 / FRAME_RATE + 0.01);
+		assertEquals(index.getDuration(), MpegSeekIndex.readDuration(file), 0.01);
+
+		long position = index.getPosition(5);
+		assertEquals(0, position % 188);
+		assertEquals(5 * HIGH_BYTE_RATE, position, HIGH_BYTE_RATE / FRAME_RATE);
+
+		// Without an index, the file is searched for the frame of the time
+		position = MpegSeekIndex.findPosition(file, 5);
+		assertEquals(0, position % 188);
+		assertTrue(position < 5 * HIGH_BYTE_RATE + 188);
+		assertTrue(position > 5 * HIGH_BYTE_RATE - 2 * HIGH_BYTE_RATE / FRAME_RATE - 250000);
+	}
+
+	@Test
+	public void testTimestampWrapAround() throws Exception {
+		// The clock wraps around 20 seconds into the stream
+		writeTransportStream(60, (1L << 33) - 20 * 90000);
+		MpegSeekIndex index = MpegSeekIndex.create(file);
+		assertNotNull(index);
+
+		assertEquals(60, index.getDuration(), 0.1);
+		assertEquals(60, MpegSeekIndex.readDuration(file), 0.1);
+		assertEquals(40 * BYTE_RATE, index.getPosition(40), 188);
+	}
+
+	@Test
+	public void testStoredIndex() throws Exception {
+		writeTransportStream(30, 0);
+		MpegSeekIndex index = MpegSeekIndex.create(file);
+		MpegSeekIndex stored = MpegSeekIndex.read(index.toByteArray());
+		assertNotNull(stored);
+
+		assertEquals(index.getSampleCount(), stored.getSampleCount());
+		assertEquals(index.getDuration(), stored.getDuration(), 0);
+		assertEquals(index.getPosition(12.5), stored.getPosition(12.5));
+		assertNull(MpegSeekIndex.read(new byte[] {1, 2, 3}));
+	}
+
+	@Test
+	public void testProgramStream() throws Exception {
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+
+		try {
+			// One pack with a video packet per 0.1 second
+			for (int i = 0; i < 300; i++) {
+				byte[] pack = new byte[BYTE_RATE / 10];
+				pack[2] = 1;
+				pack[3] = (byte) 0xba;
+				writePesHeader(pack, 14, i * 9000L);
+				output.write(pack);
+			}
+		} finally {
+			output.close();
+		}
+
+		MpegSeekIndex index = MpegSeekIndex.create(file);
+		assertNotNull(index);
+		assertEquals(29.9, index.getDuration(), 0.01);
+
+		// The start of the pack of the time, or else of the next one
+		assertEquals(150 * (BYTE_RATE / 10), index.getPosition(file, 15));
+		assertEquals(151 * (BYTE_RATE / 10), index.getPosition(file, 15.05));
+	}
+
+	@Test
+	public void testOtherFile() throws Exception {
+		OutputStream output = new FileOutputStream(file);
+		output.write(new byte[200000]);
+		output.close();
+
+		assertNull(MpegSeekIndex.create(file));
+		assertEquals(0, MpegSeekIndex.readDuration(file), 0);
+	}
+}